@@ -18,8 +18,10 @@ import android.widget.Toast;
 
 import com.danielpark.camera.CameraApiChecker;
 import com.danielpark.camera.listeners.OnTakePictureListener;
+import com.danielpark.camera.listeners.OnThumbnailListener;
 import com.danielpark.camera.util.AutoFitTextureView;
 import com.danielpark.camera.util.CameraLogger;
+import com.danielpark.camera.util.ThumbnailFeed;
 import com.danielpark.camerasample.databinding.ActivityMainBinding;
 
 import net.danielpark.library.dialog.DialogInput;
@@ -29,8 +31,6 @@ import net.danielpark.library.util.PermissionChecker;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener, OnTakePictureListener, PermissionChecker.OnPermissionCheckerListener {
 
@@ -39,13 +39,16 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
     private ActivityMainBinding binding;
 
-    private Timer timer;
+    private ThumbnailFeed thumbnailFeed;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         binding = DataBindingUtil.setContentView(this, R.layout.activity_main);
 
+        // Lens capabilities are loaded while permissions are checked
+        CameraApiChecker.getInstance().prefetch(this);
+
         permissionChecker = new PermissionChecker(this);
         permissionChecker
                 .withPermissions(
@@ -91,6 +94,8 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 }
             });
 
+            startThumbnailFeed();
+
         } catch (UnsupportedOperationException | IOException e){
             Toast.makeText(MainActivity.this, e.getMessage(), Toast.LENGTH_SHORT).show();
 
@@ -109,39 +114,32 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             e.printStackTrace();
         }
 
-        if (timer == null) {
-            timer = new Timer();
-            timer.scheduleAtFixedRate(new TimerTask() {
-                @Override
-                public void run() {
-                    if (cameraPreview == null) return;
-
-                    Bitmap bitmap = cameraPreview.getThumbnail(0.7f);
+        startThumbnailFeed();
+    }
 
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (bitmap != null)
-                                binding.thumbnail.setImageBitmap(bitmap);
-                        }
-                    });
+    private void startThumbnailFeed() {
+        if (cameraPreview == null || thumbnailFeed != null) return;
 
-                }
-            }, 5000, 10);
-        }
+        // Thumbnail follows preview frames, unchanged frames aren't drawn again
+        thumbnailFeed = new ThumbnailFeed(0.7f, Bitmap.Config.RGB_565, ThumbnailFeed.DEFAULT_MAX_FPS,
+                new OnThumbnailListener() {
+                    @Override
+                    public void onThumbnail(Bitmap bitmap) {
+                        binding.thumbnail.setImageBitmap(bitmap);
+                    }
+                });
+        cameraPreview.setThumbnailFeed(thumbnailFeed);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
 
-        if (cameraPreview != null)
+        if (cameraPreview != null) {
+            cameraPreview.setThumbnailFeed(null);
             cameraPreview.releaseCamera();
-
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
         }
+        thumbnailFeed = null;
     }
 
     @TargetApi(Build.VERSION_CODES.M)
@@ -209,11 +207,6 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         if (cameraPreview != null)
             cameraPreview.finishCamera();
 
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
-        }
-
         super.onDestroy();
     }
 
@@ -4,7 +4,6 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
@@ -17,6 +16,7 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
@@ -28,7 +28,7 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
-import android.util.Log;
+import android.os.SystemClock;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.OrientationEventListener;
@@ -38,22 +38,36 @@ import android.view.WindowManager;
 
 import com.danielpark.camera.listeners.OnTakePictureListener;
 import com.danielpark.camera.util.AutoFitTextureView;
+import com.danielpark.camera.util.BitmapPool;
+import com.danielpark.camera.util.BitmapTransformer;
+import com.danielpark.camera.util.BurstStats;
+import com.danielpark.camera.util.CaptureGeometry;
+import com.danielpark.camera.util.CaptureMetrics;
+import com.danielpark.camera.util.CaptureSink;
+import com.danielpark.camera.util.CaptureStorage;
 import com.danielpark.camera.util.DeviceUtil;
+import com.danielpark.camera.util.ExifUtil;
+import com.danielpark.camera.util.JpegTransformer;
 import com.danielpark.camera.util.Logger;
+import com.danielpark.camera.util.SaveExecutor;
+import com.danielpark.camera.util.YuvFrame;
+import com.danielpark.camera.util.YuvFrameReader;
+import com.danielpark.camera.util.YuvThumbnailer;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.danielpark.camera.Camera2Preview.CameraState.STATE_LOCKED;
 import static com.danielpark.camera.Camera2Preview.CameraState.STATE_PREVIEW;
@@ -91,8 +105,30 @@ public class Camera2Preview extends AutoFitTextureView {
     private CaptureRequest mPreviewRequest;
     /** An {@link ImageReader} that handles still image capture */
     private ImageReader mImageReader;
+    /** maxImages of {@link #mImageReader} */
+    private int mMaxImages;
+    /** Images which are handed off to sink without copy, and not released yet */
+    private final AtomicInteger mOpenImages = new AtomicInteger();
+    /**
+     * YUV stream which feeds frame processors. It is an output of session only while a consumer needs it. <br>
+     *     It is created and closed only on camera thread ({@link #mBackgroundHandler}), other threads only read it
+     */
+    private volatile YuvFrameReader mAnalysisReader;
+    private Size[] mSupportedAnalysisSizes;
+    /** Latest frame of analysis stream, {@link #getThumbnail(float)} is made from it */
+    private YuvFrame mLatestFrame;
+    private final Object mLatestFrameLock = new Object();
+    private final YuvThumbnailer mThumbnailer = new YuvThumbnailer();
+    /** Analysis stream keeps the latest frame since {@link #getThumbnail(float)} was called */
+    private final AtomicBoolean mThumbnailRequested = new AtomicBoolean();
     /** An output file for our picture */
-    private File mTakePictureFile = getOutputMediaFile();
+    /** Still captures which wait for their image, in order of requests */
+    private final ConcurrentLinkedQueue<StillCapture> mPendingStillCaptures = new ConcurrentLinkedQueue<>();
+    private final CaptureMetrics mCaptureMetrics = CaptureMetrics.getInstance();
+    /** Burst which is capturing now */
+    private volatile BurstStats mBurst;
+    /** Output surface of preview, burst request targets it too */
+    private Surface mPreviewSurface;
     /** A {@link Semaphore} to prevent the app from exiting before closing the camera. */
     private Semaphore mCameraOpenCloseLock = new Semaphore(1);
     /** Current camera state */
@@ -111,6 +147,8 @@ public class Camera2Preview extends AutoFitTextureView {
     private final static int DELIVER_LENS_FOCUS_FAILED = 4424;
     /** A {@link Handler} key when finished creating photo */
     private final static int DELIVER_FINISHED_TAKING_PICTURE = 4425;
+    /** Images of JPEG reader which are never handed off, so the next picture can always be acquired */
+    private final static int RESERVED_IMAGES = 2;
 
     /** Orientation event flag */
     private boolean isOrientationEventAvailable = false;
@@ -134,6 +172,7 @@ public class Camera2Preview extends AutoFitTextureView {
 
         setSurfaceTextureListener(mSurfaceTextureListener);
         setOrientationEventListener(true);
+        setCaptureStorage(new CaptureStorage(getStorageDirectory()));
     }
 
     private final TextureView.SurfaceTextureListener mSurfaceTextureListener
@@ -161,7 +200,7 @@ public class Camera2Preview extends AutoFitTextureView {
 
         @Override
         public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
-
+            onPreviewFrameUpdated();
         }
     };
 
@@ -208,7 +247,7 @@ public class Camera2Preview extends AutoFitTextureView {
             super.handleMessage(msg);
 
             if (msg != null)
-                LOG.d("handleMessage : " + msg.toString());
+                LOG.d("handleMessage : {}", msg);
 
             switch (msg.what) {
                 case DELIVER_LENS_FOCUS_SUCCEED: {
@@ -222,8 +261,17 @@ public class Camera2Preview extends AutoFitTextureView {
                     break;
                 }
                 case DELIVER_FINISHED_TAKING_PICTURE: {
-                    if (onTakePictureListener != null && mTakePictureFile != null)
-                        onTakePictureListener.onTakePicture(mTakePictureFile);
+                    if (!(msg.obj instanceof ImageSaver)) break;
+
+                    final ImageSaver imageSaver = (ImageSaver) msg.obj;
+                    if (onTakePictureListener != null && imageSaver.getResult() instanceof File)
+                        onTakePictureListener.onTakePicture((File) imageSaver.getResult());
+
+                    imageSaver.getTarget().deliver(imageSaver.getResult());
+
+                    mCaptureMetrics.end(CaptureMetrics.Stage.LISTENER_DISPATCH, imageSaver.getPostTime());
+                    if (imageSaver.getTakePictureTime() != 0)
+                        mCaptureMetrics.end(CaptureMetrics.Stage.TOTAL, imageSaver.getTakePictureTime());
                     break;
                 }
             }
@@ -239,11 +287,130 @@ public class Camera2Preview extends AutoFitTextureView {
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mTakePictureFile
-                    , mConfigureTransformMargin, mLastConvertedOrientation, mOnImageFinishedHandler));
+            final Image image;
+            try {
+                image = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                // Every image is still held by save queue or sink, this frame is lost
+                LOG.d("Taken picture was dropped, no image left : {}", e.getMessage());
+                onImageDropped();
+                return;
+            }
+            if (image == null) return;
+
+            // Burst frames which were in flight share the reader, so an image is matched to a still capture by its sensor timestamp
+            final StillCapture stillCapture = pollStillCapture(image.getTimestamp());
+            if (stillCapture != null) {
+                mCaptureMetrics.end(CaptureMetrics.Stage.SENSOR_CALLBACK,
+                        stillCapture.shutterTime != 0 ? stillCapture.shutterTime : stillCapture.takePictureTime);
+
+                final ImageSaver imageSaver = createImageSaver(image, stillCapture.takePictureTime);
+                if (!mSaveExecutor.submit(imageSaver)) {
+                    LOG.d("Taken picture was dropped : {}", mSaveExecutor);
+                    imageSaver.close();
+                }
+                return;
+            }
+
+            final BurstStats burst = mBurst;
+            final long capturedTime = SystemClock.elapsedRealtime();
+            if (burst == null || !burst.isFrameDue(capturedTime)) {
+                // Frame between burst intervals, or in flight after burst was finished
+                image.close();
+                return;
+            }
+
+            final int index = burst.onFrameCaptured(capturedTime);
+            if (burst.isCaptureFinished())
+                stopBurst();
+
+            final ImageSaver imageSaver = createImageSaver(image, 0);
+            final boolean queued = mBurstExecutor.submit(new SaveExecutor.Task() {
+                @Override
+                public void run() {
+                    imageSaver.run();
+
+                    if (imageSaver.isSaved()) {
+                        final Object result = imageSaver.getResult();
+                        deliverBurstFrameSaved(burst, result instanceof File ? (File) result : null, index, capturedTime);
+                    }
+                    else
+                        deliverBurstFrameDropped(burst, index);
+                }
+
+                @Override
+                public void onDropped() {
+                    imageSaver.close();
+                    deliverBurstFrameDropped(burst, index);
+                }
+            });
+            if (!queued) {
+                imageSaver.close();
+                deliverBurstFrameDropped(burst, index);
+            }
         }
     };
 
+    /**
+     * @param timestamp sensor timestamp of an image
+     * @return still capture which started exposure at timestamp (it is removed), or null if image isn't of a still capture
+     */
+    private StillCapture pollStillCapture(long timestamp) {
+        for (StillCapture stillCapture : mPendingStillCaptures) {
+            if (stillCapture.sensorTimestamp == timestamp && mPendingStillCaptures.remove(stillCapture))
+                return stillCapture;
+        }
+        return null;
+    }
+
+    /**
+     * Image which couldn't be acquired still consumes its capture request. Its timestamp isn't known,
+     * it is taken as a burst frame while burst is capturing (no still capture is taken meanwhile)
+     */
+    private void onImageDropped() {
+        final BurstStats burst = mBurst;
+        if (burst == null) {
+            mPendingStillCaptures.poll();
+            return;
+        }
+
+        final long capturedTime = SystemClock.elapsedRealtime();
+        if (!burst.isFrameDue(capturedTime)) return;
+
+        final int index = burst.onFrameCaptured(capturedTime);
+        if (burst.isCaptureFinished())
+            stopBurst();
+        deliverBurstFrameDropped(burst, index);
+    }
+
+    /**
+     * ImageSaver copies JPEG and closes image at once when it has to be transformed, so reader never runs out of images. <br>
+     *     Image is handed off without copy only while reader has a room for the next images
+     * @param takePictureTime {@link CaptureMetrics#now()} of takePicture(), or 0 if it isn't a picture (e.g. burst frame)
+     */
+    private ImageSaver createImageSaver(Image image, long takePictureTime) {
+        final boolean zeroCopy = mOpenImages.get() < mMaxImages - RESERVED_IMAGES;
+        return new ImageSaver(image, mCaptureTarget, mConfigureTransformMargin, mLastConvertedOrientation,
+                mOutputMode == OutputMode.EXIF_ORIENTATION, mRequestedOutputWidth, mRequestedOutputHeight,
+                zeroCopy ? mOpenImages : null, takePictureTime, mOnImageFinishedHandler);
+    }
+
+    /**
+     * A still capture request which waits for its image. Times go with the request, so overlapping captures are timed on their own
+     */
+    private static class StillCapture {
+        /** {@link CaptureMetrics#now()} of takePicture() */
+        final long takePictureTime;
+        /** {@link CaptureMetrics#now()} when sensor started exposure (0 : not yet) */
+        volatile long shutterTime;
+        /** Sensor timestamp of the capture, the same as {@link Image#getTimestamp()} of its image (0 : not started yet) */
+        volatile long sensorTimestamp;
+
+        StillCapture(long takePictureTime) {
+            this.takePictureTime = takePictureTime;
+        }
+    }
+
     /**
      * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
      */
@@ -263,7 +430,7 @@ public class Camera2Preview extends AutoFitTextureView {
                 case STATE_WAITING_LOCK: {
                     Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
                     if (afState == null) {
-                        LOG.d("onCaptureCompleted : " + mState.name());
+                        LOG.d("onCaptureCompleted : {}", mState);
                         mState = STATE_PREVIEW;
 
                         // No information
@@ -272,7 +439,7 @@ public class Camera2Preview extends AutoFitTextureView {
                         }
                     }
                     else if (afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED) {
-                        LOG.d("onCaptureCompleted : " + mState.name());
+                        LOG.d("onCaptureCompleted : {}", mState);
                         mState = STATE_LOCKED;
 
                         // Focused locked
@@ -281,7 +448,7 @@ public class Camera2Preview extends AutoFitTextureView {
                         }
                     }
                     else if (afState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED) {
-                        LOG.d("onCaptureCompleted : " + mState.name());
+                        LOG.d("onCaptureCompleted : {}", mState);
                         mState = STATE_LOCKED;
 
                         // Not focused
@@ -302,7 +469,7 @@ public class Camera2Preview extends AutoFitTextureView {
     @Override
     public void openCamera(SurfaceTexture surfaceTexture, int width, int height) throws CameraAccessException, SecurityException {
 //        super.openCamera(surfaceTexture, width, height);
-        LOG.d("openCamera() : " + width + " , " + height);
+        LOG.d("openCamera() : {} , {}", width, height);
 
         /**
          * If OrientationEventListener is available then open it
@@ -373,7 +540,7 @@ public class Camera2Preview extends AutoFitTextureView {
      * @param height The height of available size for camera preview
      */
     private void setUpCameraOutput(int width, int height, CameraManager cameraManager) throws CameraAccessException, NullPointerException {
-        LOG.d("setupCameraOutput() : " + width + " , " + height);
+        LOG.d("setupCameraOutput() : {} , {}", width, height);
 
         // TODO: For now, only rear Camera is supported
         for (String cameraId : cameraManager.getCameraIdList()) {
@@ -406,7 +573,7 @@ public class Camera2Preview extends AutoFitTextureView {
                         Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
                         new CompareSizesByArea());
 
-                LOG.d("1. Largest preview size : " + largestPreviewSize.getWidth() + " , " + largestPreviewSize.getHeight());
+                LOG.d("1. Largest preview size : {} , {}", largestPreviewSize.getWidth(), largestPreviewSize.getHeight());
 
                 // 2. Get the largest supported picture size
 
@@ -419,12 +586,12 @@ public class Camera2Preview extends AutoFitTextureView {
                  * It should be 0, 90, 180, or 270.
                  */
                 mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-                LOG.d("3. Camera Lens orientation : " + mSensorOrientation);
+                LOG.d("3. Camera Lens orientation : {}", mSensorOrientation);
 
                 // 4. Get current display rotation
                 WindowManager windowManager = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
                 int displayRotation = windowManager.getDefaultDisplay().getRotation();
-                LOG.d("4. Current device rotation : " + ORIENTATIONS.get(displayRotation));
+                LOG.d("4. Current device rotation : {}", ORIENTATIONS.get(displayRotation));
 
                 // 5. Check if dimensions should be swapped
                 boolean swappedDimensions = false;
@@ -442,7 +609,7 @@ public class Camera2Preview extends AutoFitTextureView {
                         }
                         break;
                 }
-                LOG.d("5. is Dimension swapped? : " + swappedDimensions);
+                LOG.d("5. is Dimension swapped? : {}", swappedDimensions);
 
                 // 6. Get device resolution max size
                 Point resolutionSize = new Point();
@@ -458,21 +625,27 @@ public class Camera2Preview extends AutoFitTextureView {
                     maxPreviewWidth = resolutionSize.y;
                     maxPreviewHeight = resolutionSize.x;
                 }
-                LOG.d("6. Resolution Size : " + resolutionSize.x + " , " + resolutionSize.y);
+                LOG.d("6. Resolution Size : {} , {}", resolutionSize.x, resolutionSize.y);
 
                 // 7. choose Optimal preview size!
                 mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
                         rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth, maxPreviewHeight,
                         largestPreviewSize);
-                LOG.d("7. Optimal Preview size : " + mPreviewSize.getWidth() + " , " + mPreviewSize.getHeight());
+                LOG.d("7. Optimal Preview size : {} , {}", mPreviewSize.getWidth(), mPreviewSize.getHeight());
 
                 // 8. choose Optimal Picture size!
+                // Every task of save queue (and its workers) may keep an image open,
+                // plus the image which is being acquired
+                mMaxImages = mSaveExecutor.getQueueCapacity() + mSaveExecutor.getWorkerCount() + RESERVED_IMAGES;
                 mImageReader = ImageReader.newInstance(mPreviewSize.getWidth(), mPreviewSize.getHeight(),
-                        ImageFormat.JPEG, /*maxImages*/2);
+                        ImageFormat.JPEG, mMaxImages);
                 mImageReader.setOnImageAvailableListener(
                         mOnImageAvailableListener, mBackgroundHandler);
                 // Daniel (2016-11-04 12:18:33): Picture size should be equal or better than the largest preview size
-                LOG.d("8. Optimal Picture size : " + mImageReader.getWidth() + " , " + mImageReader.getHeight());
+                LOG.d("8. Optimal Picture size : {} , {}", mImageReader.getWidth(), mImageReader.getHeight());
+
+                // Analysis stream size is picked when session is created
+                mSupportedAnalysisSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
 
                 // 9. According to orientation, change SurfaceView size
                 int orientation = getResources().getConfiguration().orientation;
@@ -521,7 +694,10 @@ public class Camera2Preview extends AutoFitTextureView {
         if (null == mPreviewSize)
             return;
 
-        LOG.d("configureTransform () : " + viewWidth + " , " + viewHeight);
+        LOG.d("configureTransform () : {} , {}", viewWidth, viewHeight);
+
+        if (mAnalysisReader != null)
+            mAnalysisReader.setRotation(getJpegOrientation());
 
         // If your preview can change or rotate, take care of those events here.
         // Make sure to stop the preview before resizing or reformatting it.
@@ -544,9 +720,9 @@ public class Camera2Preview extends AutoFitTextureView {
             RectF bufferRect = new RectF(0, 0, mPreviewSize.getWidth(), mPreviewSize.getHeight());
             float centerX = viewRect.centerX();
             float centerY = viewRect.centerY();
-            LOG.d("Surface rotation : " + ORIENTATIONS.get(rotation));
-            LOG.d("Correct Orientation : " + isCorrectOrientation());
-            LOG.d("Sensor orientation : " + mSensorOrientation);
+            LOG.d("Surface rotation : {}", ORIENTATIONS.get(rotation));
+            LOG.d("Correct Orientation : {}", isCorrectOrientation());
+            LOG.d("Sensor orientation : {}", mSensorOrientation);
 
             if (isCorrectOrientation()) {
                 switch (rotation) {
@@ -556,8 +732,8 @@ public class Camera2Preview extends AutoFitTextureView {
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -584,8 +760,8 @@ public class Camera2Preview extends AutoFitTextureView {
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -611,8 +787,8 @@ public class Camera2Preview extends AutoFitTextureView {
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -641,8 +817,8 @@ public class Camera2Preview extends AutoFitTextureView {
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -675,8 +851,8 @@ public class Camera2Preview extends AutoFitTextureView {
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -720,8 +896,8 @@ public class Camera2Preview extends AutoFitTextureView {
                         bufferRect = new RectF(0, 0, mPreviewSize.getHeight(), mPreviewSize.getWidth());
 
                         if (mConfigureTransformMargin == null) mConfigureTransformMargin = new RectF();
-                        LOG.d("offset x  : " + (centerX - bufferRect.centerX()));
-                        LOG.d("offset y : " + (centerY - bufferRect.centerY()));
+                        LOG.d("offset x  : {}", (centerX - bufferRect.centerX()));
+                        LOG.d("offset y : {}", (centerY - bufferRect.centerY()));
                         mConfigureTransformMargin.left = 0;
                         mConfigureTransformMargin.top = 0;
                         mConfigureTransformMargin.right = centerX - bufferRect.centerX();
@@ -780,10 +956,20 @@ public class Camera2Preview extends AutoFitTextureView {
         // We set up a CaptureRequest.Builder with the output Surface.
         mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
         mPreviewRequestBuilder.addTarget(surface);
+        mPreviewSurface = surface;
+
+        final List<Surface> outputs = new ArrayList<>(Arrays.asList(surface, mImageReader.getSurface()));
+
+        // Analysis stream is a third output of the same repeating request
+        final YuvFrameReader analysisReader = createAnalysisReader();
+        if (analysisReader != null) {
+            mPreviewRequestBuilder.addTarget(analysisReader.getSurface());
+            outputs.add(analysisReader.getSurface());
+        }
 
         try {
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            mCameraDevice.createCaptureSession(outputs,
                     new CameraCaptureSession.StateCallback(){
 
                         @Override
@@ -822,6 +1008,123 @@ public class Camera2Preview extends AutoFitTextureView {
         }
     }
 
+    /**
+     * Create analysis stream if a consumer needs it. Previous one is closed after its open images
+     */
+    private YuvFrameReader createAnalysisReader() {
+        clearLatestFrame();
+        if (mAnalysisReader != null) {
+            mAnalysisReader.close();
+            mAnalysisReader = null;
+        }
+        if (!isAnalysisStreamNeeded()) return null;
+
+        final Size size = YuvFrameReader.chooseSize(mSupportedAnalysisSizes, mAnalysisWidth, mAnalysisHeight, mPreviewSize);
+        if (size == null) return null;
+
+        mAnalysisReader = new YuvFrameReader(size.getWidth(), size.getHeight(), mAnalysisMaxImages,
+                mBackgroundHandler, mOnAnalysisFrameListener);
+        mAnalysisReader.setRotation(getJpegOrientation());
+        LOG.d("Analysis stream : {} , {}", size.getWidth(), size.getHeight());
+        return mAnalysisReader;
+    }
+
+    private boolean isAnalysisStreamNeeded() {
+        return mFrameDispatcher.hasProcessors() || mThumbnailRequested.get() || isLatestFrameNeeded();
+    }
+
+    private final YuvFrameReader.OnFrameListener mOnAnalysisFrameListener = new YuvFrameReader.OnFrameListener() {
+        @Override
+        public void onFrame(YuvFrame frame) {
+            if ((mThumbnailRequested.get() || isLatestFrameNeeded()) && frame.acquire()) {
+                final YuvFrame previous;
+                synchronized (mLatestFrameLock) {
+                    previous = mLatestFrame;
+                    mLatestFrame = frame;
+                }
+                if (previous != null)
+                    previous.release();
+            }
+
+            mFrameDispatcher.dispatch(frame);
+        }
+    };
+
+    /**
+     * @return latest analysis frame held once more, or null
+     */
+    @Override
+    protected YuvFrame acquireLatestFrame() {
+        synchronized (mLatestFrameLock) {
+            if (mLatestFrame != null && mLatestFrame.acquire())
+                return mLatestFrame;
+            return null;
+        }
+    }
+
+    private void clearLatestFrame() {
+        final YuvFrame frame;
+        synchronized (mLatestFrameLock) {
+            frame = mLatestFrame;
+            mLatestFrame = null;
+        }
+        if (frame != null)
+            frame.release();
+    }
+
+    /**
+     * Get analysis stream to observe its open images and starved frames (null : no consumer)
+     */
+    public YuvFrameReader getAnalysisReader() {
+        return mAnalysisReader;
+    }
+
+    @Override
+    protected void onFrameProcessorsChanged() {
+        updateAnalysisStream();
+    }
+
+    @Override
+    protected void onLatestFrameConsumersChanged() {
+        onFrameProcessorsChanged();
+    }
+
+    /**
+     * Add or remove analysis stream if its consumers changed. It is decided on camera thread,
+     * which is the only one that creates and closes {@link #mAnalysisReader}
+     */
+    private void updateAnalysisStream() {
+        final Handler handler = mBackgroundHandler;
+        if (handler == null) return;
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Outputs of a session are fixed, session is created again with or without analysis stream
+                if (isAnalysisStreamNeeded() != (mAnalysisReader != null))
+                    restartPreviewSession();
+            }
+        });
+    }
+
+    /**
+     * Create session again. Call it on camera thread
+     */
+    private void restartPreviewSession() {
+        if (mCameraDevice == null) return;
+
+        stopBurst();
+        try {
+            if (mCameraCaptureSession != null) {
+                mCameraCaptureSession.close();
+                mCameraCaptureSession = null;
+            }
+            startPreview();
+        } catch (CameraAccessException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that
      * is at least as large as the respective texture view size, and that is at most as large as the
@@ -883,7 +1186,41 @@ public class Camera2Preview extends AutoFitTextureView {
 
     @Override
     public Bitmap getThumbnail(float ratio) {
-        return null;
+        if (ratio <= 0f || ratio > 1.0f) {
+            ratio = 0.3f;
+        }
+
+        // Thumbnail is made from low resolution analysis stream, not a GPU readback of TextureView.
+        // Stream is added on camera thread after the first call, so the first thumbnail comes a few frames later
+        if (mThumbnailRequested.compareAndSet(false, true))
+            updateAnalysisStream();
+
+        final YuvFrame frame = acquireLatestFrame();
+        if (frame == null) return null;
+
+        try {
+            final int rotation = frame.getRotation();
+            final boolean swapped = rotation == 90 || rotation == 270;
+            final int requestedWidth = (int) (getWidth() * ratio);
+            final int requestedHeight = (int) (getHeight() * ratio);
+            final int factor = YuvThumbnailer.getFactor(frame.getWidth(), frame.getHeight(),
+                    swapped ? requestedHeight : requestedWidth, swapped ? requestedWidth : requestedHeight);
+
+            synchronized (mThumbnailer) {
+                final int[] pixels = mThumbnailer.convert(frame, factor, rotation);
+                final int width = mThumbnailer.getOutputWidth();
+                final int height = mThumbnailer.getOutputHeight();
+
+                Bitmap bitmap = mBitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+                bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+                return bitmap;
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            frame.release();
+        }
     }
 
     /**
@@ -977,13 +1314,82 @@ public class Camera2Preview extends AutoFitTextureView {
 
     @Override
     public void takePicture() {
-        captureStillPicture();
+        // Repeating burst request owns the reader, a still capture would be mixed with its frames
+        final BurstStats burst = mBurst;
+        if (burst != null && !burst.isCaptureFinished()) {
+            LOG.d("Burst is capturing, takePicture() is ignored");
+            return;
+        }
+
+        captureStillPicture(new StillCapture(CaptureMetrics.now()));
+    }
+
+    @Override
+    public void takeBurst(int count, long intervalMs) {
+        if (mCameraDevice == null || mCameraCaptureSession == null || mPreviewSurface == null
+                || mImageReader == null || count <= 0) return;
+
+        if (mBurst != null && !mBurst.isCaptureFinished()) {
+            LOG.d("Burst is already capturing");
+            return;
+        }
+
+        try {
+            // Repeating request feeds both preview and ImageReader,
+            // frames are picked by interval in onImageAvailable and saved on save workers
+            final CaptureRequest.Builder burstBuilder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            burstBuilder.addTarget(mPreviewSurface);
+            burstBuilder.addTarget(mImageReader.getSurface());
+            burstBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+            burstBuilder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            burstBuilder.set(CaptureRequest.JPEG_ORIENTATION, getJpegOrientation());
+
+            mLastConvertedOrientation = getLastOrientation(mLastOrientation);
+            mBurst = new BurstStats(count, intervalMs);
+
+            mCameraCaptureSession.setRepeatingRequest(burstBuilder.build(), null, mBackgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            e.printStackTrace();
+            mBurst = null;
+        }
+    }
+
+    /**
+     * Stop capturing frames of current burst and go back to preview request. Frames which were captured already are still saved
+     */
+    private void stopBurst() {
+        final BurstStats burst = mBurst;
+        if (burst == null) return;
+        mBurst = null;
+
+        if (burst.finishCapture())
+            deliverBurstFinished(burst);
+
+        try {
+            if (mCameraCaptureSession != null && mPreviewRequest != null)
+                mCameraCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get JPEG orientation according to current display rotation
+     */
+    private int getJpegOrientation() {
+        // Daniel (2016-08-26 14:01:20): Current Device rotation
+        WindowManager windowManager = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
+        int displayRotation = windowManager.getDefaultDisplay().getRotation();
+        LOG.d("Current device rotation : {}", ORIENTATIONS.get(displayRotation));
+
+        return (mSensorOrientation - ORIENTATIONS.get(displayRotation) + 360) % 360;
     }
 
     /**
      * Try to capture a still image from preview
      */
-    private void captureStillPicture() {
+    private void captureStillPicture(final StillCapture stillCapture) {
         try {
             if (mCameraDevice != null) {
                 // This is the CaptureRequest.Builder that we use to take a picture.
@@ -992,13 +1398,7 @@ public class Camera2Preview extends AutoFitTextureView {
                 captureBuilder.addTarget(mImageReader.getSurface());
                 captureBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
 
-                // Daniel (2016-08-26 14:01:20): Current Device rotation
-                WindowManager windowManager = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
-                int displayRotation = windowManager.getDefaultDisplay().getRotation();
-                LOG.d("Current device rotation : " + ORIENTATIONS.get(displayRotation));
-
-                int result = (mSensorOrientation - ORIENTATIONS.get(displayRotation) + 360) % 360;
-                captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, result);
+                captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getJpegOrientation());
 
                 // Save converted orientation
                 mLastConvertedOrientation = getLastOrientation(mLastOrientation);
@@ -1006,18 +1406,37 @@ public class Camera2Preview extends AutoFitTextureView {
                 final CameraCaptureSession.CaptureCallback CaptureCallback
                         = new CameraCaptureSession.CaptureCallback() {
 
+                    @Override
+                    public void onCaptureStarted(CameraCaptureSession session,
+                                                 CaptureRequest request,
+                                                 long timestamp, long frameNumber) {
+                        stillCapture.sensorTimestamp = timestamp;
+                        stillCapture.shutterTime = CaptureMetrics.now();
+                        mCaptureMetrics.end(CaptureMetrics.Stage.SHUTTER, stillCapture.takePictureTime);
+                    }
+
                     @Override
                     public void onCaptureCompleted(CameraCaptureSession session,
                                                    CaptureRequest request,
                                                    TotalCaptureResult result) {
 
-                        LOG.d("File path : " + mTakePictureFile.getAbsolutePath());
+                        unlockFocus();
+                    }
+
+                    @Override
+                    public void onCaptureFailed(CameraCaptureSession session,
+                                                CaptureRequest request,
+                                                CaptureFailure failure) {
+                        // No image comes for this request
+                        mPendingStillCaptures.remove(stillCapture);
                         unlockFocus();
                     }
                 };
 
                 mCameraCaptureSession.stopRepeating();
-                mCameraCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
+                mPendingStillCaptures.offer(stillCapture);
+                // Same thread as onImageAvailable, so the capture starts (and gets its timestamp) before its image comes
+                mCameraCaptureSession.capture(captureBuilder.build(), CaptureCallback, mBackgroundHandler);
             }
         } catch (CameraAccessException | IllegalStateException e){
             e.printStackTrace();
@@ -1067,6 +1486,7 @@ public class Camera2Preview extends AutoFitTextureView {
     @Override
     public void releaseCamera() {
         LOG.d("Release Camera");
+        mFramePacingMonitor.reset();
 
         if (mOrientationEventListener != null)
             mOrientationEventListener.disable();
@@ -1087,10 +1507,19 @@ public class Camera2Preview extends AutoFitTextureView {
             mOrientationEventListener = null;
         }
 
+        setThumbnailFeed(null);
+        setMotionCapture(null);
+        mFramePacingMonitor.reset();
+
         try {
             mOnImageFinishedHandler = null;
             closeCamera();
             stopBackgroundThread();
+
+            // Queued pictures are still saved, but no new picture is accepted
+            mSaveExecutor.shutdown();
+            mBurstExecutor.shutdown();
+            mFrameDispatcher.shutdown();
         } catch (Exception e){
             e.printStackTrace();
         }
@@ -1151,6 +1580,8 @@ public class Camera2Preview extends AutoFitTextureView {
      * Close camera
      */
     private void closeCamera() {
+        stopBurst();
+
         try {
             mCameraOpenCloseLock.acquire();
             if (null != mCameraCaptureSession) {
@@ -1165,6 +1596,12 @@ public class Camera2Preview extends AutoFitTextureView {
                 mImageReader.close();
                 mImageReader = null;
             }
+            clearLatestFrame();
+            // Camera thread may be creating a session with it, close it there.
+            // Camera thread is stopped (quitSafely) right after, so it is closed before release returns
+            final Handler handler = mBackgroundHandler;
+            if (handler == null || !handler.post(mCloseAnalysisReader))
+                mCloseAnalysisReader.run();
         } catch (InterruptedException e) {
             e.printStackTrace();
         } finally {
@@ -1173,20 +1610,39 @@ public class Camera2Preview extends AutoFitTextureView {
         }
     }
 
+    private final Runnable mCloseAnalysisReader = new Runnable() {
+        @Override
+        public void run() {
+            final YuvFrameReader analysisReader = mAnalysisReader;
+            mAnalysisReader = null;
+            if (analysisReader != null)
+                analysisReader.close();
+            clearLatestFrame();
+        }
+    };
+
     /**
-     * Saves a JPEG {@link Image} into the specified {@link File}.
+     * Saves a JPEG {@link Image} into {@link com.danielpark.camera.util.CaptureSink}.
      */
     private static class ImageSaver implements Runnable {
         private Logger LOG = Logger.getInstance();
 
         /**
-         * The JPEG image
+         * The JPEG image. It is kept only when JPEG is written as it is
          */
-        private final Image mImage;
+        private Image mImage;
         /**
-         * The file we save the image into.
+         * Copied JPEG which should be transformed
          */
-        private final File mFile;
+        private byte[] mBytes;
+        private final int mWidth;
+        private final int mHeight;
+
+        private final CaptureTarget<?> mTarget;
+        /**
+         * Result of sink (e.g. the file we save the image into)
+         */
+        private Object mResult;
 
         private final Handler mHandler;
 
@@ -1194,112 +1650,285 @@ public class Camera2Preview extends AutoFitTextureView {
 
         private Integer mLastOrientation;
 
-        public ImageSaver(Image image, File file, RectF configurationMargin, Integer lastOrientation, Handler handler) {
-            mImage = image;
-            mFile = file;
+        /** Write EXIF Orientation instead of rotating pixels */
+        private final boolean mExifOrientation;
+
+        /** inSampleSize for requested output size, 1 if picture isn't decoded smaller */
+        private final int mSampleSize;
+
+        private final BitmapPool mBitmapPool = BitmapPool.getInstance();
+        private final CaptureMetrics mCaptureMetrics = CaptureMetrics.getInstance();
+
+        private volatile boolean mSaved;
+
+        /** Counter of images kept open for hand-off, null if image must be copied */
+        private final AtomicInteger mOpenImages;
+
+        /** {@link CaptureMetrics#now()} of takePicture(), 0 if it isn't a picture */
+        private final long mTakePictureTime;
+        /** {@link CaptureMetrics#now()} when result was posted to handler */
+        private volatile long mPostTime;
+
+        public ImageSaver(Image image, CaptureTarget<?> target, RectF configurationMargin, Integer lastOrientation,
+                          boolean exifOrientation, int requestedWidth, int requestedHeight, AtomicInteger openImages,
+                          long takePictureTime, Handler handler) {
+            mTarget = target;
             mConfigureTransformMargin = configurationMargin;
             mLastOrientation = lastOrientation;
+            mExifOrientation = exifOrientation;
             mHandler = handler;
+            mWidth = image.getWidth();
+            mHeight = image.getHeight();
+            mSampleSize = getSampleSize(requestedWidth, requestedHeight);
+            mOpenImages = openImages;
+            mTakePictureTime = takePictureTime;
+
+            if (mOpenImages != null && !mExifOrientation && !hasMargin() && mSampleSize == 1) {
+                // JPEG plane is handed off to sink as it is, no copy
+                mImage = image;
+                mOpenImages.incrementAndGet();
+                return;
+            }
+
+            // Transform needs byte[] anyway, so copy JPEG and close image at once.
+            // Reader never runs out of images while pictures wait in save queue
+            try {
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                mBytes = new byte[buffer.remaining()];
+                buffer.get(mBytes);
+            } finally {
+                image.close();
+            }
+        }
+
+        /**
+         * Release image when it won't be saved (e.g. dropped from save queue)
+         */
+        void close() {
+            if (mImage != null) {
+                closeImage(mImage);
+                mImage = null;
+            }
+            mBytes = null;
         }
 
-        private Bitmap cropImage(Bitmap bitmap) {
-            if (mConfigureTransformMargin == null || bitmap == null) return bitmap;
-            if (mConfigureTransformMargin.left == 0 && mConfigureTransformMargin.top == 0 && mConfigureTransformMargin.right == 0 && mConfigureTransformMargin.bottom == 0) return bitmap;
+        private void closeImage(Image image) {
+            image.close();
+            mOpenImages.decrementAndGet();
+        }
 
-            LOG.d("mConfigureMargin : " + mConfigureTransformMargin.toString());
-            LOG.d("Bitmap size : " + bitmap.getWidth() + " , " + bitmap.getHeight());
-            Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap, (int) Math.abs(mConfigureTransformMargin.left), (int) Math.abs(mConfigureTransformMargin.top),
-                    (int) (bitmap.getWidth() - Math.abs(mConfigureTransformMargin.right * 2)), (int) (bitmap.getHeight() - Math.abs(mConfigureTransformMargin.bottom * 2)));
-            // TODO: Check if it is okay to recycle!!
-            if (bitmap != null && bitmap != rotatedBitmap && !bitmap.isRecycled())
-                bitmap.recycle();
+        private boolean hasMargin() {
+            return mConfigureTransformMargin != null &&
+                    (mConfigureTransformMargin.left != 0 || mConfigureTransformMargin.top != 0
+                            || mConfigureTransformMargin.right != 0 || mConfigureTransformMargin.bottom != 0);
+        }
 
-            return rotatedBitmap;
+        /**
+         * Check if JPEG was written to file
+         */
+        boolean isSaved() {
+            return mSaved;
         }
 
-        private Bitmap rotateImage(Bitmap bitmap, int degrees) {
-            if (bitmap == null) return bitmap;
-            if (degrees % 360 == 0)
-                return bitmap;
+        Object getResult() {
+            return mResult;
+        }
 
-            Matrix matrix = new Matrix();
-            matrix.postRotate(degrees);
+        CaptureTarget<?> getTarget() {
+            return mTarget;
+        }
 
-            Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-            // TODO: Check if it is okay to recycle!!
-            if (bitmap != null && bitmap != rotatedBitmap && !bitmap.isRecycled())
-                bitmap.recycle();
+        long getTakePictureTime() {
+            return mTakePictureTime;
+        }
 
-            return rotatedBitmap;
+        long getPostTime() {
+            return mPostTime;
+        }
+
+        /**
+         * Report result to handler
+         */
+        private void deliverFinished() {
+            mPostTime = CaptureMetrics.now();
+            if (mHandler != null)
+                mHandler.sendMessage(mHandler.obtainMessage(DELIVER_FINISHED_TAKING_PICTURE, this));
+        }
+
+        private int getSampleSize(int requestedWidth, int requestedHeight) {
+            if (mExifOrientation) return 1;
+
+            try {
+                return getGeometry(0).getSampleSize(requestedWidth, requestedHeight);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                return 1;
+            }
+        }
+
+        private CaptureGeometry getGeometry(int rotation) {
+            final int width = mWidth;
+            final int height = mHeight;
+
+            if (!hasMargin())
+                return new CaptureGeometry(width, height, rotation, false);
+
+            return new CaptureGeometry(width, height,
+                    (int) Math.abs(mConfigureTransformMargin.left), (int) Math.abs(mConfigureTransformMargin.top),
+                    (int) (width - Math.abs(mConfigureTransformMargin.right * 2)), (int) (height - Math.abs(mConfigureTransformMargin.bottom * 2)),
+                    rotation, false);
+        }
+
+        /**
+         * Crop and rotate JPEG on its DCT coefficients
+         * @return false if lossless transform isn't possible, nothing is written
+         */
+        private boolean writeLosslessJpeg(byte[] bytes, OutputStream output) throws IOException {
+            final long transformTime = CaptureMetrics.now();
+            final CaptureGeometry geometry;
+            JpegTransformer transformer;
+            try {
+                geometry = getGeometry(mLastOrientation != null ? mLastOrientation : 0);
+                transformer = JpegTransformer.prepare(bytes, geometry);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                return false;
+            }
+            if (transformer == null) return false;
+            mCaptureMetrics.endTransform(geometry, transformTime);
+
+            final long encodeTime = CaptureMetrics.now();
+            transformer.writeTo(output);
+            mCaptureMetrics.end(CaptureMetrics.Stage.ENCODE, encodeTime);
+            return true;
+        }
+
+        /**
+         * Crop JPEG (if needed) and write last orientation to EXIF Orientation
+         * @return false if it isn't possible, nothing is written
+         */
+        private boolean writeExifOrientation(byte[] bytes, OutputStream output) throws IOException {
+            if (ExifUtil.findOrientationOffset(bytes) == ExifUtil.NO_ORIENTATION_TAG) return false;
+
+            // JPEG_ORIENTATION may be written to EXIF by HAL already, so add last orientation on top of it
+            final int orientation = ExifUtil.compose(ExifUtil.readOrientation(bytes),
+                    mLastOrientation != null ? mLastOrientation : 0, false);
+
+            if (!hasMargin()) {
+                final long encodeTime = CaptureMetrics.now();
+                final boolean written = ExifUtil.writeWithOrientation(bytes, orientation, output);
+                mCaptureMetrics.end(CaptureMetrics.Stage.ENCODE, encodeTime);
+                return written;
+            }
+
+            final long transformTime = CaptureMetrics.now();
+            final CaptureGeometry geometry;
+            JpegTransformer transformer;
+            try {
+                geometry = getGeometry(0);
+                transformer = JpegTransformer.prepare(bytes, geometry);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+                return false;
+            }
+            if (transformer == null || !transformer.setExifOrientation(orientation)) return false;
+            mCaptureMetrics.endTransform(geometry, transformTime);
+
+            final long encodeTime = CaptureMetrics.now();
+            transformer.writeTo(output);
+            mCaptureMetrics.end(CaptureMetrics.Stage.ENCODE, encodeTime);
+            return true;
         }
 
         // Daniel (2016-04-29 18:15:01): Try to save image byte to file
         @Override
         public void run() {
-            ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
-            FileOutputStream output = null;
-            try {
-                output = new FileOutputStream(mFile);
+            final byte[] bytes = mBytes;
+            if ((bytes == null && mImage == null) || mTarget == null) {
+                close();
+                return;
+            }
 
-                if (mConfigureTransformMargin == null ||
-                        (mConfigureTransformMargin.left == 0 && mConfigureTransformMargin.top == 0
-                                && mConfigureTransformMargin.right == 0 && mConfigureTransformMargin.bottom == 0)) {
-                    output.write(bytes);
-                } else {
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-                    bitmap = cropImage(bitmap);
+            if (mImage != null) {
+                handOff();
+                return;
+            }
 
-                    if (mLastOrientation % 360 != 0)
-                        bitmap = rotateImage(bitmap, mLastOrientation);
+            CaptureSink.Output<?> sinkOutput = null;
+            try {
+                sinkOutput = mTarget.sink.begin();
+                final OutputStream output = sinkOutput.getOutputStream();
 
+                if (mExifOrientation && writeExifOrientation(bytes, output)) {
+                    LOG.d("EXIF Orientation was written");
+                } else if (!hasMargin() && mSampleSize == 1) {
+                    output.write(bytes);
+                } else if (mSampleSize > 1 || !writeLosslessJpeg(bytes, output)) {
+                    // Only crop rectangle is decoded (subsampled if smaller output is requested),
+                    // and rotation is applied at once, no intermediate bitmap
+                    final int rotation = hasMargin() && mLastOrientation != null ? mLastOrientation : 0;
+                    // Decoder crops and rotates while decoding, so it is all recorded as decode
+                    final long decodeTime = CaptureMetrics.now();
+                    Bitmap bitmap = BitmapTransformer.decode(bytes, getGeometry(rotation), mSampleSize, mBitmapPool);
+                    if (bitmap == null)
+                        throw new IOException("Failed to decode JPEG");
+                    mCaptureMetrics.end(CaptureMetrics.Stage.DECODE, decodeTime);
+
+                    final long encodeTime = CaptureMetrics.now();
                     bitmap.compress(Bitmap.CompressFormat.JPEG, 95, output);
-
-                    // TODO: recycle Bitmap!!
-                    if (bitmap != null) {
-                        bitmap.recycle();
-                        bitmap = null;
-                    }
+                    mCaptureMetrics.end(CaptureMetrics.Stage.ENCODE, encodeTime);
+                    mBitmapPool.put(bitmap);
                 }
+
+                final long writeTime = CaptureMetrics.now();
+                mResult = sinkOutput.commit();
+                mCaptureMetrics.end(CaptureMetrics.Stage.WRITE, writeTime);
+                mSaved = true;
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
-                mImage.close();
-                if (null != output) {
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+                if (sinkOutput != null)
+                    sinkOutput.abort();
+                close();
 
                 // Daniel (2016-11-02 12:09:01): When FileOutputStream process has finished, report result to handler
-                if (mHandler != null)
-                    mHandler.sendEmptyMessage(DELIVER_FINISHED_TAKING_PICTURE);
+                deliverFinished();
+            }
+        }
+
+        /**
+         * Hand off JPEG plane to sink. Image is closed by sink when it releases the buffer
+         */
+        private void handOff() {
+            final Image image = mImage;
+            mImage = null;
+
+            try {
+                final long writeTime = CaptureMetrics.now();
+                mResult = mTarget.sink.handOff(image.getPlanes()[0].getBuffer(), new CaptureSink.Release() {
+                    @Override
+                    public void release() {
+                        closeImage(image);
+                    }
+                });
+                mCaptureMetrics.end(CaptureMetrics.Stage.WRITE, writeTime);
+                mSaved = mResult != null;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                deliverFinished();
             }
         }
     }
 
-    private static File getOutputMediaFile() {
-        File mediaStorageDir = new File(
+    /**
+     * Directory of taken pictures
+     */
+    private static File getStorageDirectory() {
+        return new File(
                 Environment
                         .getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES),
                 "CameraLibrary");
-        if (!mediaStorageDir.exists()) {
-            if (!mediaStorageDir.mkdirs()) {
-                Log.e("CameraLogger", "failed to create directory");
-                return null;
-            }
-        }
-        // Create a media file name
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss")
-                .format(new Date());
-        File mediaFile;
-        mediaFile = new File(mediaStorageDir.getPath() + File.separator
-                + "CameraLibrary_"+ timeStamp +"_.jpg");
-
-        return mediaFile;
     }
 
     /**
@@ -12,8 +12,14 @@ import android.hardware.camera2.CameraManager;
 import android.os.Build;
 
 import com.danielpark.camera.util.AutoFitTextureView;
+import com.danielpark.camera.util.BestShotSelector;
+import com.danielpark.camera.util.CameraCapabilities;
 import com.danielpark.camera.util.DeviceUtil;
 import com.danielpark.camera.util.Logger;
+import com.danielpark.camera.util.CaptureRetention;
+import com.danielpark.camera.util.PreviewBufferRing;
+import com.danielpark.camera.util.SaveExecutor;
+import com.danielpark.camera.util.ZslRing;
 
 import java.io.IOException;
 import java.util.Collections;
@@ -42,6 +48,20 @@ public class CameraApiChecker {
 
     private CameraOrientation orientationMode = CameraOrientation.AutoSet;    // None : means nothing happen!
     private int cameraType = Camera.CameraInfo.CAMERA_FACING_BACK;
+    private AutoFitTextureView.OutputMode outputMode = AutoFitTextureView.OutputMode.PIXEL_ROTATION;
+    private int saveWorkerCount = SaveExecutor.DEFAULT_WORKER_COUNT;
+    private int saveQueueCapacity = SaveExecutor.DEFAULT_QUEUE_CAPACITY;
+    private SaveExecutor.Policy savePolicy = SaveExecutor.DEFAULT_POLICY;
+    private long retentionMaxBytes = CaptureRetention.DEFAULT_MAX_BYTES;
+    private int retentionMaxCount = CaptureRetention.DEFAULT_MAX_COUNT;
+    private long retentionMaxAgeMs = CaptureRetention.UNLIMITED;
+    private int requestedOutputWidth = 0;
+    private int requestedOutputHeight = 0;
+    private int previewBufferDepth = PreviewBufferRing.DEFAULT_DEPTH;
+    private int zslDepth = 0;
+    private long zslMemoryBudget = ZslRing.DEFAULT_MEMORY_BUDGET;
+    private boolean zslFullResolution = false;
+    private int bestShotFrameCount = 0;
 
     /**
      *
@@ -71,6 +91,110 @@ public class CameraApiChecker {
         return this;
     }
 
+    /**
+     * Set how orientation is applied to a taken picture (default : {@link AutoFitTextureView.OutputMode#PIXEL_ROTATION})
+     * @param outputMode
+     * @return
+     */
+    public CameraApiChecker setOutputMode(AutoFitTextureView.OutputMode outputMode) {
+        if (outputMode == null) return this;
+
+        this.outputMode = outputMode;
+        return this;
+    }
+
+    /**
+     * Set queue which saves taken pictures off the camera thread <br>
+     *     (default : {@link SaveExecutor#DEFAULT_WORKER_COUNT} worker, {@link SaveExecutor#DEFAULT_QUEUE_CAPACITY} pictures, {@link SaveExecutor#DEFAULT_POLICY})
+     * @param workerCount number of pictures which are saved at the same time
+     * @param queueCapacity max number of pictures which wait for a worker
+     * @param policy what to do when queue is full
+     * @return
+     */
+    public CameraApiChecker setSaveQueue(int workerCount, int queueCapacity, SaveExecutor.Policy policy) {
+        if (workerCount <= 0 || queueCapacity <= 0 || policy == null) return this;
+
+        this.saveWorkerCount = workerCount;
+        this.saveQueueCapacity = queueCapacity;
+        this.savePolicy = policy;
+        return this;
+    }
+
+    /**
+     * Set budgets of directory which taken pictures are written into. Least recently used pictures are deleted first <br>
+     *     (default : {@link CaptureRetention#DEFAULT_MAX_BYTES} bytes, {@link CaptureRetention#DEFAULT_MAX_COUNT} pictures, no age limit)
+     * @param maxBytes max total size, or {@link CaptureRetention#UNLIMITED}
+     * @param maxCount max number of pictures, or {@link CaptureRetention#UNLIMITED}
+     * @param maxAgeMs max age of a picture, or {@link CaptureRetention#UNLIMITED}
+     * @return
+     */
+    public CameraApiChecker setRetention(long maxBytes, int maxCount, long maxAgeMs) {
+        this.retentionMaxBytes = maxBytes;
+        this.retentionMaxCount = maxCount;
+        this.retentionMaxAgeMs = maxAgeMs;
+        return this;
+    }
+
+    /**
+     * Set resolution which taken picture needs at least (default : 0, full resolution) <br>
+     *     Picture is subsampled by power of two while it is still equal to or bigger than this size.
+     * @param width
+     * @param height
+     * @return
+     */
+    public CameraApiChecker setRequestedOutputSize(int width, int height) {
+        this.requestedOutputWidth = width;
+        this.requestedOutputHeight = height;
+        return this;
+    }
+
+    /**
+     * Set number of preview callback buffers of Camera1 (default : {@link PreviewBufferRing#DEFAULT_DEPTH}) <br>
+     *     Camera skips preview frames while every buffer is held by save workers.
+     * @param depth
+     * @return
+     */
+    public CameraApiChecker setPreviewBufferDepth(int depth) {
+        this.previewBufferDepth = depth;
+        return this;
+    }
+
+    /**
+     * Keep the last preview frames of Camera1, takePicture() saves the frame closest to the tap
+     * without shutter and preview restart (default : off)
+     * @param depth number of frames to keep, e.g. {@link ZslRing#DEFAULT_DEPTH} (0 : off)
+     * @param memoryBudget max bytes of kept frames, e.g. {@link ZslRing#DEFAULT_MEMORY_BUDGET}
+     * @param fullResolution also take a full resolution picture after the frame
+     * @return
+     */
+    public CameraApiChecker setZeroShutterLag(int depth, long memoryBudget, boolean fullResolution) {
+        this.zslDepth = depth;
+        this.zslMemoryBudget = memoryBudget;
+        this.zslFullResolution = fullResolution;
+        return this;
+    }
+
+    /**
+     * Save only the sharpest of frames around the shutter of Camera1 (default : off)
+     * @param frameCount number of frames, e.g. {@link BestShotSelector#DEFAULT_FRAME_COUNT} (0 : off)
+     * @return
+     */
+    public CameraApiChecker setBestShot(int frameCount) {
+        this.bestShotFrameCount = frameCount;
+        return this;
+    }
+
+    /**
+     * Start loading capabilities of camera lenses in background, so {@link #build(Activity)} doesn't open camera to check them. <br>
+     *     Call it as early as possible (e.g. Activity onCreate), it returns at once.
+     * @param context
+     * @return
+     */
+    public CameraApiChecker prefetch(Context context) {
+        CameraCapabilities.getInstance().prefetch(context);
+        return this;
+    }
+
     public enum CameraType {
         CAMERA_FACING_FRONT, CAMERA_FACING_BACK
     }
@@ -97,24 +221,45 @@ public class CameraApiChecker {
         if (!checkCameraHardware(context))
             throw new UnsupportedOperationException("No camera on this device!");
 
-        switch (orientationMode) {
-            case Portrait:
-                context.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
-                break;
-            case Landscape:
-                context.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
-                break;
-            case AutoSet:
-                fixOrientation(context);
-                break;
-        }
+        // Lenses are read from capability file (or probed) in background by prefetch(), UI thread never waits for it.
+        // If they aren't loaded yet, lens is checked by opening camera as before, and probing keeps off the camera meanwhile
+        final CameraCapabilities capabilities = CameraCapabilities.getInstance();
+        CameraCapabilities.Lens lens = capabilities.getLoadedLens(context, cameraType);
+
+        if (lens == null)
+            capabilities.acquireCamera();
+        try {
+            switch (orientationMode) {
+                case Portrait:
+                    context.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
+                    break;
+                case Landscape:
+                    context.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
+                    break;
+                case AutoSet:
+                    fixOrientation(context, lens);
+                    break;
+            }
 
 //        if (checkCamera2BackLensSupport(context)) {
 //            return new Camera2Preview(context);
 //        } else {
-        checkCamera1LensSupport();
+            checkCamera1LensSupport(lens);
+        } finally {
+            if (lens == null)
+                capabilities.releaseCamera();
+        }
 
-        return new CameraPreview(context, cameraType);
+        CameraPreview cameraPreview = new CameraPreview(context, cameraType);
+        cameraPreview.setOutputMode(outputMode);
+        cameraPreview.setRequestedOutputSize(requestedOutputWidth, requestedOutputHeight);
+        cameraPreview.setPreviewBufferDepth(previewBufferDepth);
+        cameraPreview.setZeroShutterLag(zslDepth, zslMemoryBudget, zslFullResolution);
+        cameraPreview.setBestShot(bestShotFrameCount);
+        cameraPreview.setSaveExecutor(new SaveExecutor(saveWorkerCount, saveQueueCapacity, savePolicy));
+        cameraPreview.getCaptureStorage().setRetention(
+                new CaptureRetention(retentionMaxBytes, retentionMaxCount, retentionMaxAgeMs));
+        return cameraPreview;
 //        }
     }
 
@@ -134,19 +279,40 @@ public class CameraApiChecker {
     /**
      * Fix orientation
      * @param context
+     * @param lens capabilities of lens, or null to open camera
      */
-    private void fixOrientation(Activity context) {
+    private void fixOrientation(Activity context, CameraCapabilities.Lens lens) {
         LOG.d("FixOrientation()");
 
-        Camera camera = Camera.open(cameraType);
-
-        if (camera == null)
-            throw new UnsupportedOperationException("No Camera1 " + cameraType + " Lens!");
+        final int largestWidth;
+        final int largestHeight;
+        if (lens != null && lens.getLargestPreviewSize() >= 0) {
+            largestWidth = lens.previewSizes[lens.getLargestPreviewSize()];
+            largestHeight = lens.previewSizes[lens.getLargestPreviewSize() + 1];
+        } else {
+            Camera camera;
+            try {
+                camera = Camera.open(cameraType);
+            } catch (RuntimeException e) {
+                // Camera is used by other app, orientation is left as it is
+                LOG.e("Camera " + cameraType + " couldn't be opened to fix orientation : " + e.getMessage());
+                return;
+            }
 
-        // Daniel (2016-08-26 12:17:06): Get the largest supported preview size
-        Camera.Size largestPreviewSize = Collections.max(
-                camera.getParameters().getSupportedPreviewSizes(),
-                new CompareSizesByArea());
+            if (camera == null)
+                throw new UnsupportedOperationException("No Camera1 " + cameraType + " Lens!");
+
+            try {
+                // Daniel (2016-08-26 12:17:06): Get the largest supported preview size
+                Camera.Size largestPreviewSize = Collections.max(
+                        camera.getParameters().getSupportedPreviewSizes(),
+                        new CompareSizesByArea());
+                largestWidth = largestPreviewSize.width;
+                largestHeight = largestPreviewSize.height;
+            } finally {
+                camera.release();
+            }
+        }
 
         // Daniel (2016-08-26 12:17:33): Get current device configuration
         int orientation = context.getResources().getConfiguration().orientation;
@@ -155,8 +321,8 @@ public class CameraApiChecker {
             int screenWidth = DeviceUtil.getResolutionWidth(context);
             int screenHeight = DeviceUtil.getResolutionHeight(context);
 
-            if ((screenWidth > screenHeight && largestPreviewSize.width < largestPreviewSize.height)
-                    || (screenWidth < screenHeight && largestPreviewSize.width > largestPreviewSize.height))
+            if ((screenWidth > screenHeight && largestWidth < largestHeight)
+                    || (screenWidth < screenHeight && largestWidth > largestHeight))
                 context.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
             else
                 context.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
@@ -166,17 +332,12 @@ public class CameraApiChecker {
             int screenWidth = DeviceUtil.getResolutionWidth(context);
             int screenHeight = DeviceUtil.getResolutionHeight(context);
 
-            if ((screenWidth > screenHeight && largestPreviewSize.width < largestPreviewSize.height)
-                    || (screenWidth < screenHeight && largestPreviewSize.width > largestPreviewSize.height))
+            if ((screenWidth > screenHeight && largestWidth < largestHeight)
+                    || (screenWidth < screenHeight && largestWidth > largestHeight))
                 context.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
             else
                 context.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
         }
-
-        if (camera != null) {
-            camera.release();
-            camera = null;
-        }
     }
 
     /**
@@ -210,7 +371,7 @@ public class CameraApiChecker {
 
                 // rear camera
                 if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
-                    LOG.d("Camera2 API support level : " + characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL));
+                    LOG.d("Camera2 API support level : {}", characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL));
 
                     if (CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL == characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL)
                             || CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_3 == characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL)){
@@ -228,11 +389,21 @@ public class CameraApiChecker {
 
     /**
      * Check if the device supports back facing lens in Camera
+     * @param lens capabilities of lens, or null to open camera
+     * @throws IOException if camera couldn't be opened (e.g. it is used by other app)
      */
-    private void checkCamera1LensSupport() {
+    private void checkCamera1LensSupport(CameraCapabilities.Lens lens) throws IOException {
+        // Lens was opened already while it was probed
+        if (lens != null) return;
+
         // http://stackoverflow.com/questions/26305107/how-to-fix-fail-to-connect-to-camera-service-exception-in-android-emulator
         // Daniel (2016-11-14 10:57:35): For now, it is useless
-        Camera camera = Camera.open(cameraType);
+        Camera camera;
+        try {
+            camera = Camera.open(cameraType);
+        } catch (RuntimeException e) {
+            throw new IOException("Camera " + cameraType + " couldn't be opened : " + e.getMessage());
+        }
 
         if (camera == null) {
             throw new UnsupportedOperationException("No Camera1 " + cameraType + " Lens!");
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.PointF;
@@ -15,6 +16,7 @@ import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.hardware.SensorManager;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.SparseIntArray;
 import android.view.OrientationEventListener;
 import android.view.Surface;
@@ -23,18 +25,33 @@ import android.view.WindowManager;
 
 import com.danielpark.camera.listeners.OnTakePictureListener;
 import com.danielpark.camera.util.AutoFitTextureView;
+import com.danielpark.camera.util.BestShotSelector;
+import com.danielpark.camera.util.BitmapTransformer;
+import com.danielpark.camera.util.BurstStats;
+import com.danielpark.camera.util.CameraCapabilities;
+import com.danielpark.camera.util.CameraParameters;
+import com.danielpark.camera.util.CaptureGeometry;
+import com.danielpark.camera.util.CaptureMetrics;
+import com.danielpark.camera.util.CaptureRetention;
+import com.danielpark.camera.util.CaptureSink;
+import com.danielpark.camera.util.CaptureStorage;
 import com.danielpark.camera.util.DeviceUtil;
+import com.danielpark.camera.util.ExifUtil;
+import com.danielpark.camera.util.JpegTransformer;
+import com.danielpark.camera.util.PreviewBufferRing;
+import com.danielpark.camera.util.SaveExecutor;
+import com.danielpark.camera.util.TraceRing;
+import com.danielpark.camera.util.YuvFrame;
+import com.danielpark.camera.util.YuvTransformer;
+import com.danielpark.camera.util.ZslRing;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.List;
 
 /**
@@ -46,13 +63,45 @@ import java.util.List;
 public class CameraPreview extends AutoFitTextureView{
 
     private Camera mCamera;
+    /** Snapshot of parameters of {@link #mCamera}, null while camera is closed */
+    private CameraParameters mParameters;
     private Camera.Size mPreviewSize;
     private Camera.Size mPictureSize;
     private int mSensorOrientation;
     /** the lastest view size */
     private PointF mLatestViewSize = new PointF();
 
-    private byte[] mPreviewFrame;
+    /** Preview frames are written into these buffers, framework doesn't allocate a byte[] for each frame */
+    private final PreviewBufferRing mPreviewBufferRing = new PreviewBufferRing();
+    /** Whether {@link #mPreviewCallback} is set to camera */
+    private boolean mPreviewCallbackRunning;
+    /** Next preview frame is taken as a picture */
+    private boolean mPreviewCaptureRequested;
+    /** {@link CaptureMetrics#now()} of takePicture() which requested {@link #mPreviewCaptureRequested} */
+    private long mPreviewCaptureTime;
+    /** Format and size of preview frames since {@link #mPreviewCallback} was set */
+    private int mPreviewFrameFormat;
+    private int mPreviewFrameWidth;
+    private int mPreviewFrameHeight;
+    /** Latest preview frame, held in buffer ring while {@link #isLatestFrameNeeded()} */
+    private byte[] mLatestFrame;
+    private long mLatestFrameTime;
+    private final Object mLatestFrameLock = new Object();
+
+    /** Zero shutter lag : number of recent frames to keep (0 : off), their memory budget and full resolution capture after it */
+    private int mZslDepth;
+    private long mZslMemoryBudget = ZslRing.DEFAULT_MEMORY_BUDGET;
+    private boolean mZslFullResolution;
+    /** Recent preview frames since {@link #mPreviewCallback} was set, null if zero shutter lag is off */
+    private volatile ZslRing mZslRing;
+    /** Best shot : picks the sharpest of frames around the shutter, null if it is off */
+    private BestShotSelector mBestShotSelector;
+    /** Same as {@link #mBestShotSelector} while it collects frames of a tap, otherwise null */
+    private volatile BestShotSelector mBestShot;
+
+    private final CaptureMetrics mCaptureMetrics = CaptureMetrics.getInstance();
+    /** {@link CaptureMetrics#now()} of takePicture() which started {@link #mBestShot} */
+    private long mBestShotTime;
 
     /** Last changed orientation */
     private int mLastOrientation;
@@ -75,6 +124,13 @@ public class CameraPreview extends AutoFitTextureView{
 
     private final int mFacingFrontRotateDegree;    // Camera facing front lens should rotate 180!
 
+    /** Burst which is capturing or saving now */
+    private BurstStats mBurst;
+
+    /** Preview was started on {@link #mPreviewTexture} and hasn't been stopped since */
+    private boolean mPreviewRunning;
+    private SurfaceTexture mPreviewTexture;
+
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
 
     static {
@@ -96,6 +152,12 @@ public class CameraPreview extends AutoFitTextureView{
 
         setSurfaceTextureListener(mSurfaceTextureListener);
         setOrientationEventListener(true);
+
+        // Pictures are written in cache directory, don't let it grow forever
+        CaptureStorage captureStorage = new CaptureStorage(getStorageDirectory());
+        captureStorage.setRetention(new CaptureRetention(CaptureRetention.DEFAULT_MAX_BYTES,
+                CaptureRetention.DEFAULT_MAX_COUNT, CaptureRetention.UNLIMITED));
+        setCaptureStorage(captureStorage);
     }
 
     private final TextureView.SurfaceTextureListener mSurfaceTextureListener
@@ -129,7 +191,7 @@ public class CameraPreview extends AutoFitTextureView{
 
         @Override
         public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
-
+            onPreviewFrameUpdated();
         }
     };
 
@@ -139,7 +201,7 @@ public class CameraPreview extends AutoFitTextureView{
             LOG.w("TextureView isn't available! Can't openCamera()");
             return;
         }
-        LOG.d("openCamera() : " + width + " , " + height);
+        LOG.d("openCamera() : {} , {}", width, height);
 
         /**
          * If OrientationEventListener is available then open it
@@ -147,8 +209,21 @@ public class CameraPreview extends AutoFitTextureView{
         if (mOrientationEventListener != null && mOrientationEventListener.canDetectOrientation())
             mOrientationEventListener.enable();
 
-        if (mCamera == null)
-            mCamera = Camera.open(mCameraLensType);
+        if (mCamera == null) {
+            // Capability probing keeps off the camera while preview holds it
+            CameraCapabilities.getInstance().acquireCamera();
+            try {
+                mCamera = Camera.open(mCameraLensType);
+            } catch (RuntimeException e) {
+                CameraCapabilities.getInstance().releaseCamera();
+                throw e;
+            }
+            if (mCamera == null) {
+                CameraCapabilities.getInstance().releaseCamera();
+                throw new RuntimeException("No Camera1 " + mCameraLensType + " Lens!");
+            }
+            mParameters = new CameraParameters(mCamera);
+        }
 
         try {
             setUpCameraOutput(width, height);
@@ -164,9 +239,7 @@ public class CameraPreview extends AutoFitTextureView{
      */
     private boolean isCorrectRatioOrientation() {
         // Daniel (2016-08-26 12:17:06): Get the largest supported preview size
-        Camera.Size largestPreviewSize = Collections.max(
-                mCamera.getParameters().getSupportedPreviewSizes(),
-                new CompareSizesByArea());
+        Camera.Size largestPreviewSize = mParameters.getLargestPreviewSize();
 
         // Daniel (2016-08-26 12:17:33): Get current device configuration
         int orientation = getResources().getConfiguration().orientation;
@@ -202,21 +275,19 @@ public class CameraPreview extends AutoFitTextureView{
      * @param height The height of available size for camera preview
      */
     private void setUpCameraOutput(int width, int height) throws RuntimeException {
-        LOG.d("setupCameraOutput() : " + width + " , " + height);
+        LOG.d("setupCameraOutput() : {} , {}", width, height);
 
         // 1. Get the largest supported preview size
-        Camera.Size largestPreviewSize = Collections.max(
-                mCamera.getParameters().getSupportedPreviewSizes(),
-                new CompareSizesByArea());
+        Camera.Size largestPreviewSize = mParameters.getLargestPreviewSize();
 
-        LOG.d("1. Largest preview size : " + largestPreviewSize.width + " , " + largestPreviewSize.height);
+        LOG.d("1. Largest preview size : {} , {}", largestPreviewSize.width, largestPreviewSize.height);
 
         // 2. Get the largest supported picture size
         Camera.Size largestPictureSize = Collections.max(
-                mCamera.getParameters().getSupportedPictureSizes(),
+                mParameters.getSupportedPictureSizes(),
                 new CompareSizesByArea());
 
-        LOG.d("2. Largest Picture size (Not preview size) : " + largestPictureSize.width + " , " + largestPictureSize.height);
+        LOG.d("2. Largest Picture size (Not preview size) : {} , {}", largestPictureSize.width, largestPictureSize.height);
 
         // 3. Get Camera orientation to fix rotation problem
         // Find out if we need to swap dimension to get the preview size relative to sensor
@@ -229,40 +300,40 @@ public class CameraPreview extends AutoFitTextureView{
         Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
         Camera.getCameraInfo(mCameraLensType, cameraInfo);
         mSensorOrientation = cameraInfo.orientation;
-        LOG.d("3. Camera Lens orientation : " + mSensorOrientation);
+        LOG.d("3. Camera Lens orientation : {}", mSensorOrientation);
         mCamera.setDisplayOrientation(mSensorOrientation);
 
         // 4. Get current display rotation
         WindowManager windowManager = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
         mDisplayRotation = windowManager.getDefaultDisplay().getRotation();
-        LOG.d("4. Current device rotation : " + ORIENTATIONS.get(mDisplayRotation));
+        LOG.d("4. Current device rotation : {}", ORIENTATIONS.get(mDisplayRotation));
 
         // 5. Get device resolution max size
         Point resolutionSize = new Point();
         windowManager.getDefaultDisplay().getSize(resolutionSize);
-        LOG.d("5. Resolution Size : " + resolutionSize.x + " , " + resolutionSize.y);
+        LOG.d("5. Resolution Size : {} , {}", resolutionSize.x, resolutionSize.y);
 
         // 6. choose Optimal preview size!
         // Daniel (2016-11-05 13:59:19): : use the largest preview size for better quality
 //        mPreviewSize = largestPreviewSize;
         // TODO: No need to add largest preview, because view size could be small
-        mPreviewSize = chooseOptimalSize(mCamera.getParameters().getSupportedPreviewSizes(),
+        mPreviewSize = chooseOptimalSize(mParameters.getSupportedPreviewSizes(),
                 width, height, largestPreviewSize.width, largestPreviewSize.height);
-        LOG.d("6. Optimal Preview size : " + mPreviewSize.width + " , " + mPreviewSize.height);
+        LOG.d("6. Optimal Preview size : {} , {}", mPreviewSize.width, mPreviewSize.height);
 
         // 7. choose Optimal Picture size!
-        mPictureSize = chooseOptimalSize(mCamera.getParameters().getSupportedPictureSizes(),
+        mPictureSize = chooseOptimalSize(mParameters.getSupportedPictureSizes(),
                 largestPreviewSize.width, largestPreviewSize.height, largestPreviewSize.width, largestPreviewSize.height,
                 largestPreviewSize);
 
         // Daniel (2016-11-14 15:13:09): OKAY, but if mPictureSize is too bigger than mPreviewSize, e.g) multiple by 2
         if ((float) (mPictureSize.width * mPictureSize.height) > (float) (mPreviewSize.width * mPreviewSize.height) * 2) {
-            mPictureSize = chooseOptimalSize(mCamera.getParameters().getSupportedPictureSizes(),
+            mPictureSize = chooseOptimalSize(mParameters.getSupportedPictureSizes(),
                     largestPreviewSize.width, largestPreviewSize.height, largestPreviewSize.width, largestPreviewSize.height);
         }
 
         // Daniel (2016-11-04 12:18:33): Picture size should be equal or better than the largest preview size
-        LOG.d("7. Optimal Picture size : " + mPictureSize.width + " , " + mPictureSize.height);
+        LOG.d("7. Optimal Picture size : {} , {}", mPictureSize.width, mPictureSize.height);
 
         // Daniel (2016-11-09 15:52:55): try to disable shutter sound
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
@@ -298,7 +369,7 @@ public class CameraPreview extends AutoFitTextureView{
         if (null == mPreviewSize)
             return;
 
-        LOG.d("configureTransform () : " + viewWidth + " , " + viewHeight);
+        LOG.d("configureTransform () : {} , {}", viewWidth, viewHeight);
 
         // If your preview can change or rotate, take care of those events here.
         // Make sure to stop the preview before resizing or reformatting it.
@@ -307,13 +378,6 @@ public class CameraPreview extends AutoFitTextureView{
             return;
         }
 
-        // Stop preview before making changes
-        try {
-            mCamera.stopPreview();
-        } catch (Exception ignored){
-            // ignore: tried to stop a non-existent preview
-        }
-
         // Set preview size and make any resize, rotate or
         // reformatting changes here
         // and start preview with new settings
@@ -330,9 +394,9 @@ public class CameraPreview extends AutoFitTextureView{
             RectF bufferRect = new RectF(0, 0, mPreviewSize.width, mPreviewSize.height);
             float centerX = viewRect.centerX();
             float centerY = viewRect.centerY();
-            LOG.d("Surface rotation : " + ORIENTATIONS.get(mDisplayRotation));
-            LOG.d("Correct Ratio Orientation : " + isCorrectRatioOrientation());
-            LOG.d("Sensor orientation : " + mSensorOrientation);
+            LOG.d("Surface rotation : {}", ORIENTATIONS.get(mDisplayRotation));
+            LOG.d("Correct Ratio Orientation : {}", isCorrectRatioOrientation());
+            LOG.d("Sensor orientation : {}", mSensorOrientation);
 
             if (isCorrectRatioOrientation()) {
                 switch (rotation) {
@@ -342,8 +406,8 @@ public class CameraPreview extends AutoFitTextureView{
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -356,7 +420,7 @@ public class CameraPreview extends AutoFitTextureView{
                                 (float) viewWidth / mPreviewSize.width,
                                 (float) viewHeight / mPreviewSize.height
                         );
-                        LOG.d("scale : " + scale);
+                        LOG.d("scale : {}", scale);
                         matrix.postScale(scale, scale, centerX, centerY);
 
                         // Daniel (2016-11-07 22:36:43): Calculate margin to crop Image
@@ -368,13 +432,13 @@ public class CameraPreview extends AutoFitTextureView{
                         // Daniel (2016-11-08 00:38:08): save the latest view size
                         mLatestViewSize.set(currentExpectedWidthSize, currentExpectedHeightSize);
 
-                        LOG.d("currentVisibleWidth : " + currentExpectedWidthSize);
-                        LOG.d("x_margin : " + (currentExpectedWidthSize - viewWidth));
+                        LOG.d("currentVisibleWidth : {}", currentExpectedWidthSize);
+                        LOG.d("x_margin : {}", currentExpectedWidthSize - viewWidth);
                         mConfigureTransformMargin.left = (currentExpectedWidthSize - viewWidth) / 2;
                         mConfigureTransformMargin.right = (currentExpectedWidthSize - viewWidth) / 2;
 
-                        LOG.d("currentVisibleHeight : " + currentExpectedHeightSize);
-                        LOG.d("y_margin : " + (currentExpectedHeightSize - viewHeight));
+                        LOG.d("currentVisibleHeight : {}", currentExpectedHeightSize);
+                        LOG.d("y_margin : {}", currentExpectedHeightSize - viewHeight);
                         mConfigureTransformMargin.top = (currentExpectedHeightSize - viewHeight) / 2;
                         mConfigureTransformMargin.bottom = (currentExpectedHeightSize - viewHeight) / 2;
 
@@ -392,8 +456,8 @@ public class CameraPreview extends AutoFitTextureView{
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -409,7 +473,7 @@ public class CameraPreview extends AutoFitTextureView{
                                 (float) viewWidth / mPreviewSize.width,
                                 (float) viewHeight / mPreviewSize.height
                         );
-                        LOG.d("scale : " + scale);
+                        LOG.d("scale : {}", scale);
                         matrix.postScale(scale, scale, centerX, centerY);
 
                         // Daniel (2016-11-07 22:36:43): Calculate margin to crop Image
@@ -421,13 +485,13 @@ public class CameraPreview extends AutoFitTextureView{
                         // Daniel (2016-11-08 00:38:08): save the latest view size
                         mLatestViewSize.set(currentExpectedWidthSize, currentExpectedHeightSize);
 
-                        LOG.d("currentVisibleWidth : " + currentExpectedWidthSize);
-                        LOG.d("x_margin : " + (currentExpectedWidthSize - viewWidth));
+                        LOG.d("currentVisibleWidth : {}", currentExpectedWidthSize);
+                        LOG.d("x_margin : {}", currentExpectedWidthSize - viewWidth);
                         mConfigureTransformMargin.left = (currentExpectedWidthSize - viewWidth) / 2;
                         mConfigureTransformMargin.right = (currentExpectedWidthSize - viewWidth) / 2;
 
-                        LOG.d("currentVisibleHeight : " + currentExpectedHeightSize);
-                        LOG.d("y_margin : " + (currentExpectedHeightSize - viewHeight));
+                        LOG.d("currentVisibleHeight : {}", currentExpectedHeightSize);
+                        LOG.d("y_margin : {}", currentExpectedHeightSize - viewHeight);
                         mConfigureTransformMargin.top = (currentExpectedHeightSize - viewHeight) / 2;
                         mConfigureTransformMargin.bottom = (currentExpectedHeightSize - viewHeight) / 2;
 
@@ -440,8 +504,8 @@ public class CameraPreview extends AutoFitTextureView{
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -454,7 +518,7 @@ public class CameraPreview extends AutoFitTextureView{
                                 (float) viewWidth / mPreviewSize.width,
                                 (float) viewHeight / mPreviewSize.height
                         );
-                        LOG.d("scale : " + scale);
+                        LOG.d("scale : {}", scale);
                         matrix.postScale(scale, scale, centerX, centerY);
 
                         // Daniel (2016-11-07 22:36:43): Calculate margin to crop Image
@@ -464,13 +528,13 @@ public class CameraPreview extends AutoFitTextureView{
                         // Daniel (2016-11-08 00:38:08): save the latest view size
                         mLatestViewSize.set(currentExpectedWidthSize, currentExpectedHeightSize);
 
-                        LOG.d("currentVisibleWidth : " + currentExpectedWidthSize);
-                        LOG.d("x_margin : " + (currentExpectedWidthSize - viewWidth));
+                        LOG.d("currentVisibleWidth : {}", currentExpectedWidthSize);
+                        LOG.d("x_margin : {}", currentExpectedWidthSize - viewWidth);
                         mConfigureTransformMargin.left = (currentExpectedWidthSize - viewWidth) / 2;
                         mConfigureTransformMargin.right = (currentExpectedWidthSize - viewWidth) / 2;
 
-                        LOG.d("currentVisibleHeight : " + currentExpectedHeightSize);
-                        LOG.d("y_margin : " + (currentExpectedHeightSize - viewHeight));
+                        LOG.d("currentVisibleHeight : {}", currentExpectedHeightSize);
+                        LOG.d("y_margin : {}", currentExpectedHeightSize - viewHeight);
                         mConfigureTransformMargin.top = (currentExpectedHeightSize - viewHeight) / 2;
                         mConfigureTransformMargin.bottom = (currentExpectedHeightSize - viewHeight) / 2;
 
@@ -486,8 +550,8 @@ public class CameraPreview extends AutoFitTextureView{
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -499,7 +563,7 @@ public class CameraPreview extends AutoFitTextureView{
                                 (float) viewWidth / mPreviewSize.height,
                                 (float) viewHeight / mPreviewSize.width
                         );
-                        LOG.d("scale : " + scale);
+                        LOG.d("scale : {}", scale);
                         matrix.postScale(scale, scale, centerX, centerY);
 
                         // Daniel (2016-11-07 22:36:43): Calculate margin to crop Image
@@ -511,13 +575,13 @@ public class CameraPreview extends AutoFitTextureView{
                         // Daniel (2016-11-08 00:38:08): save the latest view size
                         mLatestViewSize.set(currentExpectedWidthSize, currentExpectedHeightSize);
 
-                        LOG.d("currentVisibleWidth : " + currentExpectedWidthSize);
-                        LOG.d("x_margin : " + (currentExpectedWidthSize - viewWidth));
+                        LOG.d("currentVisibleWidth : {}", currentExpectedWidthSize);
+                        LOG.d("x_margin : {}", currentExpectedWidthSize - viewWidth);
                         mConfigureTransformMargin.left = (currentExpectedWidthSize - viewWidth) / 2;
                         mConfigureTransformMargin.right = (currentExpectedWidthSize - viewWidth) / 2;
 
-                        LOG.d("currentVisibleHeight : " + currentExpectedHeightSize);
-                        LOG.d("y_margin : " + (currentExpectedHeightSize - viewHeight));
+                        LOG.d("currentVisibleHeight : {}", currentExpectedHeightSize);
+                        LOG.d("y_margin : {}", currentExpectedHeightSize - viewHeight);
                         mConfigureTransformMargin.top = (currentExpectedHeightSize - viewHeight) / 2;
                         mConfigureTransformMargin.bottom = (currentExpectedHeightSize - viewHeight) / 2;
 
@@ -536,8 +600,8 @@ public class CameraPreview extends AutoFitTextureView{
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -551,7 +615,7 @@ public class CameraPreview extends AutoFitTextureView{
                                 (float) viewWidth / mPreviewSize.height,
                                 (float) viewHeight / mPreviewSize.width
                         );
-                        LOG.d("scale : " + scale);
+                        LOG.d("scale : {}", scale);
                         matrix.postScale(scale, scale, centerX, centerY);
 
                         // Daniel (2016-11-07 22:36:43): Calculate margin to crop Image
@@ -561,13 +625,13 @@ public class CameraPreview extends AutoFitTextureView{
                         // Daniel (2016-11-08 00:38:08): save the latest view size
                         mLatestViewSize.set(currentExpectedWidthSize, currentExpectedHeightSize);
 
-                        LOG.d("currentVisibleWidth : " + currentExpectedWidthSize);
-                        LOG.d("x_margin : " + (currentExpectedWidthSize - viewWidth));
+                        LOG.d("currentVisibleWidth : {}", currentExpectedWidthSize);
+                        LOG.d("x_margin : {}", currentExpectedWidthSize - viewWidth);
                         mConfigureTransformMargin.left = (currentExpectedWidthSize - viewWidth) / 2;
                         mConfigureTransformMargin.right = (currentExpectedWidthSize - viewWidth) / 2;
 
-                        LOG.d("currentVisibleHeight : " + currentExpectedHeightSize);
-                        LOG.d("y_margin : " + (currentExpectedHeightSize - viewHeight));
+                        LOG.d("currentVisibleHeight : {}", currentExpectedHeightSize);
+                        LOG.d("y_margin : {}", currentExpectedHeightSize - viewHeight);
                         mConfigureTransformMargin.top = (currentExpectedHeightSize - viewHeight) / 2;
                         mConfigureTransformMargin.bottom = (currentExpectedHeightSize - viewHeight) / 2;
 
@@ -582,8 +646,8 @@ public class CameraPreview extends AutoFitTextureView{
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -604,8 +668,8 @@ public class CameraPreview extends AutoFitTextureView{
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -623,8 +687,8 @@ public class CameraPreview extends AutoFitTextureView{
                         final float offset_x = (centerX - bufferRect.centerX());
                         final float offset_y = (centerY - bufferRect.centerY());
 
-                        LOG.d("offset x  : " + offset_x);
-                        LOG.d("offset y : " + offset_y);
+                        LOG.d("offset x  : {}", offset_x);
+                        LOG.d("offset y : {}", offset_y);
 
                         initializeTransformMargin();
 
@@ -641,24 +705,47 @@ public class CameraPreview extends AutoFitTextureView{
             setTransform(matrix);
 
             // 10. Set preview size
-            Camera.Parameters mParameters = mCamera.getParameters();
+            // Both sizes go to camera in one setParameters(), only if they changed
             mParameters.setPreviewSize(mPreviewSize.width, mPreviewSize.height);
-            LOG.d("10. Set preview size : " + mPreviewSize.width + " , " + mPreviewSize.height);
+            LOG.d("10. Set preview size : {} , {}", mPreviewSize.width, mPreviewSize.height);
 
             // 11. Set Picture size & format
             mParameters.setPictureSize(mPictureSize.width, mPictureSize.height);
 //            mParameters.setPictureFormat(PixelFormat.JPEG);
-            LOG.d("11. Set Picture size : " + mPictureSize.width + " , " + mPictureSize.height);
+            LOG.d("11. Set Picture size : {} , {}", mPictureSize.width, mPictureSize.height);
 
-            mCamera.setParameters(mParameters);
+            // Preview is stopped only if a changed parameter needs it, picture size alone is set while it runs
+            boolean previewRunning = mPreviewRunning && surfaceTexture == mPreviewTexture;
+            if (previewRunning && mParameters.isRestartNeeded()) {
+                stopPreview();
+                previewRunning = false;
+            }
+
+            if (mParameters.commit() || !previewRunning) {
+                // Stop preview before making changes
+                stopPreview();
+                mCamera.setPreviewTexture(surfaceTexture);
+                mCamera.startPreview();
+                mPreviewTexture = surfaceTexture;
+                mPreviewRunning = true;
 
-            mCamera.setPreviewTexture(surfaceTexture);
-            mCamera.startPreview();
+                // Preview size might be changed, buffers are sized again
+                restartPreviewCallback();
+            }
         } catch (Exception e){
             e.printStackTrace();
         }
     }
 
+    private void stopPreview() {
+        mPreviewRunning = false;
+        try {
+            mCamera.stopPreview();
+        } catch (Exception ignored){
+            // ignore: tried to stop a non-existent preview
+        }
+    }
+
     private void adjustAspectRatio(int videoWidth, int videoHeight) {
         int viewWidth = getWidth();
         int viewHeight = getHeight();
@@ -770,7 +857,7 @@ public class CameraPreview extends AutoFitTextureView{
                 mCamera.autoFocus(new Camera.AutoFocusCallback() {
                     @Override
                     public void onAutoFocus(boolean success, Camera camera) {
-                        LOG.d("onAutoFocus() : " + success);
+                        LOG.d("onAutoFocus() : {}", success);
 
                         if (onTakePictureListener != null)
                             onTakePictureListener.onLensFocused(success);
@@ -796,9 +883,9 @@ public class CameraPreview extends AutoFitTextureView{
             float width = (float) getWidth() * ratio;
             float height = (float) getHeight() * ratio;
 
-            Bitmap bitmap = super.getBitmap((int) width, (int) height);
-            // TODO: Don't forget to recycle previous bitmap!
-            bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), getTransform(null), true);
+            // Every bitmap comes from pool, and intermediate bitmaps are returned to pool
+            Bitmap bitmap = super.getBitmap(mBitmapPool.get((int) width, (int) height, Bitmap.Config.ARGB_8888));
+            bitmap = BitmapTransformer.transform(bitmap, getTransform(null), mBitmapPool);
 
             return reCalculateBitmap(bitmap, true);
         } catch (Exception e) {
@@ -919,52 +1006,665 @@ public class CameraPreview extends AutoFitTextureView{
 
     @Override
     public void takePicture() {
+        // Start time goes with each capture, so overlapping captures are timed on their own
+        final long takePictureTime = CaptureMetrics.now();
+        if (TraceRing.isEnabled())
+            TraceRing.getInstance().instant("takePicture", 0);
+
+        if (mBestShotSelector != null && mCamera != null) {
+            takeBestShot(mBestShotSelector, takePictureTime);
+            return;
+        }
+
+        // Frame of tap is in ring already, no shutter and no preview restart
+        final ZslRing zslRing = mZslRing;
+        final YuvFrame zslFrame = zslRing != null ? zslRing.acquireClosest(System.nanoTime()) : null;
+        if (zslFrame != null) {
+            captureZslPicture(zslFrame, takePictureTime);
+            if (mZslFullResolution)
+                captureStillPicture(takePictureTime);
+            return;
+        }
 
         // Daniel (2016-11-03 16:12:52): Start taking picture
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
             Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
             Camera.getCameraInfo(mCameraLensType, cameraInfo);
             if (cameraInfo.canDisableShutterSound) {
-                captureStillPicture();
+                captureStillPicture(takePictureTime);
                 return;
             }
         }
 
         // Daniel (2016-12-07 10:56:34): Which means preview frame is invalid (No need to setPreviewCallback, so use setOneshotCallback method
+        // Next frame of buffer ring is taken, callback is removed again after it
         if (mCamera != null) {
-            mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
-                @Override
-                public void onPreviewFrame(byte[] data, Camera camera) {
-                    mPreviewFrame = data;
-                    captureDeprecatePicture();
+            // Taps before the next frame share it, it is timed from the first tap
+            if (!mPreviewCaptureRequested)
+                mPreviewCaptureTime = takePictureTime;
+            mPreviewCaptureRequested = true;
+            updatePreviewCallback();
+        }
+    }
+
+    @Override
+    public void takeBurst(int count, final long intervalMs) {
+        if (mCamera == null || mPreviewSize == null || count <= 0) return;
+
+        if (mBurst != null && !mBurst.isCaptureFinished()) {
+            LOG.d("Burst is already capturing");
+            return;
+        }
+
+        mBurst = new BurstStats(count, intervalMs);
+
+        // Grab preview frames, takePicture() stops preview for every shot.
+        // Camera thread only picks frames, encoding and writing are done on burst workers
+        if (mPreviewCallbackRunning) {
+            // Frames held by burst workers come on top of running buffers, missing buffers are added at once
+            mPreviewBufferRing.setReservedCount(mPreviewBufferRing.getReservedCount() + getBurstBufferCount());
+            mPreviewBufferRing.start(mCamera, mPreviewFrameWidth, mPreviewFrameHeight, mPreviewFrameFormat);
+        } else {
+            updatePreviewCallback();
+        }
+    }
+
+    /**
+     * Number of preview buffers which burst workers and their queue may hold
+     */
+    private int getBurstBufferCount() {
+        return mBurstExecutor.getWorkerCount() + mBurstExecutor.getQueueCapacity();
+    }
+
+    /**
+     * Stop capturing frames of current burst. Frames which were captured already are still saved
+     */
+    private void stopBurst() {
+        if (mBurst == null) return;
+
+        if (mBurst.finishCapture())
+            deliverBurstFinished(mBurst);
+        mBurst = null;
+
+        // Extra buffers are dropped as they are released
+        if (mPreviewCallbackRunning)
+            mPreviewBufferRing.setReservedCount(mPreviewBufferRing.getReservedCount() - getBurstBufferCount());
+
+        updatePreviewCallback();
+    }
+
+    /**
+     * Only one preview callback is set to camera, it hands each frame of buffer ring to picture and burst
+     */
+    private final Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            if (!mPreviewBufferRing.onFrame(data)) return;
+
+            boolean consumed = false;
+            if (mPreviewCaptureRequested) {
+                mPreviewCaptureRequested = false;
+                recordSensorCallback(mPreviewCaptureTime);
+                captureDeprecatePicture(data, mPreviewCaptureTime);
+                consumed = true;
+            }
+
+            final BurstStats burst = mBurst;
+            if (burst != null && captureBurstFrame(burst, data))
+                consumed = true;
+
+            if (mPreviewFrameFormat == ImageFormat.NV21 && mFrameDispatcher.dispatch(data,
+                    mPreviewFrameWidth, mPreviewFrameHeight, getFrameRotation(), System.nanoTime(), mPreviewBufferRing))
+                consumed = true;
+
+            if (mPreviewFrameFormat == ImageFormat.NV21 && isLatestFrameNeeded()) {
+                keepLatestFrame(data);
+                consumed = true;
+            }
+
+            final ZslRing zslRing = mZslRing;
+            if (zslRing != null) {
+                final YuvFrame frame = wrapPreviewFrame(data);
+                zslRing.add(frame);
+                frame.release();
+                consumed = true;
+            }
+
+            final BestShotSelector bestShot = mBestShot;
+            if (bestShot != null) {
+                collectBestShotFrame(bestShot, data);
+                consumed = true;
+            }
+
+            // Consumers acquired it on their own, give back hold of this callback
+            if (consumed)
+                mPreviewBufferRing.release(data);
+            else
+                mPreviewBufferRing.recycle(data);
+
+            updatePreviewCallback();
+        }
+    };
+
+    /**
+     * Set or remove {@link #mPreviewCallback}, whether a picture, burst or frame processor is waiting for preview frames
+     */
+    private void updatePreviewCallback() {
+        if (mCamera == null) return;
+
+        final boolean needed = mPreviewCaptureRequested || (mBurst != null && !mBurst.isCaptureFinished())
+                || mFrameDispatcher.hasProcessors() || isLatestFrameNeeded() || mZslDepth > 0 || mBestShot != null;
+        if (needed == mPreviewCallbackRunning) return;
+
+        try {
+            if (needed) {
+                if (mPreviewSize == null) return;
+
+                mPreviewFrameFormat = mParameters.getPreviewFormat();
+                mPreviewFrameWidth = mPreviewSize.width;
+                mPreviewFrameHeight = mPreviewSize.height;
+
+                // Frames of zero shutter lag ring and best shot are held on top of buffer depth
+                final int zslDepth = mPreviewFrameFormat == ImageFormat.NV21 ? ZslRing.getDepth(mZslDepth, mZslMemoryBudget,
+                        PreviewBufferRing.getBufferSize(mPreviewFrameWidth, mPreviewFrameHeight, mPreviewFrameFormat)) : 0;
+                mPreviewBufferRing.setReservedCount(zslDepth
+                        + (mBestShotSelector != null ? mBestShotSelector.getFrameCount() : 0)
+                        + (mBurst != null && !mBurst.isCaptureFinished() ? getBurstBufferCount() : 0));
+                mZslRing = zslDepth > 0 ? new ZslRing(zslDepth) : null;
+                if (mZslDepth > 0 && zslDepth == 0)
+                    LOG.d("Zero shutter lag is off, preview frame doesn't fit memory budget : {}", mZslMemoryBudget);
+
+                mPreviewBufferRing.start(mCamera, mPreviewFrameWidth, mPreviewFrameHeight, mPreviewFrameFormat);
+                mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+            } else {
+                mCamera.setPreviewCallbackWithBuffer(null);
+                clearLatestFrame();
+                clearZslRing();
+                clearBestShot();
+                mPreviewBufferRing.stop();
+                LOG.d("Preview callback stopped : {}", mPreviewBufferRing);
+            }
+            mPreviewCallbackRunning = needed;
+        } catch (RuntimeException e) {
+            // It might camera already release
+            e.printStackTrace();
+        }
+    }
+
+    private void restartPreviewCallback() {
+        if (mPreviewCallbackRunning && mCamera != null) {
+            mCamera.setPreviewCallbackWithBuffer(null);
+            clearLatestFrame();
+            clearZslRing();
+            clearBestShot();
+            mPreviewBufferRing.stop();
+            mPreviewCallbackRunning = false;
+        }
+        updatePreviewCallback();
+    }
+
+    @Override
+    protected void onFrameProcessorsChanged() {
+        updatePreviewCallback();
+    }
+
+    @Override
+    protected void onLatestFrameConsumersChanged() {
+        updatePreviewCallback();
+    }
+
+    /**
+     * Hold frame as the latest one, previous latest frame goes back to camera
+     */
+    private void keepLatestFrame(byte[] data) {
+        mPreviewBufferRing.acquire(data);
+
+        final byte[] previous;
+        synchronized (mLatestFrameLock) {
+            previous = mLatestFrame;
+            mLatestFrame = data;
+            mLatestFrameTime = System.nanoTime();
+        }
+        if (previous != null)
+            mPreviewBufferRing.release(previous);
+    }
+
+    private void clearLatestFrame() {
+        final byte[] previous;
+        synchronized (mLatestFrameLock) {
+            previous = mLatestFrame;
+            mLatestFrame = null;
+        }
+        if (previous != null)
+            mPreviewBufferRing.release(previous);
+    }
+
+    @Override
+    protected YuvFrame acquireLatestFrame() {
+        final byte[] data;
+        final long timestamp;
+        synchronized (mLatestFrameLock) {
+            data = mLatestFrame;
+            if (data == null) return null;
+
+            mPreviewBufferRing.acquire(data);
+            timestamp = mLatestFrameTime;
+        }
+
+        return YuvFrame.fromNV21(data, getPreviewPlanes(data), mPreviewFrameWidth, mPreviewFrameHeight, getFrameRotation(), timestamp,
+                new YuvFrame.Release() {
+                    @Override
+                    public void release() {
+                        mPreviewBufferRing.release(data);
+                    }
+                });
+    }
+
+    /**
+     * Clockwise rotation which makes preview frame upright on display
+     */
+    private int getFrameRotation() {
+        return (mSensorOrientation - ORIENTATIONS.get(mDisplayRotation) + 360) % 360;
+    }
+
+    /**
+     * Remove preview callback from camera which is going to be released
+     */
+    private void clearPreviewCallback() {
+        mPreviewCaptureRequested = false;
+        if (mCamera != null)
+            mCamera.setPreviewCallbackWithBuffer(null);
+        mPreviewCallbackRunning = false;
+        clearLatestFrame();
+        clearZslRing();
+        clearBestShot();
+        mPreviewBufferRing.clear();
+    }
+
+    /**
+     * Number of preview callback buffers. More buffers let save workers hold frames longer,
+     * but each takes a whole preview frame. It is applied when preview callback is set next time
+     */
+    public void setPreviewBufferDepth(int depth) {
+        mPreviewBufferRing.setDepth(depth);
+    }
+
+    /**
+     * Keep the last preview frames, {@link #takePicture()} saves the frame closest to the tap right away. <br>
+     *     Each frame takes a preview callback buffer, so depth is limited by memory budget. Call it on main thread
+     * @param depth number of frames to keep (0 : off)
+     * @param memoryBudget max bytes of kept frames (e.g. {@link ZslRing#DEFAULT_MEMORY_BUDGET})
+     * @param fullResolution also take a full resolution picture after the frame, as before
+     */
+    public void setZeroShutterLag(int depth, long memoryBudget, boolean fullResolution) {
+        mZslDepth = Math.max(0, depth);
+        mZslMemoryBudget = memoryBudget;
+        mZslFullResolution = fullResolution;
+
+        // Buffers are allocated when preview callback is set, so set it again
+        restartPreviewCallback();
+    }
+
+    public ZslRing getZslRing() {
+        return mZslRing;
+    }
+
+    /**
+     * Frame which reads preview buffer in place. Buffer is held until the frame is released
+     */
+    private YuvFrame wrapPreviewFrame(final byte[] data) {
+        mPreviewBufferRing.acquire(data);
+        return YuvFrame.fromNV21(data, getPreviewPlanes(data), mPreviewFrameWidth, mPreviewFrameHeight, getFrameRotation(),
+                System.nanoTime(), new YuvFrame.Release() {
+                    @Override
+                    public void release() {
+                        mPreviewBufferRing.release(data);
+                    }
+                });
+    }
+
+    /**
+     * Plane views of a held preview buffer. Ring makes them once per buffer, nothing is allocated for each frame
+     */
+    private ByteBuffer[] getPreviewPlanes(byte[] data) {
+        final ByteBuffer[] planes = mPreviewBufferRing.getNV21Planes(data);
+        return planes != null ? planes : YuvFrame.wrapNV21(data, mPreviewFrameWidth, mPreviewFrameHeight);
+    }
+
+    private void clearZslRing() {
+        final ZslRing zslRing = mZslRing;
+        if (zslRing != null)
+            zslRing.clear();
+    }
+
+    /**
+     * Save a frame of zero shutter lag ring. Frame is released after it was saved
+     */
+    private void captureZslPicture(final YuvFrame frame, final long takePictureTime) {
+        LOG.d("captureZslPicture() : {} ms before tap", (System.nanoTime() - frame.getTimestamp()) / 1000000);
+
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        final CaptureGeometry geometry = getFrameCaptureGeometry(width, height);
+        final OutputMode outputMode = mOutputMode;
+        final CaptureTarget<?> target = mCaptureTarget;
+
+        final boolean queued = mSaveExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    saveFrameToSink(target, frame.getNV21(), ImageFormat.NV21, width, height, geometry, outputMode, takePictureTime);
+                } finally {
+                    frame.release();
                 }
-            });
+            }
+        });
+        if (!queued) {
+            frame.release();
+            LOG.d("Taken picture was dropped : {}", mSaveExecutor);
         }
     }
 
+    /**
+     * @return geometry of a preview frame, or null if it couldn't be calculated
+     */
+    private CaptureGeometry getFrameCaptureGeometry(int width, int height) {
+        try {
+            return getCaptureGeometry(width, height, false);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Pick the sharpest of frames around the shutter, only that one is saved. <br>
+     *     Half of frames come from zero shutter lag ring (before tap) if it is on, the rest are the next preview frames.
+     *     Each frame takes a preview callback buffer while frames are collected. Call it on main thread
+     * @param frameCount number of frames to pick from, e.g. {@link BestShotSelector#DEFAULT_FRAME_COUNT} (0 or 1 : off)
+     */
+    public void setBestShot(int frameCount) {
+        clearBestShot();
+        mBestShotSelector = frameCount > 1 ? new BestShotSelector(frameCount, BestShotSelector.DEFAULT_SCORE_WIDTH) : null;
+
+        // Buffers are allocated when preview callback is set, so set it again
+        restartPreviewCallback();
+    }
+
+    public BestShotSelector getBestShotSelector() {
+        return mBestShotSelector;
+    }
+
+    private void takeBestShot(BestShotSelector selector, long takePictureTime) {
+        if (mBestShot != null) {
+            LOG.d("Best shot is already collecting frames : {}", mBestShot);
+            return;
+        }
+
+        final ZslRing zslRing = mZslRing;
+        if (zslRing != null) {
+            for (YuvFrame frame : zslRing.acquireLatest(selector.getFrameCount() / 2)) {
+                selector.offer(frame);
+                frame.release();
+            }
+        }
+
+        mBestShotTime = takePictureTime;
+        mBestShot = selector;
+        updatePreviewCallback();
+    }
+
+    private void collectBestShotFrame(final BestShotSelector selector, byte[] data) {
+        if (mPreviewFrameFormat != ImageFormat.NV21) {
+            // Only NV21 is scored, take this frame as it is
+            final long takePictureTime = mBestShotTime;
+            clearBestShot();
+            captureDeprecatePicture(data, takePictureTime);
+            return;
+        }
+
+        final YuvFrame frame = wrapPreviewFrame(data);
+        final boolean full = selector.offer(frame);
+        frame.release();
+        if (!full) return;
+
+        mBestShot = null;
+        final long takePictureTime = mBestShotTime;
+        recordSensorCallback(takePictureTime);
+
+        final int width = mPreviewFrameWidth;
+        final int height = mPreviewFrameHeight;
+        final CaptureGeometry geometry = getFrameCaptureGeometry(width, height);
+        final OutputMode outputMode = mOutputMode;
+        final CaptureTarget<?> target = mCaptureTarget;
+
+        // Scoring and saving run on save worker, camera thread only collects frames
+        final boolean queued = mSaveExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final YuvFrame selected = selector.select();
+                if (selected == null) return;
+
+                try {
+                    saveFrameToSink(target, selected.getNV21(), ImageFormat.NV21, width, height, geometry, outputMode, takePictureTime);
+                } finally {
+                    selected.release();
+                }
+            }
+        });
+        if (!queued) {
+            selector.clear();
+            LOG.d("Best shot was dropped : {}", mSaveExecutor);
+        }
+    }
+
+    /**
+     * Release frames of a best shot which is still collecting
+     */
+    private void clearBestShot() {
+        final BestShotSelector selector = mBestShot;
+        mBestShot = null;
+        if (selector != null)
+            selector.clear();
+    }
+
+    /**
+     * @return true if frame was handed to save workers
+     */
+    private boolean captureBurstFrame(final BurstStats burst, final byte[] data) {
+        final long capturedTime = SystemClock.elapsedRealtime();
+        if (!burst.isFrameDue(capturedTime)) return false;
+
+        final int index = burst.onFrameCaptured(capturedTime);
+        if (index < 0) return false;
+
+        final int format = mPreviewFrameFormat;
+        final int width = mPreviewFrameWidth;
+        final int height = mPreviewFrameHeight;
+
+        CaptureGeometry frameGeometry = null;
+        try {
+            frameGeometry = getCaptureGeometry(width, height, false);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        final CaptureGeometry geometry = frameGeometry;
+        final OutputMode outputMode = mOutputMode;
+        final CaptureTarget<?> target = mCaptureTarget;
+
+        // Buffer goes back to camera after it was saved or dropped
+        mPreviewBufferRing.acquire(data);
+        final boolean queued = mBurstExecutor.submit(new SaveExecutor.Task() {
+            @Override
+            public void run() {
+                try {
+                    Object result = saveFrameToSink(target, data, format, width, height, geometry, outputMode, 0);
+
+                    if (result != null)
+                        deliverBurstFrameSaved(burst, result instanceof File ? (File) result : null, index, capturedTime);
+                    else
+                        deliverBurstFrameDropped(burst, index);
+                } finally {
+                    mPreviewBufferRing.release(data);
+                }
+            }
+
+            @Override
+            public void onDropped() {
+                mPreviewBufferRing.release(data);
+                deliverBurstFrameDropped(burst, index);
+            }
+        });
+        if (!queued) {
+            mPreviewBufferRing.release(data);
+            deliverBurstFrameDropped(burst, index);
+        }
+        return true;
+    }
+
+    /**
+     * Encode a preview frame and write it to sink. It runs on {@link SaveExecutor} <br>
+     *     NV21 frame is cropped, rotated and mirrored in YUV domain and encoded once, straight into sink.
+     * @param takePictureTime {@link CaptureMetrics#now()} of takePicture(), or 0 if it isn't a picture (e.g. burst frame)
+     * @return result of sink or null if format isn't supported
+     */
+    private Object saveFrameToSink(CaptureTarget<?> target, byte[] data, int format, int width, int height, CaptureGeometry geometry,
+                                   OutputMode outputMode, long takePictureTime) {
+        if (target == null) return null;
+
+        if (format == ImageFormat.NV21 && geometry != null)
+            return encodeFrameToSink(target, data, width, height, geometry, outputMode, takePictureTime);
+
+        if (format != ImageFormat.NV21 && format != ImageFormat.YUY2) {
+            LOG.d("Unsupported preview format : {}", format);
+            return null;
+        }
+
+        // YUY2 isn't transformed in YUV domain, it goes through JPEG path
+        YuvImage yuvImage = new YuvImage(data, format, width, height, null);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        final long encodeTime = CaptureMetrics.now();
+        if (!yuvImage.compressToJpeg(new Rect(0, 0, width, height), 95, byteArrayOutputStream))
+            return null;
+        mCaptureMetrics.end(CaptureMetrics.Stage.ENCODE, encodeTime);
+
+        return saveToSink(target, byteArrayOutputStream.toByteArray(), geometry, outputMode, takePictureTime);
+    }
+
+    /**
+     * Crop, rotate and mirror NV21 frame and encode it to sink at once
+     */
+    private Object encodeFrameToSink(CaptureTarget<?> target, byte[] nv21, int width, int height,
+                                     CaptureGeometry geometry, OutputMode outputMode, long takePictureTime) {
+        CaptureGeometry aligned;
+        try {
+            aligned = YuvTransformer.alignToChroma(geometry);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        // In EXIF mode only crop is applied, rotation and mirror go to EXIF Orientation
+        int exifOrientation = ExifUtil.ORIENTATION_NORMAL;
+        if (outputMode == OutputMode.EXIF_ORIENTATION) {
+            exifOrientation = ExifUtil.getOrientation(aligned.rotation, aligned.mirror);
+            aligned = aligned.cropOnly();
+        }
+
+        // Crop only is done by encoder itself, no copy of frame
+        final YuvImage yuvImage;
+        final Rect rect;
+        byte[] transformed = null;
+        if (aligned.rotation == 0 && !aligned.mirror) {
+            yuvImage = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+            rect = new Rect(aligned.cropX, aligned.cropY, aligned.cropX + aligned.cropWidth, aligned.cropY + aligned.cropHeight);
+        } else {
+            final int outputWidth = aligned.getOutputWidth();
+            final int outputHeight = aligned.getOutputHeight();
+            // Scratch buffer of the ring is reused, no full frame is allocated per capture
+            transformed = mPreviewBufferRing.obtainScratch(YuvTransformer.getNV21Size(outputWidth, outputHeight));
+            final long transformTime = CaptureMetrics.now();
+            YuvTransformer.transformNV21(nv21, aligned, transformed);
+            mCaptureMetrics.endTransform(aligned, transformTime);
+
+            yuvImage = new YuvImage(transformed, ImageFormat.NV21, outputWidth, outputHeight, null);
+            rect = new Rect(0, 0, outputWidth, outputHeight);
+        }
+
+        Object result = null;
+        CaptureSink.Output<?> output = null;
+        try {
+            output = target.sink.begin();
+            final long encodeTime = CaptureMetrics.now();
+            if (yuvImage.compressToJpeg(rect, 95, ExifUtil.withOrientation(output.getOutputStream(), exifOrientation))) {
+                mCaptureMetrics.end(CaptureMetrics.Stage.ENCODE, encodeTime);
+
+                final long writeTime = CaptureMetrics.now();
+                result = output.commit();
+                mCaptureMetrics.end(CaptureMetrics.Stage.WRITE, writeTime);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (output != null)
+                output.abort();
+            if (transformed != null)
+                mPreviewBufferRing.recycleScratch(transformed);
+
+            if (result != null) {
+                LOG.d("Saved : {}", result);
+                notifyTakePicture(target, result, takePictureTime);
+            }
+        }
+        return result;
+    }
+
     /**
      * Try to capture a still image from preview
+     * @param takePictureTime {@link CaptureMetrics#now()} of takePicture()
      */
-    private void captureStillPicture() {
+    private void captureStillPicture(final long takePictureTime) {
         LOG.d("captureStillPicture()");
 
+        // Shutter time belongs to this picture only
+        final long[] shutterTime = new long[1];
         try {
             if (mCamera != null)
-                mCamera.takePicture(null, null, new Camera.PictureCallback() {
+                mCamera.takePicture(new Camera.ShutterCallback() {
                     @Override
-                    public void onPictureTaken(byte[] bytes, Camera camera) {
-                        if (bytes != null) {
-                            LOG.d("view Width : " + getWidth());
-                            LOG.d("view Height : " + getHeight());
-
-                            Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+                    public void onShutter() {
+                        shutterTime[0] = CaptureMetrics.now();
+                        mCaptureMetrics.record(CaptureMetrics.Stage.SHUTTER, shutterTime[0] - takePictureTime);
+                    }
+                }, null, new Camera.PictureCallback() {
+                    @Override
+                    public void onPictureTaken(final byte[] bytes, Camera camera) {
+                        recordSensorCallback(shutterTime[0] != 0 ? shutterTime[0] : takePictureTime);
 
-                            reCreateToFile(bitmap);
+                        if (bytes != null) {
+                            LOG.d("view Width : {}", getWidth());
+                            LOG.d("view Height : {}", getHeight());
+
+                            // Geometry depends on current orientation, so take it before queueing
+                            final CaptureGeometry geometry = getCaptureGeometry(bytes);
+                            final OutputMode outputMode = mOutputMode;
+                            final CaptureTarget<?> target = mCaptureTarget;
+
+                            // Transform and write on save worker, so preview restarts right away
+                            final boolean queued = mSaveExecutor.submit(new Runnable() {
+                                @Override
+                                public void run() {
+                                    saveToSink(target, bytes, geometry, outputMode, takePictureTime);
+                                }
+                            });
+                            if (!queued)
+                                LOG.d("Taken picture was dropped : {}", mSaveExecutor);
 
                             try {
                                 if (mCamera != null) {
                                     mCamera.stopPreview();
                                     mCamera.startPreview();
+                                    mPreviewRunning = true;
                                 }
                             } catch (Exception e){
                                 e.printStackTrace();
@@ -981,123 +1681,247 @@ public class CameraPreview extends AutoFitTextureView{
      * Try to capture a still image from preview
      */
     @Deprecated
-    private void captureDeprecatePicture() {
+    private void captureDeprecatePicture(final byte[] frame, final long takePictureTime) {
         LOG.d("captureDeprecatePicture()");
 
         try {
-            if (mPreviewFrame != null && mPreviewFrame.length > 0) {
-                int format = mCamera.getParameters().getPreviewFormat();
-                YuvImage yuvImage = new YuvImage(mPreviewFrame, format, mPreviewSize.width, mPreviewSize.height, null);
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                Rect rect = new Rect(0, 0, mPreviewSize.width, mPreviewSize.height);
-                yuvImage.compressToJpeg(rect, 95, byteArrayOutputStream);
-
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inPurgeable = true;
-                options.inInputShareable = true;
-
-                Bitmap bitmap = BitmapFactory.decodeByteArray(byteArrayOutputStream.toByteArray(), 0, byteArrayOutputStream.size(), options);
-
-                byteArrayOutputStream.flush();
-                byteArrayOutputStream.close();
-
-                reCreateToFile(bitmap);
-
-                // remove mPreviewFrame
-                mPreviewFrame = null;
-
-            } else {
-                captureStillPicture();
+            final int format = mPreviewFrameFormat;
+            final int width = mPreviewFrameWidth;
+            final int height = mPreviewFrameHeight;
+            final CaptureGeometry geometry = getCaptureGeometry(width, height, false);
+            final OutputMode outputMode = mOutputMode;
+            final CaptureTarget<?> target = mCaptureTarget;
+
+            // Frame is transformed in YUV domain and encoded once on save worker.
+            // Buffer goes back to camera after it was saved
+            mPreviewBufferRing.acquire(frame);
+            final boolean queued = mSaveExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        saveFrameToSink(target, frame, format, width, height, geometry, outputMode, takePictureTime);
+                    } finally {
+                        mPreviewBufferRing.release(frame);
+                    }
+                }
+            });
+            if (!queued) {
+                mPreviewBufferRing.release(frame);
+                LOG.d("Taken picture was dropped : {}", mSaveExecutor);
             }
         } catch (Exception e){
-            captureStillPicture();
+            captureStillPicture(takePictureTime);
         }
     }
 
-    private void reCreateToFile(Bitmap bitmap) {
-        Bitmap targetBitmap = reCalculateBitmap(bitmap, false);
+    /**
+     * Save JPEG from {@link android.hardware.Camera.PictureCallback}. It runs on {@link SaveExecutor}
+     * @param target sink when picture was taken
+     * @param geometry geometry when picture was taken, or null if it couldn't be calculated
+     * @param outputMode output mode when picture was taken
+     * @param takePictureTime {@link CaptureMetrics#now()} of takePicture(), or 0 if it isn't a picture
+     * @return result of sink or null if it fails
+     */
+    private Object saveToSink(CaptureTarget<?> target, byte[] jpeg, CaptureGeometry geometry, OutputMode outputMode, long takePictureTime) {
+        if (target == null) return null;
+
+        // Smaller output is requested, decode only crop rectangle with inSampleSize
+        final int sampleSize = geometry != null && outputMode == OutputMode.PIXEL_ROTATION
+                ? geometry.getSampleSize(mRequestedOutputWidth, mRequestedOutputHeight) : 1;
+
+        // Hand off byte[] as it is when pixels don't change, sink gets it without copy
+        if (geometry != null && sampleSize == 1) {
+            if (outputMode == OutputMode.EXIF_ORIENTATION && geometry.isFullFrame()) {
+                final int offset = ExifUtil.findOrientationOffset(jpeg);
+                if (offset >= 0) {
+                    ExifUtil.patchOrientation(jpeg, offset,
+                            ExifUtil.compose(ExifUtil.readOrientation(jpeg), geometry.rotation, geometry.mirror));
+                    return handOffToSink(target, jpeg, takePictureTime);
+                }
+            }
+            if (geometry.isIdentity())
+                return handOffToSink(target, jpeg, takePictureTime);
 
-        File pictureFile = getOutputMediaFile();
-        if (pictureFile == null) {
-            return;
+            // Try lossless transform first, it doesn't decode pixels at all
+            Object result = reCreateToSink(target, jpeg, geometry, outputMode, takePictureTime);
+            if (result != null) return result;
         }
-        try {
-            FileOutputStream fos = new FileOutputStream(pictureFile);
 
-            if (targetBitmap != null)
-                targetBitmap.compress(Bitmap.CompressFormat.JPEG, 95, fos);
-            else
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 95, fos);
+        LOG.d("Capture geometry : {}, sample size : {}", geometry, sampleSize);
+        // Decoder crops, rotates and mirrors while decoding, so it is all recorded as decode
+        final long decodeTime = CaptureMetrics.now();
+        Bitmap bitmap = BitmapTransformer.decode(jpeg, geometry, sampleSize, mBitmapPool);
+        mCaptureMetrics.end(CaptureMetrics.Stage.DECODE, decodeTime);
+        return bitmap != null ? compressToSink(target, bitmap, takePictureTime) : null;
+    }
 
-            fos.close();
-        } catch (FileNotFoundException e) {
+    private Object handOffToSink(CaptureTarget<?> target, byte[] jpeg, long takePictureTime) {
+        Object result = null;
+        try {
+            final long writeTime = CaptureMetrics.now();
+            result = target.sink.handOff(ByteBuffer.wrap(jpeg), CaptureSink.NO_RELEASE);
+            mCaptureMetrics.end(CaptureMetrics.Stage.WRITE, writeTime);
+        } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            if (result != null) {
+                LOG.d("Handed off : {}", result);
+                notifyTakePicture(target, result, takePictureTime);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encode bitmap which was transformed already into sink. Bitmap is returned to pool
+     */
+    private Object compressToSink(CaptureTarget<?> target, Bitmap bitmap, long takePictureTime) {
+        Object result = null;
+        CaptureSink.Output<?> output = null;
+        try {
+            output = target.sink.begin();
+            final long encodeTime = CaptureMetrics.now();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 95, output.getOutputStream());
+            mCaptureMetrics.end(CaptureMetrics.Stage.ENCODE, encodeTime);
+
+            final long writeTime = CaptureMetrics.now();
+            result = output.commit();
+            mCaptureMetrics.end(CaptureMetrics.Stage.WRITE, writeTime);
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            LOG.d("File path : " + pictureFile.getAbsolutePath());
+            if (output != null)
+                output.abort();
 
             try {
-                // TODO: recycle Bitmap!!!
-                if (targetBitmap != null) {
-                    targetBitmap.recycle();
-                    targetBitmap = null;
-                } else {
-                    bitmap.recycle();
-                    bitmap = null;
-                }
+                mBitmapPool.put(bitmap);
+                bitmap = null;
             } catch (Exception e){
                 e.printStackTrace();
             }
 
-            if (onTakePictureListener != null && pictureFile != null)
-                onTakePictureListener.onTakePicture(pictureFile);
+            if (result != null) {
+                LOG.d("Saved : {}", result);
+                notifyTakePicture(target, result, takePictureTime);
+            }
         }
+        return result;
     }
 
-    private Bitmap reCalculateBitmap(Bitmap bitmap, boolean isThumbnail) {
-        // Daniel (2016-08-26 14:01:20): Current Device rotation
-        int displayRotation = mDisplayRotation;
-        LOG.d("Current device rotation : " + ORIENTATIONS.get(displayRotation));
+    /**
+     * Crop, rotate and mirror JPEG on its DCT coefficients and write it to sink. <br>
+     *     In {@link OutputMode#EXIF_ORIENTATION}, only crop is applied and rotation / mirror are written to EXIF Orientation.
+     * @param jpeg JPEG from {@link android.hardware.Camera.PictureCallback}
+     * @param geometry geometry when picture was taken
+     * @param outputMode output mode when picture was taken
+     * @return result of sink, or null if lossless transform isn't possible (e.g. crop isn't aligned to MCU). Nothing is written
+     */
+    private Object reCreateToSink(CaptureTarget<?> target, byte[] jpeg, CaptureGeometry geometry, OutputMode outputMode, long takePictureTime) {
+        JpegTransformer transformer = null;
+        int exifOrientation = ExifUtil.ORIENTATION_NORMAL;
+        final long transformTime = CaptureMetrics.now();
 
-        int result = (mSensorOrientation - ORIENTATIONS.get(displayRotation) + 360) % 360;
+        if (outputMode == OutputMode.EXIF_ORIENTATION) {
+            // EXIF without Orientation tag can't be patched in place. Use pixel rotation instead
+            if (ExifUtil.findOrientationOffset(jpeg) == ExifUtil.NO_ORIENTATION_TAG) return null;
 
-        Bitmap reCalcBitmap = null;
+            exifOrientation = ExifUtil.compose(ExifUtil.readOrientation(jpeg), geometry.rotation, geometry.mirror);
 
-        if (result % 360 != 0) {
-            reCalcBitmap = rotateImage(bitmap, result);
-            reCalcBitmap = cropImage(reCalcBitmap);
+            if (!geometry.isFullFrame()) {
+                transformer = JpegTransformer.prepare(jpeg, geometry.cropOnly());
+                if (transformer == null || !transformer.setExifOrientation(exifOrientation)) return null;
+            }
         } else {
-            reCalcBitmap = cropImage(bitmap);
+            transformer = JpegTransformer.prepare(jpeg, geometry);
+            if (transformer == null) return null;
         }
+        mCaptureMetrics.endTransform(geometry, transformTime);
+
+        Object result = null;
+        CaptureSink.Output<?> output = null;
+        try {
+            output = target.sink.begin();
+            final long encodeTime = CaptureMetrics.now();
+            if (transformer != null)
+                transformer.writeTo(output.getOutputStream());
+            else
+                ExifUtil.writeWithOrientation(jpeg, exifOrientation, output.getOutputStream());
+            mCaptureMetrics.end(CaptureMetrics.Stage.ENCODE, encodeTime);
+
+            final long writeTime = CaptureMetrics.now();
+            result = output.commit();
+            mCaptureMetrics.end(CaptureMetrics.Stage.WRITE, writeTime);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (output != null)
+                output.abort();
+
+            if (result != null) {
+                LOG.d("Saved : {}", result);
+                notifyTakePicture(target, result, takePictureTime);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deliver result to {@link com.danielpark.camera.listeners.OnCaptureListener} of sink on main thread. File is delivered to {@link OnTakePictureListener} too
+     * @param takePictureTime {@link CaptureMetrics#now()} of takePicture() of this result, or 0 if it isn't a picture
+     */
+    private void notifyTakePicture(final CaptureTarget<?> target, final Object result, final long takePictureTime) {
+        final long postTime = CaptureMetrics.now();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (onTakePictureListener != null && result instanceof File)
+                    onTakePictureListener.onTakePicture((File) result);
+
+                target.deliver(result);
+
+                mCaptureMetrics.end(CaptureMetrics.Stage.LISTENER_DISPATCH, postTime);
+                if (takePictureTime != 0)
+                    mCaptureMetrics.end(CaptureMetrics.Stage.TOTAL, takePictureTime);
+            }
+        });
+    }
+
+    /**
+     * Record time from takePicture() to the preview frame which is taken
+     */
+    private void recordSensorCallback(long takePictureTime) {
+        if (takePictureTime != 0)
+            mCaptureMetrics.end(CaptureMetrics.Stage.SENSOR_CALLBACK, takePictureTime);
+    }
+
+    private Bitmap reCalculateBitmap(Bitmap bitmap, boolean isThumbnail) {
+        if (bitmap == null) return null;
 
-        if (getLastOrientation(mLastOrientation, isThumbnail) % 360 != 0)
-            reCalcBitmap = rotateImage(reCalcBitmap, getLastOrientation(mLastOrientation, isThumbnail));
+        // Daniel (2016-08-26 14:01:20): Current Device rotation
+        LOG.d("Current device rotation : {}", ORIENTATIONS.get(mDisplayRotation));
 
-        if (mCameraLensType == Camera.CameraInfo.CAMERA_FACING_FRONT && !isThumbnail)
-            reCalcBitmap = reverseSides(reCalcBitmap);
+        // Crop, rotation and mirror are applied at once, no intermediate bitmap
+        final CaptureGeometry geometry = getCaptureGeometry(bitmap.getWidth(), bitmap.getHeight(), isThumbnail);
+        LOG.d("Capture geometry : {}", geometry);
 
-        return reCalcBitmap;
+        return BitmapTransformer.apply(bitmap, geometry, mBitmapPool);
     }
 
     @Override
     public boolean supportFlash() {
-        if (mCamera != null && mCamera.getParameters() != null && mCamera.getParameters().getSupportedFlashModes() != null) {
-            return mCamera.getParameters().getSupportedFlashModes().contains(Camera.Parameters.FLASH_MODE_TORCH);
-        }
-        return false;
+        return mParameters != null && mParameters.isFlashModeSupported(Camera.Parameters.FLASH_MODE_TORCH);
     }
 
     @Override
     public void flashToggle() {
         LOG.d("flashTorch()");
 
-        if (mCamera != null) {
-            Camera.Parameters params = mCamera.getParameters();
+        if (mCamera != null && mParameters != null) {
+            CameraParameters params = mParameters;
             List<String> supportedFlashModes = params.getSupportedFlashModes();
 
             if (supportedFlashModes == null) {
-                params.setFlashMode(Camera.Parameters.FLASH_MODE_OFF); // Crashlytics #1648
+                // Crashlytics #1648 : no flash, nothing is sent to camera
                 return;
             } else {
 //                for (String i : supportedFlashModes) {
@@ -1105,7 +1929,7 @@ public class CameraPreview extends AutoFitTextureView{
 //                }
 
                 String cameraFlashMode = params.getFlashMode();
-                LOG.d("Current Flash mode : " + cameraFlashMode);
+                LOG.d("Current Flash mode : {}", cameraFlashMode);
 
                 if (supportedFlashModes.contains(Camera.Parameters.FLASH_MODE_TORCH)) {
                     if (Camera.Parameters.FLASH_MODE_TORCH.equals(cameraFlashMode))
@@ -1120,9 +1944,9 @@ public class CameraPreview extends AutoFitTextureView{
                 }
             }
 
+            // Flash mode is changed while preview runs, it never needs a restart
             try {
-                mCamera.setParameters(params);
-                mCamera.startPreview();
+                params.commit();
             } catch (RuntimeException e) {
                 e.printStackTrace();
             }
@@ -1140,12 +1964,15 @@ public class CameraPreview extends AutoFitTextureView{
     @Override
     public void releaseCamera() {
         LOG.d("Release Camera");
+        mFramePacingMonitor.reset();
 
         if (mOrientationEventListener != null)
             mOrientationEventListener.disable();
 
+        stopBurst();
+
         if (mCamera != null) {
-            mCamera.setPreviewCallback(null);
+            clearPreviewCallback();
 
             // Call stopPreview() to stop updating the preview surface.
 //            mCamera.stopPreview();
@@ -1154,6 +1981,10 @@ public class CameraPreview extends AutoFitTextureView{
             // during onPause() and re-open() it during onResume()).
             mCamera.release();
             mCamera = null;
+            mParameters = null;
+            mPreviewRunning = false;
+            mPreviewTexture = null;
+            CameraCapabilities.getInstance().releaseCamera();
         }
     }
 
@@ -1165,11 +1996,24 @@ public class CameraPreview extends AutoFitTextureView{
         }
 
 		onTakePictureListener = null;
+        setThumbnailFeed(null);
+        setMotionCapture(null);
+        mFramePacingMonitor.reset();
+        stopBurst();
+
+        // Queued pictures are still saved, but no new picture is accepted
+        mSaveExecutor.shutdown();
+        mBurstExecutor.shutdown();
+        mFrameDispatcher.shutdown();
 
         if (mCamera != null) {
-			mCamera.setPreviewCallback(null);
+            clearPreviewCallback();
             mCamera.release();
             mCamera = null;
+            mParameters = null;
+            mPreviewRunning = false;
+            mPreviewTexture = null;
+            CameraCapabilities.getInstance().releaseCamera();
         }
     }
 
@@ -1199,105 +2043,79 @@ public class CameraPreview extends AutoFitTextureView{
         }
     }
 
-    private Bitmap rotateImage(Bitmap bitmap, int degrees) {
-        if (bitmap == null) return bitmap;
-        if (degrees % 360 == 0)
-            return bitmap;
-
-        Matrix matrix = new Matrix();
-        matrix.postRotate(degrees);
-
-        Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-        // TODO: Check if it is okay to recycle!!
-        if (bitmap != null && bitmap != rotatedBitmap && !bitmap.isRecycled())
-            bitmap.recycle();
-
-        return rotatedBitmap;
-    }
-
-    private Bitmap reverseSides(Bitmap bitmap) {
-        if (bitmap == null) return bitmap;
-
-        Matrix matrix = new Matrix();
-        matrix.postScale(-1, 1);
-
-        Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-        // TODO: Check if it is okay to recycle!!
-        if (bitmap != null && bitmap != rotatedBitmap && !bitmap.isRecycled())
-            bitmap.recycle();
-
-        return rotatedBitmap;
-    }
-
-    private Bitmap cropImage(Bitmap bitmap) {
-        if (mConfigureTransformMargin == null || bitmap == null || mLatestViewSize.x == 0 || mLatestViewSize.y == 0) return bitmap;
-        if (mConfigureTransformMargin.left == 0 && mConfigureTransformMargin.top == 0 && mConfigureTransformMargin.right == 0 && mConfigureTransformMargin.bottom == 0) return bitmap;
-
-        Bitmap rotatedBitmap = null;
-
-        if ((bitmap.getWidth() <= bitmap.getHeight() && mLatestViewSize.x <= mLatestViewSize.y)
-                || (bitmap.getWidth() >= bitmap.getHeight() && mLatestViewSize.x >= mLatestViewSize.y)) {
-            final float xRatio = bitmap.getWidth() / mLatestViewSize.x;
-            final float yRatio = bitmap.getHeight() / mLatestViewSize.y;
+    /**
+     * Calculate crop rectangle of an image which is already rotated by sensor orientation
+     * @param width image width
+     * @param height image height
+     * @return {x, y, width, height} or null if there's nothing to crop
+     */
+    private int[] getCropRect(int width, int height) {
+        if (mConfigureTransformMargin == null || mLatestViewSize.x == 0 || mLatestViewSize.y == 0) return null;
+        if (mConfigureTransformMargin.left == 0 && mConfigureTransformMargin.top == 0 && mConfigureTransformMargin.right == 0 && mConfigureTransformMargin.bottom == 0) return null;
+
+        if ((width <= height && mLatestViewSize.x <= mLatestViewSize.y)
+                || (width >= height && mLatestViewSize.x >= mLatestViewSize.y)) {
+            final float xRatio = width / mLatestViewSize.x;
+            final float yRatio = height / mLatestViewSize.y;
             LOG.d("Correct ratio!");
-            LOG.d("xRatio : " + xRatio);
-            LOG.d("yRatio : " + yRatio);
+            LOG.d("xRatio : {}", xRatio);
+            LOG.d("yRatio : {}", yRatio);
 
-            rotatedBitmap = Bitmap.createBitmap(bitmap, (int) Math.abs(mConfigureTransformMargin.left * xRatio), (int) Math.abs(mConfigureTransformMargin.top * yRatio),
-                    (int) (bitmap.getWidth() - Math.abs(mConfigureTransformMargin.right * xRatio * 2)), (int) (bitmap.getHeight() - Math.abs(mConfigureTransformMargin.bottom * yRatio * 2)));
-            LOG.d("bitmap size : " + bitmap.getWidth() + " , " + bitmap.getHeight());
-            LOG.d("Cropped size : " + rotatedBitmap.getWidth() + " , " + rotatedBitmap.getHeight());
+            return new int[]{(int) Math.abs(mConfigureTransformMargin.left * xRatio), (int) Math.abs(mConfigureTransformMargin.top * yRatio),
+                    (int) (width - Math.abs(mConfigureTransformMargin.right * xRatio * 2)), (int) (height - Math.abs(mConfigureTransformMargin.bottom * yRatio * 2))};
         } else {
-            final float xRatio = bitmap.getWidth() / mLatestViewSize.y;
-            final float yRatio = bitmap.getHeight() / mLatestViewSize.x;
+            final float xRatio = width / mLatestViewSize.y;
+            final float yRatio = height / mLatestViewSize.x;
             LOG.d("inCorrect ratio!");
-            LOG.d("xRatio : " + xRatio);
-            LOG.d("yRatio : " + yRatio);
+            LOG.d("xRatio : {}", xRatio);
+            LOG.d("yRatio : {}", yRatio);
 
-            rotatedBitmap = Bitmap.createBitmap(bitmap, (int) Math.abs(mConfigureTransformMargin.bottom * xRatio), (int) Math.abs(mConfigureTransformMargin.left * yRatio),
-                    (int) (bitmap.getWidth() - Math.abs(mConfigureTransformMargin.top * xRatio * 2)), (int) (bitmap.getHeight() - Math.abs(mConfigureTransformMargin.right * yRatio * 2)));
-            LOG.d("bitmap size : " + bitmap.getWidth() + " , " + bitmap.getHeight());
-            LOG.d("Cropped size : " + rotatedBitmap.getWidth() + " , " + rotatedBitmap.getHeight());
+            return new int[]{(int) Math.abs(mConfigureTransformMargin.bottom * xRatio), (int) Math.abs(mConfigureTransformMargin.left * yRatio),
+                    (int) (width - Math.abs(mConfigureTransformMargin.top * xRatio * 2)), (int) (height - Math.abs(mConfigureTransformMargin.right * yRatio * 2))};
         }
-
-        // TODO: Check if it is okay to recycle!!
-        if (bitmap != null && bitmap != rotatedBitmap && !bitmap.isRecycled())
-            bitmap.recycle();
-
-        return rotatedBitmap;
     }
 
-    private File getOutputMediaFile() {
-//        File mediaStorageDir = new File(
-//                Environment
-//                        .getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES),
-//                "CameraLibrary");
-//        if (!mediaStorageDir.exists()) {
-//            if (!mediaStorageDir.mkdirs()) {
-//                Log.e("CameraLogger", "failed to create directory");
-//                return null;
-//            }
-//        }
-        // Daniel (2017-01-20 12:09:34): Use cache directory instead
-        final File filePath = getContext().getExternalCacheDir();
-
-        if (filePath != null && !filePath.exists()) {
-            filePath.mkdirs();
-        }
+    /**
+     * Get crop, rotation and mirror which {@link #reCalculateBitmap(Bitmap, boolean)} applies to an image
+     * @param width width of image from camera
+     * @param height height of image from camera
+     */
+    private CaptureGeometry getCaptureGeometry(int width, int height, boolean isThumbnail) {
+        final int result = (mSensorOrientation - ORIENTATIONS.get(mDisplayRotation) + 360) % 360;
+        final boolean swapped = result == 90 || result == 270;
+
+        return CaptureGeometry.fromRotatedCrop(width, height, result,
+                getCropRect(swapped ? height : width, swapped ? width : height),
+                getLastOrientation(mLastOrientation, isThumbnail),
+                mCameraLensType == Camera.CameraInfo.CAMERA_FACING_FRONT && !isThumbnail);
+    }
 
-        // Create a media file name
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss")
-                .format(new Date());
-        File mediaFile;
-        mediaFile = new File(filePath, "CameraLibrary_"+ timeStamp +"_.jpg");
+    /**
+     * Get geometry of JPEG from {@link android.hardware.Camera.PictureCallback} by reading its header only
+     * @return geometry or null if JPEG size is unknown
+     */
+    private CaptureGeometry getCaptureGeometry(byte[] jpeg) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
 
         try {
-            mediaFile.createNewFile();
-        } catch (IOException e) {
+            return getCaptureGeometry(options.outWidth, options.outHeight, false);
+        } catch (IllegalArgumentException e) {
             e.printStackTrace();
+            return null;
         }
+    }
+
+    /**
+     * Directory of taken pictures
+     */
+    private File getStorageDirectory() {
+        // Daniel (2017-01-20 12:09:34): Use cache directory instead
+        final File filePath = getContext().getExternalCacheDir();
 
-        return mediaFile;
+        return filePath != null ? filePath : getContext().getCacheDir();
     }
 
     /**
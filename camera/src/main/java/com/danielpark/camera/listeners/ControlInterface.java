@@ -3,6 +3,8 @@ package com.danielpark.camera.listeners;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 
+import com.danielpark.camera.util.AutoFitTextureView;
+
 /**
  * Control Camera function interface
  * <br><br>
@@ -29,6 +31,13 @@ public interface ControlInterface {
      */
     void takePicture();
 
+    /**
+     * Start taking pictures continuously
+     * @param count number of pictures
+     * @param intervalMs min interval between pictures (0 : as fast as possible)
+     */
+    void takeBurst(int count, long intervalMs);
+
     /**
      * Whether turn off the flash or not
      */
@@ -46,6 +55,13 @@ public interface ControlInterface {
      */
     void setOnTakePictureListener(OnTakePictureListener listener);
 
+    /**
+     * Set how orientation is applied to a taken picture <br>
+     *     {@link AutoFitTextureView.OutputMode#EXIF_ORIENTATION} only writes EXIF Orientation tag, so there's no decode / rotate / encode
+     * @param outputMode
+     */
+    void setOutputMode(AutoFitTextureView.OutputMode outputMode);
+
     /**
      * Enable or disable Orientation event listener <br>
      *     if it is <b>true</b> then, it is applied to taken picture. so, Make sure to set ORIENTATION
@@ -0,0 +1,25 @@
+package com.danielpark.camera.listeners;
+
+import com.danielpark.camera.util.BurstStats;
+
+import java.io.File;
+
+/**
+ * Progress of burst capture. Every saved file is also delivered to {@link OnTakePictureListener#onTakePicture(File)}
+ */
+public interface OnBurstListener {
+
+    /**
+     * A frame of burst was written
+     * @param file written file, or null if {@link com.danielpark.camera.util.CaptureSink} doesn't write files
+     * @param index index of frame in burst
+     * @param latencyMs time from frame arrival to the end of writing
+     */
+    void onBurstFrameSaved(File file, int index, long latencyMs);
+
+    /**
+     * Every frame of burst was written (or dropped)
+     * @param stats
+     */
+    void onBurstFinished(BurstStats stats);
+}
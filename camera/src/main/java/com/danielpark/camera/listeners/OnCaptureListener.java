@@ -0,0 +1,15 @@
+package com.danielpark.camera.listeners;
+
+import com.danielpark.camera.util.CaptureSink;
+
+/**
+ * Result of a taken picture written into {@link CaptureSink}. It is called on main thread
+ * @param <T> result type of sink
+ */
+public interface OnCaptureListener<T> {
+
+    /**
+     * @param result result of {@link CaptureSink.Output#commit()} or {@link CaptureSink#handOff}
+     */
+    void onCapture(T result);
+}
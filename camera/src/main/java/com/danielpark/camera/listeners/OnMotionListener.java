@@ -0,0 +1,13 @@
+package com.danielpark.camera.listeners;
+
+/**
+ * Motion of {@link com.danielpark.camera.util.MotionDetector}. It is called on main thread, right before the capture
+ */
+public interface OnMotionListener {
+
+    /**
+     * @param changedRatio changed blocks / watched blocks (0 ~ 1)
+     * @param timestamp {@link System#nanoTime()} of the frame which had motion
+     */
+    void onMotion(float changedRatio, long timestamp);
+}
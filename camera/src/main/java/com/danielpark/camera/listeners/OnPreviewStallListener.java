@@ -0,0 +1,19 @@
+package com.danielpark.camera.listeners;
+
+/**
+ * Stall of preview, from {@link com.danielpark.camera.util.FramePacingMonitor}. It is called on main thread
+ */
+public interface OnPreviewStallListener {
+
+    /**
+     * No preview frame arrived for stall threshold
+     * @param sinceMs time since the last preview frame
+     */
+    void onStallStarted(long sinceMs);
+
+    /**
+     * Preview frame arrived again
+     * @param durationMs time between the last two preview frames
+     */
+    void onStallEnded(long durationMs);
+}
@@ -0,0 +1,14 @@
+package com.danielpark.camera.listeners;
+
+import android.graphics.Bitmap;
+
+/**
+ * Live thumbnail of {@link com.danielpark.camera.util.ThumbnailFeed}. It is called on main thread
+ */
+public interface OnThumbnailListener {
+
+    /**
+     * @param bitmap owned by feed, it is valid until the next call (showing it in a view is fine)
+     */
+    void onThumbnail(Bitmap bitmap);
+}
@@ -4,13 +4,20 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
+import android.os.Handler;
+import android.os.Looper;
 //import android.support.annotation.CallSuper;
 import android.util.AttributeSet;
 import android.view.TextureView;
 
 import com.danielpark.camera.listeners.ControlInterface;
+import com.danielpark.camera.listeners.OnBurstListener;
+import com.danielpark.camera.listeners.OnCaptureListener;
 import com.danielpark.camera.listeners.OnTakePictureListener;
 
+import java.io.File;
+import java.util.List;
+
 /**
  * A {@link TextureView} that can be adjusted to a specified aspect ratio.
  * <br><br>
@@ -24,6 +31,59 @@ public abstract class AutoFitTextureView extends TextureView {
     private int mRatioWidth = 0;
     private int mRatioHeight = 0;
 
+    /**
+     * How orientation is applied to a taken picture
+     */
+    public enum OutputMode {
+        /** Rotate (and mirror) pixels of taken picture */
+        PIXEL_ROTATION,
+        /** Write EXIF Orientation tag only, sensor image is stored as it is. (Viewer should honor EXIF) */
+        EXIF_ORIENTATION
+    }
+
+    protected OutputMode mOutputMode = OutputMode.PIXEL_ROTATION;
+
+    /** Taken picture is subsampled while it is still equal to or bigger than this size (0 : full resolution) */
+    protected volatile int mRequestedOutputWidth;
+    protected volatile int mRequestedOutputHeight;
+
+    /** Bitmaps of thumbnail and capture post-processing are reused from this pool */
+    protected final BitmapPool mBitmapPool = BitmapPool.getInstance();
+
+    /** Taken pictures are transformed and written on this executor */
+    protected SaveExecutor mSaveExecutor = new SaveExecutor();
+
+    /** Burst frames are written on this executor, so a burst never waits for (or delays) taken pictures */
+    protected SaveExecutor mBurstExecutor = new SaveExecutor(SaveExecutor.DEFAULT_BURST_WORKER_COUNT,
+            SaveExecutor.DEFAULT_BURST_QUEUE_CAPACITY, SaveExecutor.DEFAULT_BURST_POLICY);
+
+    protected OnBurstListener mOnBurstListener;
+
+    /** Taken pictures are written into this storage */
+    protected CaptureStorage mCaptureStorage;
+
+    /** Taken pictures are delivered to this sink (default : {@link FileCaptureSink} of {@link #mCaptureStorage}) */
+    protected volatile CaptureTarget<?> mCaptureTarget;
+
+    /** Live preview frames are handed to registered {@link FrameProcessor}s on this dispatcher */
+    protected final FrameDispatcher mFrameDispatcher = new FrameDispatcher();
+
+    /** Size and number of images of Camera2 analysis stream */
+    protected int mAnalysisWidth = YuvFrameReader.DEFAULT_WIDTH;
+    protected int mAnalysisHeight = YuvFrameReader.DEFAULT_HEIGHT;
+    protected int mAnalysisMaxImages = YuvFrameReader.DEFAULT_MAX_IMAGES;
+
+    /** Live thumbnail which is driven by preview frames */
+    protected volatile ThumbnailFeed mThumbnailFeed;
+
+    /** Timestamps every preview frame drawn into this view */
+    protected final FramePacingMonitor mFramePacingMonitor = new FramePacingMonitor();
+
+    /** Takes pictures on motion of preview */
+    protected MotionDetector mMotionDetector;
+
+    protected final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     public AutoFitTextureView(Context context) {
         this(context, null);
     }
@@ -34,6 +94,8 @@ public abstract class AutoFitTextureView extends TextureView {
 
     public AutoFitTextureView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
+
+        mBitmapPool.attach(context);
     }
 
     /**
@@ -59,19 +121,346 @@ public abstract class AutoFitTextureView extends TextureView {
         int width = MeasureSpec.getSize(widthMeasureSpec);
         int height = MeasureSpec.getSize(heightMeasureSpec);
         if (0 == mRatioWidth || 0 == mRatioHeight) {
-            LOG.d("onMeasure() : " + width + " / " + height);
+            LOG.d("onMeasure() : {} / {}", width, height);
             setMeasuredDimension(width, height);
         } else {
             if (width < height * mRatioWidth / mRatioHeight) {
-                LOG.d("onMeasure() : " + width + " / " + width * mRatioHeight / mRatioWidth);
+                LOG.d("onMeasure() : {} / {}", width, width * mRatioHeight / mRatioWidth);
                 setMeasuredDimension(width, width * mRatioHeight / mRatioWidth);
             } else {
-                LOG.d("onMeasure() : " + height * mRatioWidth / mRatioHeight + " / " + height);
+                LOG.d("onMeasure() : {} / {}", height * mRatioWidth / mRatioHeight, height);
                 setMeasuredDimension(height * mRatioWidth / mRatioHeight, height);
             }
         }
     }
 
+    /**
+     * Set how orientation is applied to a taken picture (default : {@link OutputMode#PIXEL_ROTATION})
+     * @param outputMode
+     */
+    public void setOutputMode(OutputMode outputMode) {
+        if (outputMode == null) return;
+        mOutputMode = outputMode;
+    }
+
+    public OutputMode getOutputMode() {
+        return mOutputMode;
+    }
+
+    /**
+     * Set resolution which taken picture needs at least. Picture is decoded with power of two inSampleSize
+     * while it is still equal to or bigger than this size, and only its crop rectangle is decoded. <br>
+     *     It is applied in {@link OutputMode#PIXEL_ROTATION} only.
+     * @param width 0 for full resolution (default)
+     * @param height 0 for full resolution (default)
+     */
+    public void setRequestedOutputSize(int width, int height) {
+        mRequestedOutputWidth = Math.max(0, width);
+        mRequestedOutputHeight = Math.max(0, height);
+    }
+
+    /**
+     * Set executor which transforms and writes taken pictures <br>
+     *     Previous executor is shut down after its queued pictures are saved
+     * @param saveExecutor
+     */
+    public void setSaveExecutor(SaveExecutor saveExecutor) {
+        if (saveExecutor == null || saveExecutor == mSaveExecutor) return;
+
+        mSaveExecutor.shutdown();
+        mSaveExecutor = saveExecutor;
+    }
+
+    /**
+     * Get executor to observe queue depth and wait time of taken pictures
+     */
+    public SaveExecutor getSaveExecutor() {
+        return mSaveExecutor;
+    }
+
+    /**
+     * Set executor which writes burst frames (default : {@link SaveExecutor#DEFAULT_BURST_WORKER_COUNT} workers,
+     * {@link SaveExecutor#DEFAULT_BURST_QUEUE_CAPACITY} frames, {@link SaveExecutor#DEFAULT_BURST_POLICY}) <br>
+     *     Frames come on camera thread, so a policy which doesn't wait should be used. Previous executor is shut down
+     * @param burstExecutor
+     */
+    public void setBurstExecutor(SaveExecutor burstExecutor) {
+        if (burstExecutor == null || burstExecutor == mBurstExecutor) return;
+
+        mBurstExecutor.shutdown();
+        mBurstExecutor = burstExecutor;
+    }
+
+    public SaveExecutor getBurstExecutor() {
+        return mBurstExecutor;
+    }
+
+    /**
+     * Set storage which taken pictures are written into <br>
+     *     Its orphaned temp files are recovered on {@link SaveExecutor}
+     * @param captureStorage
+     */
+    public void setCaptureStorage(final CaptureStorage captureStorage) {
+        if (captureStorage == null) return;
+
+        // Default sink follows storage, a custom sink is kept
+        final CaptureTarget<?> target = mCaptureTarget;
+        if (target == null || target.isDefault())
+            mCaptureTarget = new CaptureTarget<>(new FileCaptureSink(captureStorage), null, true);
+
+        mCaptureStorage = captureStorage;
+        mSaveExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                List<File> recovered = captureStorage.recoverOrphans();
+                LOG.d("Recovered pictures : {}", recovered.size());
+            }
+        });
+    }
+
+    public CaptureStorage getCaptureStorage() {
+        return mCaptureStorage;
+    }
+
+    /**
+     * Set destination of taken pictures. Picture which doesn't need any change is handed off without copy <br>
+     *     {@link OnTakePictureListener#onTakePicture(File)} is called only when result is a {@link File}.
+     * @param sink null to write files into {@link #getCaptureStorage()} again
+     * @param listener gets result of each picture on main thread
+     */
+    public <T> void setCaptureSink(CaptureSink<T> sink, OnCaptureListener<T> listener) {
+        if (sink == null) {
+            mCaptureTarget = mCaptureStorage != null
+                    ? new CaptureTarget<>(new FileCaptureSink(mCaptureStorage), null, true) : null;
+            return;
+        }
+        mCaptureTarget = new CaptureTarget<>(sink, listener, false);
+    }
+
+    public CaptureSink<?> getCaptureSink() {
+        final CaptureTarget<?> target = mCaptureTarget;
+        return target != null ? target.sink : null;
+    }
+
+    /**
+     * Register a processor which analyzes live preview frames. Call it on main thread <br>
+     *     Preview frames are grabbed only while any processor is registered.
+     * @param processor
+     */
+    public void addFrameProcessor(FrameProcessor processor) {
+        if (processor == null) return;
+
+        mFrameDispatcher.add(processor);
+        onFrameProcessorsChanged();
+    }
+
+    public void removeFrameProcessor(FrameProcessor processor) {
+        mFrameDispatcher.remove(processor);
+        onFrameProcessorsChanged();
+    }
+
+    /**
+     * Get registered processors to observe their latency and dropped frames
+     */
+    public List<FrameProcessor> getFrameProcessors() {
+        return mFrameDispatcher.getProcessors();
+    }
+
+    /**
+     * Set resolution of Camera2 analysis stream which feeds {@link FrameProcessor}s (default : 640 x 480) <br>
+     *     It is picked independently from preview, applied when camera is opened next time. Camera1 uses preview frames.
+     * @param width
+     * @param height
+     */
+    public void setAnalysisSize(int width, int height) {
+        if (width <= 0 || height <= 0) return;
+
+        mAnalysisWidth = width;
+        mAnalysisHeight = height;
+    }
+
+    /**
+     * Set number of images of Camera2 analysis stream which consumers can hold at the same time (default : 3)
+     * @param maxImages
+     */
+    public void setAnalysisMaxImages(int maxImages) {
+        if (maxImages <= 0) return;
+        mAnalysisMaxImages = maxImages;
+    }
+
+    /**
+     * Called on main thread when a {@link FrameProcessor} was added or removed, start or stop grabbing frames here
+     */
+    protected void onFrameProcessorsChanged() {
+    }
+
+    /**
+     * Set live thumbnail feed, instead of calling {@link #getThumbnail(float)} from a timer. Call it on main thread
+     * @param feed null to stop current feed
+     */
+    public void setThumbnailFeed(ThumbnailFeed feed) {
+        if (feed == mThumbnailFeed) return;
+
+        final ThumbnailFeed previous = mThumbnailFeed;
+        if (previous != null)
+            previous.stop();
+
+        if (feed != null)
+            feed.start(this);
+        mThumbnailFeed = feed;
+        onLatestFrameConsumersChanged();
+    }
+
+    public ThumbnailFeed getThumbnailFeed() {
+        return mThumbnailFeed;
+    }
+
+    /**
+     * Take a picture whenever preview frames change, instead of calling {@link #takePicture()} from a timer.
+     * Call it on main thread
+     * @param detector null to stop current detector
+     */
+    public void setMotionCapture(MotionDetector detector) {
+        if (detector == mMotionDetector) return;
+
+        final MotionDetector previous = mMotionDetector;
+        if (previous != null) {
+            previous.stop();
+            mFrameDispatcher.remove(previous);
+        }
+
+        if (detector != null) {
+            detector.start(this);
+            mFrameDispatcher.add(detector);
+        }
+        mMotionDetector = detector;
+        onFrameProcessorsChanged();
+    }
+
+    public MotionDetector getMotionCapture() {
+        return mMotionDetector;
+    }
+
+    /**
+     * Pacing of preview (rolling fps, jitter and stalls). Set {@link FramePacingMonitor#setOnPreviewStallListener}
+     * to hear about stalls
+     */
+    public FramePacingMonitor getFramePacingMonitor() {
+        return mFramePacingMonitor;
+    }
+
+    /**
+     * Called on main thread for every preview frame drawn into this view (from onSurfaceTextureUpdated)
+     */
+    protected void onPreviewFrameUpdated() {
+        mFramePacingMonitor.onFrame();
+
+        final ThumbnailFeed feed = mThumbnailFeed;
+        if (feed != null)
+            feed.onFrameAvailable();
+    }
+
+    /**
+     * Whether the latest preview frame should be kept for {@link #acquireLatestFrame()}
+     */
+    protected boolean isLatestFrameNeeded() {
+        return mThumbnailFeed != null;
+    }
+
+    /**
+     * Called on main thread when {@link #isLatestFrameNeeded()} might be changed
+     */
+    protected void onLatestFrameConsumersChanged() {
+    }
+
+    /**
+     * Latest preview frame held once more, release it when done
+     * @return null if there is no frame (yet)
+     */
+    protected YuvFrame acquireLatestFrame() {
+        return null;
+    }
+
+    /**
+     * Set listener to get progress of {@link #takeBurst(int, long)}
+     * @param listener
+     */
+    public void setOnBurstListener(OnBurstListener listener) {
+        mOnBurstListener = listener;
+    }
+
+    /**
+     * Count a written frame of burst and deliver it to {@link OnBurstListener} on main thread
+     * @param capturedTime {@link android.os.SystemClock#elapsedRealtime()} when frame arrived
+     */
+    protected void deliverBurstFrameSaved(final BurstStats burst, final File file, final int index, long capturedTime) {
+        final boolean finished = burst.onFrameSaved(index, capturedTime);
+        final long latency = burst.getLatency(index);
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mOnBurstListener != null)
+                    mOnBurstListener.onBurstFrameSaved(file, index, latency);
+            }
+        });
+
+        if (finished)
+            deliverBurstFinished(burst);
+    }
+
+    /**
+     * Count a frame of burst which wasn't written
+     */
+    protected void deliverBurstFrameDropped(BurstStats burst, int index) {
+        LOG.d("Burst frame {} was dropped", index);
+
+        if (burst.onFrameDropped(index))
+            deliverBurstFinished(burst);
+    }
+
+    protected void deliverBurstFinished(final BurstStats burst) {
+        LOG.d("Burst finished : {}", burst);
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mOnBurstListener != null)
+                    mOnBurstListener.onBurstFinished(burst);
+            }
+        });
+    }
+
+    /**
+     * Sink and its listener. Picture keeps the target of the time it was taken,
+     * so its result never goes to a listener of another sink
+     */
+    protected static final class CaptureTarget<T> {
+
+        public final CaptureSink<T> sink;
+        private final OnCaptureListener<T> mListener;
+        private final boolean mDefault;
+
+        CaptureTarget(CaptureSink<T> sink, OnCaptureListener<T> listener, boolean isDefault) {
+            this.sink = sink;
+            mListener = listener;
+            mDefault = isDefault;
+        }
+
+        boolean isDefault() {
+            return mDefault;
+        }
+
+        /**
+         * Deliver result of {@link #sink} to its listener. Call it on main thread
+         */
+        @SuppressWarnings("unchecked")
+        public void deliver(Object result) {
+            if (mListener != null && result != null)
+                mListener.onCapture((T) result);
+        }
+    }
+
     public abstract void openCamera(SurfaceTexture surfaceTexture, int width, int height) throws CameraAccessException;
 
     public abstract void autoFocus();
@@ -84,8 +473,24 @@ public abstract class AutoFitTextureView extends TextureView {
      */
     public abstract Bitmap getThumbnail(float ratio);
 
+    /**
+     * Return a bitmap from {@link #getThumbnail(float)} which isn't used anymore (e.g. previous thumbnail was replaced) <br>
+     *     It is reused by the next {@link #getThumbnail(float)}, so don't touch it after this call
+     * @param bitmap
+     */
+    public void releaseThumbnail(Bitmap bitmap) {
+        mBitmapPool.put(bitmap);
+    }
+
     public abstract void takePicture();
 
+    /**
+     * Take pictures continuously. Capture and saving are pipelined, every file is delivered to {@link OnTakePictureListener}
+     * @param count number of pictures
+     * @param intervalMs min interval between pictures (0 : as fast as possible)
+     */
+    public abstract void takeBurst(int count, long intervalMs);
+
     public abstract void flashToggle();
 
     public abstract boolean supportFlash();
@@ -0,0 +1,187 @@
+package com.danielpark.camera.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the sharpest of K frames around the shutter, only that one goes to save pipeline <br>
+ *     1. Frames are held while they are collected, nothing is copied. <br>
+ *     2. Each frame is scored by {@link SharpnessScorer} on its own core, the calling thread scores one of them too. <br>
+ *     3. Every frame but the sharpest one is released right after scoring.
+ */
+public class BestShotSelector {
+
+    public static final int DEFAULT_FRAME_COUNT = 5;
+    /** Y plane is downscaled to about this width before scoring */
+    public static final int DEFAULT_SCORE_WIDTH = 320;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private final Logger LOG = Logger.getInstance();
+
+    private final int mScoreWidth;
+    private final YuvFrame[] mFrames;
+    private int mCount;
+
+    private final SharpnessScorer[] mScorers;
+    private final double[] mScores;
+
+    private double mLastScore;
+    private long mLastScoringTimeNs;
+
+    /**
+     * @param frameCount number of frames to pick from
+     * @param scoreWidth width which Y plane is downscaled to before scoring
+     */
+    public BestShotSelector(int frameCount, int scoreWidth) {
+        if (frameCount <= 0)
+            throw new IllegalArgumentException("Frame count should be positive!");
+
+        mScoreWidth = scoreWidth;
+        mFrames = new YuvFrame[frameCount];
+        mScorers = new SharpnessScorer[frameCount];
+        mScores = new double[frameCount];
+        for (int i = 0; i < frameCount; i++)
+            mScorers[i] = new SharpnessScorer();
+    }
+
+    public int getFrameCount() {
+        return mFrames.length;
+    }
+
+    /**
+     * Hold frame as a candidate
+     * @return true if K frames were collected, call {@link #select()}
+     */
+    public synchronized boolean offer(YuvFrame frame) {
+        if (mCount < mFrames.length && frame.acquire())
+            mFrames[mCount++] = frame;
+        return mCount == mFrames.length;
+    }
+
+    public synchronized boolean isFull() {
+        return mCount == mFrames.length;
+    }
+
+    /**
+     * Score collected frames in parallel and keep the sharpest one. Run it off camera thread <br>
+     *     Selector is empty again afterwards.
+     * @return the sharpest frame held once more (release it when done), or null if nothing was collected
+     */
+    public synchronized YuvFrame select() {
+        if (mCount == 0) return null;
+
+        final long startTime = System.nanoTime();
+        final ThreadPoolExecutor executor = getExecutor();
+
+        // Calling thread scores the first frame, futures.get(i - 1) is of frame i (null : scored on calling thread)
+        final List<Future<Double>> futures = new ArrayList<>(mCount - 1);
+        for (int i = 1; i < mCount; i++) {
+            final int index = i;
+            Future<Double> future;
+            try {
+                future = executor.submit(new Callable<Double>() {
+                    @Override
+                    public Double call() {
+                        return score(index);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                future = null;
+            }
+            futures.add(future);
+        }
+
+        mScores[0] = score(0);
+        for (int i = 1; i < mCount; i++) {
+            final Future<Double> future = futures.get(i - 1);
+            try {
+                mScores[i] = future != null ? future.get() : score(i);
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                mScores[i] = -1;
+            }
+        }
+
+        int best = 0;
+        for (int i = 1; i < mCount; i++) {
+            if (mScores[i] > mScores[best])
+                best = i;
+        }
+
+        final YuvFrame selected = mFrames[best];
+        mLastScore = mScores[best];
+        mLastScoringTimeNs = System.nanoTime() - startTime;
+        if (LOG.isEnabled())
+            LOG.d("Best shot : " + best + " of " + mCount + ", score " + mLastScore
+                    + ", " + mLastScoringTimeNs / 1000 + " us");
+
+        // Hold of selector moves to caller for the sharpest one, the others go back to camera
+        for (int i = 0; i < mCount; i++) {
+            if (i != best)
+                mFrames[i].release();
+            mFrames[i] = null;
+        }
+        mCount = 0;
+        return selected;
+    }
+
+    /**
+     * Release every collected frame
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mFrames[i].release();
+            mFrames[i] = null;
+        }
+        mCount = 0;
+    }
+
+    /** Score of the last selected frame */
+    public synchronized double getLastScore() {
+        return mLastScore;
+    }
+
+    /** Time which the last {@link #select()} took to score every frame */
+    public synchronized long getLastScoringTimeNs() {
+        return mLastScoringTimeNs;
+    }
+
+    private double score(int index) {
+        final YuvFrame frame = mFrames[index];
+        return mScorers[index].score(frame, SharpnessScorer.getFactor(frame.getWidth(), mScoreWidth));
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            // Caller scores a frame too, so one core less. Threads are gone when idle
+            final int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            sExecutor = new ThreadPoolExecutor(threadCount, threadCount, 1L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "CameraSharpness-" + mCount.incrementAndGet());
+                }
+            });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BestShotSelector(" + mCount + " of " + mFrames.length + ", last score " + mLastScore
+                + ", " + mLastScoringTimeNs / 1000 + " us)";
+    }
+}
@@ -0,0 +1,289 @@
+package com.danielpark.camera.util;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of mutable {@link Bitmap} which are bucketed by width, height and {@link Bitmap.Config} <br>
+ *     Total byte count of pooled bitmaps never exceeds max size, least recently returned bitmap is evicted first. <br>
+ *     Pool trims itself on memory pressure once {@link #attach(Context)} is called.
+ */
+public class BitmapPool implements ComponentCallbacks2 {
+
+    private static volatile BitmapPool sInstance;
+
+    private final Logger LOG = Logger.getInstance();
+
+    private final HashMap<Long, ArrayDeque<Bitmap>> mBuckets = new HashMap<>();
+    /** Pooled bitmaps from least recently returned, and their bucket keys. Bitmap is removed from anywhere in O(1) */
+    private final LinkedHashMap<Bitmap, Long> mLruMap = new LinkedHashMap<>();
+
+    private long mMaxSize;
+    private long mSize;
+
+    private boolean mAttached;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+
+    public static BitmapPool getInstance() {
+        if (sInstance == null) {
+            synchronized (BitmapPool.class) {
+                if (sInstance == null)
+                    sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param maxSize max byte count of pooled bitmaps
+     */
+    public BitmapPool(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Register to application context, so pool is trimmed on memory pressure
+     */
+    public synchronized void attach(Context context) {
+        if (mAttached || context == null) return;
+
+        context.getApplicationContext().registerComponentCallbacks(this);
+        mAttached = true;
+    }
+
+    /**
+     * Get a mutable bitmap. Its content is undefined, so caller should overwrite every pixel
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        synchronized (this) {
+            ArrayDeque<Bitmap> bucket = mBuckets.get(getKey(width, height, config));
+            if (bucket != null && !bucket.isEmpty()) {
+                bitmap = bucket.pollLast();
+                mLruMap.remove(bitmap);
+                mSize -= bitmap.getByteCount();
+            }
+        }
+
+        if (bitmap != null) {
+            mHitCount.incrementAndGet();
+            return bitmap;
+        }
+
+        mMissCount.incrementAndGet();
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Return bitmap to pool. Caller must not use it anymore. <br>
+     *     If it can't be pooled, it is recycled.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || bitmap.getByteCount() > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+
+        synchronized (this) {
+            if (mLruMap.containsKey(bitmap)) return;
+
+            final Long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>();
+                mBuckets.put(key, bucket);
+            }
+
+            bucket.addLast(bitmap);
+            mLruMap.put(bitmap, key);
+            mSize += bitmap.getByteCount();
+
+            trimToSize(mMaxSize);
+        }
+    }
+
+    /**
+     * Decode JPEG into a pooled bitmap when it is possible
+     * @return decoded bitmap (ARGB_8888) or null if it fails to decode
+     */
+    public Bitmap decodeByteArray(byte[] data) {
+        return decodeByteArray(data, 1);
+    }
+
+    /**
+     * Decode JPEG subsampled by sampleSize into a pooled bitmap when it is possible
+     * @param sampleSize power of two
+     * @return decoded bitmap (ARGB_8888) or null if it fails to decode
+     */
+    public Bitmap decodeByteArray(byte[] data, int sampleSize) {
+        if (data == null) return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = Math.max(1, sampleSize);
+        // inBitmap requires exactly the same size before KitKat, so decode bounds first
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        // Bounds decode already reports subsampled size
+        options.inBitmap = get(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // Bitmap can't be reused, decode it without pool
+            LOG.d("Failed to reuse bitmap : {}", e.getMessage());
+            put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    /**
+     * Decode only a rectangle of JPEG, pixels out of it are never decoded
+     * @param sampleSize power of two
+     * @return decoded rectangle (ARGB_8888) or null if it fails
+     */
+    public Bitmap decodeRegion(byte[] data, int x, int y, int width, int height, int sampleSize) {
+        if (data == null) return null;
+
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+            if (decoder == null) return null;
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = Math.max(1, sampleSize);
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+            // Region decoder reuses bitmap since JellyBean. Size is exact only without subsampling
+            if (options.inSampleSize == 1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                options.inBitmap = get(width, height, Bitmap.Config.ARGB_8888);
+
+            final Rect rect = new Rect(x, y, x + width, y + height);
+            try {
+                return decoder.decodeRegion(rect, options);
+            } catch (IllegalArgumentException e) {
+                LOG.d("Failed to reuse bitmap : {}", e.getMessage());
+                put(options.inBitmap);
+                options.inBitmap = null;
+                return decoder.decodeRegion(rect, options);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (decoder != null)
+                decoder.recycle();
+        }
+    }
+
+    /**
+     * Evict least recently returned bitmaps until total byte count is equal to or less than maxSize
+     */
+    public synchronized void trimToSize(long maxSize) {
+        Iterator<Map.Entry<Bitmap, Long>> iterator = mLruMap.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<Bitmap, Long> entry = iterator.next();
+            final Bitmap bitmap = entry.getKey();
+            iterator.remove();
+
+            // Bucket is in return order too, so the evicted bitmap is its first one
+            ArrayDeque<Bitmap> bucket = mBuckets.get(entry.getValue());
+            if (bucket != null) {
+                bucket.removeFirstOccurrence(bitmap);
+                if (bucket.isEmpty())
+                    mBuckets.remove(entry.getValue());
+            }
+
+            mSize -= bitmap.getByteCount();
+            bitmap.recycle();
+            mEvictionCount.incrementAndGet();
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /** Total byte count of pooled bitmaps */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        LOG.d("onTrimMemory : {}", level);
+
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(getMaxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool(size " + mSize + " / " + mMaxSize + ", hit " + mHitCount.get()
+                + ", miss " + mMissCount.get() + ", eviction " + mEvictionCount.get() + ")";
+    }
+
+    private static long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) (height & 0xFFFFFF) << 8) | (config != null ? config.ordinal() : 0xFF);
+    }
+}
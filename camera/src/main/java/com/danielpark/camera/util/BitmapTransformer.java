@@ -0,0 +1,132 @@
+package com.danielpark.camera.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/**
+ * Apply {@link CaptureGeometry} to a {@link Bitmap} in a single pass <br>
+ *     Crop rectangle becomes the source rectangle and rotation / mirror become one {@link Matrix},
+ *     so only one destination bitmap is used.
+ */
+public class BitmapTransformer {
+
+    /**
+     * Build matrix of rotation and mirror. Crop isn't included, it is the source rectangle
+     */
+    public static Matrix getMatrix(CaptureGeometry geometry) {
+        Matrix matrix = new Matrix();
+        if (geometry.rotation != 0)
+            matrix.postRotate(geometry.rotation);
+        if (geometry.mirror)
+            matrix.postScale(-1, 1);
+        return matrix;
+    }
+
+    /**
+     * Crop, rotate and mirror bitmap at once
+     * @param bitmap source bitmap. It is recycled if a new bitmap is created
+     * @param geometry geometry which was measured on source bitmap
+     * @return transformed bitmap, or source bitmap if geometry doesn't change anything
+     */
+    public static Bitmap apply(Bitmap bitmap, CaptureGeometry geometry) {
+        if (bitmap == null || geometry == null || geometry.isIdentity()) return bitmap;
+
+        // Rotation is a multiple of 90 degrees, so every pixel is copied without filtering
+        Bitmap result = Bitmap.createBitmap(bitmap, geometry.cropX, geometry.cropY,
+                geometry.cropWidth, geometry.cropHeight, getMatrix(geometry), true);
+
+        if (result != bitmap && !bitmap.isRecycled())
+            bitmap.recycle();
+
+        return result;
+    }
+
+    /**
+     * Crop, rotate and mirror bitmap at once into a bitmap from pool
+     * @param bitmap source bitmap. It is returned to pool if a new bitmap is used
+     * @param geometry geometry which was measured on source bitmap
+     * @return transformed bitmap, or source bitmap if geometry doesn't change anything
+     */
+    public static Bitmap apply(Bitmap bitmap, CaptureGeometry geometry, BitmapPool pool) {
+        if (pool == null) return apply(bitmap, geometry);
+        if (bitmap == null || geometry == null || geometry.isIdentity()) return bitmap;
+
+        Matrix matrix = new Matrix();
+        matrix.setTranslate(-geometry.cropX, -geometry.cropY);
+        matrix.postConcat(getMatrix(geometry));
+
+        // Crop rectangle is mapped to (0, 0) - (output width, output height),
+        // pixels out of crop rectangle fall out of the destination
+        RectF bounds = new RectF(0, 0, geometry.cropWidth, geometry.cropHeight);
+        getMatrix(geometry).mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+
+        return draw(bitmap, matrix, geometry.getOutputWidth(), geometry.getOutputHeight(), pool);
+    }
+
+    /**
+     * Same as {@link Bitmap#createBitmap(Bitmap, int, int, int, int, Matrix, boolean)} on whole source,
+     * but destination comes from pool
+     * @param bitmap source bitmap. It is returned to pool if a new bitmap is used
+     * @return transformed bitmap, or source bitmap if matrix is identity
+     */
+    public static Bitmap transform(Bitmap bitmap, Matrix matrix, BitmapPool pool) {
+        if (bitmap == null || matrix == null || matrix.isIdentity()) return bitmap;
+        if (pool == null) {
+            Bitmap result = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+            if (result != bitmap && !bitmap.isRecycled())
+                bitmap.recycle();
+            return result;
+        }
+
+        RectF bounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        matrix.mapRect(bounds);
+
+        Matrix drawMatrix = new Matrix(matrix);
+        drawMatrix.postTranslate(-bounds.left, -bounds.top);
+
+        return draw(bitmap, drawMatrix, Math.round(bounds.width()), Math.round(bounds.height()), pool);
+    }
+
+    /**
+     * Decode only crop rectangle of JPEG (subsampled by sampleSize) and rotate / mirror it at once <br>
+     *     Whole JPEG is decoded only when region decoder fails.
+     * @param geometry geometry which was measured on JPEG, or null to decode it as it is
+     * @param sampleSize power of two, see {@link CaptureGeometry#getSampleSize(int, int)}
+     * @return transformed bitmap or null if it fails to decode
+     */
+    public static Bitmap decode(byte[] jpeg, CaptureGeometry geometry, int sampleSize, BitmapPool pool) {
+        if (pool == null) pool = BitmapPool.getInstance();
+
+        if (geometry != null && !geometry.isFullFrame()) {
+            Bitmap region = pool.decodeRegion(jpeg, geometry.cropX, geometry.cropY,
+                    geometry.cropWidth, geometry.cropHeight, sampleSize);
+            if (region != null)
+                return apply(region, geometry.forRegion(region.getWidth(), region.getHeight()), pool);
+        }
+
+        Bitmap bitmap = pool.decodeByteArray(jpeg, sampleSize);
+        if (bitmap == null || geometry == null) return bitmap;
+
+        return apply(bitmap, geometry.scaleTo(bitmap.getWidth(), bitmap.getHeight()), pool);
+    }
+
+    private static Bitmap draw(Bitmap bitmap, Matrix matrix, int width, int height, BitmapPool pool) {
+        if (width <= 0 || height <= 0) return bitmap;
+
+        Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap result = pool.get(width, height, config);
+        // Pooled bitmap has previous content, and scaled edge may not cover every pixel
+        result.eraseColor(Color.TRANSPARENT);
+
+        Canvas canvas = new Canvas(result);
+        canvas.drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+
+        pool.put(bitmap);
+        return result;
+    }
+}
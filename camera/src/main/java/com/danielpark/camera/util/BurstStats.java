@@ -0,0 +1,177 @@
+package com.danielpark.camera.util;
+
+import android.os.SystemClock;
+
+/**
+ * Progress and performance of a burst capture <br>
+ *     Latency of a frame is the time from the frame arrival to the end of writing its file.
+ */
+public class BurstStats {
+
+    private final int mRequestedCount;
+    private final long mIntervalMs;
+    private final long mStartTime = SystemClock.elapsedRealtime();
+
+    private int mCapturedCount;
+    private int mSavedCount;
+    private int mDroppedCount;
+    private boolean mCaptureFinished;
+
+    private long mFirstCaptureTime;
+    private long mLastCaptureTime;
+    private long mFirstSavedTime;
+    private long mLastSavedTime;
+
+    private final long[] mLatencies;
+    private long mTotalLatency;
+    private long mMaxLatency;
+
+    public BurstStats(int requestedCount, long intervalMs) {
+        if (requestedCount <= 0)
+            throw new IllegalArgumentException("Burst count should be positive!");
+
+        mRequestedCount = requestedCount;
+        mIntervalMs = Math.max(0, intervalMs);
+        mLatencies = new long[requestedCount];
+    }
+
+    /**
+     * Check if the frame arrived at <b>now</b> should be captured according to interval
+     */
+    public synchronized boolean isFrameDue(long now) {
+        return !mCaptureFinished && (mCapturedCount == 0 || now - mLastCaptureTime >= mIntervalMs);
+    }
+
+    /**
+     * Count a captured frame
+     * @param now {@link SystemClock#elapsedRealtime()} when frame arrived
+     * @return index of frame, or -1 if enough frames were captured already
+     */
+    public synchronized int onFrameCaptured(long now) {
+        if (mCaptureFinished) return -1;
+
+        if (mCapturedCount == 0)
+            mFirstCaptureTime = now;
+        mLastCaptureTime = now;
+
+        final int index = mCapturedCount++;
+        if (mCapturedCount >= mRequestedCount)
+            mCaptureFinished = true;
+        return index;
+    }
+
+    /**
+     * Count a written frame
+     * @return true if this was the last frame of burst
+     */
+    public synchronized boolean onFrameSaved(int index, long capturedTime) {
+        final long now = SystemClock.elapsedRealtime();
+        final long latency = now - capturedTime;
+
+        if (index >= 0 && index < mLatencies.length)
+            mLatencies[index] = latency;
+        mTotalLatency += latency;
+        mMaxLatency = Math.max(mMaxLatency, latency);
+
+        if (mSavedCount == 0)
+            mFirstSavedTime = now;
+        mLastSavedTime = now;
+        mSavedCount++;
+
+        return isFinished();
+    }
+
+    /**
+     * Count a frame which was captured but not written (e.g. save queue was full)
+     * @return true if this was the last frame of burst
+     */
+    public synchronized boolean onFrameDropped(int index) {
+        if (index >= 0 && index < mLatencies.length)
+            mLatencies[index] = -1;
+        mDroppedCount++;
+        return isFinished();
+    }
+
+    /**
+     * Stop capturing before requested count (e.g. camera was released)
+     * @return true if every captured frame was already written or dropped
+     */
+    public synchronized boolean finishCapture() {
+        if (mCaptureFinished) return false;
+
+        mCaptureFinished = true;
+        return isFinished();
+    }
+
+    public synchronized boolean isCaptureFinished() {
+        return mCaptureFinished;
+    }
+
+    /**
+     * Check if capture has finished and every captured frame was written or dropped
+     */
+    public synchronized boolean isFinished() {
+        return mCaptureFinished && mSavedCount + mDroppedCount >= mCapturedCount;
+    }
+
+    public int getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    public long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    public synchronized int getCapturedCount() {
+        return mCapturedCount;
+    }
+
+    public synchronized int getSavedCount() {
+        return mSavedCount;
+    }
+
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Rate of frames captured from sensor
+     */
+    public synchronized float getCaptureFramesPerSecond() {
+        if (mCapturedCount < 2 || mLastCaptureTime <= mFirstCaptureTime) return 0f;
+        return (mCapturedCount - 1) * 1000f / (mLastCaptureTime - mFirstCaptureTime);
+    }
+
+    /**
+     * Sustained rate of frames written to file
+     */
+    public synchronized float getFramesPerSecond() {
+        if (mSavedCount < 2 || mLastSavedTime <= mFirstSavedTime) return 0f;
+        return (mSavedCount - 1) * 1000f / (mLastSavedTime - mFirstSavedTime);
+    }
+
+    /** Latency (ms) of a frame, or -1 if it was dropped */
+    public synchronized long getLatency(int index) {
+        return mLatencies[index];
+    }
+
+    public synchronized long getAverageLatency() {
+        return mSavedCount > 0 ? mTotalLatency / mSavedCount : 0;
+    }
+
+    public synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    /** Time (ms) from start of burst to the last written frame */
+    public synchronized long getElapsedTime() {
+        return (mSavedCount > 0 ? mLastSavedTime : SystemClock.elapsedRealtime()) - mStartTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BurstStats(captured " + mCapturedCount + " / " + mRequestedCount + ", saved " + mSavedCount
+                + ", dropped " + mDroppedCount + ", " + getFramesPerSecond() + "fps, latency avg "
+                + getAverageLatency() + "ms max " + mMaxLatency + "ms)";
+    }
+}
@@ -0,0 +1,89 @@
+package com.danielpark.camera.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps taken pictures in memory, nothing is written to storage <br>
+ *     Handed off JPEG (Camera1 byte[], Camera2 JPEG plane) is delivered as it is, without copy.
+ *     Call {@link Capture#release()} when it is no longer needed. <br>
+ *     Camera2 JPEG plane is kept in its {@link android.media.Image} until then,
+ *     and camera can't take more pictures than max images of ImageReader while they are kept.
+ */
+public class ByteBufferCaptureSink implements CaptureSink<ByteBufferCaptureSink.Capture> {
+
+    private static final int INITIAL_CAPACITY = 512 * 1024;
+
+    /**
+     * JPEG in memory
+     */
+    public static class Capture {
+
+        private final ByteBuffer mBuffer;
+        private final Release mRelease;
+        private final AtomicBoolean mReleased = new AtomicBoolean();
+
+        Capture(ByteBuffer buffer, Release release) {
+            mBuffer = buffer;
+            mRelease = release;
+        }
+
+        /**
+         * JPEG from position to limit. It is read only, and invalid after {@link #release()}
+         */
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        /**
+         * Release buffer. Calling it more than once does nothing
+         */
+        public void release() {
+            if (mReleased.compareAndSet(false, true))
+                mRelease.release();
+        }
+    }
+
+    /**
+     * Exposes its array, so written JPEG isn't copied again
+     */
+    private static class CaptureOutputStream extends ByteArrayOutputStream {
+
+        CaptureOutputStream() {
+            super(INITIAL_CAPACITY);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    @Override
+    public Output<Capture> begin() throws IOException {
+        final CaptureOutputStream outputStream = new CaptureOutputStream();
+
+        return new Output<Capture>() {
+            @Override
+            public OutputStream getOutputStream() {
+                return outputStream;
+            }
+
+            @Override
+            public Capture commit() throws IOException {
+                return new Capture(outputStream.toByteBuffer().asReadOnlyBuffer(), NO_RELEASE);
+            }
+
+            @Override
+            public void abort() {
+            }
+        };
+    }
+
+    @Override
+    public Capture handOff(ByteBuffer jpeg, Release release) throws IOException {
+        return new Capture(jpeg.asReadOnlyBuffer(), release);
+    }
+}
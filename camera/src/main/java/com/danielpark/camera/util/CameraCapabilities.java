@@ -0,0 +1,529 @@
+package com.danielpark.camera.util;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Capabilities of every camera lens, probed once and kept in a file <br>
+ *     1. Lenses are probed in parallel on background threads : preview / picture sizes, flash modes,
+ *        sensor orientation, shutter sound and Camera2 hardware level. <br>
+ *     2. Result is written into a small binary file keyed by device fingerprint and OS build,
+ *        later launches read it and skip probing (no Camera.open()). <br>
+ *     3. A lens which couldn't be opened (e.g. used by other app) is probed again one at a time,
+ *        if it still fails nothing is written and the next launch probes again. <br>
+ *     4. Camera1 is exclusive, so probing never opens a lens while the app holds a camera
+ *        ({@link #acquireCamera()} / {@link #releaseCamera()}). Such lens is skipped and probed next time.
+ */
+public class CameraCapabilities {
+
+    private static final String FILE_NAME = "camera_capabilities.bin";
+    private static final int FILE_VERSION = 1;
+
+    /** Camera2 hardware level of a lens which isn't known */
+    public static final int UNKNOWN_HARDWARE_LEVEL = -1;
+    /** Max time {@link #acquireCamera()} waits for a lens which is being probed */
+    public static final long PROBE_WAIT_MS = 2000L;
+
+    private static CameraCapabilities sThis;
+
+    private final Logger LOG = Logger.getInstance();
+
+    private ThreadPoolExecutor mExecutor;
+    private Future<Lens[]> mLenses;
+
+    private final Object mCameraLock = new Object();
+    /** Cameras which are held by the app now */
+    private int mAppCameraCount;
+    /** Lenses which are opened by probing now */
+    private int mProbeCameraCount;
+
+    public static synchronized CameraCapabilities getInstance() {
+        if (sThis == null)
+            sThis = new CameraCapabilities();
+        return sThis;
+    }
+
+    private CameraCapabilities() {}
+
+    /**
+     * Start loading (or probing) capabilities in background, returns at once. <br>
+     *     Call it early (e.g. Activity onCreate), it does nothing until CAMERA permission is granted.
+     */
+    public synchronized void prefetch(Context context) {
+        if (mLenses != null) return;
+
+        // Lenses can't be opened without permission, nothing is kept so it is tried again later
+        if (context.checkCallingOrSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            LOG.d("No CAMERA permission, capabilities aren't loaded yet");
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        mLenses = getExecutor().submit(new Callable<Lens[]>() {
+            @Override
+            public Lens[] call() throws Exception {
+                return load(appContext);
+            }
+        });
+    }
+
+    /**
+     * Capabilities of every lens, it waits for {@link #prefetch(Context)} (started here if it wasn't). <br>
+     *     It may take a while on first launch, don't call it on UI thread. See {@link #getLoadedLens(Context, int)}
+     * @return null if camera couldn't be probed
+     */
+    public Lens[] getLenses(Context context) {
+        final Future<Lens[]> lenses;
+        synchronized (this) {
+            prefetch(context);
+            lenses = mLenses;
+        }
+        if (lenses == null) return null;
+
+        try {
+            return lenses.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                // Failure isn't kept, try again next time
+                if (mLenses == lenses)
+                    mLenses = null;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param cameraId id which is passed to {@link Camera#open(int)}
+     * @return null if there is no such lens or it couldn't be probed
+     */
+    public Lens getLens(Context context, int cameraId) {
+        final Lens[] lenses = getLenses(context);
+        if (lenses == null) return null;
+
+        for (Lens lens : lenses) {
+            if (lens.id == cameraId)
+                return lens.isProbed() ? lens : null;
+        }
+        return null;
+    }
+
+    /**
+     * Same as {@link #getLens(Context, int)} but it never waits and never starts probing, safe to call on UI thread
+     * @param cameraId id which is passed to {@link Camera#open(int)}
+     * @return null if capabilities aren't loaded (yet), or there is no such lens
+     */
+    public Lens getLoadedLens(Context context, int cameraId) {
+        final Future<Lens[]> lenses;
+        synchronized (this) {
+            lenses = mLenses;
+        }
+        if (lenses == null || !lenses.isDone()) return null;
+
+        return getLens(context, cameraId);
+    }
+
+    /**
+     * Call it before the app opens a camera. Probing doesn't open any lens until {@link #releaseCamera()}, <br>
+     *     and a lens which is being probed now is waited for (at most {@link #PROBE_WAIT_MS}, it takes one open and release).
+     */
+    public void acquireCamera() {
+        synchronized (mCameraLock) {
+            mAppCameraCount++;
+
+            final long deadline = System.currentTimeMillis() + PROBE_WAIT_MS;
+            long remaining = PROBE_WAIT_MS;
+            while (mProbeCameraCount > 0 && remaining > 0) {
+                try {
+                    mCameraLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (mProbeCameraCount > 0)
+                LOG.w("Lens is still being probed, camera may fail to open");
+        }
+    }
+
+    /**
+     * Call it after the app released a camera of {@link #acquireCamera()}
+     */
+    public void releaseCamera() {
+        synchronized (mCameraLock) {
+            if (mAppCameraCount > 0)
+                mAppCameraCount--;
+        }
+    }
+
+    /**
+     * Forget capabilities and delete the file, they are probed again when they are needed
+     */
+    public synchronized void invalidate(Context context) {
+        mLenses = null;
+        if (!getFile(context).delete())
+            LOG.d("No capability file to delete");
+    }
+
+    private Lens[] load(Context context) {
+        final long startTime = System.nanoTime();
+        final File file = getFile(context);
+        final String key = getKey();
+
+        Lens[] lenses = read(file, key);
+        if (lenses != null) {
+            LOG.d("Capabilities were read : {} lenses, {} us", lenses.length, (System.nanoTime() - startTime) / 1000);
+            return lenses;
+        }
+
+        lenses = probe(context);
+        LOG.d("Capabilities were probed : {} lenses, {} us", lenses.length, (System.nanoTime() - startTime) / 1000);
+
+        for (Lens lens : lenses) {
+            if (!lens.isProbed()) return lenses;
+        }
+        write(file, key, lenses);
+        return lenses;
+    }
+
+    private Lens[] probe(Context context) {
+        final int count = Camera.getNumberOfCameras();
+        final Lens[] lenses = new Lens[count];
+
+        final CameraManager manager = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                ? (CameraManager) context.getSystemService(Context.CAMERA_SERVICE) : null;
+
+        // Calling thread probes the first lens, the others are probed on the executor
+        final List<Future<Lens>> futures = new ArrayList<>();
+        for (int i = 1; i < count; i++) {
+            final int id = i;
+            futures.add(getExecutor().submit(new Callable<Lens>() {
+                @Override
+                public Lens call() {
+                    return probeLens(manager, id);
+                }
+            }));
+        }
+
+        if (count > 0)
+            lenses[0] = probeLens(manager, 0);
+        for (int i = 1; i < count; i++) {
+            try {
+                lenses[i] = futures.get(i - 1).get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                lenses[i] = probeLens(manager, i);
+            }
+        }
+
+        // Some HALs open only one camera at a time, lenses which failed are tried again alone
+        for (int i = 0; i < count; i++) {
+            if (!lenses[i].isProbed())
+                lenses[i] = probeLens(manager, i);
+        }
+        return lenses;
+    }
+
+    private Lens probeLens(CameraManager manager, int id) {
+        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        Camera.getCameraInfo(id, cameraInfo);
+
+        final int hardwareLevel = getHardwareLevel(manager, id);
+
+        synchronized (mCameraLock) {
+            if (mAppCameraCount > 0) {
+                LOG.d("Lens {} isn't probed, app holds a camera", id);
+                return new Lens(id, cameraInfo.facing, cameraInfo.orientation, cameraInfo.canDisableShutterSound,
+                        hardwareLevel, null, null, null);
+            }
+            mProbeCameraCount++;
+        }
+
+        Camera camera = null;
+        try {
+            camera = Camera.open(id);
+            if (camera == null)
+                return new Lens(id, cameraInfo.facing, cameraInfo.orientation, cameraInfo.canDisableShutterSound,
+                        hardwareLevel, null, null, null);
+
+            final Camera.Parameters parameters = camera.getParameters();
+            final List<String> flashModes = parameters.getSupportedFlashModes();
+            return new Lens(id, cameraInfo.facing, cameraInfo.orientation, cameraInfo.canDisableShutterSound,
+                    hardwareLevel, toArray(parameters.getSupportedPreviewSizes()), toArray(parameters.getSupportedPictureSizes()),
+                    flashModes != null ? flashModes.toArray(new String[flashModes.size()]) : new String[0]);
+        } catch (RuntimeException e) {
+            LOG.d("Lens {} couldn't be opened : {}", id, e);
+            return new Lens(id, cameraInfo.facing, cameraInfo.orientation, cameraInfo.canDisableShutterSound,
+                    hardwareLevel, null, null, null);
+        } finally {
+            if (camera != null)
+                camera.release();
+
+            synchronized (mCameraLock) {
+                mProbeCameraCount--;
+                mCameraLock.notifyAll();
+            }
+        }
+    }
+
+    private int getHardwareLevel(CameraManager manager, int id) {
+        if (manager == null) return UNKNOWN_HARDWARE_LEVEL;
+
+        try {
+            // Camera1 id is the same as Camera2 id for built-in lenses. No camera is opened here
+            final Integer level = manager.getCameraCharacteristics(String.valueOf(id))
+                    .get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level != null ? level : UNKNOWN_HARDWARE_LEVEL;
+        } catch (Exception e) {
+            return UNKNOWN_HARDWARE_LEVEL;
+        }
+    }
+
+    private static int[] toArray(List<Camera.Size> sizes) {
+        if (sizes == null) return new int[0];
+
+        final int[] array = new int[sizes.size() * 2];
+        for (int i = 0; i < sizes.size(); i++) {
+            array[i * 2] = sizes.get(i).width;
+            array[i * 2 + 1] = sizes.get(i).height;
+        }
+        return array;
+    }
+
+    private static String getKey() {
+        return Build.FINGERPRINT + "|" + Build.VERSION.SDK_INT + "|" + Build.VERSION.INCREMENTAL;
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * @return null if there is no file, or it was written by other device / OS build
+     */
+    private Lens[] read(File file, String key) {
+        if (!file.exists()) return null;
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != FILE_VERSION || !key.equals(input.readUTF())) {
+                LOG.d("Capability file is outdated");
+                return null;
+            }
+
+            final Lens[] lenses = new Lens[input.readInt()];
+            for (int i = 0; i < lenses.length; i++) {
+                final int id = input.readInt();
+                final int facing = input.readInt();
+                final int orientation = input.readInt();
+                final boolean canDisableShutterSound = input.readBoolean();
+                final int hardwareLevel = input.readInt();
+                final int[] previewSizes = readInts(input);
+                final int[] pictureSizes = readInts(input);
+                final String[] flashModes = new String[input.readInt()];
+                for (int j = 0; j < flashModes.length; j++)
+                    flashModes[j] = input.readUTF();
+
+                lenses[i] = new Lens(id, facing, orientation, canDisableShutterSound, hardwareLevel,
+                        previewSizes, pictureSizes, flashModes);
+            }
+            return lenses;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static int[] readInts(DataInputStream input) throws IOException {
+        final int[] array = new int[input.readInt()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = input.readInt();
+        return array;
+    }
+
+    private void write(File file, String key, Lens[] lenses) {
+        // Written into temp file first, so a half written file is never read
+        final File tempFile = new File(file.getPath() + ".tmp");
+
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.writeInt(FILE_VERSION);
+            output.writeUTF(key);
+            output.writeInt(lenses.length);
+            for (Lens lens : lenses) {
+                output.writeInt(lens.id);
+                output.writeInt(lens.facing);
+                output.writeInt(lens.orientation);
+                output.writeBoolean(lens.canDisableShutterSound);
+                output.writeInt(lens.hardwareLevel);
+                writeInts(output, lens.previewSizes);
+                writeInts(output, lens.pictureSizes);
+                output.writeInt(lens.flashModes.length);
+                for (String flashMode : lens.flashModes)
+                    output.writeUTF(flashMode);
+            }
+            output.close();
+            output = null;
+
+            if (!tempFile.renameTo(file))
+                LOG.e("Capability file couldn't be renamed");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void writeInts(DataOutputStream output, int[] array) throws IOException {
+        output.writeInt(array.length);
+        for (int value : array)
+            output.writeInt(value);
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (mExecutor == null) {
+            // Probing is rare, threads are gone when idle
+            final int threadCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+            mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 1L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "CameraProbe-" + mCount.incrementAndGet());
+                }
+            });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mExecutor;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CameraCapabilities(" + (mLenses == null ? "not loaded" : mLenses.isDone() ? "loaded" : "loading") + ")";
+    }
+
+    /**
+     * Capabilities of a lens. Sizes are width and height one after another
+     */
+    public static class Lens {
+
+        /** Id which is passed to {@link Camera#open(int)} */
+        public final int id;
+        /** {@link Camera.CameraInfo#facing} */
+        public final int facing;
+        /** {@link Camera.CameraInfo#orientation} */
+        public final int orientation;
+        public final boolean canDisableShutterSound;
+        /** {@link CameraCharacteristics#INFO_SUPPORTED_HARDWARE_LEVEL}, or {@link #UNKNOWN_HARDWARE_LEVEL} */
+        public final int hardwareLevel;
+        /** null if lens couldn't be opened */
+        public final int[] previewSizes;
+        public final int[] pictureSizes;
+        public final String[] flashModes;
+
+        Lens(int id, int facing, int orientation, boolean canDisableShutterSound, int hardwareLevel,
+             int[] previewSizes, int[] pictureSizes, String[] flashModes) {
+            this.id = id;
+            this.facing = facing;
+            this.orientation = orientation;
+            this.canDisableShutterSound = canDisableShutterSound;
+            this.hardwareLevel = hardwareLevel;
+            this.previewSizes = previewSizes;
+            this.pictureSizes = pictureSizes;
+            this.flashModes = flashModes;
+        }
+
+        /** False if lens couldn't be opened, only camera info is known */
+        public boolean isProbed() {
+            return previewSizes != null;
+        }
+
+        /**
+         * @return index of the largest preview size in {@link #previewSizes}, or -1 if there is none
+         */
+        public int getLargestPreviewSize() {
+            return getLargest(previewSizes);
+        }
+
+        /**
+         * @return index of the largest picture size in {@link #pictureSizes}, or -1 if there is none
+         */
+        public int getLargestPictureSize() {
+            return getLargest(pictureSizes);
+        }
+
+        public boolean isFlashModeSupported(String flashMode) {
+            if (flashModes == null) return false;
+
+            for (String mode : flashModes) {
+                if (mode.equals(flashMode))
+                    return true;
+            }
+            return false;
+        }
+
+        private static int getLargest(int[] sizes) {
+            if (sizes == null) return -1;
+
+            int largest = -1;
+            long largestArea = -1;
+            for (int i = 0; i + 1 < sizes.length; i += 2) {
+                final long area = (long) sizes[i] * sizes[i + 1];
+                if (area > largestArea) {
+                    largestArea = area;
+                    largest = i;
+                }
+            }
+            return largest;
+        }
+
+        @Override
+        public String toString() {
+            return "Lens(" + id + ", facing " + facing + ", orientation " + orientation
+                    + ", level " + hardwareLevel + (isProbed() ? ", " + previewSizes.length / 2 + " preview sizes, "
+                    + pictureSizes.length / 2 + " picture sizes, " + flashModes.length + " flash modes" : ", not probed") + ")";
+        }
+    }
+}
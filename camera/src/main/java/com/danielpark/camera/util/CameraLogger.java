@@ -8,7 +8,8 @@ package com.danielpark.camera.util;
  */
 public class CameraLogger {
 
-    private static boolean mLogFlag = false;
+    private static volatile boolean mLogFlag = false;
+    private static volatile boolean mTraceFlag = false;
 
     public static void enable() {
         mLogFlag = true;
@@ -21,4 +22,19 @@ public class CameraLogger {
     public static boolean getLogState(){
         return mLogFlag;
     }
+
+    /**
+     * Record trace events into {@link TraceRing}, it doesn't print anything to logcat
+     */
+    public static void enableTrace() {
+        mTraceFlag = true;
+    }
+
+    public static void disableTrace() {
+        mTraceFlag = false;
+    }
+
+    public static boolean getTraceState() {
+        return mTraceFlag;
+    }
 }
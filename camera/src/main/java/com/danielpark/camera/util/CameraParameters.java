@@ -0,0 +1,189 @@
+package com.danielpark.camera.util;
+
+import android.hardware.Camera;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Snapshot of {@link Camera.Parameters} of an open Camera1 <br>
+ *     1. {@link Camera#getParameters()} flattens and parses every parameter, so it is called once per camera
+ *        and reads come from the snapshot. Supported values don't change while camera is open, their lists are kept. <br>
+ *     2. Setters change only the snapshot and remember keys whose value really changed. <br>
+ *     3. {@link #commit()} sends every change in one {@link Camera#setParameters(Camera.Parameters)},
+ *        and tells if a changed key needs preview to be restarted.
+ */
+public class CameraParameters {
+
+    public static final String KEY_PREVIEW_SIZE = "preview-size";
+    public static final String KEY_PREVIEW_FORMAT = "preview-format";
+    public static final String KEY_PREVIEW_FPS_RANGE = "preview-fps-range";
+    public static final String KEY_PICTURE_SIZE = "picture-size";
+    public static final String KEY_FLASH_MODE = "flash-mode";
+    public static final String KEY_FOCUS_MODE = "focus-mode";
+
+    private final Logger LOG = Logger.getInstance();
+
+    private final Camera mCamera;
+    private Camera.Parameters mParameters;
+    private final Set<String> mDirtyKeys = new HashSet<>();
+
+    private List<Camera.Size> mSupportedPreviewSizes;
+    private List<Camera.Size> mSupportedPictureSizes;
+    private List<String> mSupportedFlashModes;
+    private Camera.Size mLargestPreviewSize;
+
+    /**
+     * Read parameters of camera once
+     */
+    public CameraParameters(Camera camera) {
+        mCamera = camera;
+        mParameters = camera.getParameters();
+    }
+
+    /**
+     * Read parameters of camera again, changes which weren't committed are dropped
+     */
+    public synchronized void refresh() {
+        mParameters = mCamera.getParameters();
+        mDirtyKeys.clear();
+    }
+
+    public synchronized List<Camera.Size> getSupportedPreviewSizes() {
+        if (mSupportedPreviewSizes == null)
+            mSupportedPreviewSizes = unmodifiable(mParameters.getSupportedPreviewSizes());
+        return mSupportedPreviewSizes;
+    }
+
+    public synchronized List<Camera.Size> getSupportedPictureSizes() {
+        if (mSupportedPictureSizes == null)
+            mSupportedPictureSizes = unmodifiable(mParameters.getSupportedPictureSizes());
+        return mSupportedPictureSizes;
+    }
+
+    /**
+     * @return null if flash isn't supported
+     */
+    public synchronized List<String> getSupportedFlashModes() {
+        if (mSupportedFlashModes == null)
+            mSupportedFlashModes = unmodifiable(mParameters.getSupportedFlashModes());
+        return mSupportedFlashModes;
+    }
+
+    /**
+     * @return the largest of {@link #getSupportedPreviewSizes()} by area, or null if there is none
+     */
+    public synchronized Camera.Size getLargestPreviewSize() {
+        final List<Camera.Size> sizes = getSupportedPreviewSizes();
+        if (mLargestPreviewSize == null && sizes != null) {
+            for (Camera.Size size : sizes) {
+                if (mLargestPreviewSize == null
+                        || (long) size.width * size.height > (long) mLargestPreviewSize.width * mLargestPreviewSize.height)
+                    mLargestPreviewSize = size;
+            }
+        }
+        return mLargestPreviewSize;
+    }
+
+    public synchronized boolean isFlashModeSupported(String flashMode) {
+        final List<String> flashModes = getSupportedFlashModes();
+        return flashModes != null && flashModes.contains(flashMode);
+    }
+
+    public synchronized String getFlashMode() {
+        return mParameters.getFlashMode();
+    }
+
+    public synchronized int getPreviewFormat() {
+        return mParameters.getPreviewFormat();
+    }
+
+    public synchronized CameraParameters setPreviewSize(int width, int height) {
+        final String before = mParameters.get(KEY_PREVIEW_SIZE);
+        mParameters.setPreviewSize(width, height);
+        markIfChanged(KEY_PREVIEW_SIZE, before);
+        return this;
+    }
+
+    public synchronized CameraParameters setPictureSize(int width, int height) {
+        final String before = mParameters.get(KEY_PICTURE_SIZE);
+        mParameters.setPictureSize(width, height);
+        markIfChanged(KEY_PICTURE_SIZE, before);
+        return this;
+    }
+
+    public synchronized CameraParameters setFlashMode(String flashMode) {
+        final String before = mParameters.get(KEY_FLASH_MODE);
+        mParameters.setFlashMode(flashMode);
+        markIfChanged(KEY_FLASH_MODE, before);
+        return this;
+    }
+
+    public synchronized CameraParameters setFocusMode(String focusMode) {
+        final String before = mParameters.get(KEY_FOCUS_MODE);
+        mParameters.setFocusMode(focusMode);
+        markIfChanged(KEY_FOCUS_MODE, before);
+        return this;
+    }
+
+    /**
+     * Set a parameter which has no typed setter here
+     */
+    public synchronized CameraParameters set(String key, String value) {
+        final String before = mParameters.get(key);
+        mParameters.set(key, value);
+        markIfChanged(key, before);
+        return this;
+    }
+
+    private void markIfChanged(String key, String before) {
+        final String after = mParameters.get(key);
+        if (before == null ? after != null : !before.equals(after))
+            mDirtyKeys.add(key);
+    }
+
+    public synchronized boolean isDirty() {
+        return !mDirtyKeys.isEmpty();
+    }
+
+    /**
+     * Check before {@link #commit()} if preview has to be stopped for the changes (preview size, format or fps range)
+     */
+    public synchronized boolean isRestartNeeded() {
+        return mDirtyKeys.contains(KEY_PREVIEW_SIZE)
+                || mDirtyKeys.contains(KEY_PREVIEW_FORMAT) || mDirtyKeys.contains(KEY_PREVIEW_FPS_RANGE);
+    }
+
+    /**
+     * Send changed parameters to camera in one call. Nothing is sent if nothing changed <br>
+     *     If camera refuses them, snapshot is read again from camera and exception is thrown.
+     * @return true if a key which needs preview to be restarted was changed (preview size, format or fps range)
+     */
+    public synchronized boolean commit() throws RuntimeException {
+        if (mDirtyKeys.isEmpty()) return false;
+
+        final boolean restartNeeded = isRestartNeeded();
+        LOG.d("Commit parameters : {} , restart {}", mDirtyKeys, restartNeeded);
+
+        try {
+            mCamera.setParameters(mParameters);
+            mDirtyKeys.clear();
+        } catch (RuntimeException e) {
+            // Snapshot should match camera again, or the same bad value would be sent next time
+            refresh();
+            throw e;
+        }
+        return restartNeeded;
+    }
+
+    private static <T> List<T> unmodifiable(List<T> list) {
+        return list != null ? Collections.unmodifiableList(list) : null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CameraParameters(dirty " + mDirtyKeys + ")";
+    }
+}
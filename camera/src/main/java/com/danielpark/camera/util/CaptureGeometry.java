@@ -0,0 +1,175 @@
+package com.danielpark.camera.util;
+
+/**
+ * Geometry which should be applied to a captured image <br>
+ *     1. crop rectangle (source image coordinates) <br>
+ *     2. clockwise rotation (0, 90, 180, 270) <br>
+ *     3. horizontal mirror (after rotation)
+ */
+public class CaptureGeometry {
+
+    /** Source image size */
+    public final int sourceWidth;
+    public final int sourceHeight;
+
+    /** Crop rectangle on source image */
+    public final int cropX;
+    public final int cropY;
+    public final int cropWidth;
+    public final int cropHeight;
+
+    /** Clockwise rotation after crop */
+    public final int rotation;
+    /** Reverse sides after rotation */
+    public final boolean mirror;
+
+    public CaptureGeometry(int sourceWidth, int sourceHeight, int cropX, int cropY, int cropWidth, int cropHeight,
+                           int rotation, boolean mirror) {
+        if (cropX < 0 || cropY < 0 || cropWidth <= 0 || cropHeight <= 0
+                || cropX + cropWidth > sourceWidth || cropY + cropHeight > sourceHeight)
+            throw new IllegalArgumentException("Crop rectangle is out of source image!");
+
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.cropX = cropX;
+        this.cropY = cropY;
+        this.cropWidth = cropWidth;
+        this.cropHeight = cropHeight;
+        this.rotation = normalizeRotation(rotation);
+        this.mirror = mirror;
+    }
+
+    /**
+     * Geometry without any crop
+     */
+    public CaptureGeometry(int sourceWidth, int sourceHeight, int rotation, boolean mirror) {
+        this(sourceWidth, sourceHeight, 0, 0, sourceWidth, sourceHeight, rotation, mirror);
+    }
+
+    /**
+     * Build geometry from a crop rectangle which was measured on the source image already rotated by
+     * <b>preRotation</b> degrees. (e.g. crop margin of preview is calculated after sensor orientation was applied)
+     * @param sourceWidth width of source image (not rotated)
+     * @param sourceHeight height of source image (not rotated)
+     * @param preRotation clockwise rotation which was applied before measuring crop rectangle
+     * @param crop {x, y, width, height} on rotated image. if it is null then, whole image is used
+     * @param postRotation clockwise rotation which should be applied after crop
+     * @param mirror reverse sides at the end
+     */
+    public static CaptureGeometry fromRotatedCrop(int sourceWidth, int sourceHeight, int preRotation, int[] crop,
+                                                  int postRotation, boolean mirror) {
+        preRotation = normalizeRotation(preRotation);
+        final int totalRotation = normalizeRotation(preRotation + postRotation);
+
+        if (crop == null)
+            return new CaptureGeometry(sourceWidth, sourceHeight, totalRotation, mirror);
+
+        final int x = crop[0];
+        final int y = crop[1];
+        final int w = crop[2];
+        final int h = crop[3];
+
+        switch (preRotation) {
+            case 90:
+                return new CaptureGeometry(sourceWidth, sourceHeight,
+                        y, sourceHeight - x - w, h, w, totalRotation, mirror);
+            case 180:
+                return new CaptureGeometry(sourceWidth, sourceHeight,
+                        sourceWidth - x - w, sourceHeight - y - h, w, h, totalRotation, mirror);
+            case 270:
+                return new CaptureGeometry(sourceWidth, sourceHeight,
+                        sourceWidth - y - h, x, h, w, totalRotation, mirror);
+            default:
+                return new CaptureGeometry(sourceWidth, sourceHeight,
+                        x, y, w, h, totalRotation, mirror);
+        }
+    }
+
+    /**
+     * Check if crop rectangle is the same as source image
+     */
+    public boolean isFullFrame() {
+        return cropX == 0 && cropY == 0 && cropWidth == sourceWidth && cropHeight == sourceHeight;
+    }
+
+    /**
+     * Check if this geometry doesn't change anything
+     */
+    public boolean isIdentity() {
+        return isFullFrame() && rotation == 0 && !mirror;
+    }
+
+    /**
+     * Same crop without rotation and mirror
+     */
+    public CaptureGeometry cropOnly() {
+        if (rotation == 0 && !mirror) return this;
+        return new CaptureGeometry(sourceWidth, sourceHeight, cropX, cropY, cropWidth, cropHeight, 0, false);
+    }
+
+    /** Width of result image */
+    public int getOutputWidth() {
+        return rotation == 90 || rotation == 270 ? cropHeight : cropWidth;
+    }
+
+    /** Height of result image */
+    public int getOutputHeight() {
+        return rotation == 90 || rotation == 270 ? cropWidth : cropHeight;
+    }
+
+    /**
+     * Largest power of two sample size which keeps result image equal to or bigger than requested size <br>
+     *     Long side is compared with long side, so orientation of requested size doesn't matter.
+     * @return 1 if requested size isn't set (0) or result image isn't bigger than it
+     */
+    public int getSampleSize(int requestedWidth, int requestedHeight) {
+        if (requestedWidth <= 0 || requestedHeight <= 0) return 1;
+
+        final int longSide = Math.max(cropWidth, cropHeight);
+        final int shortSide = Math.min(cropWidth, cropHeight);
+        final int requestedLongSide = Math.max(requestedWidth, requestedHeight);
+        final int requestedShortSide = Math.min(requestedWidth, requestedHeight);
+
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= requestedLongSide && shortSide / (sampleSize * 2) >= requestedShortSide)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /**
+     * Geometry for crop rectangle which was decoded already (e.g. by {@link android.graphics.BitmapRegionDecoder})
+     * @param width width of decoded crop rectangle
+     * @param height height of decoded crop rectangle
+     */
+    public CaptureGeometry forRegion(int width, int height) {
+        return new CaptureGeometry(width, height, rotation, mirror);
+    }
+
+    /**
+     * Same geometry on source image which was scaled (e.g. decoded with inSampleSize)
+     * @param width width of scaled source image
+     * @param height height of scaled source image
+     */
+    public CaptureGeometry scaleTo(int width, int height) {
+        if (width == sourceWidth && height == sourceHeight) return this;
+
+        final float scaleX = (float) width / sourceWidth;
+        final float scaleY = (float) height / sourceHeight;
+
+        final int x = Math.min(width - 1, (int) (cropX * scaleX));
+        final int y = Math.min(height - 1, (int) (cropY * scaleY));
+        final int w = Math.max(1, Math.min(width - x, Math.round(cropWidth * scaleX)));
+        final int h = Math.max(1, Math.min(height - y, Math.round(cropHeight * scaleY)));
+        return new CaptureGeometry(width, height, x, y, w, h, rotation, mirror);
+    }
+
+    public static int normalizeRotation(int degrees) {
+        return ((degrees % 360) + 360) % 360;
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureGeometry(" + sourceWidth + "x" + sourceHeight + " crop[" + cropX + ", " + cropY + ", "
+                + cropWidth + ", " + cropHeight + "] rotation " + rotation + " mirror " + mirror + ")";
+    }
+}
@@ -0,0 +1,194 @@
+package com.danielpark.camera.util;
+
+import java.util.Locale;
+
+/**
+ * Registry of capture latencies per stage, from takePicture() to {@link com.danielpark.camera.listeners.OnTakePictureListener} <br>
+ *     1. Each stage has a {@link LatencyHistogram}, memory is fixed. Recording is lock free and allocation free,
+ *        so it stays on in production. <br>
+ *     2. Times come from {@link System#nanoTime()} (monotonic). <br>
+ *     3. {@link #snapshot()} copies percentiles of every stage, it can be exported as CSV.
+ */
+public class CaptureMetrics {
+
+    public enum Stage {
+        /** takePicture() to shutter callback of camera */
+        SHUTTER,
+        /** Shutter to picture callback, or takePicture() to the preview frame which is taken */
+        SENSOR_CALLBACK,
+        /** Decode of JPEG into bitmap */
+        DECODE,
+        /**
+         * Crop, rotation and mirror are done in one pass (YUV, bitmap or DCT coefficients).
+         * The pass is recorded once, under its last step : mirror if mirrored, or rotate if rotated, or crop
+         */
+        CROP,
+        ROTATE,
+        MIRROR,
+        /** Encode into sink, bytes are streamed to output while they are encoded */
+        ENCODE,
+        /** Commit (or hand off) of sink */
+        WRITE,
+        /** Result posted to main thread until listeners returned */
+        LISTENER_DISPATCH,
+        /** takePicture() to listeners returned */
+        TOTAL
+    }
+
+    private static CaptureMetrics sThis;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Stage.values().length];
+    private volatile boolean mEnabled = true;
+
+    public static synchronized CaptureMetrics getInstance() {
+        if (sThis == null)
+            sThis = new CaptureMetrics();
+        return sThis;
+    }
+
+    private CaptureMetrics() {
+        for (int i = 0; i < mHistograms.length; i++)
+            mHistograms[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Start of a stage, pass it to {@link #end(Stage, long)}
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Record a stage which started at startNs
+     * @param startNs {@link #now()} at the start of stage
+     */
+    public void end(Stage stage, long startNs) {
+        record(stage, System.nanoTime() - startNs);
+    }
+
+    public void record(Stage stage, long latencyNs) {
+        if (mEnabled)
+            mHistograms[stage.ordinal()].record(latencyNs);
+        // Stage also goes to trace as a slice which ended now, name of enum is a constant
+        if (TraceRing.isEnabled())
+            TraceRing.getInstance().complete(stage.name(), System.nanoTime() - latencyNs, latencyNs);
+    }
+
+    /**
+     * Record a pass which cropped, rotated and mirrored at once, see {@link Stage#CROP}
+     */
+    public void endTransform(CaptureGeometry geometry, long startNs) {
+        if (geometry == null) return;
+
+        final Stage stage = geometry.mirror ? Stage.MIRROR : geometry.rotation != 0 ? Stage.ROTATE : Stage.CROP;
+        end(stage, startNs);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms)
+            histogram.reset();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(mHistograms);
+    }
+
+    /**
+     * Percentiles of every stage at a moment (microseconds)
+     */
+    public static class Snapshot {
+
+        private final long[] mCounts;
+        private final long[] mP50;
+        private final long[] mP95;
+        private final long[] mP99;
+        private final long[] mMax;
+        private final long[] mMean;
+
+        private Snapshot(LatencyHistogram[] histograms) {
+            final int count = histograms.length;
+            mCounts = new long[count];
+            mP50 = new long[count];
+            mP95 = new long[count];
+            mP99 = new long[count];
+            mMax = new long[count];
+            mMean = new long[count];
+
+            for (int i = 0; i < count; i++) {
+                mCounts[i] = histograms[i].getCount();
+                mP50[i] = histograms[i].getPercentile(50);
+                mP95[i] = histograms[i].getPercentile(95);
+                mP99[i] = histograms[i].getPercentile(99);
+                mMax[i] = histograms[i].getMax();
+                mMean[i] = histograms[i].getMean();
+            }
+        }
+
+        public long getCount(Stage stage) {
+            return mCounts[stage.ordinal()];
+        }
+
+        public long getP50(Stage stage) {
+            return mP50[stage.ordinal()];
+        }
+
+        public long getP95(Stage stage) {
+            return mP95[stage.ordinal()];
+        }
+
+        public long getP99(Stage stage) {
+            return mP99[stage.ordinal()];
+        }
+
+        public long getMax(Stage stage) {
+            return mMax[stage.ordinal()];
+        }
+
+        public long getMean(Stage stage) {
+            return mMean[stage.ordinal()];
+        }
+
+        /**
+         * One line per stage which has records, with a header line
+         */
+        public String toCsv() {
+            final StringBuilder builder = new StringBuilder("stage,count,p50_us,p95_us,p99_us,max_us,mean_us\n");
+            for (Stage stage : Stage.values()) {
+                final int i = stage.ordinal();
+                if (mCounts[i] == 0) continue;
+
+                builder.append(stage.name().toLowerCase(Locale.US)).append(',').append(mCounts[i])
+                        .append(',').append(mP50[i]).append(',').append(mP95[i]).append(',').append(mP99[i])
+                        .append(',').append(mMax[i]).append(',').append(mMean[i]).append('\n');
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("CaptureMetrics(");
+            for (Stage stage : Stage.values()) {
+                final int i = stage.ordinal();
+                if (mCounts[i] == 0) continue;
+
+                if (builder.length() > "CaptureMetrics(".length())
+                    builder.append(", ");
+                builder.append(stage.name().toLowerCase(Locale.US)).append(" p50 ").append(mP50[i] / 1000).append("ms p95 ")
+                        .append(mP95[i] / 1000).append("ms p99 ").append(mP99[i] / 1000).append("ms");
+            }
+            return builder.append(")").toString();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.danielpark.camera.util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps pictures of {@link CaptureStorage} under byte, count and age budgets <br>
+ *     Pictures are evicted in LRU order from an in-memory index which is built once,
+ *     so directory is never listed again. Pinned pictures (e.g. being uploaded) are never evicted.
+ */
+public class CaptureRetention {
+
+    /** Budget which isn't limited */
+    public static final long UNLIMITED = 0;
+
+    /** Default budgets of a cache directory */
+    public static final long DEFAULT_MAX_BYTES = 100L * 1024 * 1024;
+    public static final int DEFAULT_MAX_COUNT = 200;
+
+    private final Logger LOG = Logger.getInstance();
+
+    private final long mMaxBytes;
+    private final int mMaxCount;
+    private final long mMaxAgeMs;
+
+    private CaptureStorage mStorage;
+
+    /** Pictures from least recently used. Key is absolute path */
+    private final LinkedHashMap<String, Entry> mIndex = new LinkedHashMap<>(64, 0.75f, true);
+    /** Pin count of pictures. Key is absolute path */
+    private final HashMap<String, Integer> mPinned = new HashMap<>();
+
+    private boolean mLoaded;
+    private long mTotalBytes;
+
+    private long mEvictionCount;
+    private long mEvictedBytes;
+
+    private static class Entry {
+        final File file;
+        final long length;
+        final long createdTime;
+
+        Entry(File file, long length, long createdTime) {
+            this.file = file;
+            this.length = length;
+            this.createdTime = createdTime;
+        }
+    }
+
+    /**
+     * @param maxBytes max total size of pictures, or {@link #UNLIMITED}
+     * @param maxCount max number of pictures, or {@link #UNLIMITED}
+     * @param maxAgeMs max age of a picture, or {@link #UNLIMITED}
+     */
+    public CaptureRetention(long maxBytes, int maxCount, long maxAgeMs) {
+        mMaxBytes = Math.max(UNLIMITED, maxBytes);
+        mMaxCount = (int) Math.max(UNLIMITED, maxCount);
+        mMaxAgeMs = Math.max(UNLIMITED, maxAgeMs);
+    }
+
+    /**
+     * Called by {@link CaptureStorage#setRetention(CaptureRetention)}
+     */
+    synchronized void attach(CaptureStorage storage) {
+        mStorage = storage;
+    }
+
+    /**
+     * Build index from pictures which exist already. It is done only once <br>
+     *     If it isn't called, index is built by listing directory when it is needed first.
+     * @param files pictures in storage directory
+     */
+    public synchronized void load(List<File> files) {
+        if (mLoaded) return;
+
+        File[] sorted = files.toArray(new File[files.size()]);
+        // Older pictures are less recently used
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (File file : sorted) {
+            if (mStorage != null && !mStorage.isCaptureFile(file)) continue;
+            put(file);
+        }
+        mLoaded = true;
+
+        LOG.d("Retention index was loaded : {} pictures, {} bytes", mIndex.size(), mTotalBytes);
+        enforce(null);
+    }
+
+    /**
+     * A new picture was written
+     */
+    public synchronized void onFileAdded(File file) {
+        ensureLoaded();
+        put(file);
+        enforce(file);
+    }
+
+    /**
+     * Mark a picture as recently used
+     */
+    public synchronized void touch(File file) {
+        if (file == null) return;
+
+        ensureLoaded();
+        mIndex.get(file.getAbsolutePath());
+    }
+
+    /**
+     * Picture isn't evicted until {@link #unpin(File)} is called as many times as this
+     */
+    public synchronized void pin(File file) {
+        if (file == null) return;
+
+        final String key = file.getAbsolutePath();
+        final Integer count = mPinned.get(key);
+        mPinned.put(key, count == null ? 1 : count + 1);
+    }
+
+    public synchronized void unpin(File file) {
+        if (file == null) return;
+
+        final String key = file.getAbsolutePath();
+        final Integer count = mPinned.get(key);
+        if (count == null) return;
+
+        if (count <= 1) {
+            mPinned.remove(key);
+            enforce(null);
+        } else {
+            mPinned.put(key, count - 1);
+        }
+    }
+
+    public synchronized boolean isPinned(File file) {
+        return file != null && mPinned.containsKey(file.getAbsolutePath());
+    }
+
+    /**
+     * Picture was deleted by caller
+     */
+    public synchronized void onFileRemoved(File file) {
+        if (file == null) return;
+
+        Entry entry = mIndex.remove(file.getAbsolutePath());
+        if (entry != null)
+            mTotalBytes -= entry.length;
+    }
+
+    /**
+     * Evict pictures until every budget is satisfied
+     * @param keep picture which should not be evicted (e.g. just written), or null
+     */
+    public synchronized void enforce(File keep) {
+        final String keepKey = keep != null ? keep.getAbsolutePath() : null;
+
+        if (mMaxAgeMs != UNLIMITED) {
+            final long expired = System.currentTimeMillis() - mMaxAgeMs;
+            Iterator<Map.Entry<String, Entry>> iterator = mIndex.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> item = iterator.next();
+                if (item.getValue().createdTime < expired && canEvict(item.getKey(), keepKey)
+                        && evict(item.getValue()))
+                    iterator.remove();
+            }
+        }
+
+        if (!isOverBudget()) return;
+
+        Iterator<Map.Entry<String, Entry>> iterator = mIndex.entrySet().iterator();
+        while (iterator.hasNext() && isOverBudget()) {
+            Map.Entry<String, Entry> item = iterator.next();
+            if (canEvict(item.getKey(), keepKey) && evict(item.getValue()))
+                iterator.remove();
+        }
+    }
+
+    public synchronized int getCount() {
+        return mIndex.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CaptureRetention(" + mIndex.size() + " pictures, " + mTotalBytes + " bytes, pinned " + mPinned.size()
+                + ", evicted " + mEvictionCount + " / " + mEvictedBytes + " bytes)";
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded || mStorage == null) return;
+
+        File[] files = mStorage.getDirectory().listFiles();
+        load(files != null ? Arrays.asList(files) : Collections.<File>emptyList());
+    }
+
+    private void put(File file) {
+        final long length = file.length();
+        Entry previous = mIndex.put(file.getAbsolutePath(), new Entry(file, length, file.lastModified()));
+        if (previous != null)
+            mTotalBytes -= previous.length;
+        mTotalBytes += length;
+    }
+
+    private boolean isOverBudget() {
+        return (mMaxBytes != UNLIMITED && mTotalBytes > mMaxBytes)
+                || (mMaxCount != UNLIMITED && mIndex.size() > mMaxCount);
+    }
+
+    private boolean canEvict(String key, String keepKey) {
+        return !key.equals(keepKey) && !mPinned.containsKey(key);
+    }
+
+    /**
+     * Delete picture. Index entry should be removed by caller
+     * @return false if file still exists
+     */
+    private boolean evict(Entry entry) {
+        if (!entry.file.delete() && entry.file.exists()) {
+            LOG.d("Failed to evict {}", entry.file.getAbsolutePath());
+            return false;
+        }
+
+        mTotalBytes -= entry.length;
+        mEvictionCount++;
+        mEvictedBytes += entry.length;
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+package com.danielpark.camera.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of taken pictures (default : {@link FileCaptureSink}) <br>
+ *     1. Transformed picture is encoded into {@link Output#getOutputStream()}. <br>
+ *     2. Picture which doesn't need any change is handed off by {@link #handOff(ByteBuffer, Release)} without copy.
+ * <br><br>
+ * Methods are called on {@link SaveExecutor} worker threads.
+ * @param <T> result delivered to {@link com.danielpark.camera.listeners.OnCaptureListener}
+ */
+public interface CaptureSink<T> {
+
+    /**
+     * Release buffer of a handed off picture. (e.g. close Camera2 {@link android.media.Image})
+     */
+    interface Release {
+
+        /**
+         * Should be called exactly once, on any thread
+         */
+        void release();
+    }
+
+    Release NO_RELEASE = new Release() {
+        @Override
+        public void release() {
+        }
+    };
+
+    /**
+     * A picture being written. {@link #abort()} after {@link #commit()} does nothing, so it can be called in finally block.
+     */
+    interface Output<T> {
+
+        /**
+         * Don't close it
+         */
+        OutputStream getOutputStream();
+
+        /**
+         * @return result of picture
+         */
+        T commit() throws IOException;
+
+        void abort();
+    }
+
+    /**
+     * Start writing a picture
+     */
+    Output<T> begin() throws IOException;
+
+    /**
+     * Take a complete JPEG as it is <br>
+     *     Sink owns remaining bytes of <b>jpeg</b> until it calls {@link Release#release()}.
+     *     It should be called even if it fails.
+     * @return result of picture
+     */
+    T handOff(ByteBuffer jpeg, Release release) throws IOException;
+}
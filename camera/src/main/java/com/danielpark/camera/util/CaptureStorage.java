@@ -0,0 +1,363 @@
+package com.danielpark.camera.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes taken pictures into a directory <br>
+ *     1. Every picture has a unique, monotonic id in its name. <br>
+ *     2. Picture is written to a temp file first, and renamed when it is complete.
+ *        So a picture is never seen half written even if process dies. <br>
+ *     3. Orphaned temp files are recovered by {@link #recoverOrphans()}. Temp files of open transactions are skipped,
+ *        so it can run while pictures are being saved. <br>
+ *     4. Directory is kept under budgets by {@link CaptureRetention} if it is set.
+ */
+public class CaptureStorage {
+
+    /**
+     * When written data is forced to storage device before rename
+     */
+    public enum SyncPolicy {
+        /** Never. A picture survives process death, but may be lost on power loss */
+        NONE,
+        /** File content is forced ({@link FileChannel#force(boolean)} without metadata) */
+        DATA,
+        /** File content and metadata are forced */
+        ALL
+    }
+
+    public static final String DEFAULT_PREFIX = "CameraLibrary_";
+    public static final String EXTENSION = ".jpg";
+    public static final String TEMP_EXTENSION = ".tmp";
+
+    private final Logger LOG = Logger.getInstance();
+
+    private final File mDirectory;
+    private final String mPrefix;
+    private volatile SyncPolicy mSyncPolicy;
+    private volatile CaptureRetention mRetention;
+
+    private long mLastId;
+
+    /** Temp file names of transactions which are being written. Recovery doesn't touch them */
+    private final Set<String> mOpenTempFiles = new HashSet<>();
+
+    public CaptureStorage(File directory) {
+        this(directory, DEFAULT_PREFIX, SyncPolicy.NONE);
+    }
+
+    public CaptureStorage(File directory, String prefix, SyncPolicy syncPolicy) {
+        if (directory == null)
+            throw new IllegalArgumentException("Directory should not be null!");
+
+        mDirectory = directory;
+        mPrefix = prefix != null ? prefix : DEFAULT_PREFIX;
+        mSyncPolicy = syncPolicy != null ? syncPolicy : SyncPolicy.NONE;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public String getPrefix() {
+        return mPrefix;
+    }
+
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        if (syncPolicy == null) return;
+        mSyncPolicy = syncPolicy;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return mSyncPolicy;
+    }
+
+    /**
+     * Keep pictures under budgets. Every committed picture is added to its index
+     * @param retention null to keep every picture
+     */
+    public void setRetention(CaptureRetention retention) {
+        if (retention != null)
+            retention.attach(this);
+        mRetention = retention;
+    }
+
+    public CaptureRetention getRetention() {
+        return mRetention;
+    }
+
+    /**
+     * Get next id. It is based on current time (ms) but never goes backward or repeats
+     */
+    public synchronized long nextId() {
+        mLastId = Math.max(System.currentTimeMillis(), mLastId + 1);
+        return mLastId;
+    }
+
+    /**
+     * Check if the file is a picture of this storage
+     */
+    public boolean isCaptureFile(File file) {
+        return file != null && getId(file.getName()) >= 0;
+    }
+
+    /**
+     * Start writing a new picture
+     */
+    public Transaction begin() throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs() && !mDirectory.isDirectory())
+            throw new IOException("Failed to create directory : " + mDirectory.getAbsolutePath());
+
+        return new Transaction(nextId());
+    }
+
+    /**
+     * Write a picture at once
+     * @return saved file
+     */
+    public File write(byte[] data) throws IOException {
+        return write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Write a picture at once, {@link ByteBuffer} is written directly through {@link FileChannel}
+     * @return saved file
+     */
+    public File write(ByteBuffer buffer) throws IOException {
+        Transaction transaction = begin();
+        try {
+            transaction.write(buffer);
+            return transaction.commit();
+        } finally {
+            transaction.abort();
+        }
+    }
+
+    /**
+     * Scan orphaned temp files (process died while writing) <br>
+     *     Complete JPEG is renamed to its final name, and the others are deleted. <br>
+     *     It also makes sure that a new id is bigger than ids of existing pictures,
+     *     and builds index of {@link CaptureRetention} from the same scan.
+     * @return recovered pictures
+     */
+    public List<File> recoverOrphans() {
+        List<File> recovered = new ArrayList<>();
+        List<File> pictures = new ArrayList<>();
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) return recovered;
+
+        long maxId = -1;
+        for (File file : files) {
+            final String name = file.getName();
+
+            if (!name.endsWith(TEMP_EXTENSION)) {
+                final long id = getId(name);
+                if (id >= 0)
+                    pictures.add(file);
+                maxId = Math.max(maxId, id);
+                continue;
+            }
+
+            final String finalName = name.substring(0, name.length() - TEMP_EXTENSION.length());
+            final long id = getId(finalName);
+            if (id < 0) continue;
+
+            // Lock is held until the orphan is gone, so a transaction can't open it meanwhile
+            synchronized (mOpenTempFiles) {
+                if (mOpenTempFiles.contains(name)) continue;
+
+                File target = new File(mDirectory, finalName);
+                if (isCompleteJpeg(file) && !target.exists() && file.renameTo(target)) {
+                    LOG.d("Recovered orphaned picture : {}", target.getAbsolutePath());
+                    recovered.add(target);
+                    pictures.add(target);
+                    maxId = Math.max(maxId, id);
+                } else if (file.delete()) {
+                    LOG.d("Deleted orphaned temp file : {}", file.getAbsolutePath());
+                }
+            }
+        }
+
+        synchronized (this) {
+            mLastId = Math.max(mLastId, maxId);
+        }
+
+        CaptureRetention retention = mRetention;
+        if (retention != null)
+            retention.load(pictures);
+        return recovered;
+    }
+
+    /**
+     * Get id from file name, or -1 if it isn't a picture of this storage
+     */
+    private long getId(String name) {
+        if (!name.startsWith(mPrefix) || !name.endsWith(EXTENSION)) return -1;
+
+        final String id = name.substring(mPrefix.length(), name.length() - EXTENSION.length());
+        if (id.length() == 0 || id.length() > 18) return -1;
+
+        for (int i = 0; i < id.length(); i++) {
+            if (id.charAt(i) < '0' || id.charAt(i) > '9') return -1;
+        }
+        return Long.parseLong(id);
+    }
+
+    /**
+     * Check if file ends with EOI marker
+     */
+    private static boolean isCompleteJpeg(File file) {
+        if (file.length() < 4) return false;
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            randomAccessFile.seek(0);
+            final int soi = randomAccessFile.readUnsignedShort();
+            randomAccessFile.seek(file.length() - 2);
+            final int eoi = randomAccessFile.readUnsignedShort();
+            return soi == 0xFFD8 && eoi == 0xFFD9;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A picture being written. Call {@link #commit()} when it is complete, or {@link #abort()} to discard it. <br>
+     *     {@link #abort()} after {@link #commit()} does nothing, so it can be called in finally block.
+     */
+    public class Transaction {
+
+        private final long mId;
+        private final File mFile;
+        private final File mTempFile;
+        private final FileOutputStream mOutputStream;
+        private boolean mClosed;
+
+        private Transaction(long id) throws IOException {
+            File file = new File(mDirectory, mPrefix + id + EXTENSION);
+            // Another process may have used the same id, don't overwrite it
+            while (file.exists()) {
+                id = nextId();
+                file = new File(mDirectory, mPrefix + id + EXTENSION);
+            }
+
+            mId = id;
+            mFile = file;
+            mTempFile = new File(mDirectory, file.getName() + TEMP_EXTENSION);
+
+            synchronized (mOpenTempFiles) {
+                mOpenTempFiles.add(mTempFile.getName());
+            }
+            try {
+                mOutputStream = new FileOutputStream(mTempFile);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Temp file may be recovered as an orphan from now on
+         */
+        private void close() {
+            synchronized (mOpenTempFiles) {
+                mOpenTempFiles.remove(mTempFile.getName());
+            }
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * Final file. It doesn't exist until {@link #commit()}
+         */
+        public File getFile() {
+            return mFile;
+        }
+
+        /**
+         * Stream of temp file. Don't close it
+         */
+        public OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        /**
+         * Write remaining bytes of buffer directly through {@link FileChannel}
+         */
+        public void write(ByteBuffer buffer) throws IOException {
+            FileChannel channel = mOutputStream.getChannel();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+
+        /**
+         * Sync (according to {@link SyncPolicy}), close and rename temp file to final file
+         * @return final file
+         */
+        public File commit() throws IOException {
+            if (mClosed) throw new IOException("Transaction was closed already");
+
+            try {
+                mOutputStream.flush();
+                if (mSyncPolicy != SyncPolicy.NONE)
+                    mOutputStream.getChannel().force(mSyncPolicy == SyncPolicy.ALL);
+            } finally {
+                mClosed = true;
+                mOutputStream.close();
+            }
+
+            try {
+                if (!mTempFile.renameTo(mFile)) {
+                    mTempFile.delete();
+                    throw new IOException("Failed to rename " + mTempFile.getAbsolutePath());
+                }
+            } finally {
+                close();
+            }
+
+            CaptureRetention retention = mRetention;
+            if (retention != null)
+                retention.onFileAdded(mFile);
+            return mFile;
+        }
+
+        /**
+         * Discard temp file. It does nothing after {@link #commit()}
+         */
+        public void abort() {
+            if (mClosed) return;
+
+            mClosed = true;
+            try {
+                mOutputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!mTempFile.delete())
+                LOG.d("Failed to delete temp file : {}", mTempFile.getAbsolutePath());
+            close();
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package com.danielpark.camera.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * EXIF Orientation utility <br>
+ *     It finds Orientation tag in JPEG APP1 segment and patches 2 bytes in place, so entropy coded data is never touched.
+ */
+public class ExifUtil {
+
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_FLIP_VERTICAL = 4;
+    public static final int ORIENTATION_TRANSPOSE = 5;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_TRANSVERSE = 7;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    /** There's no EXIF APP1 segment, so a new segment can be inserted */
+    public static final int NO_EXIF = -1;
+    /** EXIF exists, but IFD0 doesn't have Orientation tag. (It can't be patched without rewriting IFD) */
+    public static final int NO_ORIENTATION_TAG = -2;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+
+    /**
+     * Convert clockwise rotation and mirror (applied after rotation) to EXIF Orientation
+     */
+    public static int getOrientation(int rotation, boolean mirror) {
+        switch (CaptureGeometry.normalizeRotation(rotation)) {
+            case 90:
+                return mirror ? ORIENTATION_TRANSPOSE : ORIENTATION_ROTATE_90;
+            case 180:
+                return mirror ? ORIENTATION_FLIP_VERTICAL : ORIENTATION_ROTATE_180;
+            case 270:
+                return mirror ? ORIENTATION_TRANSVERSE : ORIENTATION_ROTATE_270;
+            default:
+                return mirror ? ORIENTATION_FLIP_HORIZONTAL : ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Get clockwise rotation of EXIF Orientation
+     */
+    public static int getRotation(int orientation) {
+        switch (orientation) {
+            case ORIENTATION_ROTATE_90:
+            case ORIENTATION_TRANSPOSE:
+                return 90;
+            case ORIENTATION_ROTATE_180:
+            case ORIENTATION_FLIP_VERTICAL:
+                return 180;
+            case ORIENTATION_ROTATE_270:
+            case ORIENTATION_TRANSVERSE:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Check if EXIF Orientation reverses sides (after rotation)
+     */
+    public static boolean isMirrored(int orientation) {
+        return orientation == ORIENTATION_FLIP_HORIZONTAL || orientation == ORIENTATION_FLIP_VERTICAL
+                || orientation == ORIENTATION_TRANSPOSE || orientation == ORIENTATION_TRANSVERSE;
+    }
+
+    /**
+     * Add rotation and mirror on top of an existing EXIF Orientation
+     * @param orientation existing EXIF Orientation
+     * @param rotation additional clockwise rotation
+     * @param mirror additional mirror (applied at the end)
+     */
+    public static int compose(int orientation, int rotation, boolean mirror) {
+        final boolean mirrored = isMirrored(orientation);
+        // mirror then rotate(r) is the same as rotate(-r) then mirror
+        final int total = getRotation(orientation) + (mirrored ? -rotation : rotation);
+        return getOrientation(total, mirrored ^ mirror);
+    }
+
+    /**
+     * Find offset of Orientation value in JPEG
+     * @return offset of the value, or {@link #NO_EXIF}, {@link #NO_ORIENTATION_TAG}
+     */
+    public static int findOrientationOffset(byte[] jpeg) {
+        if (jpeg == null || jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8)
+            return NO_EXIF;
+
+        int pos = 2;
+        while (pos + 4 <= jpeg.length) {
+            if ((jpeg[pos] & 0xFF) != 0xFF) return NO_EXIF;
+            final int marker = jpeg[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                pos++;
+                continue;
+            }
+            // Metadata segments are located before SOS
+            if (marker == 0xDA || marker == 0xD9) return NO_EXIF;
+
+            final int length = ((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF);
+            if (marker == 0xE1 && isExifSegment(jpeg, pos, length + 2))
+                return findOrientationOffset(jpeg, pos, length + 2);
+
+            pos += 2 + length;
+        }
+        return NO_EXIF;
+    }
+
+    /**
+     * Find offset of Orientation value in a single APP1 segment
+     * @param segmentOffset offset of APP1 marker
+     * @param segmentLength segment length including marker
+     * @return offset of the value, or {@link #NO_EXIF}, {@link #NO_ORIENTATION_TAG}
+     */
+    public static int findOrientationOffset(byte[] data, int segmentOffset, int segmentLength) {
+        if (!isExifSegment(data, segmentOffset, segmentLength)) return NO_EXIF;
+
+        final int tiff = segmentOffset + 10;
+        final int end = Math.min(data.length, segmentOffset + segmentLength);
+        if (tiff + 8 > end) return NO_ORIENTATION_TAG;
+
+        final boolean littleEndian;
+        if (data[tiff] == 'I' && data[tiff + 1] == 'I')
+            littleEndian = true;
+        else if (data[tiff] == 'M' && data[tiff + 1] == 'M')
+            littleEndian = false;
+        else
+            return NO_ORIENTATION_TAG;
+
+        final long ifdOffset = readInt(data, tiff + 4, littleEndian) & 0xFFFFFFFFL;
+        final int ifd = (int) (tiff + ifdOffset);
+        if (ifdOffset < 8 || ifd + 2 > end) return NO_ORIENTATION_TAG;
+
+        final int count = readShort(data, ifd, littleEndian);
+        for (int i = 0; i < count; i++) {
+            final int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end) break;
+
+            if (readShort(data, entry, littleEndian) == TAG_ORIENTATION
+                    && readShort(data, entry + 2, littleEndian) == TYPE_SHORT)
+                return entry + 8;
+        }
+        return NO_ORIENTATION_TAG;
+    }
+
+    /**
+     * Read EXIF Orientation
+     * @return Orientation, or {@link #ORIENTATION_NORMAL} if there's no tag
+     */
+    public static int readOrientation(byte[] jpeg) {
+        final int offset = findOrientationOffset(jpeg);
+        if (offset < 0) return ORIENTATION_NORMAL;
+
+        final int value = readShort(jpeg, offset, isLittleEndian(jpeg, offset));
+        return value >= ORIENTATION_NORMAL && value <= ORIENTATION_ROTATE_270 ? value : ORIENTATION_NORMAL;
+    }
+
+    /**
+     * Write JPEG with EXIF Orientation. Orientation tag is patched in place (byte[] is modified),
+     * or a minimal EXIF segment is inserted when there's no EXIF at all (see {@link #getExifInsertOffset(byte[])}).
+     * @return false if Orientation can't be written without rewriting EXIF. Nothing is written
+     */
+    public static boolean writeWithOrientation(byte[] jpeg, int orientation, OutputStream out) throws IOException {
+        final int offset = findOrientationOffset(jpeg);
+
+        if (offset == NO_ORIENTATION_TAG)
+            return false;
+
+        if (offset == NO_EXIF) {
+            if (jpeg == null || jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8)
+                return false;
+
+            final int insertOffset = getExifInsertOffset(jpeg);
+            out.write(jpeg, 0, insertOffset);
+            if (orientation != ORIENTATION_NORMAL)
+                out.write(createExifSegment(orientation));
+            out.write(jpeg, insertOffset, jpeg.length - insertOffset);
+            return true;
+        }
+
+        patchOrientation(jpeg, offset, orientation);
+        out.write(jpeg);
+        return true;
+    }
+
+    /**
+     * Offset where a new EXIF segment goes : after SOI and JFIF APP0 segments, because JFIF requires APP0 to come first
+     * @param jpeg JPEG which starts with SOI
+     */
+    public static int getExifInsertOffset(byte[] jpeg) {
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xFF) == 0xFF && (jpeg[pos + 1] & 0xFF) == 0xE0) {
+            final int length = ((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF);
+            if (length < 2 || pos + 2 + length > jpeg.length) break;
+
+            pos += 2 + length;
+        }
+        return pos;
+    }
+
+    /**
+     * Overwrite Orientation value at offset found by {@link #findOrientationOffset(byte[])}
+     */
+    public static void patchOrientation(byte[] data, int offset, int orientation) {
+        if (isLittleEndian(data, offset)) {
+            data[offset] = (byte) orientation;
+            data[offset + 1] = 0;
+        } else {
+            data[offset] = 0;
+            data[offset + 1] = (byte) orientation;
+        }
+    }
+
+    /**
+     * Wrap a stream which an encoder (e.g. {@link android.graphics.YuvImage}) writes JPEG without EXIF into. <br>
+     *     EXIF segment with Orientation is inserted after SOI and JFIF APP0 segments while JPEG is streamed.
+     *     Only a marker and its length (4 bytes) are held back, the rest goes through as it is.
+     */
+    public static OutputStream withOrientation(OutputStream out, final int orientation) {
+        if (orientation == ORIENTATION_NORMAL) return out;
+
+        return new FilterOutputStream(out) {
+
+            /** SOI, or marker and length of the next segment, which aren't written yet */
+            private final byte[] mHeader = new byte[4];
+            private int mHeaderCount;
+            private boolean mSoiWritten;
+            /** Remaining bytes of APP0 segment which go through */
+            private int mSkip;
+            private boolean mInserted;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (mInserted)
+                    out.write(b);
+                else
+                    write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0 && !mInserted) {
+                    if (mSkip > 0) {
+                        final int count = Math.min(len, mSkip);
+                        out.write(b, off, count);
+                        off += count;
+                        len -= count;
+                        mSkip -= count;
+                        continue;
+                    }
+
+                    mHeader[mHeaderCount++] = b[off++];
+                    len--;
+
+                    if (!mSoiWritten) {
+                        if (mHeaderCount == 2) {
+                            out.write(mHeader, 0, 2);
+                            mHeaderCount = 0;
+                            mSoiWritten = true;
+                        }
+                    } else if (mHeaderCount == 2 && ((mHeader[0] & 0xFF) != 0xFF || (mHeader[1] & 0xFF) != 0xE0)) {
+                        // First segment which isn't APP0, EXIF goes right before it
+                        out.write(createExifSegment(orientation));
+                        out.write(mHeader, 0, 2);
+                        mHeaderCount = 0;
+                        mInserted = true;
+                    } else if (mHeaderCount == 4) {
+                        out.write(mHeader, 0, 4);
+                        mHeaderCount = 0;
+                        mSkip = Math.max(0, (((mHeader[2] & 0xFF) << 8) | (mHeader[3] & 0xFF)) - 2);
+                    }
+                }
+                if (len > 0)
+                    out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // Stream ended before any segment but APP0, nothing is held back
+                if (!mInserted && mHeaderCount > 0) {
+                    out.write(mHeader, 0, mHeaderCount);
+                    mHeaderCount = 0;
+                }
+                // Stream belongs to caller
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Minimal APP1 segment (including marker) which only has Orientation tag in IFD0
+     */
+    public static byte[] createExifSegment(int orientation) {
+        return new byte[]{
+                (byte) 0xFF, (byte) 0xE1, 0, 34,
+                'E', 'x', 'i', 'f', 0, 0,
+                // TIFF header : big endian, IFD0 at 8
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                // IFD0 : 1 entry
+                0, 1,
+                0x01, 0x12, 0, TYPE_SHORT, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                // no next IFD
+                0, 0, 0, 0
+        };
+    }
+
+    private static boolean isExifSegment(byte[] data, int offset, int length) {
+        return length >= 10 && offset + 10 <= data.length
+                && (data[offset] & 0xFF) == 0xFF && (data[offset + 1] & 0xFF) == 0xE1
+                && data[offset + 4] == 'E' && data[offset + 5] == 'x' && data[offset + 6] == 'i'
+                && data[offset + 7] == 'f' && data[offset + 8] == 0 && data[offset + 9] == 0;
+    }
+
+    /**
+     * Byte order of TIFF header which owns the value at offset
+     */
+    private static boolean isLittleEndian(byte[] data, int valueOffset) {
+        // Walk back to the nearest "Exif\0\0" header
+        for (int i = valueOffset - 6; i >= 0; i--) {
+            if (data[i] == 'E' && data[i + 1] == 'x' && data[i + 2] == 'i' && data[i + 3] == 'f'
+                    && data[i + 4] == 0 && data[i + 5] == 0)
+                return data[i + 6] == 'I';
+        }
+        return false;
+    }
+
+    private static int readShort(byte[] data, int offset, boolean littleEndian) {
+        if (littleEndian)
+            return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset, boolean littleEndian) {
+        if (littleEndian)
+            return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8)
+                    | ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,56 @@
+package com.danielpark.camera.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes taken pictures to files of {@link CaptureStorage}. Handed off JPEG is written directly through FileChannel
+ */
+public class FileCaptureSink implements CaptureSink<File> {
+
+    private final CaptureStorage mStorage;
+
+    public FileCaptureSink(CaptureStorage storage) {
+        if (storage == null)
+            throw new IllegalArgumentException("Storage should not be null!");
+
+        mStorage = storage;
+    }
+
+    public CaptureStorage getStorage() {
+        return mStorage;
+    }
+
+    @Override
+    public Output<File> begin() throws IOException {
+        final CaptureStorage.Transaction transaction = mStorage.begin();
+
+        return new Output<File>() {
+            @Override
+            public OutputStream getOutputStream() {
+                return transaction.getOutputStream();
+            }
+
+            @Override
+            public File commit() throws IOException {
+                return transaction.commit();
+            }
+
+            @Override
+            public void abort() {
+                transaction.abort();
+            }
+        };
+    }
+
+    @Override
+    public File handOff(ByteBuffer jpeg, Release release) throws IOException {
+        try {
+            return mStorage.write(jpeg);
+        } finally {
+            release.release();
+        }
+    }
+}
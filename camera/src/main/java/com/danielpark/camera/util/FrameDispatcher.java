@@ -0,0 +1,220 @@
+package com.danielpark.camera.util;
+
+import android.os.Process;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands live preview frames to registered {@link FrameProcessor}s on a worker pool <br>
+ *     Camera thread only picks processors which are due and not busy, conversion and analysis run on workers.
+ *     Each processor has at most one frame in flight, so queue never grows more than number of processors.
+ */
+public class FrameDispatcher {
+
+    /**
+     * Owner of frame buffers (e.g. {@link PreviewBufferRing}). Buffer is held while a worker reads it
+     */
+    public interface BufferOwner {
+
+        void acquire(byte[] data);
+
+        void release(byte[] data);
+
+        /**
+         * Plane views of a held NV21 buffer, see {@link YuvFrame#wrapNV21(byte[], int, int)}. They are made once per buffer
+         */
+        ByteBuffer[] getNV21Planes(byte[] data);
+    }
+
+    public static final int DEFAULT_WORKER_COUNT = 2;
+
+    private final Logger LOG = Logger.getInstance();
+
+    private final List<FrameProcessor> mProcessors = new CopyOnWriteArrayList<>();
+    private final int mWorkerCount;
+
+    private ThreadPoolExecutor mExecutor;
+    private boolean mShutdown;
+
+    public FrameDispatcher() {
+        this(Math.min(DEFAULT_WORKER_COUNT, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param workerCount number of threads which process frames at the same time
+     */
+    public FrameDispatcher(int workerCount) {
+        if (workerCount <= 0)
+            throw new IllegalArgumentException("Worker count should be positive!");
+
+        mWorkerCount = workerCount;
+    }
+
+    public void add(FrameProcessor processor) {
+        if (processor == null || mProcessors.contains(processor)) return;
+        mProcessors.add(processor);
+    }
+
+    public void remove(FrameProcessor processor) {
+        mProcessors.remove(processor);
+    }
+
+    public boolean hasProcessors() {
+        return !mProcessors.isEmpty();
+    }
+
+    public List<FrameProcessor> getProcessors() {
+        return mProcessors;
+    }
+
+    /**
+     * Hand NV21 frame to every processor which is due and not busy
+     * @param rotation clockwise rotation which makes frame upright on display
+     * @param timestamp {@link System#nanoTime()} when frame arrived
+     * @param owner frame is held by owner until each worker doesn't need it anymore
+     * @return true if any processor took the frame
+     */
+    public boolean dispatch(final byte[] nv21, final int width, final int height, final int rotation,
+                            final long timestamp, final BufferOwner owner) {
+        if (mProcessors.isEmpty()) return false;
+
+        final ThreadPoolExecutor executor = getExecutor();
+        if (executor == null) return false;
+
+        boolean taken = false;
+        for (final FrameProcessor processor : mProcessors) {
+            if (!processor.tryBegin(timestamp)) continue;
+
+            owner.acquire(nv21);
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean held = true;
+                        try {
+                            FrameProcessor.Frame frame = processor.prepare(nv21, owner, width, height, rotation, timestamp);
+                            // Processor has its own copy, buffer goes back to camera right now
+                            if (frame.getData() != null && frame.getData() != nv21) {
+                                owner.release(nv21);
+                                held = false;
+                            }
+                            processor.process(frame);
+                        } catch (RuntimeException e) {
+                            // Keep worker alive, a broken processor shouldn't stop the others
+                            e.printStackTrace();
+                        } finally {
+                            if (held)
+                                owner.release(nv21);
+                            processor.end(System.nanoTime() - timestamp);
+                        }
+                    }
+                });
+                taken = true;
+            } catch (RejectedExecutionException e) {
+                LOG.d("Frame was rejected : {}", e.getMessage());
+                owner.release(nv21);
+                processor.cancel();
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * Hand YUV frame to every processor which is due and not busy
+     * @param source frame is held until each worker doesn't need it anymore
+     * @return true if any processor took the frame
+     */
+    public boolean dispatch(final YuvFrame source) {
+        if (mProcessors.isEmpty()) return false;
+
+        final ThreadPoolExecutor executor = getExecutor();
+        if (executor == null) return false;
+
+        boolean taken = false;
+        for (final FrameProcessor processor : mProcessors) {
+            if (!processor.tryBegin(source.getTimestamp())) continue;
+
+            if (!source.acquire()) {
+                processor.cancel();
+                continue;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean held = true;
+                        try {
+                            FrameProcessor.Frame frame = processor.prepare(source);
+                            // Processor has its own copy, image goes back to reader right now
+                            if (frame.getData() != null) {
+                                source.release();
+                                held = false;
+                            }
+                            processor.process(frame);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        } finally {
+                            if (held)
+                                source.release();
+                            processor.end(System.nanoTime() - source.getTimestamp());
+                        }
+                    }
+                });
+                taken = true;
+            } catch (RejectedExecutionException e) {
+                LOG.d("Frame was rejected : {}", e.getMessage());
+                source.release();
+                processor.cancel();
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * Stop workers. Frames being processed are finished, nothing is dispatched anymore
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        if (mExecutor != null)
+            mExecutor.shutdown();
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (mShutdown) return null;
+
+        // Threads are started with the first frame, most screens never register a processor
+        if (mExecutor == null)
+            mExecutor = new ThreadPoolExecutor(mWorkerCount, mWorkerCount, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new FrameThreadFactory());
+        return mExecutor;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameDispatcher(workers " + mWorkerCount + ", " + mProcessors + ")";
+    }
+
+    private static class FrameThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "CameraFrame-" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.danielpark.camera.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.danielpark.camera.listeners.OnPreviewStallListener;
+
+/**
+ * Pacing of preview frames drawn into view (onSurfaceTextureUpdated) <br>
+ *     1. Arrival of the last {@value #DEFAULT_WINDOW} frames is kept in a ring of primitives, no allocation per frame. <br>
+ *     2. Rolling fps and jitter (standard deviation of frame intervals) are taken over that window. <br>
+ *     3. A stall is a gap longer than threshold. It is reported while preview is still frozen,
+ *        and again when a frame arrives.
+ */
+public class FramePacingMonitor {
+
+    public static final int DEFAULT_WINDOW = 60;
+    public static final long DEFAULT_STALL_THRESHOLD_MS = 250;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Arrival of frames (System.nanoTime()), mFrameCount % window is the next slot */
+    private final long[] mTimes;
+    private long mFrameCount;
+
+    private long mStallThresholdNs = DEFAULT_STALL_THRESHOLD_MS * 1000000L;
+    private OnPreviewStallListener mListener;
+    private boolean mStalled;
+    private long mStallCount;
+    private long mLongestStallNs;
+
+    public FramePacingMonitor() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window number of frames which fps and jitter are taken over
+     */
+    public FramePacingMonitor(int window) {
+        if (window < 2)
+            throw new IllegalArgumentException("Window should have at least 2 frames!");
+
+        mTimes = new long[window];
+    }
+
+    /**
+     * @param thresholdMs gap between frames which is a stall
+     */
+    public synchronized void setStallThreshold(long thresholdMs) {
+        if (thresholdMs <= 0) return;
+        mStallThresholdNs = thresholdMs * 1000000L;
+    }
+
+    /**
+     * Set listener of stalls. Call it on main thread
+     * @param listener null to stop listening
+     */
+    public synchronized void setOnPreviewStallListener(OnPreviewStallListener listener) {
+        mListener = listener;
+        if (listener == null)
+            mMainHandler.removeCallbacks(mStallCheck);
+    }
+
+    /**
+     * Called on main thread for every preview frame drawn into view
+     */
+    public synchronized void onFrame() {
+        final long now = System.nanoTime();
+
+        if (mFrameCount > 0) {
+            final long gap = now - getTime(mFrameCount - 1);
+            if (gap > mStallThresholdNs) {
+                mStallCount++;
+                mLongestStallNs = Math.max(mLongestStallNs, gap);
+                if (mListener != null)
+                    mListener.onStallEnded(gap / 1000000L);
+            }
+        }
+        mStalled = false;
+
+        mTimes[(int) (mFrameCount % mTimes.length)] = now;
+        mFrameCount++;
+
+        // Frozen preview doesn't call onFrame(), so it is checked from main thread after threshold
+        if (mListener != null) {
+            mMainHandler.removeCallbacks(mStallCheck);
+            mMainHandler.postDelayed(mStallCheck, mStallThresholdNs / 1000000L);
+        }
+    }
+
+    private final Runnable mStallCheck = new Runnable() {
+        @Override
+        public void run() {
+            final OnPreviewStallListener listener;
+            final long since;
+            synchronized (FramePacingMonitor.this) {
+                if (mStalled || mFrameCount == 0 || mListener == null) return;
+
+                since = System.nanoTime() - getTime(mFrameCount - 1);
+                if (since < mStallThresholdNs) return;
+
+                mStalled = true;
+                listener = mListener;
+            }
+            listener.onStallStarted(since / 1000000L);
+        }
+    };
+
+    /**
+     * Forget frames (e.g. camera was released), a gap while camera is closed isn't a stall
+     */
+    public synchronized void reset() {
+        mMainHandler.removeCallbacks(mStallCheck);
+        mFrameCount = 0;
+        mStalled = false;
+    }
+
+    private long getTime(long frame) {
+        return mTimes[(int) (frame % mTimes.length)];
+    }
+
+    /**
+     * Pacing of the last frames, it is allocated for each call
+     */
+    public synchronized Snapshot snapshot() {
+        final int count = (int) Math.min(mFrameCount, mTimes.length);
+        final long first = mFrameCount - count;
+
+        long sum = 0;
+        long sumOfSquares = 0;
+        long maxInterval = 0;
+        for (long i = first + 1; i < mFrameCount; i++) {
+            final long interval = (getTime(i) - getTime(i - 1)) / 1000L;
+            sum += interval;
+            sumOfSquares += interval * interval;
+            maxInterval = Math.max(maxInterval, interval);
+        }
+
+        final int intervals = Math.max(0, count - 1);
+        final double meanUs = intervals > 0 ? (double) sum / intervals : 0;
+        final double jitterUs = intervals > 0 ? Math.sqrt(Math.max(0, (double) sumOfSquares / intervals - meanUs * meanUs)) : 0;
+        final float fps = meanUs > 0 ? (float) (1000000.0 / meanUs) : 0f;
+
+        return new Snapshot(mFrameCount, fps, (float) (meanUs / 1000.0), (float) (jitterUs / 1000.0),
+                maxInterval / 1000L, mStallCount, mLongestStallNs / 1000000L, mStalled);
+    }
+
+    public static class Snapshot {
+
+        /** Frames since camera was opened */
+        public final long frameCount;
+        /** Rolling fps over window */
+        public final float fps;
+        public final float meanIntervalMs;
+        /** Standard deviation of frame intervals */
+        public final float jitterMs;
+        public final long maxIntervalMs;
+        public final long stallCount;
+        public final long longestStallMs;
+        /** Preview is frozen now */
+        public final boolean stalled;
+
+        Snapshot(long frameCount, float fps, float meanIntervalMs, float jitterMs, long maxIntervalMs,
+                 long stallCount, long longestStallMs, boolean stalled) {
+            this.frameCount = frameCount;
+            this.fps = fps;
+            this.meanIntervalMs = meanIntervalMs;
+            this.jitterMs = jitterMs;
+            this.maxIntervalMs = maxIntervalMs;
+            this.stallCount = stallCount;
+            this.longestStallMs = longestStallMs;
+            this.stalled = stalled;
+        }
+
+        @Override
+        public String toString() {
+            return "FramePacing(" + fps + "fps, jitter " + jitterMs + "ms, max " + maxIntervalMs + "ms, frames "
+                    + frameCount + ", stalls " + stallCount + ", longest " + longestStallMs + "ms"
+                    + (stalled ? ", stalled" : "") + ")";
+        }
+    }
+}
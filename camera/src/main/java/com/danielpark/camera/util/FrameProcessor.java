@@ -0,0 +1,332 @@
+package com.danielpark.camera.util;
+
+import android.graphics.ImageFormat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Analyzes live preview frames on a worker of {@link FrameDispatcher} <br>
+ *     1. It declares max frame rate, pixel format and resolution which it needs. <br>
+ *     2. Only one frame is processed at a time. A frame arriving while it is still busy is dropped,
+ *        so a slow processor never backs up camera thread or other processors. <br>
+ *     3. Latency is the time from frame arrival to the end of {@link #process(Frame)}. <br>
+ *     4. {@link ImageFormat#YUV_420_888} frames are handed as they are (planes with strides, no copy and no subsampling).
+ */
+public abstract class FrameProcessor {
+
+    /** Luminance (Y plane) only. Same value as ImageFormat.Y8 of API 29 */
+    public static final int FORMAT_Y8 = 0x20203859;
+
+    /**
+     * Frame handed to {@link #process(Frame)}. It is reused, don't keep it (or its data) after the call
+     */
+    public static final class Frame {
+
+        private byte[] mData;
+        private final ByteBuffer[] mPlanes = new ByteBuffer[3];
+        private final int[] mRowStrides = new int[3];
+        private final int[] mPixelStrides = new int[3];
+        private int mFormat;
+        private int mWidth;
+        private int mHeight;
+        private int mRotation;
+        private long mTimestamp;
+
+        Frame() {
+        }
+
+        void set(byte[] data, int format, int width, int height, int rotation, long timestamp) {
+            mData = data;
+            if (data != null)
+                mPlanes[0] = mPlanes[1] = mPlanes[2] = null;
+            mFormat = format;
+            mWidth = width;
+            mHeight = height;
+            mRotation = rotation;
+            mTimestamp = timestamp;
+        }
+
+        void setPlanes(YuvFrame frame) {
+            for (int i = 0; i < 3; i++) {
+                mPlanes[i] = frame.getPlane(i);
+                mRowStrides[i] = frame.getRowStride(i);
+                mPixelStrides[i] = frame.getPixelStride(i);
+            }
+        }
+
+        /**
+         * @param planes views from {@link YuvFrame#wrapNV21(byte[], int, int)}, they are shared by every processor of the frame
+         */
+        void setPlanes(ByteBuffer[] planes, int width) {
+            // Views are made once per preview buffer, nothing is allocated for each frame
+            mPlanes[YuvFrame.PLANE_Y] = planes[YuvFrame.PLANE_Y];
+            mPlanes[YuvFrame.PLANE_U] = planes[YuvFrame.PLANE_U];
+            mPlanes[YuvFrame.PLANE_V] = planes[YuvFrame.PLANE_V];
+            mRowStrides[YuvFrame.PLANE_Y] = width;
+            mRowStrides[YuvFrame.PLANE_U] = mRowStrides[YuvFrame.PLANE_V] = width;
+            mPixelStrides[YuvFrame.PLANE_Y] = 1;
+            mPixelStrides[YuvFrame.PLANE_U] = mPixelStrides[YuvFrame.PLANE_V] = 2;
+        }
+
+        /**
+         * {@link ImageFormat#NV21} frame, or Y plane of {@link #FORMAT_Y8}. null for {@link ImageFormat#YUV_420_888}
+         */
+        public byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * Plane of {@link ImageFormat#YUV_420_888} frame. Don't write into it, and read it with absolute get
+         * (e.g. {@link ByteBuffer#get(int)}) : it may be shared with other processors of the frame
+         * @param plane {@link YuvFrame#PLANE_Y}, {@link YuvFrame#PLANE_U} or {@link YuvFrame#PLANE_V}
+         */
+        public ByteBuffer getPlane(int plane) {
+            return mPlanes[plane];
+        }
+
+        public int getRowStride(int plane) {
+            return mRowStrides[plane];
+        }
+
+        public int getPixelStride(int plane) {
+            return mPixelStrides[plane];
+        }
+
+        public int getFormat() {
+            return mFormat;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Clockwise rotation (0, 90, 180, 270) which makes frame upright on display
+         */
+        public int getRotation() {
+            return mRotation;
+        }
+
+        /**
+         * {@link System#nanoTime()} when frame arrived
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+    }
+
+    private final float mTargetFps;
+    private final long mIntervalNs;
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+    /** Only dispatching thread touches it */
+    private long mLastStartTime;
+
+    /** Only one frame is in flight, so frame and its buffer are reused */
+    private final Frame mFrame = new Frame();
+    private byte[] mBuffer;
+
+    private final AtomicLong mProcessedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mLastLatency = new AtomicLong();
+    private final AtomicLong mMaxLatency = new AtomicLong();
+    private final AtomicLong mTotalLatency = new AtomicLong();
+
+    /**
+     * @param targetFps max frames per second (0 : every frame)
+     * @param format {@link ImageFormat#NV21}, {@link #FORMAT_Y8} or {@link ImageFormat#YUV_420_888}
+     * @param width frame is subsampled by power of two while it is still equal to or bigger than this size (0 : full resolution)
+     * @param height see width
+     */
+    protected FrameProcessor(float targetFps, int format, int width, int height) {
+        if (format != ImageFormat.NV21 && format != FORMAT_Y8 && format != ImageFormat.YUV_420_888)
+            throw new IllegalArgumentException("Format should be NV21, Y8 or YUV_420_888!");
+
+        mTargetFps = Math.max(0f, targetFps);
+        mIntervalNs = mTargetFps > 0f ? (long) (1000000000L / mTargetFps) : 0;
+        mFormat = format;
+        mWidth = Math.max(0, width);
+        mHeight = Math.max(0, height);
+    }
+
+    /**
+     * Analyze a frame. It is called on a worker thread, one frame at a time
+     */
+    public abstract void process(Frame frame);
+
+    public float getTargetFps() {
+        return mTargetFps;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Check if a frame arrived at <b>now</b> should be processed according to target rate
+     * @param now {@link System#nanoTime()}
+     */
+    boolean isDue(long now) {
+        return mIntervalNs == 0 || mLastStartTime == 0 || now - mLastStartTime >= mIntervalNs;
+    }
+
+    /**
+     * Take a frame if it is due and processor isn't busy. Busy one counts the frame as dropped
+     */
+    boolean tryBegin(long now) {
+        if (!isDue(now)) return false;
+
+        if (!mBusy.compareAndSet(false, true)) {
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        mLastStartTime = now;
+        return true;
+    }
+
+    /**
+     * Frame of declared format and resolution. NV21 of full resolution is handed without copy
+     * @param owner owner of nv21, plane views of {@link ImageFormat#YUV_420_888} come from it
+     * @return frame whose data is nv21 itself, or a copy in buffer of this processor
+     */
+    Frame prepare(byte[] nv21, FrameDispatcher.BufferOwner owner, int width, int height, int rotation, long timestamp) {
+        if (mFormat == ImageFormat.YUV_420_888) {
+            mFrame.set(null, mFormat, width, height, rotation, timestamp);
+            final ByteBuffer[] planes = owner.getNV21Planes(nv21);
+            mFrame.setPlanes(planes != null ? planes : YuvFrame.wrapNV21(nv21, width, height), width);
+            return mFrame;
+        }
+
+        final int factor = getSubsampleFactor(width, height);
+
+        if (mFormat == ImageFormat.NV21 && factor == 1) {
+            mFrame.set(nv21, mFormat, width, height, rotation, timestamp);
+            return mFrame;
+        }
+
+        final int outputWidth = YuvTransformer.getSubsampledSize(width, factor);
+        final int outputHeight = YuvTransformer.getSubsampledSize(height, factor);
+        final boolean lumaOnly = mFormat == FORMAT_Y8;
+        final int size = lumaOnly ? outputWidth * outputHeight : YuvTransformer.getNV21Size(outputWidth, outputHeight);
+        if (mBuffer == null || mBuffer.length != size)
+            mBuffer = new byte[size];
+
+        YuvTransformer.subsampleNV21(nv21, width, height, factor, lumaOnly, mBuffer);
+        mFrame.set(mBuffer, mFormat, outputWidth, outputHeight, rotation, timestamp);
+        return mFrame;
+    }
+
+    /**
+     * Frame of declared format and resolution. {@link ImageFormat#YUV_420_888} is handed without copy
+     * @return frame which reads planes of source, or a copy in buffer of this processor (data isn't null)
+     */
+    Frame prepare(YuvFrame source) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+
+        if (mFormat == ImageFormat.YUV_420_888) {
+            mFrame.set(null, mFormat, width, height, source.getRotation(), source.getTimestamp());
+            mFrame.setPlanes(source);
+            return mFrame;
+        }
+
+        final int factor = getSubsampleFactor(width, height);
+        final int outputWidth = YuvTransformer.getSubsampledSize(width, factor);
+        final int outputHeight = YuvTransformer.getSubsampledSize(height, factor);
+        final boolean lumaOnly = mFormat == FORMAT_Y8;
+        final int size = lumaOnly ? outputWidth * outputHeight : YuvTransformer.getNV21Size(outputWidth, outputHeight);
+        if (mBuffer == null || mBuffer.length != size)
+            mBuffer = new byte[size];
+
+        YuvTransformer.subsampleYUV420(source, factor, lumaOnly, mBuffer);
+        mFrame.set(mBuffer, mFormat, outputWidth, outputHeight, source.getRotation(), source.getTimestamp());
+        return mFrame;
+    }
+
+    /**
+     * Called after {@link #process(Frame)}, processor takes next frame again
+     * @param latency nanoseconds from frame arrival
+     */
+    void end(long latency) {
+        mProcessedCount.incrementAndGet();
+        mLastLatency.set(latency);
+        mTotalLatency.addAndGet(latency);
+
+        long max = mMaxLatency.get();
+        while (latency > max && !mMaxLatency.compareAndSet(max, latency))
+            max = mMaxLatency.get();
+
+        mBusy.set(false);
+    }
+
+    /**
+     * Frame taken by {@link #tryBegin(long)} couldn't be handed to a worker, it is counted as dropped
+     */
+    void cancel() {
+        mDroppedCount.incrementAndGet();
+        mBusy.set(false);
+    }
+
+    private int getSubsampleFactor(int width, int height) {
+        if (mWidth <= 0 || mHeight <= 0) return 1;
+
+        int factor = 1;
+        while (width / (factor * 2) >= mWidth && height / (factor * 2) >= mHeight)
+            factor *= 2;
+        return factor;
+    }
+
+    /** Whether a frame is being processed now */
+    public boolean isBusy() {
+        return mBusy.get();
+    }
+
+    public long getProcessedCount() {
+        return mProcessedCount.get();
+    }
+
+    /** Number of due frames which were dropped because previous frame was still processed */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /** Latency (ms) of the last processed frame */
+    public long getLastLatency() {
+        return mLastLatency.get() / 1000000L;
+    }
+
+    /** Max latency (ms) */
+    public long getMaxLatency() {
+        return mMaxLatency.get() / 1000000L;
+    }
+
+    /** Average latency (ms) of processed frames */
+    public long getAverageLatency() {
+        final long processed = mProcessedCount.get();
+        return processed > 0 ? mTotalLatency.get() / processed / 1000000L : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameProcessor(" + mTargetFps + "fps, processed " + getProcessedCount()
+                + ", dropped " + getDroppedCount() + ", latency avg " + getAverageLatency()
+                + "ms max " + getMaxLatency() + "ms)";
+    }
+}
@@ -0,0 +1,926 @@
+package com.danielpark.camera.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lossless JPEG transform engine <br>
+ *     Rotate (90, 180, 270), mirror and crop a baseline JPEG on its quantized DCT coefficients. <br>
+ *     Pixels are never decoded, so it is much faster than {@link android.graphics.Bitmap} path and it doesn't lose quality. <br><br>
+ *
+ *     Crop rectangle must be on MCU boundaries, and an edge which is mirrored by the transform must be a full MCU. <br>
+ *     If it is not possible, {@link #prepare(byte[], CaptureGeometry)} returns null and caller should fall back to Bitmap path. <br>
+ *     Crop is never snapped to the MCU grid (output would be bigger than requested). So in practice lossless output covers
+ *     rotation and mirror of the full frame or of a crop which happens to be aligned (e.g. 16 px for 4:2:0),
+ *     a crop from view margins usually isn't and goes through Bitmap path.
+ */
+public class JpegTransformer {
+
+    private static final Logger LOG = Logger.getInstance();
+
+    /** zig-zag index -> natural (row-major) index. 16 extra entries are safe guard for corrupted run length */
+    private static final int[] NATURAL_ORDER = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63,
+            63, 63, 63, 63, 63, 63, 63, 63,
+            63, 63, 63, 63, 63, 63, 63, 63
+    };
+
+    // Standard Huffman tables (ITU T.81 Annex K.3)
+    // A transform changes run-length statistics, so source tables may not contain every symbol we need.
+    private static final int[] STD_DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] STD_DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] STD_DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] STD_DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] STD_AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] STD_AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private static final int[] STD_AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] STD_AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final HuffmanEncoder DC_LUMINANCE = new HuffmanEncoder(STD_DC_LUMINANCE_BITS, STD_DC_LUMINANCE_VALUES);
+    private static final HuffmanEncoder AC_LUMINANCE = new HuffmanEncoder(STD_AC_LUMINANCE_BITS, STD_AC_LUMINANCE_VALUES);
+    private static final HuffmanEncoder DC_CHROMINANCE = new HuffmanEncoder(STD_DC_CHROMINANCE_BITS, STD_DC_CHROMINANCE_VALUES);
+    private static final HuffmanEncoder AC_CHROMINANCE = new HuffmanEncoder(STD_AC_CHROMINANCE_BITS, STD_AC_CHROMINANCE_VALUES);
+
+    private static final int M_SOF0 = 0xC0;
+    private static final int M_SOF1 = 0xC1;
+    private static final int M_DHT = 0xC4;
+    private static final int M_SOI = 0xD8;
+    private static final int M_EOI = 0xD9;
+    private static final int M_SOS = 0xDA;
+    private static final int M_DQT = 0xDB;
+    private static final int M_DRI = 0xDD;
+    private static final int M_APP0 = 0xE0;
+    private static final int M_APP15 = 0xEF;
+    private static final int M_COM = 0xFE;
+
+    private final byte[] mSource;
+    private final CaptureGeometry mGeometry;
+
+    /** APPn and COM segments (offset, length including marker) which are copied as it is */
+    private final List<int[]> mPreservedSegments = new ArrayList<>();
+    /** Quantization tables in natural order, null if not defined */
+    private final int[][] mQuantTables = new int[4][];
+    private final int[] mQuantPrecision = new int[4];
+    private final HuffmanDecoder[] mDcDecoders = new HuffmanDecoder[4];
+    private final HuffmanDecoder[] mAcDecoders = new HuffmanDecoder[4];
+    private int mSofMarker;
+    private int mRestartInterval;
+    private Component[] mComponents;
+
+    private int mMcuWidth;
+    private int mMcuHeight;
+    /** Cropped area in MCU unit */
+    private int mMcuCols;
+    private int mMcuRows;
+
+    /** transpose, flip horizontal, flip vertical (on output coordinates) */
+    private boolean mTranspose;
+    private boolean mFlipHorizontal;
+    private boolean mFlipVertical;
+
+    /** Minimal EXIF segment which is inserted after SOI and JFIF APP0, null if it isn't needed */
+    private byte[] mExifSegment;
+
+    private JpegTransformer(byte[] source, CaptureGeometry geometry) {
+        mSource = source;
+        mGeometry = geometry;
+    }
+
+    /**
+     * Parse JPEG and keep coefficients of cropped area
+     * @param jpeg baseline JPEG bytes
+     * @param geometry crop, rotation, mirror to apply
+     * @return prepared transformer, or null if it can't be done losslessly (e.g. crop isn't aligned to MCU)
+     */
+    public static JpegTransformer prepare(byte[] jpeg, CaptureGeometry geometry) {
+        if (jpeg == null || geometry == null) return null;
+
+        JpegTransformer transformer = new JpegTransformer(jpeg, geometry);
+        try {
+            transformer.readHeaders();
+            return transformer;
+        } catch (JpegFormatException e) {
+            LOG.d("Lossless transform isn't available : {}", e.getMessage());
+        } catch (RuntimeException e) {
+            // Corrupted stream (e.g. truncated data). Let caller use Bitmap path
+            LOG.d("Lossless transform failed : {}", e);
+        }
+        return null;
+    }
+
+    /**
+     * Write EXIF Orientation tag to transformed JPEG. <br>
+     *     Orientation tag of source JPEG is patched in place (source byte[] is modified),
+     *     or a minimal EXIF segment is inserted if source doesn't have EXIF.
+     * @param orientation EXIF Orientation (1 ~ 8)
+     * @return false if source EXIF doesn't have Orientation tag
+     */
+    public boolean setExifOrientation(int orientation) {
+        final int offset = ExifUtil.findOrientationOffset(mSource);
+
+        if (offset == ExifUtil.NO_ORIENTATION_TAG)
+            return false;
+
+        if (offset == ExifUtil.NO_EXIF)
+            mExifSegment = orientation != ExifUtil.ORIENTATION_NORMAL ? ExifUtil.createExifSegment(orientation) : null;
+        else
+            ExifUtil.patchOrientation(mSource, offset, orientation);
+        return true;
+    }
+
+    /**
+     * Write transformed JPEG
+     * @param out output stream. It isn't closed here
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        BitWriter writer = new BitWriter(out);
+
+        writer.writeMarker(M_SOI);
+        // JFIF APP0 has to come first, EXIF goes after the leading APP0 segments
+        boolean exifWritten = mExifSegment == null;
+        for (int[] segment : mPreservedSegments) {
+            if (!exifWritten && (mSource[segment[0] + 1] & 0xFF) != M_APP0) {
+                writer.writeRaw(mExifSegment, 0, mExifSegment.length);
+                exifWritten = true;
+            }
+            writer.writeRaw(mSource, segment[0], segment[1]);
+        }
+        if (!exifWritten)
+            writer.writeRaw(mExifSegment, 0, mExifSegment.length);
+        writeQuantTables(writer);
+        writeFrameHeader(writer);
+        writeHuffmanTables(writer);
+        writeScanHeader(writer);
+        writeScanData(writer);
+        writer.writeMarker(M_EOI);
+        writer.flush();
+    }
+
+    /** Width of transformed JPEG */
+    public int getWidth() {
+        return mGeometry.getOutputWidth();
+    }
+
+    /** Height of transformed JPEG */
+    public int getHeight() {
+        return mGeometry.getOutputHeight();
+    }
+
+    private void readHeaders() throws JpegFormatException {
+        final byte[] data = mSource;
+        int pos = 0;
+
+        if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != M_SOI)
+            throw new JpegFormatException("Not a JPEG");
+        pos = 2;
+
+        while (pos < data.length) {
+            if ((data[pos] & 0xFF) != 0xFF)
+                throw new JpegFormatException("Marker expected at " + pos);
+            // skip fill bytes
+            while (pos < data.length && (data[pos] & 0xFF) == 0xFF) pos++;
+            if (pos >= data.length) break;
+
+            final int marker = data[pos] & 0xFF;
+            final int markerStart = pos - 1;
+            pos++;
+
+            if (marker == M_SOI || (marker >= 0xD0 && marker <= 0xD7) || marker == 0x01)
+                continue;
+            if (marker == M_EOI)
+                throw new JpegFormatException("No scan data");
+
+            final int length = readUnsignedShort(data, pos);
+            final int segmentStart = pos + 2;
+            final int segmentEnd = pos + length;
+            if (length < 2 || segmentEnd > data.length)
+                throw new JpegFormatException("Invalid segment length");
+
+            if ((marker >= M_APP0 && marker <= M_APP15) || marker == M_COM) {
+                mPreservedSegments.add(new int[]{markerStart, segmentEnd - markerStart});
+            } else if (marker == M_DQT) {
+                readQuantTables(data, segmentStart, segmentEnd);
+            } else if (marker == M_SOF0 || marker == M_SOF1) {
+                readFrameHeader(data, marker, segmentStart);
+            } else if (marker >= 0xC2 && marker <= 0xCF && marker != M_DHT && marker != 0xC8 && marker != 0xCC) {
+                throw new JpegFormatException("Only baseline JPEG is supported (SOF" + (marker - 0xC0) + ")");
+            } else if (marker == M_DHT) {
+                readHuffmanTables(data, segmentStart, segmentEnd);
+            } else if (marker == M_DRI) {
+                mRestartInterval = readUnsignedShort(data, segmentStart);
+            } else if (marker == M_SOS) {
+                readScan(data, segmentStart, segmentEnd);
+                return;
+            }
+            // Other markers (DNL, DAC, ...) are dropped
+            pos = segmentEnd;
+        }
+        throw new JpegFormatException("No scan data");
+    }
+
+    private void readQuantTables(byte[] data, int pos, int end) throws JpegFormatException {
+        while (pos < end) {
+            final int pq = (data[pos] & 0xFF) >> 4;
+            final int tq = data[pos] & 0x0F;
+            pos++;
+            if (tq > 3) throw new JpegFormatException("Invalid quantization table id");
+
+            int[] table = new int[64];
+            for (int k = 0; k < 64; k++) {
+                if (pq == 0) {
+                    table[NATURAL_ORDER[k]] = data[pos++] & 0xFF;
+                } else {
+                    table[NATURAL_ORDER[k]] = readUnsignedShort(data, pos);
+                    pos += 2;
+                }
+            }
+            mQuantTables[tq] = table;
+            mQuantPrecision[tq] = pq;
+        }
+    }
+
+    private void readFrameHeader(byte[] data, int marker, int pos) throws JpegFormatException {
+        mSofMarker = marker;
+        if ((data[pos] & 0xFF) != 8)
+            throw new JpegFormatException("Only 8 bit precision is supported");
+
+        final int height = readUnsignedShort(data, pos + 1);
+        final int width = readUnsignedShort(data, pos + 3);
+        final int count = data[pos + 5] & 0xFF;
+
+        if (width != mGeometry.sourceWidth || height != mGeometry.sourceHeight)
+            throw new JpegFormatException("Geometry doesn't match JPEG size " + width + "x" + height);
+        if (count != 1 && count != 3)
+            throw new JpegFormatException("Unsupported component count " + count);
+
+        mComponents = new Component[count];
+        int maxH = 1, maxV = 1;
+        for (int i = 0; i < count; i++) {
+            final int offset = pos + 6 + i * 3;
+            Component component = new Component();
+            component.id = data[offset] & 0xFF;
+            component.h = (data[offset + 1] & 0xFF) >> 4;
+            component.v = data[offset + 1] & 0x0F;
+            component.tq = data[offset + 2] & 0x0F;
+            if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4)
+                throw new JpegFormatException("Invalid sampling factor");
+            maxH = Math.max(maxH, component.h);
+            maxV = Math.max(maxV, component.v);
+            mComponents[i] = component;
+        }
+
+        // Single component scan is non-interleaved, so MCU is a single block
+        if (count == 1) {
+            mComponents[0].h = 1;
+            mComponents[0].v = 1;
+            maxH = 1;
+            maxV = 1;
+        }
+        mMcuWidth = maxH * 8;
+        mMcuHeight = maxV * 8;
+
+        checkAlignment();
+    }
+
+    /**
+     * Check if crop and transform can be applied on MCU grid
+     */
+    private void checkAlignment() throws JpegFormatException {
+        final CaptureGeometry g = mGeometry;
+
+        if (g.cropX % mMcuWidth != 0 || g.cropY % mMcuHeight != 0)
+            throw new JpegFormatException("Crop origin isn't aligned to MCU " + mMcuWidth + "x" + mMcuHeight);
+        if (g.cropWidth % mMcuWidth != 0 && g.cropX + g.cropWidth != g.sourceWidth)
+            throw new JpegFormatException("Crop width isn't aligned to MCU");
+        if (g.cropHeight % mMcuHeight != 0 && g.cropY + g.cropHeight != g.sourceHeight)
+            throw new JpegFormatException("Crop height isn't aligned to MCU");
+
+        // rotate 90 = transpose + flip horizontal, rotate 180 = flip both, rotate 270 = transpose + flip vertical
+        // mirror toggles flip horizontal at the end
+        switch (g.rotation) {
+            case 90:
+                mTranspose = true;
+                mFlipHorizontal = true;
+                break;
+            case 180:
+                mFlipHorizontal = true;
+                mFlipVertical = true;
+                break;
+            case 270:
+                mTranspose = true;
+                mFlipVertical = true;
+                break;
+            case 0:
+                break;
+            default:
+                throw new JpegFormatException("Unsupported rotation " + g.rotation);
+        }
+        if (g.mirror)
+            mFlipHorizontal = !mFlipHorizontal;
+
+        final int outMcuWidth = mTranspose ? mMcuHeight : mMcuWidth;
+        final int outMcuHeight = mTranspose ? mMcuWidth : mMcuHeight;
+
+        // A partial MCU can't be moved to the left or top edge
+        if (mFlipHorizontal && g.getOutputWidth() % outMcuWidth != 0)
+            throw new JpegFormatException("Mirrored width isn't aligned to MCU");
+        if (mFlipVertical && g.getOutputHeight() % outMcuHeight != 0)
+            throw new JpegFormatException("Mirrored height isn't aligned to MCU");
+
+        mMcuCols = (g.cropWidth + mMcuWidth - 1) / mMcuWidth;
+        mMcuRows = (g.cropHeight + mMcuHeight - 1) / mMcuHeight;
+    }
+
+    private void readHuffmanTables(byte[] data, int pos, int end) throws JpegFormatException {
+        while (pos < end) {
+            final int tc = (data[pos] & 0xFF) >> 4;
+            final int th = data[pos] & 0x0F;
+            pos++;
+            if (tc > 1 || th > 3) throw new JpegFormatException("Invalid huffman table id");
+
+            int[] bits = new int[16];
+            int total = 0;
+            for (int i = 0; i < 16; i++) {
+                bits[i] = data[pos + i] & 0xFF;
+                total += bits[i];
+            }
+            pos += 16;
+            if (total > 256) throw new JpegFormatException("Invalid huffman table");
+
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = data[pos + i] & 0xFF;
+            }
+            pos += total;
+
+            if (tc == 0)
+                mDcDecoders[th] = new HuffmanDecoder(bits, values);
+            else
+                mAcDecoders[th] = new HuffmanDecoder(bits, values);
+        }
+    }
+
+    private void readScan(byte[] data, int pos, int end) throws JpegFormatException {
+        if (mComponents == null)
+            throw new JpegFormatException("SOS before SOF");
+
+        final int count = data[pos] & 0xFF;
+        if (count != mComponents.length)
+            throw new JpegFormatException("Multi-scan JPEG isn't supported");
+
+        for (int i = 0; i < count; i++) {
+            final int id = data[pos + 1 + i * 2] & 0xFF;
+            final int tables = data[pos + 2 + i * 2] & 0xFF;
+            Component component = findComponent(id);
+            component.dcTable = tables >> 4;
+            component.acTable = tables & 0x0F;
+            if (component.dcTable > 3 || component.acTable > 3
+                    || mDcDecoders[component.dcTable] == null || mAcDecoders[component.acTable] == null)
+                throw new JpegFormatException("Huffman table is missing");
+            if (mQuantTables[component.tq] == null)
+                throw new JpegFormatException("Quantization table is missing");
+        }
+
+        final int ss = data[pos + 1 + count * 2] & 0xFF;
+        final int se = data[pos + 2 + count * 2] & 0xFF;
+        if (ss != 0 || se != 63)
+            throw new JpegFormatException("Spectral selection isn't supported");
+
+        decodeScan(data, end);
+    }
+
+    private Component findComponent(int id) throws JpegFormatException {
+        for (Component component : mComponents) {
+            if (component.id == id) return component;
+        }
+        throw new JpegFormatException("Unknown component " + id);
+    }
+
+    /**
+     * Decode entropy coded data, but keep coefficients of cropped MCUs only
+     */
+    private void decodeScan(byte[] data, int start) throws JpegFormatException {
+        final CaptureGeometry g = mGeometry;
+        final int mcusPerLine = (g.sourceWidth + mMcuWidth - 1) / mMcuWidth;
+        final int mcuX0 = g.cropX / mMcuWidth;
+        final int mcuY0 = g.cropY / mMcuHeight;
+        final int lastMcuRow = mcuY0 + mMcuRows;
+
+        for (Component component : mComponents) {
+            component.blocksWidth = mMcuCols * component.h;
+            component.blocksHeight = mMcuRows * component.v;
+            component.coefficients = new short[component.blocksWidth * component.blocksHeight * 64];
+            component.dcPrediction = 0;
+        }
+
+        final short[] scratch = new short[64];
+        final BitReader reader = new BitReader(data, start);
+        int mcuCount = 0;
+
+        for (int mcuY = 0; mcuY < lastMcuRow; mcuY++) {
+            final boolean rowInCrop = mcuY >= mcuY0;
+
+            for (int mcuX = 0; mcuX < mcusPerLine; mcuX++) {
+                if (mRestartInterval > 0 && mcuCount > 0 && mcuCount % mRestartInterval == 0) {
+                    reader.restart();
+                    for (Component component : mComponents) component.dcPrediction = 0;
+                }
+                mcuCount++;
+
+                final boolean keep = rowInCrop && mcuX >= mcuX0 && mcuX < mcuX0 + mMcuCols;
+
+                for (Component component : mComponents) {
+                    final HuffmanDecoder dc = mDcDecoders[component.dcTable];
+                    final HuffmanDecoder ac = mAcDecoders[component.acTable];
+
+                    for (int by = 0; by < component.v; by++) {
+                        for (int bx = 0; bx < component.h; bx++) {
+                            if (keep) {
+                                final int blockX = (mcuX - mcuX0) * component.h + bx;
+                                final int blockY = (mcuY - mcuY0) * component.v + by;
+                                decodeBlock(reader, component, dc, ac, component.coefficients,
+                                        (blockY * component.blocksWidth + blockX) * 64);
+                            } else {
+                                decodeBlock(reader, component, dc, ac, scratch, 0);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void decodeBlock(BitReader reader, Component component, HuffmanDecoder dc, HuffmanDecoder ac,
+                                    short[] out, int offset) throws JpegFormatException {
+        int t = dc.decode(reader);
+        int diff = t == 0 ? 0 : extend(reader.getBits(t), t);
+        component.dcPrediction += diff;
+        out[offset] = (short) component.dcPrediction;
+
+        for (int k = 1; k < 64; k++) {
+            final int rs = ac.decode(reader);
+            final int r = rs >> 4;
+            final int s = rs & 0x0F;
+
+            if (s == 0) {
+                if (r != 15) break;     // EOB
+                k += 15;                // ZRL
+                continue;
+            }
+            k += r;
+            if (k > 63) throw new JpegFormatException("Corrupted AC coefficients");
+            out[offset + NATURAL_ORDER[k]] = (short) extend(reader.getBits(s), s);
+        }
+    }
+
+    private static int extend(int value, int bits) {
+        return value < (1 << (bits - 1)) ? value - (1 << bits) + 1 : value;
+    }
+
+    private void writeQuantTables(BitWriter writer) throws IOException {
+        for (int tq = 0; tq < 4; tq++) {
+            final int[] table = mQuantTables[tq];
+            if (table == null) continue;
+
+            final int precision = mQuantPrecision[tq];
+            writer.writeMarker(M_DQT);
+            writer.writeShort(2 + 1 + 64 * (precision == 0 ? 1 : 2));
+            writer.writeByte((precision << 4) | tq);
+            for (int k = 0; k < 64; k++) {
+                int natural = NATURAL_ORDER[k];
+                if (mTranspose)
+                    natural = (natural & 7) * 8 + (natural >> 3);
+
+                if (precision == 0)
+                    writer.writeByte(table[natural]);
+                else
+                    writer.writeShort(table[natural]);
+            }
+        }
+    }
+
+    private void writeFrameHeader(BitWriter writer) throws IOException {
+        writer.writeMarker(mSofMarker);
+        writer.writeShort(8 + mComponents.length * 3);
+        writer.writeByte(8);
+        writer.writeShort(getHeight());
+        writer.writeShort(getWidth());
+        writer.writeByte(mComponents.length);
+        for (Component component : mComponents) {
+            final int h = mTranspose ? component.v : component.h;
+            final int v = mTranspose ? component.h : component.v;
+            writer.writeByte(component.id);
+            writer.writeByte((h << 4) | v);
+            writer.writeByte(component.tq);
+        }
+    }
+
+    private void writeHuffmanTables(BitWriter writer) throws IOException {
+        writeHuffmanTable(writer, 0x00, STD_DC_LUMINANCE_BITS, STD_DC_LUMINANCE_VALUES);
+        writeHuffmanTable(writer, 0x10, STD_AC_LUMINANCE_BITS, STD_AC_LUMINANCE_VALUES);
+        if (mComponents.length > 1) {
+            writeHuffmanTable(writer, 0x01, STD_DC_CHROMINANCE_BITS, STD_DC_CHROMINANCE_VALUES);
+            writeHuffmanTable(writer, 0x11, STD_AC_CHROMINANCE_BITS, STD_AC_CHROMINANCE_VALUES);
+        }
+    }
+
+    private static void writeHuffmanTable(BitWriter writer, int id, int[] bits, int[] values) throws IOException {
+        writer.writeMarker(M_DHT);
+        writer.writeShort(2 + 1 + 16 + values.length);
+        writer.writeByte(id);
+        for (int bit : bits) writer.writeByte(bit);
+        for (int value : values) writer.writeByte(value);
+    }
+
+    private void writeScanHeader(BitWriter writer) throws IOException {
+        writer.writeMarker(M_SOS);
+        writer.writeShort(6 + mComponents.length * 2);
+        writer.writeByte(mComponents.length);
+        for (int i = 0; i < mComponents.length; i++) {
+            writer.writeByte(mComponents[i].id);
+            writer.writeByte(i == 0 ? 0x00 : 0x11);
+        }
+        writer.writeByte(0);
+        writer.writeByte(63);
+        writer.writeByte(0);
+    }
+
+    /**
+     * Encode coefficients in output order. Each block is transformed on the fly, so no intermediate image is allocated.
+     */
+    private void writeScanData(BitWriter writer) throws IOException {
+        // Coefficient index map and sign of transformed block
+        final int[] sourceIndex = new int[64];
+        final boolean[] negate = new boolean[64];
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                final int i = row * 8 + col;
+                sourceIndex[i] = mTranspose ? col * 8 + row : i;
+                negate[i] = (mFlipHorizontal && (col & 1) != 0) ^ (mFlipVertical && (row & 1) != 0);
+            }
+        }
+
+        final int outMcuCols = mTranspose ? mMcuRows : mMcuCols;
+        final int outMcuRows = mTranspose ? mMcuCols : mMcuRows;
+        final int[] block = new int[64];
+
+        for (Component component : mComponents) component.dcPrediction = 0;
+
+        for (int mcuY = 0; mcuY < outMcuRows; mcuY++) {
+            for (int mcuX = 0; mcuX < outMcuCols; mcuX++) {
+                for (int c = 0; c < mComponents.length; c++) {
+                    final Component component = mComponents[c];
+                    final int h = mTranspose ? component.v : component.h;
+                    final int v = mTranspose ? component.h : component.v;
+                    final int outBlocksWidth = outMcuCols * h;
+                    final int outBlocksHeight = outMcuRows * v;
+                    final HuffmanEncoder dc = c == 0 ? DC_LUMINANCE : DC_CHROMINANCE;
+                    final HuffmanEncoder ac = c == 0 ? AC_LUMINANCE : AC_CHROMINANCE;
+
+                    for (int by = 0; by < v; by++) {
+                        for (int bx = 0; bx < h; bx++) {
+                            int x = mcuX * h + bx;
+                            int y = mcuY * v + by;
+                            if (mFlipHorizontal) x = outBlocksWidth - 1 - x;
+                            if (mFlipVertical) y = outBlocksHeight - 1 - y;
+                            final int sourceX = mTranspose ? y : x;
+                            final int sourceY = mTranspose ? x : y;
+                            final int offset = (sourceY * component.blocksWidth + sourceX) * 64;
+
+                            final short[] coefficients = component.coefficients;
+                            for (int i = 0; i < 64; i++) {
+                                final int value = coefficients[offset + sourceIndex[i]];
+                                block[i] = negate[i] ? -value : value;
+                            }
+                            encodeBlock(writer, component, dc, ac, block);
+                        }
+                    }
+                }
+            }
+        }
+        writer.flushBits();
+    }
+
+    private static void encodeBlock(BitWriter writer, Component component, HuffmanEncoder dc, HuffmanEncoder ac,
+                                    int[] block) throws IOException {
+        final int diff = block[0] - component.dcPrediction;
+        component.dcPrediction = block[0];
+
+        int size = bitCount(diff);
+        writer.writeBits(dc.codes[size], dc.sizes[size]);
+        if (size > 0)
+            writer.writeBits(diff < 0 ? diff - 1 : diff, size);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            final int value = block[NATURAL_ORDER[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                writer.writeBits(ac.codes[0xF0], ac.sizes[0xF0]);
+                run -= 16;
+            }
+            size = bitCount(value);
+            final int symbol = (run << 4) | size;
+            writer.writeBits(ac.codes[symbol], ac.sizes[symbol]);
+            writer.writeBits(value < 0 ? value - 1 : value, size);
+            run = 0;
+        }
+        if (run > 0)
+            writer.writeBits(ac.codes[0x00], ac.sizes[0x00]);
+    }
+
+    private static int bitCount(int value) {
+        if (value < 0) value = -value;
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    private static int readUnsignedShort(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static class Component {
+        int id;
+        int h;
+        int v;
+        int tq;
+        int dcTable;
+        int acTable;
+        /** Stored blocks (cropped area) */
+        int blocksWidth;
+        int blocksHeight;
+        /** Quantized coefficients in natural order, 64 per block */
+        short[] coefficients;
+        int dcPrediction;
+    }
+
+    private static class JpegFormatException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        JpegFormatException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Entropy coded data reader. It handles byte stuffing and stops at a marker
+     */
+    private static class BitReader {
+        private final byte[] mData;
+        private int mPosition;
+        private long mBuffer;
+        private int mBitCount;
+        private boolean mMarkerReached;
+
+        BitReader(byte[] data, int position) {
+            mData = data;
+            mPosition = position;
+        }
+
+        private void fill() {
+            while (mBitCount <= 56) {
+                int b = 0;
+                if (!mMarkerReached && mPosition < mData.length) {
+                    b = mData[mPosition] & 0xFF;
+                    if (b == 0xFF) {
+                        final int next = mPosition + 1 < mData.length ? mData[mPosition + 1] & 0xFF : M_EOI;
+                        if (next == 0) {
+                            mPosition += 2;
+                        } else {
+                            // Don't step over the marker. Feed zero bits instead
+                            mMarkerReached = true;
+                            b = 0;
+                        }
+                    } else {
+                        mPosition++;
+                    }
+                }
+                mBuffer |= (long) b << (56 - mBitCount);
+                mBitCount += 8;
+            }
+        }
+
+        int peekBits(int count) {
+            if (mBitCount < count) fill();
+            return (int) (mBuffer >>> (64 - count));
+        }
+
+        void skipBits(int count) {
+            mBuffer <<= count;
+            mBitCount -= count;
+        }
+
+        int getBits(int count) {
+            final int value = peekBits(count);
+            skipBits(count);
+            return value;
+        }
+
+        /**
+         * Discard remaining bits and step over RSTn marker
+         */
+        void restart() throws JpegFormatException {
+            mBuffer = 0;
+            mBitCount = 0;
+            mMarkerReached = false;
+
+            // Some encoders put garbage before the marker, so search it
+            while (mPosition + 1 < mData.length) {
+                if ((mData[mPosition] & 0xFF) == 0xFF) {
+                    final int marker = mData[mPosition + 1] & 0xFF;
+                    if (marker >= 0xD0 && marker <= 0xD7) {
+                        mPosition += 2;
+                        return;
+                    }
+                    if (marker != 0 && marker != 0xFF)
+                        break;
+                }
+                mPosition++;
+            }
+            throw new JpegFormatException("Restart marker is missing");
+        }
+    }
+
+    /**
+     * Huffman decoder with 9 bits look-ahead table
+     */
+    private static class HuffmanDecoder {
+        private static final int LOOKAHEAD = 9;
+
+        /** (code length << 8) | value, 0 if code is longer than {@link #LOOKAHEAD} */
+        private final int[] mLookup = new int[1 << LOOKAHEAD];
+        private final int[] mMaxCode = new int[18];
+        private final int[] mValueOffset = new int[18];
+        private final int[] mValues;
+
+        HuffmanDecoder(int[] bits, int[] values) {
+            mValues = values;
+
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                final int count = bits[length - 1];
+                mValueOffset[length] = k - code;
+                for (int i = 0; i < count; i++) {
+                    if (length <= LOOKAHEAD) {
+                        final int shift = LOOKAHEAD - length;
+                        final int first = code << shift;
+                        for (int fill = 0; fill < (1 << shift); fill++)
+                            mLookup[first + fill] = (length << 8) | values[k];
+                    }
+                    code++;
+                    k++;
+                }
+                mMaxCode[length] = count > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            mMaxCode[17] = Integer.MAX_VALUE;
+        }
+
+        int decode(BitReader reader) throws JpegFormatException {
+            final int entry = mLookup[reader.peekBits(LOOKAHEAD)];
+            if (entry != 0) {
+                reader.skipBits(entry >> 8);
+                return entry & 0xFF;
+            }
+
+            int code = reader.getBits(LOOKAHEAD);
+            for (int length = LOOKAHEAD + 1; length <= 16; length++) {
+                code = (code << 1) | reader.getBits(1);
+                if (code <= mMaxCode[length]) {
+                    final int index = code + mValueOffset[length];
+                    if (index < 0 || index >= mValues.length) break;
+                    return mValues[index];
+                }
+            }
+            throw new JpegFormatException("Invalid huffman code");
+        }
+    }
+
+    /**
+     * Huffman encoder for a table given by BITS / HUFFVAL
+     */
+    private static class HuffmanEncoder {
+        final int[] codes = new int[256];
+        final int[] sizes = new int[256];
+
+        HuffmanEncoder(int[] bits, int[] values) {
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    codes[values[k]] = code;
+                    sizes[values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    /**
+     * Buffered writer for markers and entropy coded data (with byte stuffing)
+     */
+    private static class BitWriter {
+        private final OutputStream mOut;
+        private final byte[] mBuffer = new byte[8192];
+        private int mLength;
+        private int mBits;
+        private int mBitCount;
+
+        BitWriter(OutputStream out) {
+            mOut = out;
+        }
+
+        void writeByte(int value) throws IOException {
+            if (mLength == mBuffer.length) {
+                mOut.write(mBuffer, 0, mLength);
+                mLength = 0;
+            }
+            mBuffer[mLength++] = (byte) value;
+        }
+
+        void writeShort(int value) throws IOException {
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+
+        void writeMarker(int marker) throws IOException {
+            writeByte(0xFF);
+            writeByte(marker);
+        }
+
+        void writeRaw(byte[] data, int offset, int length) throws IOException {
+            flushBuffer();
+            mOut.write(data, offset, length);
+        }
+
+        void writeBits(int value, int count) throws IOException {
+            mBits = (mBits << count) | (value & ((1 << count) - 1));
+            mBitCount += count;
+            while (mBitCount >= 8) {
+                final int b = (mBits >> (mBitCount - 8)) & 0xFF;
+                writeByte(b);
+                if (b == 0xFF) writeByte(0);
+                mBitCount -= 8;
+            }
+            mBits &= (1 << mBitCount) - 1;
+        }
+
+        /**
+         * Pad the last byte with 1 bits
+         */
+        void flushBits() throws IOException {
+            if (mBitCount > 0)
+                writeBits(0x7F, 8 - mBitCount);
+        }
+
+        private void flushBuffer() throws IOException {
+            if (mLength > 0) {
+                mOut.write(mBuffer, 0, mLength);
+                mLength = 0;
+            }
+        }
+
+        void flush() throws IOException {
+            flushBuffer();
+            mOut.flush();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.danielpark.camera.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory histogram of latencies in microseconds <br>
+ *     1. Buckets are log-linear : each power of two is split into {@value #SUB_BUCKETS} buckets,
+ *        so a percentile is within 1 / {@value #SUB_BUCKETS} of the recorded value. <br>
+ *     2. {@link #record(long)} only increments atomic counters, no lock and no allocation. <br>
+ *     3. Percentiles are read while recording goes on, they are a near snapshot (not an atomic one).
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Values below it have a bucket of their own */
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    /** Up to 2^40 us (about 12 days), bigger values go to the last bucket */
+    private static final int MAX_MAGNITUDE = 40;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_MAGNITUDE - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param latencyNs nanoseconds (e.g. difference of {@link System#nanoTime()}), negative is taken as 0
+     */
+    public void record(long latencyNs) {
+        final long us = Math.max(0, latencyNs / 1000L);
+
+        mCounts.incrementAndGet(getBucket(us));
+        mCount.incrementAndGet();
+        mSum.addAndGet(us);
+
+        long max = mMax.get();
+        while (us > max && !mMax.compareAndSet(max, us))
+            max = mMax.get();
+    }
+
+    static int getBucket(long us) {
+        if (us < LINEAR_LIMIT) return (int) us;
+
+        final int magnitude = 63 - Long.numberOfLeadingZeros(us);
+        if (magnitude >= MAX_MAGNITUDE) return BUCKET_COUNT - 1;
+
+        final int subBucket = (int) (us >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value of a bucket
+     */
+    static long getBucketMax(int bucket) {
+        if (bucket < LINEAR_LIMIT) return bucket;
+
+        final int magnitude = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        final int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        final long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        return (1L << magnitude) + (subBucket + 1) * width - 1;
+    }
+
+    /**
+     * @param percentile 0 ~ 100 (e.g. 50, 95, 99)
+     * @return latency in microseconds which given percent of records are equal to or below, 0 if empty
+     */
+    public long getPercentile(double percentile) {
+        final long count = mCount.get();
+        if (count == 0) return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(count * Math.max(0, Math.min(100, percentile)) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank)
+                return Math.min(getBucketMax(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /** Max latency in microseconds */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /** Mean latency in microseconds */
+    public long getMean() {
+        final long count = mCount.get();
+        return count > 0 ? mSum.get() / count : 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            mCounts.set(i, 0);
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram(count " + getCount() + ", p50 " + getPercentile(50) + "us, p95 " + getPercentile(95)
+                + "us, p99 " + getPercentile(99) + "us, max " + getMax() + "us)";
+    }
+}
@@ -20,41 +20,113 @@ public class Logger {
     }
 
     private final String TAG = "CameraLogger";
-    private boolean mLogFlag = CameraLogger.getLogState();
+
+    /**
+     * {@link CameraLogger} switch is read on every call, so it can be turned on or off at any time
+     */
+    public boolean isEnabled() {
+        return CameraLogger.getLogState();
+    }
 
     public void v(String msg) {
-        if (mLogFlag) {
+        if (isEnabled()) {
             Log.v(TAG, "" + msg);
         }
     }
 
     public void d(String msg) {
-        if (mLogFlag) {
+        if (isEnabled()) {
             Log.d(TAG, "" + msg);
         }
     }
 
+    /**
+     * Message is built only when log is on. Each "{}" of format is replaced by next argument
+     */
+    public void d(String format, Object arg) {
+        if (isEnabled()) {
+            Log.d(TAG, format(format, arg, null, 1));
+        }
+    }
+
+    public void d(String format, Object arg1, Object arg2) {
+        if (isEnabled()) {
+            Log.d(TAG, format(format, arg1, arg2, 2));
+        }
+    }
+
+    // Primitives have their own overloads, so nothing is boxed while log is off
+
+    public void d(String format, int arg) {
+        if (isEnabled()) {
+            Log.d(TAG, format(format, arg, null, 1));
+        }
+    }
+
+    public void d(String format, int arg1, int arg2) {
+        if (isEnabled()) {
+            Log.d(TAG, format(format, arg1, arg2, 2));
+        }
+    }
+
+    public void d(String format, long arg) {
+        if (isEnabled()) {
+            Log.d(TAG, format(format, arg, null, 1));
+        }
+    }
+
+    public void d(String format, float arg) {
+        if (isEnabled()) {
+            Log.d(TAG, format(format, arg, null, 1));
+        }
+    }
+
+    public void d(String format, double arg) {
+        if (isEnabled()) {
+            Log.d(TAG, format(format, arg, null, 1));
+        }
+    }
+
+    public void d(String format, boolean arg) {
+        if (isEnabled()) {
+            Log.d(TAG, format(format, arg, null, 1));
+        }
+    }
+
     public void e(String msg) {
-        if (mLogFlag) {
+        if (isEnabled()) {
             Log.e(TAG, "" + msg);
         }
     }
 
     public void i(String msg) {
-        if (mLogFlag) {
+        if (isEnabled()) {
             Log.i(TAG, "" + msg);
         }
     }
 
     public void w(String msg) {
-        if (mLogFlag) {
+        if (isEnabled()) {
             Log.w(TAG, "" + msg);
         }
     }
 
     public void wtf(String msg) {
-        if (mLogFlag) {
+        if (isEnabled()) {
             Log.wtf(TAG, "" + msg);
         }
     }
+
+    private static String format(String format, Object arg1, Object arg2, int count) {
+        final StringBuilder builder = new StringBuilder(format.length() + 16);
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            final int index = format.indexOf("{}", start);
+            if (index < 0) break;
+
+            builder.append(format, start, index).append(i == 0 ? arg1 : arg2);
+            start = index + 2;
+        }
+        return builder.append(format, start, format.length()).toString();
+    }
 }
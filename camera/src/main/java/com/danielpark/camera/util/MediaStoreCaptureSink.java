@@ -0,0 +1,140 @@
+package com.danielpark.camera.util;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Inserts taken pictures into {@link MediaStore}, so they are shown in gallery without a file of our own <br>
+ *     Row is removed if picture fails.
+ */
+public class MediaStoreCaptureSink implements CaptureSink<Uri> {
+
+    // MediaStore.MediaColumns.IS_PENDING (API 29). Gallery doesn't show a row while it is pending
+    private static final String IS_PENDING = "is_pending";
+    private static final int VERSION_CODES_Q = 29;
+
+    private static final String MIME_TYPE = "image/jpeg";
+
+    private final ContentResolver mContentResolver;
+    private final Uri mCollection;
+    private final String mPrefix;
+
+    public MediaStoreCaptureSink(Context context) {
+        this(context.getContentResolver(), MediaStore.Images.Media.EXTERNAL_CONTENT_URI, CaptureStorage.DEFAULT_PREFIX);
+    }
+
+    /**
+     * @param collection {@link MediaStore.Images.Media#EXTERNAL_CONTENT_URI} or another images collection
+     * @param prefix prefix of display name
+     */
+    public MediaStoreCaptureSink(ContentResolver contentResolver, Uri collection, String prefix) {
+        if (contentResolver == null || collection == null)
+            throw new IllegalArgumentException("ContentResolver and collection should not be null!");
+
+        mContentResolver = contentResolver;
+        mCollection = collection;
+        mPrefix = prefix != null ? prefix : CaptureStorage.DEFAULT_PREFIX;
+    }
+
+    @Override
+    public Output<Uri> begin() throws IOException {
+        final long now = System.currentTimeMillis();
+
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Images.Media.DISPLAY_NAME, mPrefix + now + CaptureStorage.EXTENSION);
+        values.put(MediaStore.Images.Media.MIME_TYPE, MIME_TYPE);
+        values.put(MediaStore.Images.Media.DATE_TAKEN, now);
+        if (Build.VERSION.SDK_INT >= VERSION_CODES_Q)
+            values.put(IS_PENDING, 1);
+
+        final Uri uri = mContentResolver.insert(mCollection, values);
+        if (uri == null)
+            throw new IOException("Failed to insert into " + mCollection);
+
+        final OutputStream outputStream;
+        try {
+            outputStream = mContentResolver.openOutputStream(uri);
+            if (outputStream == null)
+                throw new IOException("Failed to open " + uri);
+        } catch (IOException e) {
+            mContentResolver.delete(uri, null, null);
+            throw e;
+        }
+
+        return new Output<Uri>() {
+
+            private boolean mClosed;
+
+            @Override
+            public OutputStream getOutputStream() {
+                return outputStream;
+            }
+
+            @Override
+            public Uri commit() throws IOException {
+                if (mClosed) throw new IOException("Output was closed already");
+
+                try {
+                    outputStream.flush();
+                    outputStream.close();
+                } catch (IOException e) {
+                    abort();
+                    throw e;
+                }
+                mClosed = true;
+
+                if (Build.VERSION.SDK_INT >= VERSION_CODES_Q) {
+                    ContentValues values = new ContentValues();
+                    values.put(IS_PENDING, 0);
+                    mContentResolver.update(uri, values, null, null);
+                }
+                return uri;
+            }
+
+            @Override
+            public void abort() {
+                if (mClosed) return;
+
+                mClosed = true;
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                mContentResolver.delete(uri, null, null);
+            }
+        };
+    }
+
+    @Override
+    public Uri handOff(ByteBuffer jpeg, Release release) throws IOException {
+        try {
+            Output<Uri> output = begin();
+            try {
+                if (jpeg.hasArray()) {
+                    output.getOutputStream().write(jpeg.array(), jpeg.arrayOffset() + jpeg.position(), jpeg.remaining());
+                    jpeg.position(jpeg.limit());
+                } else {
+                    WritableByteChannel channel = Channels.newChannel(output.getOutputStream());
+                    while (jpeg.hasRemaining())
+                        channel.write(jpeg);
+                }
+                return output.commit();
+            } finally {
+                output.abort();
+            }
+        } finally {
+            release.release();
+        }
+    }
+}
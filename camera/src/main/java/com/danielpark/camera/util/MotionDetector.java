@@ -0,0 +1,270 @@
+package com.danielpark.camera.util;
+
+import android.graphics.ImageFormat;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.danielpark.camera.listeners.OnMotionListener;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes a picture when preview frames change, for unattended capture <br>
+ *     1. Y plane is read in place and averaged into a grid of blocks, each block from a sparse lattice of samples. <br>
+ *     2. A block is changed when its average moved more than sensitivity since the previous frame.
+ *        Average move of every watched block is taken out first, so exposure changes aren't motion. <br>
+ *     3. Motion is when enough watched blocks (region mask) changed. Capture goes through
+ *        {@link AutoFitTextureView#takePicture()} and nothing is triggered again during cooldown.
+ */
+public class MotionDetector extends FrameProcessor {
+
+    public static final int DEFAULT_COLUMNS = 32;
+    public static final int DEFAULT_ROWS = 24;
+    public static final float DEFAULT_TARGET_FPS = 10f;
+    /** Luma levels (0 ~ 255) which a block should move to be changed */
+    public static final int DEFAULT_BLOCK_THRESHOLD = 12;
+    /** Changed blocks / watched blocks which is motion */
+    public static final float DEFAULT_MIN_CHANGED_RATIO = 0.02f;
+    public static final long DEFAULT_COOLDOWN_MS = 3000;
+
+    /** Samples per block side */
+    private static final int SAMPLES = 4;
+
+    private final int mColumns;
+    private final int mRows;
+    private final OnMotionListener mListener;
+    /** Created on the first motion, so detector can be built and benchmarked off device */
+    private volatile Handler mMainHandler;
+
+    private volatile int mBlockThreshold = DEFAULT_BLOCK_THRESHOLD;
+    private volatile float mMinChangedRatio = DEFAULT_MIN_CHANGED_RATIO;
+    private volatile long mCooldownNs = DEFAULT_COOLDOWN_MS * 1000000L;
+    private volatile boolean[] mMask;
+
+    private volatile AutoFitTextureView mView;
+
+    // Only worker which processes a frame touches these, one frame at a time
+    private int[] mGrid;
+    private int[] mPreviousGrid;
+    private boolean mHasPreviousGrid;
+    private int mGridWidth;
+    private int mGridHeight;
+    private long mLastMotionTime;
+
+    private volatile float mLastChangedRatio;
+    private final AtomicLong mMotionCount = new AtomicLong();
+    private final AtomicLong mCaptureCount = new AtomicLong();
+
+    public MotionDetector(OnMotionListener listener) {
+        this(DEFAULT_COLUMNS, DEFAULT_ROWS, DEFAULT_TARGET_FPS, listener);
+    }
+
+    /**
+     * @param columns number of blocks across frame
+     * @param rows number of blocks down frame
+     * @param targetFps max frames per second to compare
+     * @param listener gets motion on main thread (null : only capture)
+     */
+    public MotionDetector(int columns, int rows, float targetFps, OnMotionListener listener) {
+        super(targetFps, ImageFormat.YUV_420_888, 0, 0);
+        if (columns <= 0 || rows <= 0)
+            throw new IllegalArgumentException("Grid should have at least one block!");
+
+        mColumns = columns;
+        mRows = rows;
+        mListener = listener;
+        mGrid = new int[columns * rows];
+        mPreviousGrid = new int[columns * rows];
+    }
+
+    /**
+     * @param blockThreshold luma levels (0 ~ 255) which a block should move to be changed, lower is more sensitive
+     * @param minChangedRatio changed blocks / watched blocks which is motion (0 ~ 1), lower is more sensitive
+     */
+    public void setSensitivity(int blockThreshold, float minChangedRatio) {
+        mBlockThreshold = Math.max(0, blockThreshold);
+        mMinChangedRatio = Math.max(0f, Math.min(1f, minChangedRatio));
+    }
+
+    /**
+     * Watch only some blocks
+     * @param mask columns x rows, row by row in frame orientation (before rotation). true : watched. null : every block
+     */
+    public void setMask(boolean[] mask) {
+        if (mask != null && mask.length != mColumns * mRows)
+            throw new IllegalArgumentException("Mask should have " + mColumns * mRows + " blocks!");
+
+        mMask = mask != null ? mask.clone() : null;
+    }
+
+    /**
+     * Watch only a rectangle of frame
+     * @param left 0 ~ 1 of frame width, in frame orientation (before rotation)
+     * @param top 0 ~ 1 of frame height
+     * @param right 0 ~ 1 of frame width
+     * @param bottom 0 ~ 1 of frame height
+     */
+    public void setRegion(float left, float top, float right, float bottom) {
+        final boolean[] mask = new boolean[mColumns * mRows];
+        for (int row = 0; row < mRows; row++) {
+            final float centerY = (row + 0.5f) / mRows;
+            for (int column = 0; column < mColumns; column++) {
+                final float centerX = (column + 0.5f) / mColumns;
+                mask[row * mColumns + column] = centerX >= left && centerX <= right && centerY >= top && centerY <= bottom;
+            }
+        }
+        mMask = mask;
+    }
+
+    /**
+     * @param cooldownMs time after a capture during which motion doesn't capture again
+     */
+    public void setCooldown(long cooldownMs) {
+        mCooldownNs = Math.max(0, cooldownMs) * 1000000L;
+    }
+
+    synchronized void start(AutoFitTextureView view) {
+        if (mView != null)
+            throw new IllegalStateException("MotionDetector is attached to another view already!");
+
+        mView = view;
+    }
+
+    synchronized void stop() {
+        mView = null;
+    }
+
+    @Override
+    public void process(Frame frame) {
+        final ByteBuffer y = frame.getPlane(YuvFrame.PLANE_Y);
+        if (y == null) return;
+
+        if (frame.getWidth() != mGridWidth || frame.getHeight() != mGridHeight) {
+            // Preview size changed, previous grid isn't comparable
+            mGridWidth = frame.getWidth();
+            mGridHeight = frame.getHeight();
+            mHasPreviousGrid = false;
+        }
+
+        average(y, frame.getRowStride(YuvFrame.PLANE_Y), frame.getPixelStride(YuvFrame.PLANE_Y));
+
+        if (mHasPreviousGrid) {
+            final float changedRatio = compare();
+            mLastChangedRatio = changedRatio;
+
+            final long timestamp = frame.getTimestamp();
+            if (changedRatio > 0f && changedRatio >= mMinChangedRatio
+                    && (mLastMotionTime == 0 || timestamp - mLastMotionTime >= mCooldownNs)) {
+                mLastMotionTime = timestamp;
+                onMotion(changedRatio, timestamp);
+            }
+        }
+
+        final int[] grid = mPreviousGrid;
+        mPreviousGrid = mGrid;
+        mGrid = grid;
+        mHasPreviousGrid = true;
+    }
+
+    /**
+     * Average of each block into {@link #mGrid}, from {@value #SAMPLES} x {@value #SAMPLES} samples
+     */
+    private void average(ByteBuffer y, int rowStride, int pixelStride) {
+        final int blockWidth = Math.max(1, mGridWidth / mColumns);
+        final int blockHeight = Math.max(1, mGridHeight / mRows);
+        final int stepX = Math.max(1, blockWidth / SAMPLES);
+        final int stepY = Math.max(1, blockHeight / SAMPLES);
+        final int limit = y.limit();
+
+        for (int row = 0, index = 0; row < mRows; row++) {
+            final int top = Math.min(row * blockHeight + stepY / 2, mGridHeight - 1);
+            for (int column = 0; column < mColumns; column++, index++) {
+                final int left = Math.min(column * blockWidth + stepX / 2, mGridWidth - 1);
+
+                int sum = 0;
+                int count = 0;
+                for (int i = 0; i < SAMPLES; i++) {
+                    final int offset = Math.min(top + i * stepY, mGridHeight - 1) * rowStride;
+                    for (int j = 0; j < SAMPLES; j++) {
+                        final int position = offset + Math.min(left + j * stepX, mGridWidth - 1) * pixelStride;
+                        if (position >= limit) continue;
+
+                        sum += y.get(position) & 0xFF;
+                        count++;
+                    }
+                }
+                mGrid[index] = count > 0 ? sum / count : 0;
+            }
+        }
+    }
+
+    /**
+     * @return changed blocks / watched blocks
+     */
+    private float compare() {
+        final boolean[] mask = mMask;
+
+        int watched = 0;
+        int totalDifference = 0;
+        for (int i = 0; i < mGrid.length; i++) {
+            if (mask != null && !mask[i]) continue;
+
+            totalDifference += mGrid[i] - mPreviousGrid[i];
+            watched++;
+        }
+        if (watched == 0) return 0f;
+
+        // Whole frame got brighter or darker (auto exposure), it is taken out of each block
+        final int globalDifference = totalDifference / watched;
+        final int threshold = mBlockThreshold;
+
+        int changed = 0;
+        for (int i = 0; i < mGrid.length; i++) {
+            if (mask != null && !mask[i]) continue;
+
+            if (Math.abs(mGrid[i] - mPreviousGrid[i] - globalDifference) > threshold)
+                changed++;
+        }
+        return (float) changed / watched;
+    }
+
+    private void onMotion(final float changedRatio, final long timestamp) {
+        mMotionCount.incrementAndGet();
+
+        if (mMainHandler == null)
+            mMainHandler = new Handler(Looper.getMainLooper());
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final AutoFitTextureView view = mView;
+                if (view == null) return;
+
+                if (mListener != null)
+                    mListener.onMotion(changedRatio, timestamp);
+
+                mCaptureCount.incrementAndGet();
+                view.takePicture();
+            }
+        });
+    }
+
+    /** Changed blocks / watched blocks of the last compared frame */
+    public float getLastChangedRatio() {
+        return mLastChangedRatio;
+    }
+
+    public long getMotionCount() {
+        return mMotionCount.get();
+    }
+
+    public long getCaptureCount() {
+        return mCaptureCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MotionDetector(" + mColumns + "x" + mRows + ", motion " + getMotionCount()
+                + ", capture " + getCaptureCount() + ", " + super.toString() + ")";
+    }
+}
@@ -0,0 +1,109 @@
+package com.danielpark.camera.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes each taken picture to an {@link OutputStream} opened by {@link StreamFactory} (e.g. socket of upload) <br>
+ *     Stream is closed when picture is complete, and it is delivered as result.
+ */
+public class OutputStreamCaptureSink implements CaptureSink<OutputStream> {
+
+    public interface StreamFactory {
+
+        /**
+         * Open a stream for a new picture. It is called on {@link SaveExecutor} worker thread
+         */
+        OutputStream open() throws IOException;
+
+        /**
+         * Picture failed, stream was closed already
+         */
+        void onAbort(OutputStream outputStream);
+    }
+
+    private final StreamFactory mFactory;
+
+    public OutputStreamCaptureSink(StreamFactory factory) {
+        if (factory == null)
+            throw new IllegalArgumentException("Factory should not be null!");
+
+        mFactory = factory;
+    }
+
+    @Override
+    public Output<OutputStream> begin() throws IOException {
+        final OutputStream outputStream = mFactory.open();
+        if (outputStream == null)
+            throw new IOException("Factory didn't open a stream");
+
+        return new Output<OutputStream>() {
+
+            private boolean mClosed;
+
+            @Override
+            public OutputStream getOutputStream() {
+                return outputStream;
+            }
+
+            @Override
+            public OutputStream commit() throws IOException {
+                if (mClosed) throw new IOException("Output was closed already");
+
+                mClosed = true;
+                try {
+                    outputStream.flush();
+                } catch (IOException e) {
+                    close(outputStream);
+                    mFactory.onAbort(outputStream);
+                    throw e;
+                }
+                outputStream.close();
+                return outputStream;
+            }
+
+            @Override
+            public void abort() {
+                if (mClosed) return;
+
+                mClosed = true;
+                close(outputStream);
+                mFactory.onAbort(outputStream);
+            }
+        };
+    }
+
+    @Override
+    public OutputStream handOff(ByteBuffer jpeg, Release release) throws IOException {
+        try {
+            Output<OutputStream> output = begin();
+            try {
+                if (jpeg.hasArray()) {
+                    output.getOutputStream().write(jpeg.array(), jpeg.arrayOffset() + jpeg.position(), jpeg.remaining());
+                    jpeg.position(jpeg.limit());
+                } else {
+                    // Direct buffer (Camera2 JPEG plane) is written without a byte[] copy of whole picture
+                    WritableByteChannel channel = Channels.newChannel(output.getOutputStream());
+                    while (jpeg.hasRemaining())
+                        channel.write(jpeg);
+                }
+                return output.commit();
+            } finally {
+                output.abort();
+            }
+        } finally {
+            release.release();
+        }
+    }
+
+    private static void close(OutputStream outputStream) {
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.danielpark.camera.util;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+ * Fixed set of preview callback buffers for {@link Camera#setPreviewCallbackWithBuffer(Camera.PreviewCallback)} <br>
+ *     Framework doesn't allocate a new byte[] for each preview frame, frames are written into these buffers. <br>
+ *     A buffer goes back to camera only after every consumer released it.
+ *     When every buffer is held by consumers, camera skips frames (starved) until one is released. <br>
+ *     Plane views of NV21 buffers are made once per buffer and live as long as the buffer. <br>
+ *     A few scratch buffers of the same size are kept for transformed copies of frames, see {@link #obtainScratch(int)}.
+ */
+public class PreviewBufferRing implements FrameDispatcher.BufferOwner {
+
+    public static final int DEFAULT_DEPTH = 3;
+    /** Max number of scratch buffers which are kept for reuse */
+    public static final int MAX_SCRATCH_COUNT = 2;
+
+    private final Logger LOG = Logger.getInstance();
+
+    private int mDepth;
+    private int mReservedCount;
+    private int mBufferSize;
+    private int mWidth;
+    private int mHeight;
+    private int mFormat;
+
+    private Camera mCamera;
+    private boolean mRunning;
+
+    /** Buffers which are neither queued to camera nor held by consumers */
+    private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<>();
+    /** Buffers queued to camera, camera fills them in order */
+    private final ArrayDeque<byte[]> mQueuedBuffers = new ArrayDeque<>();
+    /** Buffers held by consumers, and their hold count */
+    private final IdentityHashMap<byte[], Integer> mHeldBuffers = new IdentityHashMap<>();
+    private int mAllocatedCount;
+    /** Plane views of NV21 buffers, see {@link #getNV21Planes(byte[])} */
+    private final IdentityHashMap<byte[], ByteBuffer[]> mPlanes = new IdentityHashMap<>();
+    /** Scratch buffers of buffer size which aren't used now */
+    private final ArrayDeque<byte[]> mScratchBuffers = new ArrayDeque<>();
+
+    private long mFrameCount;
+    private long mStarvedCount;
+    private long mDroppedCount;
+
+    public PreviewBufferRing() {
+        this(DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param depth number of buffers. More buffers let consumers hold frames longer, but each takes a whole frame
+     */
+    public PreviewBufferRing(int depth) {
+        if (depth <= 0)
+            throw new IllegalArgumentException("Depth should be positive!");
+
+        mDepth = depth;
+    }
+
+    /**
+     * Byte count of a preview frame
+     */
+    public static int getBufferSize(int width, int height, int format) {
+        if (format == ImageFormat.NV21)
+            return YuvTransformer.getNV21Size(width, height);
+        // YV12 rows are aligned to 16, bits per pixel isn't enough
+        if (format == ImageFormat.YV12)
+            return YuvTransformer.getYV12Size(width, height);
+
+        final int bitsPerPixel = ImageFormat.getBitsPerPixel(format);
+        return width * height * (bitsPerPixel > 0 ? bitsPerPixel : 12) / 8;
+    }
+
+    /**
+     * Change number of buffers. It is applied from next {@link #start(Camera, int, int, int)}
+     */
+    public synchronized void setDepth(int depth) {
+        if (depth <= 0) return;
+        mDepth = depth;
+    }
+
+    public synchronized int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Reserve buffers for a consumer which holds frames for a long time (e.g. {@link ZslRing}), on top of depth.
+     * It is applied from next {@link #start(Camera, int, int, int)}, a smaller count also drops buffers as they are released
+     */
+    public synchronized void setReservedCount(int count) {
+        mReservedCount = Math.max(0, count);
+    }
+
+    public synchronized int getReservedCount() {
+        return mReservedCount;
+    }
+
+    /**
+     * Queue free buffers to camera. Call it before {@link Camera#setPreviewCallbackWithBuffer(Camera.PreviewCallback)} <br>
+     *     Buffers are allocated for preview size and format. Buffers of previous size are dropped.
+     */
+    public synchronized void start(Camera camera, int width, int height, int format) {
+        final int bufferSize = getBufferSize(width, height, format);
+        if (bufferSize != mBufferSize) {
+            LOG.d("Preview buffer size : {} -> {}", mBufferSize, bufferSize);
+            mFreeBuffers.clear();
+            mQueuedBuffers.clear();
+            mScratchBuffers.clear();
+            mPlanes.keySet().retainAll(mHeldBuffers.keySet());
+            mAllocatedCount = mHeldBuffers.size();
+            mBufferSize = bufferSize;
+        }
+        if (width != mWidth || height != mHeight || format != mFormat) {
+            // Same size may have other layout, views of held buffers are of previous layout
+            mPlanes.clear();
+            mWidth = width;
+            mHeight = height;
+            mFormat = format;
+        }
+
+        // Buffers still held by consumers are counted, they come back later
+        final int total = mDepth + mReservedCount;
+        while (mAllocatedCount < total) {
+            mFreeBuffers.addLast(new byte[bufferSize]);
+            mAllocatedCount++;
+        }
+        while (mAllocatedCount > total && !mFreeBuffers.isEmpty()) {
+            mPlanes.remove(mFreeBuffers.removeLast());
+            mAllocatedCount--;
+        }
+
+        mCamera = camera;
+        mRunning = true;
+        while (!mFreeBuffers.isEmpty())
+            queue(mFreeBuffers.pollFirst());
+    }
+
+    /**
+     * Camera forgot queued buffers (preview callback was cleared or camera was released)
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        mCamera = null;
+
+        // Camera cleared its queue, buffers are reused by next start
+        while (!mQueuedBuffers.isEmpty())
+            mFreeBuffers.addLast(mQueuedBuffers.pollFirst());
+    }
+
+    /**
+     * Drop every buffer which isn't held
+     */
+    public synchronized void clear() {
+        stop();
+        mFreeBuffers.clear();
+        mScratchBuffers.clear();
+        mPlanes.keySet().retainAll(mHeldBuffers.keySet());
+        mAllocatedCount = mHeldBuffers.size();
+        mBufferSize = 0;
+    }
+
+    /**
+     * Called with a frame from {@link Camera.PreviewCallback#onPreviewFrame(byte[], Camera)} <br>
+     *     Frame is held once, call {@link #release(byte[])} or {@link #recycle(byte[])} when callback is done with it.
+     * @return false if frame isn't a buffer of this ring (e.g. delivered after camera changed)
+     */
+    public synchronized boolean onFrame(byte[] data) {
+        if (data == null || data.length != mBufferSize) return false;
+
+        mFrameCount++;
+        removeQueued(data);
+        if (mQueuedBuffers.isEmpty() && mRunning) {
+            // Camera has nothing to write next frame into
+            mStarvedCount++;
+        }
+
+        mHeldBuffers.put(data, 1);
+        return true;
+    }
+
+    /**
+     * Hold frame one more time (e.g. before handing it to another thread)
+     */
+    @Override
+    public synchronized void acquire(byte[] data) {
+        Integer count = mHeldBuffers.get(data);
+        if (count != null)
+            mHeldBuffers.put(data, count + 1);
+    }
+
+    /**
+     * Release a hold of frame. Buffer goes back to camera when every hold was released
+     */
+    @Override
+    public synchronized void release(byte[] data) {
+        Integer count = mHeldBuffers.get(data);
+        if (count == null) return;
+
+        if (count > 1) {
+            mHeldBuffers.put(data, count - 1);
+            return;
+        }
+
+        mHeldBuffers.remove(data);
+        if (data.length != mBufferSize || mAllocatedCount > mDepth + mReservedCount) {
+            // Size or depth changed while it was held
+            mPlanes.remove(data);
+            mAllocatedCount--;
+            return;
+        }
+
+        if (mRunning)
+            queue(data);
+        else
+            mFreeBuffers.addLast(data);
+    }
+
+    /**
+     * Release a frame which no consumer used. It is counted as dropped
+     */
+    public void recycle(byte[] data) {
+        synchronized (this) {
+            mDroppedCount++;
+        }
+        release(data);
+    }
+
+    /**
+     * Y, U and V views of a held NV21 buffer, they are made at the first call and reused for the buffer. <br>
+     *     Views are shared, read them with absolute get or through {@link YuvFrame#getPlane(int)}
+     * @return views, or null if data isn't a held NV21 buffer of this ring
+     */
+    @Override
+    public synchronized ByteBuffer[] getNV21Planes(byte[] data) {
+        if (mFormat != ImageFormat.NV21 || data.length != mBufferSize || !mHeldBuffers.containsKey(data)) return null;
+
+        ByteBuffer[] planes = mPlanes.get(data);
+        if (planes == null) {
+            planes = YuvFrame.wrapNV21(data, mWidth, mHeight);
+            mPlanes.put(data, planes);
+        }
+        return planes;
+    }
+
+    /**
+     * Buffer for a transformed copy of a frame (e.g. cropped and rotated NV21 before encoding). <br>
+     *     It isn't a callback buffer, camera never writes into it. Give it back by {@link #recycleScratch(byte[])}.
+     * @param size byte count which is needed
+     * @return buffer of at least size bytes, its content is undefined
+     */
+    public synchronized byte[] obtainScratch(int size) {
+        // Transformed frame is never bigger than the frame, a buffer of frame size fits it
+        if (size > mBufferSize)
+            return new byte[size];
+
+        final byte[] buffer = mScratchBuffers.pollFirst();
+        return buffer != null ? buffer : new byte[mBufferSize];
+    }
+
+    /**
+     * Give back a buffer of {@link #obtainScratch(int)}. Buffer of previous size is dropped
+     */
+    public synchronized void recycleScratch(byte[] buffer) {
+        if (buffer == null || buffer.length != mBufferSize || mScratchBuffers.size() >= MAX_SCRATCH_COUNT) return;
+
+        mScratchBuffers.addLast(buffer);
+    }
+
+    private void removeQueued(byte[] data) {
+        // Usually it is the first one, camera fills buffers in order
+        Iterator<byte[]> iterator = mQueuedBuffers.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == data) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    private void queue(byte[] buffer) {
+        try {
+            mCamera.addCallbackBuffer(buffer);
+            mQueuedBuffers.addLast(buffer);
+        } catch (RuntimeException e) {
+            // Camera was released
+            e.printStackTrace();
+            mFreeBuffers.addLast(buffer);
+        }
+    }
+
+    public synchronized int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /** Number of buffers held by consumers now */
+    public synchronized int getHeldCount() {
+        return mHeldBuffers.size();
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** Number of frames after which camera had no buffer left, it skips frames until a buffer is released */
+    public synchronized long getStarvedCount() {
+        return mStarvedCount;
+    }
+
+    /** Number of frames which were recycled without any consumer */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PreviewBufferRing(depth " + mDepth + ", reserved " + mReservedCount + ", " + mBufferSize + " bytes"
+                + ", queued " + mQueuedBuffers.size() + ", held " + mHeldBuffers.size() + ", frames " + mFrameCount + ", starved " + mStarvedCount
+                + ", dropped " + mDroppedCount + ")";
+    }
+}
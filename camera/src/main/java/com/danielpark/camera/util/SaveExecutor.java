@@ -0,0 +1,281 @@
+package com.danielpark.camera.util;
+
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor which saves taken pictures off the camera thread <br>
+ *     When queue is full, {@link Policy} decides what happens to a new task.
+ */
+public class SaveExecutor {
+
+    /**
+     * What to do when queue is full
+     */
+    public enum Policy {
+        /**
+         * Caller waits until queue has a room. <br>
+         *     Main thread never waits (it would be ANR while a picture is written), a task submitted on it is rejected like {@link #REJECT}
+         */
+        BLOCK,
+        /** Oldest waiting task is discarded */
+        DROP_OLDEST,
+        /** New task is discarded */
+        REJECT
+    }
+
+    /**
+     * Task which wants to know that it was discarded by {@link Policy#DROP_OLDEST}
+     */
+    public interface Task extends Runnable {
+
+        void onDropped();
+    }
+
+    public static final int DEFAULT_WORKER_COUNT = 1;
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+    /** Camera callbacks come on main thread, so default never makes them wait */
+    public static final Policy DEFAULT_POLICY = Policy.REJECT;
+
+    /** Burst frames are encoded on their own workers, one worker can't keep up with 10+ fps */
+    public static final int DEFAULT_BURST_WORKER_COUNT = 2;
+    public static final int DEFAULT_BURST_QUEUE_CAPACITY = 2;
+    /** A late burst frame is worth less than a new one, and camera thread never waits */
+    public static final Policy DEFAULT_BURST_POLICY = Policy.DROP_OLDEST;
+
+    private final Logger LOG = Logger.getInstance();
+
+    private final ThreadPoolExecutor mExecutor;
+    private final BlockingQueue<Runnable> mQueue;
+    private final Policy mPolicy;
+
+    private final AtomicLong mSubmittedCount = new AtomicLong();
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    private final AtomicLong mLastWaitTime = new AtomicLong();
+    private final AtomicLong mMaxWaitTime = new AtomicLong();
+    private final AtomicLong mTotalWaitTime = new AtomicLong();
+
+    public SaveExecutor() {
+        this(DEFAULT_WORKER_COUNT, DEFAULT_QUEUE_CAPACITY, DEFAULT_POLICY);
+    }
+
+    /**
+     * @param workerCount number of threads which save pictures at the same time
+     * @param queueCapacity max number of pictures which wait for a worker
+     * @param policy what to do when queue is full (null : {@link #DEFAULT_POLICY})
+     */
+    public SaveExecutor(int workerCount, int queueCapacity, Policy policy) {
+        if (workerCount <= 0 || queueCapacity <= 0)
+            throw new IllegalArgumentException("Worker count and queue capacity should be positive!");
+
+        mPolicy = policy != null ? policy : DEFAULT_POLICY;
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mExecutor = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS, mQueue,
+                new SaveThreadFactory(), new SavePolicyHandler());
+    }
+
+    /**
+     * Queue a task
+     * @return false if task was rejected (by {@link Policy#REJECT} or shutdown)
+     */
+    public boolean submit(Runnable task) {
+        if (task == null) return false;
+
+        try {
+            mExecutor.execute(new SaveTask(task));
+            mSubmittedCount.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException e) {
+            mRejectedCount.incrementAndGet();
+            LOG.d("Save task was rejected : {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Stop accepting new tasks. Queued tasks are still saved
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return mExecutor.isShutdown();
+    }
+
+    /**
+     * Wait until every queued task was saved after {@link #shutdown()}
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /** Number of threads which save pictures at the same time */
+    public int getWorkerCount() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /** Max number of tasks which wait for a worker */
+    public int getQueueCapacity() {
+        return mQueue.size() + mQueue.remainingCapacity();
+    }
+
+    /** Number of tasks waiting for a worker */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /** Number of tasks being saved now */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmittedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    /** Number of tasks discarded by {@link Policy#DROP_OLDEST} */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /** Queue wait time (ms) of the last started task */
+    public long getLastWaitTime() {
+        return mLastWaitTime.get();
+    }
+
+    /** Max queue wait time (ms) */
+    public long getMaxWaitTime() {
+        return mMaxWaitTime.get();
+    }
+
+    /** Average queue wait time (ms) of started tasks */
+    public long getAverageWaitTime() {
+        final long started = mCompletedCount.get() + mExecutor.getActiveCount();
+        return started > 0 ? mTotalWaitTime.get() / started : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SaveExecutor(" + mPolicy + ", queue " + getQueueDepth() + ", active " + getActiveCount()
+                + ", submitted " + getSubmittedCount() + ", completed " + getCompletedCount()
+                + ", dropped " + getDroppedCount() + ", rejected " + getRejectedCount()
+                + ", wait avg " + getAverageWaitTime() + "ms max " + getMaxWaitTime() + "ms)";
+    }
+
+    /**
+     * Records how long it waited in queue
+     */
+    private class SaveTask implements Runnable {
+
+        private final Runnable mTask;
+        private final long mQueuedTime = SystemClock.elapsedRealtime();
+
+        SaveTask(Runnable task) {
+            mTask = task;
+        }
+
+        void onDropped() {
+            if (mTask instanceof Task)
+                ((Task) mTask).onDropped();
+        }
+
+        @Override
+        public void run() {
+            final long waitTime = SystemClock.elapsedRealtime() - mQueuedTime;
+            mLastWaitTime.set(waitTime);
+            mTotalWaitTime.addAndGet(waitTime);
+
+            long max = mMaxWaitTime.get();
+            while (waitTime > max && !mMaxWaitTime.compareAndSet(max, waitTime))
+                max = mMaxWaitTime.get();
+
+            try {
+                mTask.run();
+            } catch (RuntimeException e) {
+                // Keep worker alive, a broken picture shouldn't stop next pictures
+                e.printStackTrace();
+            } finally {
+                mCompletedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private class SavePolicyHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("SaveExecutor was shut down");
+
+            switch (mPolicy) {
+                case BLOCK:
+                    if (Looper.myLooper() == Looper.getMainLooper())
+                        throw new RejectedExecutionException("Queue is full, main thread doesn't wait");
+
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for queue");
+                    }
+                    break;
+                case DROP_OLDEST:
+                    Runnable dropped = executor.getQueue().poll();
+                    if (dropped != null) {
+                        mDroppedCount.incrementAndGet();
+                        LOG.d("Queue is full, the oldest save task was dropped");
+
+                        if (dropped instanceof SaveTask)
+                            ((SaveTask) dropped).onDropped();
+                    }
+                    executor.execute(r);
+                    break;
+                default:
+                    throw new RejectedExecutionException("Queue is full");
+            }
+        }
+    }
+
+    private static class SaveThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "CameraSave-" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.danielpark.camera.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sharpness of a frame as variance of Laplacian on its downscaled Y plane <br>
+ *     1. Y plane is box averaged by an integer factor, only luma is read. <br>
+ *     2. 4-neighbour Laplacian is taken on every inner pixel, blurry frames have flat edges and low variance. <br>
+ *     3. Buffers are reused, nothing is allocated per frame. It isn't thread safe, use one scorer per thread.
+ */
+public class SharpnessScorer {
+
+    private byte[] mRow = new byte[0];
+    private int[] mScaled = new int[0];
+
+    /**
+     * Factor which downscales frame to about given width
+     */
+    public static int getFactor(int width, int scoreWidth) {
+        if (scoreWidth <= 0) return 1;
+        return Math.max(1, width / scoreWidth);
+    }
+
+    /**
+     * @param factor downscale factor of Y plane, see {@link #getFactor(int, int)}
+     * @return variance of Laplacian, higher is sharper. 0 if downscaled frame is smaller than 3 x 3
+     */
+    public double score(YuvFrame frame, int factor) {
+        if (factor <= 0)
+            throw new IllegalArgumentException("Factor should be positive!");
+
+        final int width = frame.getWidth() / factor;
+        final int height = frame.getHeight() / factor;
+        if (width < 3 || height < 3) return 0;
+
+        downscale(frame, factor, width, height);
+
+        long sum = 0;
+        long sumOfSquares = 0;
+        for (int y = 1; y < height - 1; y++) {
+            int index = y * width + 1;
+            for (int x = 1; x < width - 1; x++, index++) {
+                final int laplacian = 4 * mScaled[index]
+                        - mScaled[index - 1] - mScaled[index + 1] - mScaled[index - width] - mScaled[index + width];
+                sum += laplacian;
+                sumOfSquares += laplacian * laplacian;
+            }
+        }
+
+        final long count = (long) (width - 2) * (height - 2);
+        final double mean = (double) sum / count;
+        return (double) sumOfSquares / count - mean * mean;
+    }
+
+    private void downscale(YuvFrame frame, int factor, int width, int height) {
+        if (mScaled.length < width * height)
+            mScaled = new int[width * height];
+
+        final ByteBuffer y = frame.getPlane(YuvFrame.PLANE_Y);
+        final int rowStride = frame.getRowStride(YuvFrame.PLANE_Y);
+        final int pixelStride = frame.getPixelStride(YuvFrame.PLANE_Y);
+        final int rowLength = (width * factor - 1) * pixelStride + 1;
+        if (mRow.length < rowLength)
+            mRow = new byte[rowLength];
+
+        final int area = factor * factor;
+        for (int row = 0; row < height; row++) {
+            final int start = row * width;
+            for (int x = 0; x < width; x++)
+                mScaled[start + x] = 0;
+
+            for (int k = 0; k < factor; k++) {
+                y.position((row * factor + k) * rowStride);
+                y.get(mRow, 0, rowLength);
+                for (int x = 0, index = 0; x < width; x++) {
+                    int sum = 0;
+                    for (int i = 0; i < factor; i++, index += pixelStride)
+                        sum += mRow[index] & 0xFF;
+                    mScaled[start + x] += sum;
+                }
+            }
+
+            for (int x = 0; x < width; x++)
+                mScaled[start + x] /= area;
+        }
+    }
+}
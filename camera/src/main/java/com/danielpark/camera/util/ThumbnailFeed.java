@@ -0,0 +1,276 @@
+package com.danielpark.camera.util;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.danielpark.camera.listeners.OnThumbnailListener;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live thumbnail of preview, driven by preview frames instead of a timer <br>
+ *     1. A new preview frame ({@link AutoFitTextureView#onPreviewFrameUpdated()}) requests a thumbnail,
+ *        requests are limited by max fps and coalesced while one is being made or shown. <br>
+ *     2. A cheap luma signature (sparse grid of Y plane) is compared first, unchanged frames are skipped. <br>
+ *     3. Thumbnail is drawn into one of two reusable bitmaps, the other one is the one shown now.
+ */
+public class ThumbnailFeed {
+
+    public static final float DEFAULT_MAX_FPS = 15f;
+    /** Mean absolute difference of signature (0 ~ 255) which is treated as a change */
+    public static final int DEFAULT_CHANGE_THRESHOLD = 2;
+
+    private static final int SIGNATURE_GRID = 16;
+    private static final int FPS_WINDOW = 16;
+
+    private final float mRatio;
+    private final Bitmap.Config mConfig;
+    private final long mIntervalNs;
+    private final OnThumbnailListener mListener;
+    private volatile int mChangeThreshold = DEFAULT_CHANGE_THRESHOLD;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile AutoFitTextureView mView;
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    /** Only main thread touches it */
+    private long mLastRequestTime;
+    /** A thumbnail is being made, or delivered but not shown yet */
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+
+    // Only feed thread touches these
+    private final YuvThumbnailer mThumbnailer = new YuvThumbnailer();
+    private final int[] mSignature = new int[SIGNATURE_GRID * SIGNATURE_GRID];
+    private final int[] mLastSignature = new int[SIGNATURE_GRID * SIGNATURE_GRID];
+    private boolean mHasSignature;
+    private final Bitmap[] mBitmaps = new Bitmap[2];
+    private int mBackIndex;
+
+    private final long[] mDeliveredTimes = new long[FPS_WINDOW];
+    private int mDeliveredIndex;
+
+    private final AtomicLong mRequestedCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private final AtomicLong mUnchangedCount = new AtomicLong();
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+
+    /**
+     * @param ratio thumbnail size compared to view size (0 ~ 1)
+     * @param config {@link Bitmap.Config#RGB_565} or {@link Bitmap.Config#ARGB_8888}
+     * @param maxFps max thumbnails per second (0 : every changed frame)
+     * @param listener gets thumbnails on main thread
+     */
+    public ThumbnailFeed(float ratio, Bitmap.Config config, float maxFps, OnThumbnailListener listener) {
+        if (listener == null)
+            throw new IllegalArgumentException("Listener should not be null!");
+
+        mRatio = ratio > 0f && ratio <= 1.0f ? ratio : 0.3f;
+        mConfig = config == Bitmap.Config.RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        mIntervalNs = maxFps > 0f ? (long) (1000000000L / maxFps) : 0;
+        mListener = listener;
+    }
+
+    /**
+     * Set how much signature should change to make a new thumbnail (default : {@link #DEFAULT_CHANGE_THRESHOLD})
+     * @param threshold 0 : every frame which differs at all
+     */
+    public void setChangeThreshold(int threshold) {
+        mChangeThreshold = Math.max(0, threshold);
+    }
+
+    synchronized void start(AutoFitTextureView view) {
+        if (mView != null)
+            throw new IllegalStateException("ThumbnailFeed is attached to another view already!");
+
+        mView = view;
+        mBusy.set(false);
+        mThread = new HandlerThread("CameraThumbnail", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    synchronized void stop() {
+        mView = null;
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    /**
+     * Called on main thread for every preview frame
+     */
+    void onFrameAvailable() {
+        final Handler handler = mHandler;
+        if (handler == null) return;
+
+        final long now = System.nanoTime();
+        if (mIntervalNs > 0 && now - mLastRequestTime < mIntervalNs) return;
+
+        if (!mBusy.compareAndSet(false, true)) {
+            // Previous thumbnail is still being made or not shown yet, this frame is coalesced into it
+            mCoalescedCount.incrementAndGet();
+            return;
+        }
+        mLastRequestTime = now;
+        mRequestedCount.incrementAndGet();
+
+        if (!handler.post(mRenderTask))
+            mBusy.set(false);
+    }
+
+    private final Runnable mRenderTask = new Runnable() {
+        @Override
+        public void run() {
+            boolean delivered = false;
+            try {
+                delivered = render();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                if (!delivered)
+                    mBusy.set(false);
+            }
+        }
+    };
+
+    /**
+     * @return true if a thumbnail was posted to main thread
+     */
+    private boolean render() {
+        final AutoFitTextureView view = mView;
+        if (view == null) return false;
+
+        final YuvFrame frame = view.acquireLatestFrame();
+        if (frame == null) return false;
+
+        try {
+            if (!isChanged(frame)) {
+                mUnchangedCount.incrementAndGet();
+                return false;
+            }
+
+            final int rotation = frame.getRotation();
+            final boolean swapped = rotation == 90 || rotation == 270;
+            final int requestedWidth = (int) (view.getWidth() * mRatio);
+            final int requestedHeight = (int) (view.getHeight() * mRatio);
+            final int factor = YuvThumbnailer.getFactor(frame.getWidth(), frame.getHeight(),
+                    swapped ? requestedHeight : requestedWidth, swapped ? requestedWidth : requestedHeight);
+
+            final int[] pixels = mThumbnailer.convert(frame, factor, rotation);
+            final int width = mThumbnailer.getOutputWidth();
+            final int height = mThumbnailer.getOutputHeight();
+
+            Bitmap bitmap = mBitmaps[mBackIndex];
+            if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                bitmap = Bitmap.createBitmap(width, height, mConfig);
+                mBitmaps[mBackIndex] = bitmap;
+            }
+            bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+            mBackIndex ^= 1;
+
+            deliver(bitmap);
+            return true;
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Compare sparse luma grid with previous thumbnail
+     */
+    private boolean isChanged(YuvFrame frame) {
+        final ByteBuffer y = frame.getPlane(YuvFrame.PLANE_Y);
+        final int rowStride = frame.getRowStride(YuvFrame.PLANE_Y);
+        final int pixelStride = frame.getPixelStride(YuvFrame.PLANE_Y);
+        final int stepX = frame.getWidth() / SIGNATURE_GRID;
+        final int stepY = frame.getHeight() / SIGNATURE_GRID;
+
+        for (int row = 0, index = 0; row < SIGNATURE_GRID; row++) {
+            final int offset = (row * stepY + stepY / 2) * rowStride;
+            for (int column = 0; column < SIGNATURE_GRID; column++)
+                mSignature[index++] = y.get(offset + (column * stepX + stepX / 2) * pixelStride) & 0xFF;
+        }
+
+        int difference = 0;
+        for (int i = 0; i < mSignature.length; i++)
+            difference += Math.abs(mSignature[i] - mLastSignature[i]);
+
+        final boolean changed = !mHasSignature || difference > mChangeThreshold * mSignature.length;
+        if (changed) {
+            System.arraycopy(mSignature, 0, mLastSignature, 0, mSignature.length);
+            mHasSignature = true;
+        }
+        return changed;
+    }
+
+    private void deliver(final Bitmap bitmap) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mView != null)
+                        mListener.onThumbnail(bitmap);
+                } finally {
+                    // Shown now, so the other bitmap is free to be drawn
+                    onDelivered();
+                }
+            }
+        });
+    }
+
+    private synchronized void onDelivered() {
+        mDeliveredTimes[mDeliveredIndex % FPS_WINDOW] = SystemClock.elapsedRealtime();
+        mDeliveredIndex++;
+        mDeliveredCount.incrementAndGet();
+        mBusy.set(false);
+    }
+
+    /**
+     * Thumbnails per second, over the last {@value #FPS_WINDOW} thumbnails
+     */
+    public synchronized float getEffectiveFps() {
+        final int count = Math.min(mDeliveredIndex, FPS_WINDOW);
+        if (count < 2) return 0f;
+
+        final long newest = mDeliveredTimes[(mDeliveredIndex - 1) % FPS_WINDOW];
+        final long oldest = mDeliveredTimes[(mDeliveredIndex - count) % FPS_WINDOW];
+        // A feed which stopped delivering isn't shown with its old rate
+        final long elapsed = Math.max(newest, SystemClock.elapsedRealtime()) - oldest;
+        return elapsed > 0 ? (count - 1) * 1000f / elapsed : 0f;
+    }
+
+    /** Number of frames which requested a thumbnail */
+    public long getRequestedCount() {
+        return mRequestedCount.get();
+    }
+
+    /** Number of frames merged into a thumbnail which was being made */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /** Number of frames whose signature didn't change */
+    public long getUnchangedCount() {
+        return mUnchangedCount.get();
+    }
+
+    public long getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ThumbnailFeed(" + mConfig + ", requested " + getRequestedCount() + ", coalesced " + getCoalescedCount()
+                + ", unchanged " + getUnchangedCount() + ", delivered " + getDeliveredCount()
+                + ", " + getEffectiveFps() + "fps)";
+    }
+}
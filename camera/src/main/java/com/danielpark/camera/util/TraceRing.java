@@ -0,0 +1,229 @@
+package com.danielpark.camera.util;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size ring of trace events, dumped as Chrome / Perfetto trace JSON (chrome://tracing, ui.perfetto.dev) <br>
+ *     1. Each event is a few primitives in parallel arrays (phase, time, duration, value, thread id)
+ *        and a reference to a constant name. Nothing is allocated per event, old events are overwritten. <br>
+ *     2. Writers claim a slot with one atomic increment, no lock. Slot sequence is cleared first and
+ *        published last (seqlock), {@link #writeJson(Writer)} reads it before and after the fields
+ *        and skips a slot which is being written. <br>
+ *     3. Disabled ring costs one volatile read per call. Turn it on with {@link CameraLogger#enableTrace()}.
+ */
+public class TraceRing {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final char PHASE_BEGIN = 'B';
+    private static final char PHASE_END = 'E';
+    private static final char PHASE_COMPLETE = 'X';
+    private static final char PHASE_INSTANT = 'i';
+    private static final char PHASE_COUNTER = 'C';
+
+    private static TraceRing sThis;
+
+    private final int mCapacity;
+    private final AtomicLong mNext = new AtomicLong();
+
+    private final String[] mNames;
+    private final char[] mPhases;
+    private final long[] mTimes;
+    private final long[] mDurations;
+    private final long[] mValues;
+    private final int[] mThreadIds;
+    /** Event number + 1 of each slot when it was written completely (0 : empty or being written) */
+    private final AtomicLongArray mSequences;
+
+    public static synchronized TraceRing getInstance() {
+        if (sThis == null)
+            sThis = new TraceRing(DEFAULT_CAPACITY);
+        return sThis;
+    }
+
+    /**
+     * @param capacity number of the newest events which are kept
+     */
+    public TraceRing(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity should be positive!");
+
+        mCapacity = capacity;
+        mNames = new String[capacity];
+        mPhases = new char[capacity];
+        mTimes = new long[capacity];
+        mDurations = new long[capacity];
+        mValues = new long[capacity];
+        mThreadIds = new int[capacity];
+        mSequences = new AtomicLongArray(capacity);
+    }
+
+    public static boolean isEnabled() {
+        return CameraLogger.getTraceState();
+    }
+
+    /**
+     * Start of a slice on this thread, close it with {@link #end(String)} on the same thread
+     * @param name constant string (it is kept as it is, don't build it for each call)
+     */
+    public void begin(String name) {
+        if (isEnabled())
+            write(name, PHASE_BEGIN, System.nanoTime(), 0, 0);
+    }
+
+    public void end(String name) {
+        if (isEnabled())
+            write(name, PHASE_END, System.nanoTime(), 0, 0);
+    }
+
+    /**
+     * Slice which is finished already
+     * @param startNs {@link System#nanoTime()} at the start
+     * @param durationNs
+     */
+    public void complete(String name, long startNs, long durationNs) {
+        if (isEnabled())
+            write(name, PHASE_COMPLETE, startNs, durationNs, 0);
+    }
+
+    /**
+     * A moment with a value (e.g. index of a frame)
+     */
+    public void instant(String name, long value) {
+        if (isEnabled())
+            write(name, PHASE_INSTANT, System.nanoTime(), 0, value);
+    }
+
+    /**
+     * Value which changes over time (e.g. number of held buffers)
+     */
+    public void counter(String name, long value) {
+        if (isEnabled())
+            write(name, PHASE_COUNTER, System.nanoTime(), 0, value);
+    }
+
+    private void write(String name, char phase, long time, long duration, long value) {
+        final long event = mNext.getAndIncrement();
+        final int slot = (int) (event % mCapacity);
+
+        // Volatile store, fields below can't be seen before the slot is cleared
+        mSequences.set(slot, 0);
+        mNames[slot] = name;
+        mPhases[slot] = phase;
+        mTimes[slot] = time;
+        mDurations[slot] = duration;
+        mValues[slot] = value;
+        mThreadIds[slot] = Process.myTid();
+        // Ordered store, fields above are visible before the slot is published
+        mSequences.lazySet(slot, event + 1);
+    }
+
+    /**
+     * Forget every event
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mCapacity; i++)
+            mSequences.set(i, 0);
+    }
+
+    /**
+     * Write kept events from the oldest as Chrome trace JSON object. Recording goes on while it writes,
+     * events which are overwritten meanwhile may be missed
+     */
+    public synchronized void writeJson(Writer writer) throws IOException {
+        final long next = mNext.get();
+        final long first = Math.max(0, next - mCapacity);
+        final int pid = Process.myPid();
+
+        writer.write("{\"traceEvents\":[");
+        boolean written = false;
+        for (long event = first; event < next; event++) {
+            final int slot = (int) (event % mCapacity);
+            if (mSequences.get(slot) != event + 1) continue;
+
+            final String name = mNames[slot];
+            final char phase = mPhases[slot];
+            final long time = mTimes[slot];
+            final long duration = mDurations[slot];
+            final long value = mValues[slot];
+            final int tid = mThreadIds[slot];
+            // Slot was overwritten while it was read, skip it
+            if (mSequences.get(slot) != event + 1) continue;
+
+            if (written)
+                writer.write(',');
+            written = true;
+
+            writer.write("\n{\"name\":\"");
+            writeEscaped(writer, name);
+            writer.write("\",\"ph\":\"");
+            writer.write(phase);
+            writer.write("\",\"ts\":");
+            writeMicros(writer, time);
+            writer.write(",\"pid\":");
+            writer.write(Integer.toString(pid));
+            writer.write(",\"tid\":");
+            writer.write(Integer.toString(tid));
+
+            if (phase == PHASE_COMPLETE) {
+                writer.write(",\"dur\":");
+                writeMicros(writer, duration);
+            } else if (phase == PHASE_INSTANT) {
+                writer.write(",\"s\":\"t\",\"args\":{\"value\":");
+                writer.write(Long.toString(value));
+                writer.write('}');
+            } else if (phase == PHASE_COUNTER) {
+                writer.write(",\"args\":{\"value\":");
+                writer.write(Long.toString(value));
+                writer.write('}');
+            }
+            writer.write('}');
+        }
+        writer.write("\n],\"displayTimeUnit\":\"ms\"}");
+        writer.flush();
+    }
+
+    private static void writeMicros(Writer writer, long ns) throws IOException {
+        writer.write(Long.toString(ns / 1000L));
+        writer.write('.');
+        final long fraction = ns % 1000L;
+        if (fraction < 100) writer.write('0');
+        if (fraction < 10) writer.write('0');
+        writer.write(Long.toString(fraction));
+    }
+
+    private static void writeEscaped(Writer writer, String text) throws IOException {
+        if (text == null) return;
+
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(' ');
+            } else {
+                writer.write(c);
+            }
+        }
+    }
+
+    /** Number of events written since start, including overwritten ones */
+    public long getEventCount() {
+        return mNext.get();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceRing(capacity " + mCapacity + ", events " + getEventCount() + ", " + (isEnabled() ? "on" : "off") + ")";
+    }
+}
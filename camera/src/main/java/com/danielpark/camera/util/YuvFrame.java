@@ -0,0 +1,163 @@
+package com.danielpark.camera.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * YUV 4:2:0 frame described by its planes (Y, U, V) with row and pixel strides,
+ * same as {@link android.media.Image.Plane} <br>
+ *     Planes are read in place, nothing is copied. Frame is held by a count,
+ *     and its buffers are released (e.g. {@link android.media.Image#close()}) when the last hold is released.
+ */
+public class YuvFrame {
+
+    public static final int PLANE_Y = 0;
+    public static final int PLANE_U = 1;
+    public static final int PLANE_V = 2;
+
+    /**
+     * Called once when the last hold was released
+     */
+    public interface Release {
+
+        void release();
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final long mTimestamp;
+
+    private final ByteBuffer[] mPlanes;
+    private final int[] mRowStrides;
+    private final int[] mPixelStrides;
+
+    /** NV21 array which planes read, or null */
+    private byte[] mNV21;
+
+    private final Release mRelease;
+    private final AtomicInteger mHoldCount = new AtomicInteger(1);
+
+    /**
+     * Frame is held once by its creator
+     * @param planes Y, U and V planes
+     * @param rowStrides row stride (bytes) of each plane
+     * @param pixelStrides pixel stride (bytes) of each plane
+     * @param rotation clockwise rotation which makes frame upright on display
+     * @param timestamp {@link System#nanoTime()} when frame arrived
+     */
+    public YuvFrame(int width, int height, ByteBuffer[] planes, int[] rowStrides, int[] pixelStrides,
+                    int rotation, long timestamp, Release release) {
+        if (planes == null || planes.length != 3 || rowStrides.length != 3 || pixelStrides.length != 3)
+            throw new IllegalArgumentException("YUV frame should have 3 planes!");
+
+        mWidth = width;
+        mHeight = height;
+        mPlanes = planes;
+        mRowStrides = rowStrides;
+        mPixelStrides = pixelStrides;
+        mRotation = rotation;
+        mTimestamp = timestamp;
+        mRelease = release;
+    }
+
+    /**
+     * Frame which reads NV21 array in place (V and U planes are interleaved, so U starts one byte after V)
+     */
+    public static YuvFrame fromNV21(byte[] nv21, int width, int height, int rotation, long timestamp, Release release) {
+        return fromNV21(nv21, wrapNV21(nv21, width, height), width, height, rotation, timestamp, release);
+    }
+
+    /**
+     * Same as {@link #fromNV21(byte[], int, int, int, long, Release)} with plane views which were made before
+     * (e.g. {@link PreviewBufferRing#getNV21Planes(byte[])}), no view is allocated for each frame
+     * @param planes views from {@link #wrapNV21(byte[], int, int)} of the same array and size
+     */
+    public static YuvFrame fromNV21(byte[] nv21, ByteBuffer[] planes, int width, int height, int rotation,
+                                    long timestamp, Release release) {
+        final YuvFrame frame = new YuvFrame(width, height, planes, new int[]{width, width, width}, new int[]{1, 2, 2},
+                rotation, timestamp, release);
+        frame.mNV21 = nv21;
+        return frame;
+    }
+
+    /**
+     * Y, U and V plane views of NV21 array. Make them once per buffer and reuse them, {@link #getPlane(int)} never changes them
+     */
+    public static ByteBuffer[] wrapNV21(byte[] nv21, int width, int height) {
+        final int lumaSize = width * height;
+        final int chromaSize = YuvTransformer.getNV21Size(width, height) - lumaSize;
+
+        return new ByteBuffer[]{
+                ByteBuffer.wrap(nv21, 0, lumaSize).slice(),
+                ByteBuffer.wrap(nv21, lumaSize + 1, chromaSize - 1).slice(),
+                ByteBuffer.wrap(nv21, lumaSize, chromaSize - 1).slice()
+        };
+    }
+
+    /**
+     * @return NV21 array of a frame from {@link #fromNV21(byte[], int, int, int, long, Release)}, or null
+     */
+    public byte[] getNV21() {
+        return mNV21;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Plane from its start. Each call returns a new view, so threads don't share position
+     * @param plane {@link #PLANE_Y}, {@link #PLANE_U} or {@link #PLANE_V}
+     */
+    public ByteBuffer getPlane(int plane) {
+        ByteBuffer buffer = mPlanes[plane].duplicate();
+        buffer.clear();
+        return buffer;
+    }
+
+    public int getRowStride(int plane) {
+        return mRowStrides[plane];
+    }
+
+    public int getPixelStride(int plane) {
+        return mPixelStrides[plane];
+    }
+
+    public int getRotation() {
+        return mRotation;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Hold frame one more time (e.g. before handing it to another thread)
+     * @return false if frame was released already
+     */
+    public boolean acquire() {
+        int count;
+        do {
+            count = mHoldCount.get();
+            if (count <= 0) return false;
+        } while (!mHoldCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Release a hold. Buffers are released with the last hold, don't touch planes after it
+     */
+    public void release() {
+        if (mHoldCount.decrementAndGet() == 0 && mRelease != null)
+            mRelease.release();
+    }
+
+    public boolean isReleased() {
+        return mHoldCount.get() <= 0;
+    }
+}
@@ -0,0 +1,251 @@
+package com.danielpark.camera.util;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Size;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * {@link ImageFormat#YUV_420_888} stream of Camera2 for frame analysis, next to preview and JPEG reader <br>
+ *     1. Each {@link Image} is handed as a {@link YuvFrame} which reads its planes in place. <br>
+ *     2. Image is closed when the last hold of its frame is released. At most maxImages are open,
+ *        camera drops frames (counted as starved) while consumers hold all of them. <br>
+ *     3. Reader itself is closed only after every open image was closed, so a consumer never reads a freed plane.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class YuvFrameReader {
+
+    public static final int DEFAULT_WIDTH = 640;
+    public static final int DEFAULT_HEIGHT = 480;
+    public static final int DEFAULT_MAX_IMAGES = 3;
+
+    /**
+     * Called on handler thread. Frame is valid during the call, {@link YuvFrame#acquire()} it to keep it longer
+     */
+    public interface OnFrameListener {
+
+        void onFrame(YuvFrame frame);
+    }
+
+    private final Logger LOG = Logger.getInstance();
+
+    private final ImageReader mImageReader;
+    private final int mMaxImages;
+    private final OnFrameListener mListener;
+
+    private volatile int mRotation;
+
+    private int mOpenCount;
+    private boolean mClosing;
+    private boolean mClosed;
+
+    private long mAcquiredCount;
+    private long mClosedCount;
+    private long mStarvedCount;
+
+    /**
+     * @param maxImages number of images which can be open at the same time
+     * @param handler thread which acquires images and calls listener
+     */
+    public YuvFrameReader(int width, int height, int maxImages, Handler handler, OnFrameListener listener) {
+        if (maxImages <= 0)
+            throw new IllegalArgumentException("Max images should be positive!");
+
+        mMaxImages = maxImages;
+        mListener = listener;
+        mImageReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, maxImages);
+        mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, handler);
+    }
+
+    /**
+     * Pick a size of analysis stream independently from preview <br>
+     *     The smallest size which is equal to or bigger than requested size with aspect ratio of preview,
+     *     or the smallest one bigger than requested size, or the largest one.
+     * @param requestedWidth compared long side to long side
+     * @param requestedHeight compared short side to short side
+     * @param aspectRatio size of preview (null : any aspect ratio)
+     */
+    public static Size chooseSize(Size[] choices, int requestedWidth, int requestedHeight, Size aspectRatio) {
+        if (choices == null || choices.length == 0) return null;
+
+        final int requestedLongSide = Math.max(requestedWidth, requestedHeight);
+        final int requestedShortSide = Math.min(requestedWidth, requestedHeight);
+
+        final List<Size> bigEnough = new ArrayList<>();
+        final List<Size> sameAspect = new ArrayList<>();
+        for (Size option : choices) {
+            final int longSide = Math.max(option.getWidth(), option.getHeight());
+            final int shortSide = Math.min(option.getWidth(), option.getHeight());
+            if (longSide < requestedLongSide || shortSide < requestedShortSide) continue;
+
+            bigEnough.add(option);
+            if (aspectRatio == null
+                    || (long) option.getWidth() * aspectRatio.getHeight() == (long) option.getHeight() * aspectRatio.getWidth())
+                sameAspect.add(option);
+        }
+
+        final Comparator<Size> byArea = new Comparator<Size>() {
+            @Override
+            public int compare(Size lhs, Size rhs) {
+                return Long.signum((long) lhs.getWidth() * lhs.getHeight() - (long) rhs.getWidth() * rhs.getHeight());
+            }
+        };
+        if (!sameAspect.isEmpty())
+            return Collections.min(sameAspect, byArea);
+        if (!bigEnough.isEmpty())
+            return Collections.min(bigEnough, byArea);
+        return Collections.max(Arrays.asList(choices), byArea);
+    }
+
+    public Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    public int getWidth() {
+        return mImageReader.getWidth();
+    }
+
+    public int getHeight() {
+        return mImageReader.getHeight();
+    }
+
+    public int getMaxImages() {
+        return mMaxImages;
+    }
+
+    /**
+     * Set clockwise rotation which makes frames upright on display
+     */
+    public void setRotation(int rotation) {
+        mRotation = rotation;
+    }
+
+    /**
+     * Stop delivering frames. Reader is closed when every open image was closed
+     */
+    public void close() {
+        final boolean closeNow;
+        synchronized (this) {
+            if (mClosing) return;
+            mClosing = true;
+            closeNow = mOpenCount == 0;
+            if (closeNow)
+                mClosed = true;
+        }
+
+        mImageReader.setOnImageAvailableListener(null, null);
+        if (closeNow)
+            mImageReader.close();
+        else
+            LOG.d("YuvFrameReader is closed after open images : {}", this);
+    }
+
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            final Image image;
+            // Acquire under the lock, so close() never closes reader between acquire and count
+            synchronized (YuvFrameReader.this) {
+                if (mClosing) return;
+
+                if (mOpenCount >= mMaxImages) {
+                    // Consumers hold every image, this frame stays in reader and is skipped by next acquireLatestImage()
+                    mStarvedCount++;
+                    return;
+                }
+
+                try {
+                    image = reader.acquireLatestImage();
+                } catch (IllegalStateException e) {
+                    mStarvedCount++;
+                    return;
+                }
+                if (image == null) return;
+
+                mOpenCount++;
+                mAcquiredCount++;
+            }
+
+            final YuvFrame frame = createFrame(image);
+            try {
+                if (mListener != null)
+                    mListener.onFrame(frame);
+            } finally {
+                frame.release();
+            }
+        }
+    };
+
+    private YuvFrame createFrame(final Image image) {
+        final Image.Plane[] planes = image.getPlanes();
+        final ByteBuffer[] buffers = new ByteBuffer[3];
+        final int[] rowStrides = new int[3];
+        final int[] pixelStrides = new int[3];
+        for (int i = 0; i < 3; i++) {
+            buffers[i] = planes[i].getBuffer();
+            rowStrides[i] = planes[i].getRowStride();
+            pixelStrides[i] = planes[i].getPixelStride();
+        }
+
+        return new YuvFrame(image.getWidth(), image.getHeight(), buffers, rowStrides, pixelStrides,
+                mRotation, System.nanoTime(), new YuvFrame.Release() {
+            @Override
+            public void release() {
+                image.close();
+                onImageClosed();
+            }
+        });
+    }
+
+    private void onImageClosed() {
+        final boolean closeNow;
+        synchronized (this) {
+            mOpenCount--;
+            mClosedCount++;
+            closeNow = mClosing && !mClosed && mOpenCount == 0;
+            if (closeNow)
+                mClosed = true;
+        }
+
+        if (closeNow)
+            mImageReader.close();
+    }
+
+    /** Number of images open now (held by consumers) */
+    public synchronized int getOpenCount() {
+        return mOpenCount;
+    }
+
+    public synchronized long getAcquiredCount() {
+        return mAcquiredCount;
+    }
+
+    public synchronized long getClosedCount() {
+        return mClosedCount;
+    }
+
+    /** Number of frames which arrived while consumers held every image */
+    public synchronized long getStarvedCount() {
+        return mStarvedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "YuvFrameReader(" + mImageReader.getWidth() + "x" + mImageReader.getHeight() + ", max " + mMaxImages
+                + ", open " + mOpenCount + ", acquired " + mAcquiredCount + ", closed " + mClosedCount
+                + ", starved " + mStarvedCount + ")";
+    }
+}
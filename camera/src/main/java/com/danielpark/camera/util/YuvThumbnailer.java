@@ -0,0 +1,180 @@
+package com.danielpark.camera.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Downscales {@link YuvFrame} by an integer factor with box filter and converts it to ARGB, rotated upright <br>
+ *     1. Each output pixel is the average of factor x factor source pixels (chroma : its 2x2 subsampled box). <br>
+ *     2. Planes are read row by row with bulk gets, and every buffer is reused, nothing is allocated per call. <br>
+ *     3. Conversion is full range BT.601 (JFIF), which camera YUV_420_888 uses. <br>
+ *     4. It isn't thread safe, and it doesn't depend on Android.
+ */
+public class YuvThumbnailer {
+
+    private byte[] mRow = new byte[0];
+    private byte[] mURow = new byte[0];
+    private byte[] mVRow = new byte[0];
+    private int[] mYSums = new int[0];
+    private int[] mUSums = new int[0];
+    private int[] mVSums = new int[0];
+    private int[] mPixels = new int[0];
+
+    private int mOutputWidth;
+    private int mOutputHeight;
+
+    /**
+     * Largest factor which keeps output equal to or bigger than requested size
+     * @param width frame width
+     * @param height frame height
+     * @param requestedWidth in frame orientation
+     * @param requestedHeight in frame orientation
+     */
+    public static int getFactor(int width, int height, int requestedWidth, int requestedHeight) {
+        if (requestedWidth <= 0 || requestedHeight <= 0) return 1;
+        return Math.max(1, Math.min(width / requestedWidth, height / requestedHeight));
+    }
+
+    /**
+     * Convert frame into ARGB pixels of {@link #getOutputWidth()} x {@link #getOutputHeight()}
+     * @param rotation clockwise 0, 90, 180 or 270
+     * @return pixels, reused by the next call
+     */
+    public int[] convert(YuvFrame frame, int factor, int rotation) {
+        if (factor <= 0)
+            throw new IllegalArgumentException("Factor should be positive!");
+        rotation = CaptureGeometry.normalizeRotation(rotation);
+
+        final int scaledWidth = frame.getWidth() / factor;
+        final int scaledHeight = frame.getHeight() / factor;
+        if (scaledWidth == 0 || scaledHeight == 0)
+            throw new IllegalArgumentException("Factor is bigger than frame!");
+
+        final boolean swapped = rotation == 90 || rotation == 270;
+        mOutputWidth = swapped ? scaledHeight : scaledWidth;
+        mOutputHeight = swapped ? scaledWidth : scaledHeight;
+
+        final int pixelCount = scaledWidth * scaledHeight;
+        if (mPixels.length < pixelCount)
+            mPixels = new int[pixelCount];
+        if (mYSums.length < scaledWidth) {
+            mYSums = new int[scaledWidth];
+            mUSums = new int[scaledWidth];
+            mVSums = new int[scaledWidth];
+        }
+
+        final ByteBuffer y = frame.getPlane(YuvFrame.PLANE_Y);
+        final ByteBuffer u = frame.getPlane(YuvFrame.PLANE_U);
+        final ByteBuffer v = frame.getPlane(YuvFrame.PLANE_V);
+        final int yRowStride = frame.getRowStride(YuvFrame.PLANE_Y);
+        final int yPixelStride = frame.getPixelStride(YuvFrame.PLANE_Y);
+        final int uRowStride = frame.getRowStride(YuvFrame.PLANE_U);
+        final int uPixelStride = frame.getPixelStride(YuvFrame.PLANE_U);
+        final int vRowStride = frame.getRowStride(YuvFrame.PLANE_V);
+        final int vPixelStride = frame.getPixelStride(YuvFrame.PLANE_V);
+
+        // Chroma box is half of luma box, at least one chroma pixel
+        final int chromaFactor = Math.max(1, factor / 2);
+        final int lumaArea = factor * factor;
+        final int chromaArea = chromaFactor * chromaFactor;
+        final int chromaWidth = (frame.getWidth() + 1) / 2;
+        final int chromaHeight = (frame.getHeight() + 1) / 2;
+
+        int lastChromaRow = -1;
+        for (int row = 0; row < scaledHeight; row++) {
+            // Y box sums of this output row
+            Arrays.fill(mYSums, 0, scaledWidth, 0);
+            for (int k = 0; k < factor; k++) {
+                final byte[] line = readRow(y, (row * factor + k) * yRowStride, scaledWidth * factor, yPixelStride, 0);
+                for (int x = 0, index = 0; x < scaledWidth; x++) {
+                    int sum = 0;
+                    for (int i = 0; i < factor; i++, index += yPixelStride)
+                        sum += line[index] & 0xFF;
+                    mYSums[x] += sum;
+                }
+            }
+
+            // U, V box sums of this output row. Small factors share chroma rows with previous output row
+            final int chromaRow = Math.min(row * factor / 2, chromaHeight - chromaFactor);
+            if (chromaRow != lastChromaRow) {
+                lastChromaRow = chromaRow;
+                Arrays.fill(mUSums, 0, scaledWidth, 0);
+                Arrays.fill(mVSums, 0, scaledWidth, 0);
+
+                for (int k = 0; k < chromaFactor; k++) {
+                    final byte[] uLine = readRow(u, (chromaRow + k) * uRowStride, chromaWidth, uPixelStride, 1);
+                    final byte[] vLine = readRow(v, (chromaRow + k) * vRowStride, chromaWidth, vPixelStride, 2);
+                    for (int x = 0; x < scaledWidth; x++) {
+                        final int chromaX = Math.min(x * factor / 2, chromaWidth - chromaFactor);
+                        int uSum = 0;
+                        int vSum = 0;
+                        for (int i = 0; i < chromaFactor; i++) {
+                            uSum += uLine[(chromaX + i) * uPixelStride] & 0xFF;
+                            vSum += vLine[(chromaX + i) * vPixelStride] & 0xFF;
+                        }
+                        mUSums[x] += uSum;
+                        mVSums[x] += vSum;
+                    }
+                }
+            }
+
+            for (int x = 0; x < scaledWidth; x++) {
+                final int argb = toArgb(mYSums[x] / lumaArea, mUSums[x] / chromaArea - 128, mVSums[x] / chromaArea - 128);
+                mPixels[dstIndex(x, row, scaledWidth, scaledHeight, rotation)] = argb;
+            }
+        }
+        return mPixels;
+    }
+
+    public int getOutputWidth() {
+        return mOutputWidth;
+    }
+
+    public int getOutputHeight() {
+        return mOutputHeight;
+    }
+
+    /**
+     * Bulk get a row which holds count pixels of pixelStride
+     * @param slot 0 : Y, 1 : U, 2 : V row buffer
+     */
+    private byte[] readRow(ByteBuffer plane, int offset, int count, int pixelStride, int slot) {
+        final int length = Math.min((count - 1) * pixelStride + 1, plane.capacity() - offset);
+
+        byte[] row = slot == 0 ? mRow : slot == 1 ? mURow : mVRow;
+        if (row.length < (count - 1) * pixelStride + 1) {
+            row = new byte[(count - 1) * pixelStride + 1];
+            if (slot == 0) mRow = row;
+            else if (slot == 1) mURow = row;
+            else mVRow = row;
+        }
+
+        plane.position(offset);
+        plane.get(row, 0, length);
+        return row;
+    }
+
+    private static int toArgb(int y, int u, int v) {
+        // Full range BT.601 in 16.16 fixed point
+        int r = y + ((91881 * v) >> 16);
+        int g = y - ((22554 * u + 46802 * v) >> 16);
+        int b = y + ((116130 * u) >> 16);
+        r = r < 0 ? 0 : r > 255 ? 255 : r;
+        g = g < 0 ? 0 : g > 255 ? 255 : g;
+        b = b < 0 ? 0 : b > 255 ? 255 : b;
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int dstIndex(int x, int y, int width, int height, int rotation) {
+        switch (rotation) {
+            case 90:
+                return x * height + (height - 1 - y);
+            case 180:
+                return (height - 1 - y) * width + (width - 1 - x);
+            case 270:
+                return (width - 1 - x) * height + y;
+            default:
+                return y * width + x;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.danielpark.camera.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Crop, rotate (90 / 180 / 270) and mirror NV21 and YV12 frames in YUV domain <br>
+ *     1. Result is written into a destination array of caller, kernels allocate nothing. <br>
+ *     2. Crop rectangle should be aligned to even pixels, so chroma (2x2 subsampled) is cropped exactly.
+ *        See {@link #alignToChroma(CaptureGeometry)}. <br>
+ *     3. It doesn't depend on Android, so it runs on a plain JVM as well.
+ * <br><br>
+ * YV12 follows layout of {@link android.graphics.ImageFormat#YV12} : Y stride is aligned to 16,
+ * chroma stride is half of it aligned to 16, and V plane comes before U plane.
+ */
+public class YuvTransformer {
+
+    /**
+     * Byte count of NV21 frame
+     */
+    public static int getNV21Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Row stride of Y plane of YV12 frame
+     */
+    public static int getYV12Stride(int width) {
+        return align16(width);
+    }
+
+    /**
+     * Row stride of V and U planes of YV12 frame
+     */
+    public static int getYV12ChromaStride(int width) {
+        return align16(getYV12Stride(width) / 2);
+    }
+
+    /**
+     * Byte count of YV12 frame
+     */
+    public static int getYV12Size(int width, int height) {
+        return getYV12Stride(width) * height + 2 * getYV12ChromaStride(width) * (height / 2);
+    }
+
+    /**
+     * Same geometry whose crop rectangle is aligned to even pixels, so chroma (2x2 subsampled) is cropped exactly
+     */
+    public static CaptureGeometry alignToChroma(CaptureGeometry geometry) {
+        // Rounding down keeps the rectangle inside of source image
+        final int x = geometry.cropX & ~1;
+        final int y = geometry.cropY & ~1;
+        final int width = geometry.cropWidth & ~1;
+        final int height = geometry.cropHeight & ~1;
+
+        if (x == geometry.cropX && y == geometry.cropY && width == geometry.cropWidth && height == geometry.cropHeight)
+            return geometry;
+        if (width == 0 || height == 0)
+            throw new IllegalArgumentException("Crop rectangle is too small!");
+
+        return new CaptureGeometry(geometry.sourceWidth, geometry.sourceHeight, x, y, width, height,
+                geometry.rotation, geometry.mirror);
+    }
+
+    /**
+     * Crop, rotate and mirror NV21 frame into dst
+     * @param geometry geometry aligned by {@link #alignToChroma(CaptureGeometry)}
+     * @param dst NV21 of output size ({@link CaptureGeometry#getOutputWidth()} x {@link CaptureGeometry#getOutputHeight()})
+     */
+    public static void transformNV21(byte[] src, CaptureGeometry geometry, byte[] dst) {
+        transformNV21(src, geometry.sourceWidth, geometry.sourceHeight,
+                geometry.cropX, geometry.cropY, geometry.cropWidth, geometry.cropHeight,
+                geometry.rotation, geometry.mirror, dst);
+    }
+
+    /**
+     * Crop, rotate and mirror NV21 frame into dst
+     * @param rotation clockwise 0, 90, 180 or 270 after crop
+     * @param mirror reverse sides after rotation
+     * @param dst NV21 of output size (crop size, width and height are swapped by 90 / 270)
+     */
+    public static void transformNV21(byte[] src, int width, int height,
+                                     int cropX, int cropY, int cropWidth, int cropHeight,
+                                     int rotation, boolean mirror, byte[] dst) {
+        rotation = CaptureGeometry.normalizeRotation(rotation);
+        checkArguments(width, height, cropX, cropY, cropWidth, cropHeight, rotation);
+
+        final int outputWidth = getOutputWidth(cropWidth, cropHeight, rotation);
+        final int outputHeight = getOutputHeight(cropWidth, cropHeight, rotation);
+        if (src.length < getNV21Size(width, height) || dst.length < getNV21Size(outputWidth, outputHeight))
+            throw new IllegalArgumentException("Buffer is too small!");
+
+        // Y plane
+        transformPlane(src, 0, width, cropX, cropY, cropWidth, cropHeight,
+                rotation, mirror, 1, dst, 0, outputWidth);
+
+        // VU plane : interleaved, 2x2 subsampled
+        transformPlane(src, width * height, width / 2, cropX / 2, cropY / 2, cropWidth / 2, cropHeight / 2,
+                rotation, mirror, 2, dst, outputWidth * outputHeight, outputWidth / 2);
+    }
+
+    /**
+     * Crop, rotate and mirror YV12 frame into dst
+     * @param geometry geometry aligned by {@link #alignToChroma(CaptureGeometry)}
+     * @param dst YV12 of output size ({@link CaptureGeometry#getOutputWidth()} x {@link CaptureGeometry#getOutputHeight()})
+     */
+    public static void transformYV12(byte[] src, CaptureGeometry geometry, byte[] dst) {
+        transformYV12(src, geometry.sourceWidth, geometry.sourceHeight,
+                geometry.cropX, geometry.cropY, geometry.cropWidth, geometry.cropHeight,
+                geometry.rotation, geometry.mirror, dst);
+    }
+
+    /**
+     * Crop, rotate and mirror YV12 frame into dst
+     * @param rotation clockwise 0, 90, 180 or 270 after crop
+     * @param mirror reverse sides after rotation
+     * @param dst YV12 of output size (crop size, width and height are swapped by 90 / 270)
+     */
+    public static void transformYV12(byte[] src, int width, int height,
+                                     int cropX, int cropY, int cropWidth, int cropHeight,
+                                     int rotation, boolean mirror, byte[] dst) {
+        rotation = CaptureGeometry.normalizeRotation(rotation);
+        checkArguments(width, height, cropX, cropY, cropWidth, cropHeight, rotation);
+
+        final int outputWidth = getOutputWidth(cropWidth, cropHeight, rotation);
+        final int outputHeight = getOutputHeight(cropWidth, cropHeight, rotation);
+        if (src.length < getYV12Size(width, height) || dst.length < getYV12Size(outputWidth, outputHeight))
+            throw new IllegalArgumentException("Buffer is too small!");
+
+        final int srcStride = getYV12Stride(width);
+        final int srcChromaStride = getYV12ChromaStride(width);
+        final int srcChromaSize = srcChromaStride * (height / 2);
+        final int dstStride = getYV12Stride(outputWidth);
+        final int dstChromaStride = getYV12ChromaStride(outputWidth);
+        final int dstChromaSize = dstChromaStride * (outputHeight / 2);
+
+        // Y plane
+        transformPlane(src, 0, srcStride, cropX, cropY, cropWidth, cropHeight,
+                rotation, mirror, 1, dst, 0, dstStride);
+
+        // V plane, then U plane
+        final int srcV = srcStride * height;
+        final int dstV = dstStride * outputHeight;
+        for (int plane = 0; plane < 2; plane++) {
+            transformPlane(src, srcV + plane * srcChromaSize, srcChromaStride,
+                    cropX / 2, cropY / 2, cropWidth / 2, cropHeight / 2,
+                    rotation, mirror, 1, dst, dstV + plane * dstChromaSize, dstChromaStride);
+        }
+    }
+
+    /**
+     * Rotate whole NV21 frame clockwise into dst
+     */
+    public static void rotateNV21(byte[] src, int width, int height, int rotation, byte[] dst) {
+        transformNV21(src, width, height, 0, 0, width, height, rotation, false, dst);
+    }
+
+    /**
+     * Reverse sides of whole NV21 frame into dst
+     */
+    public static void mirrorNV21(byte[] src, int width, int height, byte[] dst) {
+        transformNV21(src, width, height, 0, 0, width, height, 0, true, dst);
+    }
+
+    /**
+     * Crop NV21 frame into dst
+     */
+    public static void cropNV21(byte[] src, int width, int height,
+                                int cropX, int cropY, int cropWidth, int cropHeight, byte[] dst) {
+        transformNV21(src, width, height, cropX, cropY, cropWidth, cropHeight, 0, false, dst);
+    }
+
+    /**
+     * Rotate whole YV12 frame clockwise into dst
+     */
+    public static void rotateYV12(byte[] src, int width, int height, int rotation, byte[] dst) {
+        transformYV12(src, width, height, 0, 0, width, height, rotation, false, dst);
+    }
+
+    /**
+     * Reverse sides of whole YV12 frame into dst
+     */
+    public static void mirrorYV12(byte[] src, int width, int height, byte[] dst) {
+        transformYV12(src, width, height, 0, 0, width, height, 0, true, dst);
+    }
+
+    /**
+     * Crop YV12 frame into dst
+     */
+    public static void cropYV12(byte[] src, int width, int height,
+                                int cropX, int cropY, int cropWidth, int cropHeight, byte[] dst) {
+        transformYV12(src, width, height, cropX, cropY, cropWidth, cropHeight, 0, false, dst);
+    }
+
+    /**
+     * Side of a frame subsampled by factor, aligned to even pixels
+     */
+    public static int getSubsampledSize(int size, int factor) {
+        return (size / Math.max(1, factor)) & ~1;
+    }
+
+    /**
+     * Keep every factor-th pixel (nearest neighbor) of NV21 frame into dst. It is cheap, meant for frame analysis
+     * @param lumaOnly write Y plane only
+     * @param dst NV21 (or Y plane) of {@link #getSubsampledSize(int, int)} of width and height
+     */
+    public static void subsampleNV21(byte[] src, int width, int height, int factor, boolean lumaOnly, byte[] dst) {
+        if (factor <= 0 || ((width | height) & 1) != 0)
+            throw new IllegalArgumentException("Factor should be positive and frame should be aligned to even pixels!");
+
+        final int outputWidth = getSubsampledSize(width, factor);
+        final int outputHeight = getSubsampledSize(height, factor);
+        final int outputSize = lumaOnly ? outputWidth * outputHeight : getNV21Size(outputWidth, outputHeight);
+        if (src.length < getNV21Size(width, height) || dst.length < outputSize)
+            throw new IllegalArgumentException("Buffer is too small!");
+
+        // Y plane
+        int index = 0;
+        for (int y = 0; y < outputHeight; y++) {
+            final int srcIndex = y * factor * width;
+            if (factor == 1) {
+                System.arraycopy(src, srcIndex, dst, index, outputWidth);
+                index += outputWidth;
+                continue;
+            }
+            for (int x = 0; x < outputWidth; x++)
+                dst[index++] = src[srcIndex + x * factor];
+        }
+        if (lumaOnly) return;
+
+        // VU plane : a row of width bytes holds width / 2 pairs
+        final int srcChroma = width * height;
+        for (int y = 0; y < outputHeight / 2; y++) {
+            final int srcIndex = srcChroma + y * factor * width;
+            if (factor == 1) {
+                System.arraycopy(src, srcIndex, dst, index, outputWidth);
+                index += outputWidth;
+                continue;
+            }
+            for (int x = 0; x < outputWidth / 2; x++) {
+                final int pair = srcIndex + x * factor * 2;
+                dst[index++] = src[pair];
+                dst[index++] = src[pair + 1];
+            }
+        }
+    }
+
+    /**
+     * Keep every factor-th pixel (nearest neighbor) of YUV 4:2:0 planes into NV21 dst.
+     * Works for any row and pixel strides (e.g. {@link android.media.Image} planes of YUV_420_888)
+     * @param lumaOnly write Y plane only
+     * @param dst NV21 (or Y plane) of {@link #getSubsampledSize(int, int)} of width and height
+     */
+    public static void subsampleYUV420(YuvFrame src, int factor, boolean lumaOnly, byte[] dst) {
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        if (factor <= 0)
+            throw new IllegalArgumentException("Factor should be positive!");
+
+        final int outputWidth = getSubsampledSize(width, factor);
+        final int outputHeight = getSubsampledSize(height, factor);
+        final int outputSize = lumaOnly ? outputWidth * outputHeight : getNV21Size(outputWidth, outputHeight);
+        if (dst.length < outputSize)
+            throw new IllegalArgumentException("Buffer is too small!");
+
+        // Y plane
+        final ByteBuffer y = src.getPlane(YuvFrame.PLANE_Y);
+        final int yRowStride = src.getRowStride(YuvFrame.PLANE_Y);
+        final int yPixelStride = src.getPixelStride(YuvFrame.PLANE_Y);
+        int index = 0;
+        for (int row = 0; row < outputHeight; row++) {
+            final int srcIndex = row * factor * yRowStride;
+            if (factor == 1 && yPixelStride == 1) {
+                // Row is contiguous, copy it at once
+                y.position(srcIndex);
+                y.get(dst, index, outputWidth);
+                index += outputWidth;
+                continue;
+            }
+            final int step = factor * yPixelStride;
+            for (int x = 0; x < outputWidth; x++)
+                dst[index++] = y.get(srcIndex + x * step);
+        }
+        if (lumaOnly) return;
+
+        // VU plane of NV21
+        final ByteBuffer u = src.getPlane(YuvFrame.PLANE_U);
+        final ByteBuffer v = src.getPlane(YuvFrame.PLANE_V);
+        final int uRowStride = src.getRowStride(YuvFrame.PLANE_U);
+        final int uPixelStride = src.getPixelStride(YuvFrame.PLANE_U);
+        final int vRowStride = src.getRowStride(YuvFrame.PLANE_V);
+        final int vPixelStride = src.getPixelStride(YuvFrame.PLANE_V);
+        for (int row = 0; row < outputHeight / 2; row++) {
+            final int uIndex = row * factor * uRowStride;
+            final int vIndex = row * factor * vRowStride;
+            for (int x = 0; x < outputWidth / 2; x++) {
+                dst[index++] = v.get(vIndex + x * factor * vPixelStride);
+                dst[index++] = u.get(uIndex + x * factor * uPixelStride);
+            }
+        }
+    }
+
+    public static int getOutputWidth(int cropWidth, int cropHeight, int rotation) {
+        return rotation == 90 || rotation == 270 ? cropHeight : cropWidth;
+    }
+
+    public static int getOutputHeight(int cropWidth, int cropHeight, int rotation) {
+        return rotation == 90 || rotation == 270 ? cropWidth : cropHeight;
+    }
+
+    private static void checkArguments(int width, int height, int cropX, int cropY, int cropWidth, int cropHeight,
+                                       int rotation) {
+        if (((width | height | cropX | cropY | cropWidth | cropHeight) & 1) != 0)
+            throw new IllegalArgumentException("Frame and crop rectangle should be aligned to even pixels!");
+        if (cropX < 0 || cropY < 0 || cropWidth <= 0 || cropHeight <= 0
+                || cropX + cropWidth > width || cropY + cropHeight > height)
+            throw new IllegalArgumentException("Crop rectangle is out of frame!");
+        if (rotation % 90 != 0)
+            throw new IllegalArgumentException("Rotation should be a multiple of 90!");
+    }
+
+    private static int align16(int value) {
+        return (value + 15) & ~15;
+    }
+
+    /**
+     * Copy crop rectangle of a plane into dst with rotation and mirror <br>
+     *     Destination index is linear in source x and y, so it is walked with two steps instead of per pixel math.
+     * @param srcStride row stride of source plane (pixels)
+     * @param pixelBytes bytes per pixel (1 : Y, V, U, 2 : interleaved VU)
+     * @param dstStride row stride of destination plane (pixels)
+     */
+    private static void transformPlane(byte[] src, int srcOffset, int srcStride,
+                                       int cropX, int cropY, int cropWidth, int cropHeight,
+                                       int rotation, boolean mirror, int pixelBytes,
+                                       byte[] dst, int dstOffset, int dstStride) {
+        final int outputWidth = getOutputWidth(cropWidth, cropHeight, rotation);
+
+        final int base = dstIndex(0, 0, cropWidth, cropHeight, rotation, mirror, outputWidth, dstStride);
+        final int stepX = dstIndex(1, 0, cropWidth, cropHeight, rotation, mirror, outputWidth, dstStride) - base;
+        final int stepY = dstIndex(0, 1, cropWidth, cropHeight, rotation, mirror, outputWidth, dstStride) - base;
+
+        for (int y = 0; y < cropHeight; y++) {
+            int srcIndex = srcOffset + ((cropY + y) * srcStride + cropX) * pixelBytes;
+            int index = base + y * stepY;
+
+            if (stepX == 1) {
+                // Row keeps its direction (no rotation, no mirror), copy it at once
+                System.arraycopy(src, srcIndex, dst, dstOffset + index * pixelBytes, cropWidth * pixelBytes);
+                continue;
+            }
+
+            if (pixelBytes == 1) {
+                for (int x = 0; x < cropWidth; x++, index += stepX)
+                    dst[dstOffset + index] = src[srcIndex++];
+            } else {
+                for (int x = 0; x < cropWidth; x++, index += stepX) {
+                    final int dstIndex = dstOffset + index * 2;
+                    dst[dstIndex] = src[srcIndex++];
+                    dst[dstIndex + 1] = src[srcIndex++];
+                }
+            }
+        }
+    }
+
+    /**
+     * Destination pixel index of crop pixel (x, y)
+     */
+    private static int dstIndex(int x, int y, int cropWidth, int cropHeight, int rotation, boolean mirror,
+                                int outputWidth, int dstStride) {
+        int outX;
+        int outY;
+        switch (rotation) {
+            case 90:
+                outX = cropHeight - 1 - y;
+                outY = x;
+                break;
+            case 180:
+                outX = cropWidth - 1 - x;
+                outY = cropHeight - 1 - y;
+                break;
+            case 270:
+                outX = y;
+                outY = cropWidth - 1 - x;
+                break;
+            default:
+                outX = x;
+                outY = y;
+                break;
+        }
+        if (mirror)
+            outX = outputWidth - 1 - outX;
+
+        return outY * dstStride + outX;
+    }
+}
@@ -0,0 +1,148 @@
+package com.danielpark.camera.util;
+
+/**
+ * Zero shutter lag ring which holds the last N frames with their timestamps <br>
+ *     1. Slots are allocated once, a new frame takes the slot of the oldest one and the oldest frame is released. <br>
+ *     2. Frames are held in place (e.g. preview callback buffers or images), nothing is copied.
+ *        Owner of frames should have N more buffers than it needs without ring. <br>
+ *     3. {@link #acquireClosest(long)} hands out the frame which is the closest to a tap, it stays in ring too.
+ */
+public class ZslRing {
+
+    public static final int DEFAULT_DEPTH = 3;
+    public static final long DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+    private final YuvFrame[] mFrames;
+    private int mNext;
+    private int mCount;
+
+    private long mAddedCount;
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * @param depth number of frames to keep
+     */
+    public ZslRing(int depth) {
+        if (depth <= 0)
+            throw new IllegalArgumentException("Depth should be positive!");
+
+        mFrames = new YuvFrame[depth];
+    }
+
+    /**
+     * Number of frames which fit in memory budget
+     * @param requestedDepth max number of frames
+     * @param memoryBudget max bytes of held frames
+     * @param frameSize bytes of a frame
+     * @return 0 if not even one frame fits
+     */
+    public static int getDepth(int requestedDepth, long memoryBudget, int frameSize) {
+        if (requestedDepth <= 0 || memoryBudget <= 0 || frameSize <= 0) return 0;
+        return (int) Math.min(requestedDepth, memoryBudget / frameSize);
+    }
+
+    public int getDepth() {
+        return mFrames.length;
+    }
+
+    /**
+     * Keep frame as the newest one. Frame is held once more by ring, and the oldest frame is released
+     */
+    public void add(YuvFrame frame) {
+        if (!frame.acquire()) return;
+
+        final YuvFrame evicted;
+        synchronized (this) {
+            evicted = mFrames[mNext];
+            mFrames[mNext] = frame;
+            mNext = (mNext + 1) % mFrames.length;
+            mCount = Math.min(mCount + 1, mFrames.length);
+            mAddedCount++;
+        }
+
+        // Release out of lock, it gives buffer back to its owner
+        if (evicted != null)
+            evicted.release();
+    }
+
+    /**
+     * Frame whose timestamp is the closest to given one, held once more. Release it when done
+     * @param timestamp {@link System#nanoTime()} of a tap
+     * @return null if ring is empty
+     */
+    public synchronized YuvFrame acquireClosest(long timestamp) {
+        YuvFrame closest = null;
+        long closestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            final YuvFrame frame = mFrames[i];
+            final long distance = Math.abs(frame.getTimestamp() - timestamp);
+            if (distance < closestDistance) {
+                closest = frame;
+                closestDistance = distance;
+            }
+        }
+
+        // Frames in ring are held by ring, so acquire doesn't fail under the lock
+        if (closest != null && closest.acquire()) {
+            mHitCount++;
+            return closest;
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * The newest frames, from the oldest to the newest, each held once more. Release every one when done
+     * @param count max number of frames
+     */
+    public synchronized YuvFrame[] acquireLatest(int count) {
+        final int n = Math.min(Math.max(count, 0), mCount);
+        final YuvFrame[] frames = new YuvFrame[n];
+        for (int i = 0; i < n; i++) {
+            final YuvFrame frame = mFrames[(mNext - n + i + mFrames.length) % mFrames.length];
+            frame.acquire();
+            frames[i] = frame;
+        }
+        return frames;
+    }
+
+    /**
+     * Release every frame (e.g. preview callback was stopped)
+     */
+    public void clear() {
+        final YuvFrame[] frames;
+        synchronized (this) {
+            frames = mFrames.clone();
+            for (int i = 0; i < mFrames.length; i++)
+                mFrames[i] = null;
+            mNext = 0;
+            mCount = 0;
+        }
+
+        for (YuvFrame frame : frames) {
+            if (frame != null)
+                frame.release();
+        }
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /** Number of taps which got a frame of ring */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /** Number of taps while ring was empty */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ZslRing(depth " + mFrames.length + ", frames " + mCount + ", added " + mAddedCount
+                + ", hit " + mHitCount + ", miss " + mMissCount + ")";
+    }
+}
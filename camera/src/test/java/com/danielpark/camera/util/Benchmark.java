@@ -0,0 +1,41 @@
+package com.danielpark.camera.util;
+
+import java.util.Locale;
+
+/**
+ * Tiny timing loop for plain JVM benchmarks of this package. Warms up JIT, then prints average time per call.
+ */
+final class Benchmark {
+
+    private static final long WARM_UP_NANOS = 500_000_000L;
+    private static final long MEASURE_NANOS = 1_000_000_000L;
+
+    private Benchmark() {}
+
+    /**
+     * @return average time per call (ns)
+     */
+    static long run(String name, Runnable task) {
+        loop(task, WARM_UP_NANOS);
+
+        final long[] result = loop(task, MEASURE_NANOS);
+        final long average = result[0] / result[1];
+        System.out.println(String.format(Locale.US, "%-40s %10.1f us", name, average / 1000.0));
+        return average;
+    }
+
+    /**
+     * @return {elapsed time (ns), call count}
+     */
+    private static long[] loop(Runnable task, long duration) {
+        final long start = System.nanoTime();
+        long elapsed;
+        long count = 0;
+        do {
+            task.run();
+            count++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < duration);
+        return new long[]{elapsed, count};
+    }
+}
@@ -0,0 +1,45 @@
+package com.danielpark.camera.util;
+
+import java.util.Random;
+
+/**
+ * Plain JVM benchmark of best shot scoring : {@link SharpnessScorer} on one 1280x720 frame,
+ * and {@link BestShotSelector#select()} of {@value BestShotSelector#DEFAULT_FRAME_COUNT} frames.
+ * It is not a test, run main() by hand.
+ */
+public class BestShotBenchmark {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    public static void main(String[] args) {
+        final YuvFrame[] frames = new YuvFrame[BestShotSelector.DEFAULT_FRAME_COUNT];
+        for (int i = 0; i < frames.length; i++) {
+            final byte[] nv21 = new byte[YuvTransformer.getNV21Size(WIDTH, HEIGHT)];
+            new Random(i).nextBytes(nv21);
+            frames[i] = YuvFrame.fromNV21(nv21, WIDTH, HEIGHT, 0, 0, null);
+        }
+
+        final SharpnessScorer scorer = new SharpnessScorer();
+        final int factor = SharpnessScorer.getFactor(WIDTH, BestShotSelector.DEFAULT_SCORE_WIDTH);
+        Benchmark.run("SharpnessScorer 1280x720 / " + factor, new Runnable() {
+            @Override
+            public void run() {
+                scorer.score(frames[0], factor);
+            }
+        });
+
+        final BestShotSelector selector = new BestShotSelector(frames.length, BestShotSelector.DEFAULT_SCORE_WIDTH);
+        Benchmark.run("BestShotSelector " + frames.length + " x 1280x720", new Runnable() {
+            @Override
+            public void run() {
+                for (YuvFrame frame : frames)
+                    selector.offer(frame);
+                // Selected frame is held once more for caller, give it back
+                final YuvFrame best = selector.select();
+                if (best != null)
+                    best.release();
+            }
+        });
+    }
+}
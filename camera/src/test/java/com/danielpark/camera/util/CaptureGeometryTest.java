@@ -0,0 +1,155 @@
+package com.danielpark.camera.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link BitmapTransformer} applies a single {@link CaptureGeometry} in one pass. It must give exactly the same pixels
+ * as the old step by step path : rotate by sensor, crop on rotated image, rotate by device, then mirror.
+ */
+public class CaptureGeometryTest {
+
+    private static final int WIDTH = 12;
+    private static final int HEIGHT = 8;
+
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    @Test
+    public void fromRotatedCrop_matchesStepByStepPixels() {
+        final int[][] source = pattern(WIDTH, HEIGHT);
+
+        for (int preRotation : ROTATIONS)
+            for (int postRotation : ROTATIONS)
+                for (boolean mirror : new boolean[]{false, true}) {
+                    final int[][] rotated = rotate(source, preRotation);
+                    final int rotatedWidth = rotated[0].length;
+                    final int rotatedHeight = rotated.length;
+
+                    for (int[] crop : new int[][]{null, {1, 2, rotatedWidth - 4, rotatedHeight - 3},
+                            {0, 0, 3, 5}, {rotatedWidth - 2, rotatedHeight - 1, 2, 1}}) {
+                        // Old path
+                        int[][] expected = crop != null ? crop(rotated, crop[0], crop[1], crop[2], crop[3]) : rotated;
+                        expected = rotate(expected, postRotation);
+                        if (mirror) expected = mirror(expected);
+
+                        // Single pass
+                        final CaptureGeometry geometry = CaptureGeometry.fromRotatedCrop(WIDTH, HEIGHT,
+                                preRotation, crop, postRotation, mirror);
+                        final int[][] actual = apply(source, geometry);
+
+                        assertTrue(geometry + " from crop " + Arrays.toString(crop) + " pre " + preRotation,
+                                Arrays.deepEquals(expected, actual));
+                        assertEquals(expected[0].length, geometry.getOutputWidth());
+                        assertEquals(expected.length, geometry.getOutputHeight());
+                    }
+                }
+    }
+
+    @Test
+    public void normalizeRotation() {
+        assertEquals(0, CaptureGeometry.normalizeRotation(360));
+        assertEquals(270, CaptureGeometry.normalizeRotation(-90));
+        assertEquals(90, CaptureGeometry.normalizeRotation(450));
+    }
+
+    @Test
+    public void isIdentity() {
+        assertTrue(new CaptureGeometry(WIDTH, HEIGHT, 0, false).isIdentity());
+        assertFalse(new CaptureGeometry(WIDTH, HEIGHT, 90, false).isIdentity());
+        assertFalse(new CaptureGeometry(WIDTH, HEIGHT, 0, true).isIdentity());
+        assertFalse(new CaptureGeometry(WIDTH, HEIGHT, 0, 0, WIDTH - 2, HEIGHT, 0, false).isIdentity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cropOutOfSource_throws() {
+        new CaptureGeometry(WIDTH, HEIGHT, 4, 0, WIDTH, HEIGHT, 0, false);
+    }
+
+    @Test
+    public void getSampleSize_keepsOutputAtLeastRequested() {
+        final CaptureGeometry geometry = new CaptureGeometry(4000, 3000, 0, false);
+
+        assertEquals(1, geometry.getSampleSize(0, 0));
+        assertEquals(1, geometry.getSampleSize(4000, 3000));
+        assertEquals(2, geometry.getSampleSize(2000, 1500));
+        assertEquals(2, geometry.getSampleSize(1999, 1499));
+        assertEquals(4, geometry.getSampleSize(1000, 750));
+        // Orientation of requested size doesn't matter
+        assertEquals(4, geometry.getSampleSize(750, 1000));
+    }
+
+    @Test
+    public void scaleTo_scalesCropRectangle() {
+        final CaptureGeometry geometry = new CaptureGeometry(4000, 3000, 400, 300, 2000, 1500, 90, true);
+        final CaptureGeometry scaled = geometry.scaleTo(1000, 750);
+
+        assertEquals(100, scaled.cropX);
+        assertEquals(75, scaled.cropY);
+        assertEquals(500, scaled.cropWidth);
+        assertEquals(375, scaled.cropHeight);
+        assertEquals(90, scaled.rotation);
+        assertTrue(scaled.mirror);
+        assertSame(geometry, geometry.scaleTo(4000, 3000));
+    }
+
+    @Test
+    public void forRegion_keepsRotationAndMirrorOnWholeRegion() {
+        final CaptureGeometry region = new CaptureGeometry(4000, 3000, 400, 300, 2000, 1500, 270, true).forRegion(500, 375);
+
+        assertTrue(region.isFullFrame());
+        assertEquals(500, region.sourceWidth);
+        assertEquals(375, region.sourceHeight);
+        assertEquals(270, region.rotation);
+        assertTrue(region.mirror);
+    }
+
+    private static int[][] pattern(int width, int height) {
+        final int[][] pixels = new int[height][width];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                pixels[y][x] = y * width + x;
+        return pixels;
+    }
+
+    /** Crop, then rotate, then mirror : the order {@link BitmapTransformer} applies */
+    private static int[][] apply(int[][] pixels, CaptureGeometry geometry) {
+        int[][] result = crop(pixels, geometry.cropX, geometry.cropY, geometry.cropWidth, geometry.cropHeight);
+        result = rotate(result, geometry.rotation);
+        return geometry.mirror ? mirror(result) : result;
+    }
+
+    private static int[][] crop(int[][] pixels, int x, int y, int width, int height) {
+        final int[][] result = new int[height][width];
+        for (int row = 0; row < height; row++)
+            System.arraycopy(pixels[y + row], x, result[row], 0, width);
+        return result;
+    }
+
+    /** Clockwise */
+    private static int[][] rotate(int[][] pixels, int rotation) {
+        int[][] result = pixels;
+        for (int i = 0; i < rotation / 90; i++) {
+            final int height = result.length;
+            final int width = result[0].length;
+            final int[][] rotated = new int[width][height];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    rotated[x][height - 1 - y] = result[y][x];
+            result = rotated;
+        }
+        return result;
+    }
+
+    private static int[][] mirror(int[][] pixels) {
+        final int[][] result = new int[pixels.length][];
+        for (int y = 0; y < pixels.length; y++) {
+            result[y] = new int[pixels[y].length];
+            for (int x = 0; x < pixels[y].length; x++)
+                result[y][x] = pixels[y][pixels[y].length - 1 - x];
+        }
+        return result;
+    }
+}
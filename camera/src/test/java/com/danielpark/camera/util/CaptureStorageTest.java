@@ -0,0 +1,150 @@
+package com.danielpark.camera.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CaptureStorageTest {
+
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, (byte) 0xFF, (byte) 0xD9};
+
+    private File mDirectory;
+    private CaptureStorage mStorage;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("capture").toFile();
+        mStorage = new CaptureStorage(mDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void write_commitsWithoutTempFile() throws IOException {
+        final File file = mStorage.write(JPEG);
+
+        assertTrue(file.exists());
+        assertTrue(mStorage.isCaptureFile(file));
+        assertEquals(1, mDirectory.list().length);
+    }
+
+    @Test
+    public void nextId_neverRepeats() {
+        long previous = mStorage.nextId();
+        for (int i = 0; i < 1000; i++) {
+            final long id = mStorage.nextId();
+            assertTrue(id > previous);
+            previous = id;
+        }
+    }
+
+    @Test
+    public void recoverOrphans_renamesCompleteAndDeletesBroken() throws IOException {
+        final File complete = writeFile(CaptureStorage.DEFAULT_PREFIX + "100" + CaptureStorage.EXTENSION
+                + CaptureStorage.TEMP_EXTENSION, JPEG);
+        final File broken = writeFile(CaptureStorage.DEFAULT_PREFIX + "200" + CaptureStorage.EXTENSION
+                + CaptureStorage.TEMP_EXTENSION, new byte[]{(byte) 0xFF, (byte) 0xD8, 1, 2, 3});
+        final File other = writeFile("other.tmp", JPEG);
+
+        final List<File> recovered = mStorage.recoverOrphans();
+
+        assertEquals(1, recovered.size());
+        assertEquals(CaptureStorage.DEFAULT_PREFIX + "100" + CaptureStorage.EXTENSION, recovered.get(0).getName());
+        assertFalse(complete.exists());
+        assertFalse(broken.exists());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void recoverOrphans_skipsOpenTransaction() throws IOException {
+        final CaptureStorage.Transaction transaction = mStorage.begin();
+        // Half written picture may end in EOI marker by chance
+        transaction.getOutputStream().write(JPEG);
+        transaction.getOutputStream().flush();
+
+        assertTrue(mStorage.recoverOrphans().isEmpty());
+        assertFalse(transaction.getFile().exists());
+
+        transaction.getOutputStream().write(JPEG);
+        final File file = transaction.commit();
+        assertTrue(file.exists());
+        assertEquals(JPEG.length * 2, file.length());
+    }
+
+    @Test
+    public void recoverOrphans_takesAbortedTransactionAsOrphan() throws IOException {
+        final CaptureStorage.Transaction transaction = mStorage.begin();
+        transaction.getOutputStream().write(JPEG);
+        transaction.abort();
+
+        assertTrue(mStorage.recoverOrphans().isEmpty());
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @Test
+    public void recoverOrphans_whileSaving() throws Exception {
+        final int count = 200;
+        final Thread saver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++)
+                        mStorage.write(JPEG);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        final Throwable[] error = new Throwable[1];
+        saver.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                error[0] = e;
+            }
+        });
+
+        saver.start();
+        while (saver.isAlive())
+            mStorage.recoverOrphans();
+        saver.join();
+
+        assertNull(error[0]);
+        assertEquals(count, mDirectory.list().length);
+    }
+
+    @Test
+    public void recoverOrphans_keepsNewIdsAboveExistingPictures() throws IOException {
+        final long future = System.currentTimeMillis() + 1000000L;
+        writeFile(CaptureStorage.DEFAULT_PREFIX + future + CaptureStorage.EXTENSION, JPEG);
+
+        mStorage.recoverOrphans();
+
+        assertTrue(mStorage.nextId() > future);
+    }
+
+    private File writeFile(String name, byte[] data) throws IOException {
+        final File file = new File(mDirectory, name);
+        final FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,254 @@
+package com.danielpark.camera.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ExifUtilTest {
+
+    /** SOI, JFIF APP0, then a fake scan which is never parsed */
+    private static final byte[] JFIF = {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0,
+            (byte) 0xFF, (byte) 0xDA, 0, 2, 0x12, 0x34,
+            (byte) 0xFF, (byte) 0xD9
+    };
+
+    @Test
+    public void getOrientation_roundTripsRotationAndMirror() {
+        for (int rotation = 0; rotation < 360; rotation += 90)
+            for (boolean mirror : new boolean[]{false, true}) {
+                final int orientation = ExifUtil.getOrientation(rotation, mirror);
+
+                assertEquals(rotation, ExifUtil.getRotation(orientation));
+                assertEquals(mirror, ExifUtil.isMirrored(orientation));
+            }
+        assertEquals(ExifUtil.ORIENTATION_ROTATE_90, ExifUtil.getOrientation(-270, false));
+    }
+
+    @Test
+    public void compose_matchesTransformOfPixels() {
+        final int[][] image = {{1, 2, 3}, {4, 5, 6}};
+
+        for (int orientation = ExifUtil.ORIENTATION_NORMAL; orientation <= ExifUtil.ORIENTATION_ROTATE_270; orientation++)
+            for (int rotation = 0; rotation < 360; rotation += 90)
+                for (boolean mirror : new boolean[]{false, true}) {
+                    final int[][] expected = apply(apply(image, ExifUtil.getRotation(orientation),
+                            ExifUtil.isMirrored(orientation)), rotation, mirror);
+                    final int composed = ExifUtil.compose(orientation, rotation, mirror);
+                    final int[][] actual = apply(image, ExifUtil.getRotation(composed), ExifUtil.isMirrored(composed));
+
+                    assertTrue("orientation " + orientation + " + rotation " + rotation + " mirror " + mirror
+                            + " -> " + composed, Arrays.deepEquals(expected, actual));
+                }
+    }
+
+    @Test
+    public void findOrientationOffset_noExif() {
+        assertEquals(ExifUtil.NO_EXIF, ExifUtil.findOrientationOffset(JFIF));
+        assertEquals(ExifUtil.NO_EXIF, ExifUtil.findOrientationOffset(new byte[]{1, 2, 3, 4}));
+        assertEquals(ExifUtil.ORIENTATION_NORMAL, ExifUtil.readOrientation(JFIF));
+    }
+
+    @Test
+    public void readAndPatchOrientation_littleEndian() {
+        final byte[] jpeg = jpegWithExif(true, ExifUtil.ORIENTATION_ROTATE_270);
+        assertEquals(ExifUtil.ORIENTATION_ROTATE_270, ExifUtil.readOrientation(jpeg));
+
+        ExifUtil.patchOrientation(jpeg, ExifUtil.findOrientationOffset(jpeg), ExifUtil.ORIENTATION_TRANSPOSE);
+        assertEquals(ExifUtil.ORIENTATION_TRANSPOSE, ExifUtil.readOrientation(jpeg));
+    }
+
+    @Test
+    public void readAndPatchOrientation_bigEndian() {
+        final byte[] jpeg = jpegWithExif(false, ExifUtil.ORIENTATION_ROTATE_180);
+        assertEquals(ExifUtil.ORIENTATION_ROTATE_180, ExifUtil.readOrientation(jpeg));
+
+        ExifUtil.patchOrientation(jpeg, ExifUtil.findOrientationOffset(jpeg), ExifUtil.ORIENTATION_ROTATE_90);
+        assertEquals(ExifUtil.ORIENTATION_ROTATE_90, ExifUtil.readOrientation(jpeg));
+    }
+
+    @Test
+    public void findOrientationOffset_exifWithoutOrientation() {
+        final byte[] jpeg = jpegWithExif(true, 0);
+
+        assertEquals(ExifUtil.NO_ORIENTATION_TAG, ExifUtil.findOrientationOffset(jpeg));
+    }
+
+    @Test
+    public void writeWithOrientation_patchesInPlace() throws IOException {
+        final byte[] jpeg = jpegWithExif(false, ExifUtil.ORIENTATION_NORMAL);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertTrue(ExifUtil.writeWithOrientation(jpeg, ExifUtil.ORIENTATION_ROTATE_90, out));
+        assertEquals(jpeg.length, out.size());
+        assertEquals(ExifUtil.ORIENTATION_ROTATE_90, ExifUtil.readOrientation(out.toByteArray()));
+    }
+
+    @Test
+    public void writeWithOrientation_insertsSegmentWithoutExif() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertTrue(ExifUtil.writeWithOrientation(JFIF.clone(), ExifUtil.ORIENTATION_ROTATE_270, out));
+        assertEquals(JFIF.length + ExifUtil.createExifSegment(ExifUtil.ORIENTATION_ROTATE_270).length, out.size());
+        assertEquals(ExifUtil.ORIENTATION_ROTATE_270, ExifUtil.readOrientation(out.toByteArray()));
+        assertExifAfterApp0(out.toByteArray());
+    }
+
+    @Test
+    public void getExifInsertOffset_skipsApp0Segments() {
+        assertEquals(20, ExifUtil.getExifInsertOffset(JFIF));
+        assertEquals(2, ExifUtil.getExifInsertOffset(jpegWithExif(true, ExifUtil.ORIENTATION_ROTATE_90)));
+        // Broken APP0 length, EXIF goes before it
+        assertEquals(2, ExifUtil.getExifInsertOffset(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 100}));
+    }
+
+    @Test
+    public void writeWithOrientation_refusesExifWithoutOrientation() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertFalse(ExifUtil.writeWithOrientation(jpegWithExif(true, 0), ExifUtil.ORIENTATION_ROTATE_90, out));
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void withOrientation_streamsSegmentWhateverWriteSizes() throws IOException {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ExifUtil.writeWithOrientation(JFIF.clone(), ExifUtil.ORIENTATION_ROTATE_90, expected);
+
+        assertExifAfterApp0(expected.toByteArray());
+
+        // Encoder may write SOI and APP0 byte by byte, or everything at once
+        for (int split = 0; split <= JFIF.length; split++) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final OutputStream out = ExifUtil.withOrientation(bytes, ExifUtil.ORIENTATION_ROTATE_90);
+            if (split == 0) {
+                out.write(JFIF);
+            } else {
+                for (int i = 0; i < split; i++)
+                    out.write(JFIF[i]);
+                out.write(JFIF, split, JFIF.length - split);
+            }
+            out.close();
+
+            assertArrayEquals("split " + split, expected.toByteArray(), bytes.toByteArray());
+        }
+    }
+
+    @Test
+    public void withOrientation_writesHeldBackBytesOnClose() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OutputStream out = ExifUtil.withOrientation(bytes, ExifUtil.ORIENTATION_ROTATE_90);
+        out.write(JFIF, 0, 21);
+        out.close();
+
+        assertArrayEquals(Arrays.copyOf(JFIF, 21), bytes.toByteArray());
+    }
+
+    @Test
+    public void withOrientation_normal_returnsSameStream() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        assertSame(bytes, ExifUtil.withOrientation(bytes, ExifUtil.ORIENTATION_NORMAL));
+    }
+
+    /**
+     * JFIF APP0 comes right after SOI, and EXIF APP1 right after it
+     */
+    private static void assertExifAfterApp0(byte[] jpeg) {
+        assertArrayEquals(Arrays.copyOf(JFIF, 20), Arrays.copyOf(jpeg, 20));
+        assertEquals(0xFF, jpeg[20] & 0xFF);
+        assertEquals(0xE1, jpeg[21] & 0xFF);
+    }
+
+    /**
+     * SOI, APP1 (EXIF, IFD0 has Make tag and Orientation tag unless orientation is 0), then a fake scan
+     */
+    private static byte[] jpegWithExif(boolean littleEndian, int orientation) {
+        final ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        if (littleEndian)
+            tiff.write(new byte[]{'I', 'I', 42, 0, 8, 0, 0, 0}, 0, 8);
+        else
+            tiff.write(new byte[]{'M', 'M', 0, 42, 0, 0, 0, 8}, 0, 8);
+
+        final int count = orientation != 0 ? 2 : 1;
+        writeShort(tiff, count, littleEndian);
+        // Make : ASCII, 4 bytes in place
+        writeShort(tiff, 0x010F, littleEndian);
+        writeShort(tiff, 2, littleEndian);
+        writeInt(tiff, 4, littleEndian);
+        tiff.write(new byte[]{'A', 'B', 'C', 0}, 0, 4);
+        if (orientation != 0) {
+            writeShort(tiff, 0x0112, littleEndian);
+            writeShort(tiff, 3, littleEndian);
+            writeInt(tiff, 1, littleEndian);
+            writeShort(tiff, orientation, littleEndian);
+            writeShort(tiff, 0, littleEndian);
+        }
+        writeInt(tiff, 0, littleEndian);
+
+        final int length = 2 + 6 + tiff.size();
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        jpeg.write(0xFF);
+        jpeg.write(0xD8);
+        jpeg.write(0xFF);
+        jpeg.write(0xE1);
+        jpeg.write(length >> 8);
+        jpeg.write(length);
+        jpeg.write(new byte[]{'E', 'x', 'i', 'f', 0, 0}, 0, 6);
+        jpeg.write(tiff.toByteArray(), 0, tiff.size());
+        jpeg.write(JFIF, 20, JFIF.length - 20);
+        return jpeg.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            out.write(value);
+            out.write(value >> 8);
+        } else {
+            out.write(value >> 8);
+            out.write(value);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            writeShort(out, value, true);
+            writeShort(out, value >>> 16, true);
+        } else {
+            writeShort(out, value >>> 16, false);
+            writeShort(out, value, false);
+        }
+    }
+
+    /**
+     * Rotate clockwise, then mirror
+     */
+    private static int[][] apply(int[][] image, int rotation, boolean mirror) {
+        int[][] result = image;
+        for (int i = 0; i < rotation / 90; i++) {
+            final int height = result.length;
+            final int width = result[0].length;
+            final int[][] rotated = new int[width][height];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    rotated[x][height - 1 - y] = result[y][x];
+            result = rotated;
+        }
+        if (mirror) {
+            final int[][] mirrored = new int[result.length][];
+            for (int y = 0; y < result.length; y++) {
+                mirrored[y] = new int[result[y].length];
+                for (int x = 0; x < result[y].length; x++)
+                    mirrored[y][x] = result[y][result[y].length - 1 - x];
+            }
+            result = mirrored;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,160 @@
+package com.danielpark.camera.util;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decodes JPEGs written by {@link JpegTransformer} and compares them with the decoded source, transformed in pixels.
+ */
+public class JpegTransformerTest {
+
+    /**
+     * Coefficients are moved as they are, but IDCT of a transposed block may round differently
+     */
+    private static final int GRAY_TOLERANCE = 2;
+    private static final int COLOR_TOLERANCE = 12;
+    /** Chroma upsampling of decoder reads neighbor samples, which are gone on the edges of a crop */
+    private static final int CHROMA_BORDER = 2;
+
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    @Test
+    public void rotateAndMirror_gray_matchesPixelTransform() throws IOException {
+        final BufferedImage source = TestJpegs.pattern(64, 48, BufferedImage.TYPE_BYTE_GRAY);
+        final byte[] jpeg = TestJpegs.encode(source);
+        final BufferedImage decoded = TestJpegs.decode(jpeg);
+
+        for (int rotation : ROTATIONS)
+            for (boolean mirror : new boolean[]{false, true})
+                assertTransform(jpeg, decoded, new CaptureGeometry(64, 48, rotation, mirror), GRAY_TOLERANCE);
+    }
+
+    @Test
+    public void rotateAndMirror_color_matchesPixelTransform() throws IOException {
+        final BufferedImage source = TestJpegs.pattern(64, 48, BufferedImage.TYPE_INT_RGB);
+        final byte[] jpeg = TestJpegs.encode(source);
+        final BufferedImage decoded = TestJpegs.decode(jpeg);
+
+        for (int rotation : ROTATIONS)
+            for (boolean mirror : new boolean[]{false, true})
+                assertTransform(jpeg, decoded, new CaptureGeometry(64, 48, rotation, mirror), COLOR_TOLERANCE);
+    }
+
+    @Test
+    public void cropOnMcuGrid_matchesPixelCrop() throws IOException {
+        final byte[] gray = TestJpegs.encode(TestJpegs.pattern(64, 48, BufferedImage.TYPE_BYTE_GRAY));
+        final BufferedImage decodedGray = TestJpegs.decode(gray);
+        for (int rotation : ROTATIONS)
+            assertTransform(gray, decodedGray, new CaptureGeometry(64, 48, 8, 16, 40, 24, rotation, false), GRAY_TOLERANCE);
+
+        // 4:2:0 MCU is 16x16
+        final byte[] color = TestJpegs.encode(TestJpegs.pattern(64, 48, BufferedImage.TYPE_INT_RGB));
+        final BufferedImage decodedColor = TestJpegs.decode(color);
+        for (int rotation : ROTATIONS)
+            assertTransform(color, decodedColor, new CaptureGeometry(64, 48, 16, 16, 32, 32, rotation, true),
+                    COLOR_TOLERANCE, CHROMA_BORDER);
+    }
+
+    @Test
+    public void cropToPartialEdgeMcu_isKeptWhenNotMirrored() throws IOException {
+        // Width 60 ends in a partial MCU, it stays on the right edge without flip
+        final byte[] jpeg = TestJpegs.encode(TestJpegs.pattern(60, 44, BufferedImage.TYPE_BYTE_GRAY));
+        final BufferedImage decoded = TestJpegs.decode(jpeg);
+
+        assertTransform(jpeg, decoded, new CaptureGeometry(60, 44, 8, 8, 52, 36, 0, false), GRAY_TOLERANCE);
+    }
+
+    @Test
+    public void unalignedCrop_returnsNull() throws IOException {
+        final byte[] jpeg = TestJpegs.encode(TestJpegs.pattern(64, 48, BufferedImage.TYPE_INT_RGB));
+
+        assertNull(JpegTransformer.prepare(jpeg, new CaptureGeometry(64, 48, 4, 0, 32, 32, 0, false)));
+        assertNull(JpegTransformer.prepare(jpeg, new CaptureGeometry(64, 48, 0, 0, 24, 32, 0, false)));
+    }
+
+    @Test
+    public void flippedPartialMcu_returnsNull() throws IOException {
+        final byte[] jpeg = TestJpegs.encode(TestJpegs.pattern(60, 44, BufferedImage.TYPE_BYTE_GRAY));
+
+        assertNull(JpegTransformer.prepare(jpeg, new CaptureGeometry(60, 44, 180, false)));
+        assertNull(JpegTransformer.prepare(jpeg, new CaptureGeometry(60, 44, 0, true)));
+    }
+
+    @Test
+    public void sizeMismatch_returnsNull() throws IOException {
+        final byte[] jpeg = TestJpegs.encode(TestJpegs.pattern(64, 48, BufferedImage.TYPE_INT_RGB));
+
+        assertNull(JpegTransformer.prepare(jpeg, new CaptureGeometry(48, 64, 0, false)));
+    }
+
+    @Test
+    public void notJpeg_returnsNull() {
+        assertNull(JpegTransformer.prepare(new byte[]{1, 2, 3, 4, 5}, new CaptureGeometry(8, 8, 0, false)));
+    }
+
+    @Test
+    public void truncatedJpeg_doesNotThrow() throws IOException {
+        final byte[] jpeg = TestJpegs.encode(TestJpegs.pattern(64, 48, BufferedImage.TYPE_INT_RGB));
+        final byte[] truncated = new byte[jpeg.length / 2];
+        System.arraycopy(jpeg, 0, truncated, 0, truncated.length);
+
+        // Broken stream must never throw to caller, it falls back to Bitmap path
+        JpegTransformer.prepare(truncated, new CaptureGeometry(64, 48, 90, false));
+    }
+
+    @Test
+    public void setExifOrientation_insertsExifWhenSourceHasNone() throws IOException {
+        final byte[] jpeg = TestJpegs.encode(TestJpegs.pattern(64, 48, BufferedImage.TYPE_INT_RGB));
+        assertEquals(ExifUtil.NO_EXIF, ExifUtil.findOrientationOffset(jpeg));
+
+        final JpegTransformer transformer = JpegTransformer.prepare(jpeg, new CaptureGeometry(64, 48, 16, 0, 32, 48, 0, false));
+        assertNotNull(transformer);
+        assertTrue(transformer.setExifOrientation(ExifUtil.ORIENTATION_ROTATE_90));
+
+        final byte[] output = write(transformer);
+        assertEquals(ExifUtil.ORIENTATION_ROTATE_90, ExifUtil.readOrientation(output));
+        // JFIF APP0 stays first, EXIF follows it
+        assertEquals(0xE0, output[3] & 0xFF);
+        final int exifOffset = 4 + (((output[4] & 0xFF) << 8) | (output[5] & 0xFF));
+        assertEquals(0xFF, output[exifOffset] & 0xFF);
+        assertEquals(0xE1, output[exifOffset + 1] & 0xFF);
+
+        final BufferedImage decoded = TestJpegs.decode(output);
+        assertEquals(32, decoded.getWidth());
+        assertEquals(48, decoded.getHeight());
+    }
+
+    private static void assertTransform(byte[] jpeg, BufferedImage decoded, CaptureGeometry geometry, int tolerance)
+            throws IOException {
+        assertTransform(jpeg, decoded, geometry, tolerance, 0);
+    }
+
+    private static void assertTransform(byte[] jpeg, BufferedImage decoded, CaptureGeometry geometry, int tolerance,
+                                        int border) throws IOException {
+        final JpegTransformer transformer = JpegTransformer.prepare(jpeg, geometry);
+        assertNotNull("Lossless transform should be possible : " + describe(geometry), transformer);
+        assertEquals(geometry.getOutputWidth(), transformer.getWidth());
+        assertEquals(geometry.getOutputHeight(), transformer.getHeight());
+
+        final BufferedImage output = TestJpegs.decode(write(transformer));
+        final int difference = TestJpegs.maxDifference(output, TestJpegs.transform(decoded, geometry), border);
+        assertTrue(describe(geometry) + " differs by " + difference, difference <= tolerance);
+    }
+
+    private static byte[] write(JpegTransformer transformer) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        transformer.writeTo(output);
+        return output.toByteArray();
+    }
+
+    private static String describe(CaptureGeometry geometry) {
+        return geometry.sourceWidth + "x" + geometry.sourceHeight + " crop " + geometry.cropX + "," + geometry.cropY
+                + " " + geometry.cropWidth + "x" + geometry.cropHeight
+                + " rotation " + geometry.rotation + " mirror " + geometry.mirror;
+    }
+}
@@ -0,0 +1,124 @@
+package com.danielpark.camera.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void getBucket_smallValuesHaveOwnBucket() {
+        for (long us = 0; us < 16; us++) {
+            assertEquals(us, LatencyHistogram.getBucket(us));
+            assertEquals(us, LatencyHistogram.getBucketMax((int) us));
+        }
+    }
+
+    @Test
+    public void getBucket_valueIsWithinItsBucket() {
+        int previousBucket = -1;
+        for (long us = 0; us < 1 << 20; us++) {
+            final int bucket = LatencyHistogram.getBucket(us);
+
+            assertTrue(us + " is above max of bucket " + bucket, us <= LatencyHistogram.getBucketMax(bucket));
+            if (bucket > 0)
+                assertTrue(us + " is below bucket " + bucket, us > LatencyHistogram.getBucketMax(bucket - 1));
+            // Buckets are contiguous and in order
+            assertTrue(bucket == previousBucket || bucket == previousBucket + 1);
+            previousBucket = bucket;
+        }
+    }
+
+    @Test
+    public void getBucket_relativeErrorIsBounded() {
+        for (long us = 16; us < 1L << 36; us = us * 3 / 2 + 1) {
+            final long max = LatencyHistogram.getBucketMax(LatencyHistogram.getBucket(us));
+            assertTrue(us + " -> " + max, (max - us) <= us / 8);
+        }
+    }
+
+    @Test
+    public void getBucket_hugeValueGoesToLastBucket() {
+        final int last = LatencyHistogram.getBucket((1L << 40) - 1);
+
+        assertEquals(last, LatencyHistogram.getBucket(1L << 40));
+        assertEquals(last, LatencyHistogram.getBucket(Long.MAX_VALUE));
+        assertTrue(LatencyHistogram.getBucket((1L << 40) - (1L << 36) - 1) < last);
+    }
+
+    @Test
+    public void getPercentile() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+
+        // 1 ~ 100 ms
+        for (int ms = 1; ms <= 100; ms++)
+            histogram.record(ms * 1000000L);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50500, histogram.getMean());
+        assertWithin(50000, histogram.getPercentile(50));
+        assertWithin(95000, histogram.getPercentile(95));
+        assertWithin(99000, histogram.getPercentile(99));
+        assertEquals(100000, histogram.getPercentile(100));
+        assertWithin(1000, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void getPercentile_neverAboveMax() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(17000);
+
+        assertEquals(17, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void record_negativeIsZero() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5000);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void reset() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000000);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void record_fromManyThreads() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int k = 1; k <= 10000; k++)
+                        histogram.record(k * 1000L);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(40000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertWithin(5000, histogram.getPercentile(50));
+    }
+
+    /** Percentile is the max of its bucket, which is at most 1/8 above the value */
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " != " + actual, actual >= expected && actual <= expected + expected / 8);
+    }
+}
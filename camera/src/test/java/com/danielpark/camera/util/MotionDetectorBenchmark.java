@@ -0,0 +1,35 @@
+package com.danielpark.camera.util;
+
+import android.graphics.ImageFormat;
+
+import com.danielpark.camera.util.FrameProcessor.Frame;
+
+import java.util.Random;
+
+/**
+ * Plain JVM benchmark of {@link MotionDetector#process(Frame)} on a 640x480 frame with the default grid.
+ * Frames are the same, so motion is never found and nothing is posted to main thread.
+ * It is not a test, run main() by hand.
+ */
+public class MotionDetectorBenchmark {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    public static void main(String[] args) {
+        final byte[] nv21 = new byte[YuvTransformer.getNV21Size(WIDTH, HEIGHT)];
+        new Random(0).nextBytes(nv21);
+
+        final Frame frame = new Frame();
+        frame.setPlanes(YuvFrame.fromNV21(nv21, WIDTH, HEIGHT, 0, 0, null));
+        frame.set(null, ImageFormat.YUV_420_888, WIDTH, HEIGHT, 0, 0);
+
+        final MotionDetector detector = new MotionDetector(null);
+        Benchmark.run("MotionDetector 640x480, 32x24 blocks", new Runnable() {
+            @Override
+            public void run() {
+                detector.process(frame);
+            }
+        });
+    }
+}
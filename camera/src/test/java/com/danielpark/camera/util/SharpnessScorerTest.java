@@ -0,0 +1,136 @@
+package com.danielpark.camera.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SharpnessScorerTest {
+
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void flatFrame_scoresZero() {
+        final byte[] nv21 = new byte[YuvTransformer.getNV21Size(64, 48)];
+        Arrays.fill(nv21, (byte) 0x80);
+
+        assertEquals(0, new SharpnessScorer().score(YuvFrame.fromNV21(nv21, 64, 48, 0, 0, null), 1), EPSILON);
+    }
+
+    @Test
+    public void tinyFrame_scoresZero() {
+        final byte[] nv21 = random(YuvTransformer.getNV21Size(8, 8), 1);
+
+        assertEquals(0, new SharpnessScorer().score(YuvFrame.fromNV21(nv21, 8, 8, 0, 0, null), 4), EPSILON);
+    }
+
+    @Test
+    public void score_matchesReference() {
+        final SharpnessScorer scorer = new SharpnessScorer();
+        for (int factor = 1; factor <= 4; factor++) {
+            final byte[] nv21 = random(YuvTransformer.getNV21Size(66, 50), factor);
+            final YuvFrame frame = YuvFrame.fromNV21(nv21, 66, 50, 0, 0, null);
+
+            assertEquals("factor " + factor, reference(nv21, 66, 1, 66, 50, factor),
+                    scorer.score(frame, factor), EPSILON);
+        }
+    }
+
+    @Test
+    public void score_readsRowAndPixelStrides() {
+        // Y plane with padded rows and pixel stride 2, as some YUV_420_888 planes are
+        final int width = 40;
+        final int height = 30;
+        final int pixelStride = 2;
+        final int rowStride = width * pixelStride + 12;
+        final byte[] luma = random(rowStride * height, 7);
+        final ByteBuffer chroma = ByteBuffer.allocate(width * height / 2);
+        final YuvFrame frame = new YuvFrame(width, height, new ByteBuffer[]{ByteBuffer.wrap(luma), chroma, chroma},
+                new int[]{rowStride, width, width}, new int[]{pixelStride, 2, 2}, 0, 0, null);
+
+        assertEquals(reference(luma, rowStride, pixelStride, width, height, 2),
+                new SharpnessScorer().score(frame, 2), EPSILON);
+    }
+
+    @Test
+    public void blurredFrame_scoresLower() {
+        final int width = 64;
+        final int height = 48;
+        final byte[] sharp = new byte[YuvTransformer.getNV21Size(width, height)];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                sharp[y * width + x] = (byte) (((x / 4 + y / 4) & 1) * 200 + 20);
+
+        final byte[] blurred = sharp.clone();
+        for (int y = 1; y < height - 1; y++)
+            for (int x = 1; x < width - 1; x++) {
+                int sum = 0;
+                for (int dy = -1; dy <= 1; dy++)
+                    for (int dx = -1; dx <= 1; dx++)
+                        sum += sharp[(y + dy) * width + x + dx] & 0xFF;
+                blurred[y * width + x] = (byte) (sum / 9);
+            }
+
+        final SharpnessScorer scorer = new SharpnessScorer();
+        final double sharpScore = scorer.score(YuvFrame.fromNV21(sharp, width, height, 0, 0, null), 1);
+        final double blurredScore = scorer.score(YuvFrame.fromNV21(blurred, width, height, 0, 0, null), 1);
+        assertTrue(sharpScore + " should be higher than " + blurredScore, sharpScore > blurredScore * 2);
+    }
+
+    @Test
+    public void reusedScorer_givesSameScoreAsNewOne() {
+        final SharpnessScorer reused = new SharpnessScorer();
+        reused.score(YuvFrame.fromNV21(random(YuvTransformer.getNV21Size(128, 96), 3), 128, 96, 0, 0, null), 1);
+
+        final byte[] nv21 = random(YuvTransformer.getNV21Size(40, 30), 4);
+        assertEquals(new SharpnessScorer().score(YuvFrame.fromNV21(nv21, 40, 30, 0, 0, null), 1),
+                reused.score(YuvFrame.fromNV21(nv21, 40, 30, 0, 0, null), 1), EPSILON);
+    }
+
+    @Test
+    public void getFactor() {
+        assertEquals(4, SharpnessScorer.getFactor(1280, 320));
+        assertEquals(1, SharpnessScorer.getFactor(240, 320));
+        assertEquals(1, SharpnessScorer.getFactor(1280, 0));
+    }
+
+    private static byte[] random(int size, long seed) {
+        final byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Box average of each factor x factor block, then variance of 4-neighbour Laplacian on inner pixels
+     */
+    private static double reference(byte[] luma, int rowStride, int pixelStride, int width, int height, int factor) {
+        final int scaledWidth = width / factor;
+        final int scaledHeight = height / factor;
+        final int[][] scaled = new int[scaledHeight][scaledWidth];
+        for (int y = 0; y < scaledHeight; y++)
+            for (int x = 0; x < scaledWidth; x++) {
+                int sum = 0;
+                for (int dy = 0; dy < factor; dy++)
+                    for (int dx = 0; dx < factor; dx++)
+                        sum += luma[(y * factor + dy) * rowStride + (x * factor + dx) * pixelStride] & 0xFF;
+                scaled[y][x] = sum / (factor * factor);
+            }
+
+        double sum = 0;
+        double sumOfSquares = 0;
+        int count = 0;
+        for (int y = 1; y < scaledHeight - 1; y++)
+            for (int x = 1; x < scaledWidth - 1; x++) {
+                final int laplacian = 4 * scaled[y][x] - scaled[y][x - 1] - scaled[y][x + 1]
+                        - scaled[y - 1][x] - scaled[y + 1][x];
+                sum += laplacian;
+                sumOfSquares += (double) laplacian * laplacian;
+                count++;
+            }
+        final double mean = sum / count;
+        return sumOfSquares / count - mean * mean;
+    }
+}
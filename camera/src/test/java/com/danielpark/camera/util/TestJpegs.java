@@ -0,0 +1,124 @@
+package com.danielpark.camera.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes and decodes test JPEGs with the desktop JVM codec, so JPEG utilities are checked without a device.
+ */
+final class TestJpegs {
+
+    private TestJpegs() {}
+
+    /**
+     * Image whose every pixel is different enough, so a wrong rotation or crop never matches
+     * @param type {@link BufferedImage#TYPE_BYTE_GRAY} or {@link BufferedImage#TYPE_INT_RGB}
+     */
+    static BufferedImage pattern(int width, int height, int type) {
+        final BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                final int r = (x * 255) / Math.max(1, width - 1);
+                final int g = (y * 255) / Math.max(1, height - 1);
+                final int b = ((x / 8 + y / 8) & 1) * 160 + 48;
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        return image;
+    }
+
+    /**
+     * Baseline JPEG of JFIF (APP0) layout, 4:2:0 for color
+     */
+    static byte[] encode(BufferedImage image) throws IOException {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        final ImageWriter writer = writers.next();
+        final ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.95f);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ImageOutputStream output = ImageIO.createImageOutputStream(bytes);
+        try {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            output.close();
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    static BufferedImage decode(byte[] jpeg) throws IOException {
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        if (image == null)
+            throw new IOException("Not a JPEG");
+        return image;
+    }
+
+    /**
+     * Pixels of image, cropped then rotated clockwise then mirrored, in the reference way
+     */
+    static int[][] transform(BufferedImage image, CaptureGeometry geometry) {
+        int[][] pixels = new int[geometry.cropHeight][geometry.cropWidth];
+        for (int y = 0; y < geometry.cropHeight; y++)
+            for (int x = 0; x < geometry.cropWidth; x++)
+                pixels[y][x] = image.getRGB(geometry.cropX + x, geometry.cropY + y);
+
+        for (int i = 0; i < geometry.rotation / 90; i++) {
+            final int height = pixels.length;
+            final int width = pixels[0].length;
+            final int[][] rotated = new int[width][height];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    rotated[x][height - 1 - y] = pixels[y][x];
+            pixels = rotated;
+        }
+
+        if (geometry.mirror) {
+            for (int[] row : pixels)
+                for (int left = 0, right = row.length - 1; left < right; left++, right--) {
+                    final int pixel = row[left];
+                    row[left] = row[right];
+                    row[right] = pixel;
+                }
+        }
+        return pixels;
+    }
+
+    /**
+     * Largest difference of a color channel between image and expected pixels
+     */
+    static int maxDifference(BufferedImage image, int[][] expected) {
+        return maxDifference(image, expected, 0);
+    }
+
+    /**
+     * Largest difference of a color channel between image and expected pixels, inside of border
+     * @param border pixels on each edge which aren't compared
+     */
+    static int maxDifference(BufferedImage image, int[][] expected, int border) {
+        if (image.getHeight() != expected.length || image.getWidth() != expected[0].length)
+            throw new AssertionError("Size " + image.getWidth() + "x" + image.getHeight()
+                    + " != " + expected[0].length + "x" + expected.length);
+
+        int max = 0;
+        for (int y = border; y < expected.length - border; y++)
+            for (int x = border; x < expected[y].length - border; x++) {
+                final int actual = image.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    final int difference = Math.abs(((actual >> shift) & 0xFF) - ((expected[y][x] >> shift) & 0xFF));
+                    max = Math.max(max, difference);
+                }
+            }
+        return max;
+    }
+}
@@ -0,0 +1,30 @@
+package com.danielpark.camera.util;
+
+import java.util.Random;
+
+/**
+ * Plain JVM benchmark of {@link YuvThumbnailer} on a 640x480 analysis frame, rotated upright.
+ * It is not a test, run main() by hand.
+ */
+public class YuvThumbnailerBenchmark {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    public static void main(String[] args) {
+        final byte[] nv21 = new byte[YuvTransformer.getNV21Size(WIDTH, HEIGHT)];
+        new Random(0).nextBytes(nv21);
+        final YuvFrame frame = YuvFrame.fromNV21(nv21, WIDTH, HEIGHT, 90, 0, null);
+        final YuvThumbnailer thumbnailer = new YuvThumbnailer();
+
+        for (int factor : new int[]{1, 2, 4}) {
+            final int f = factor;
+            Benchmark.run("YuvThumbnailer 640x480 / " + factor + " rotate 90", new Runnable() {
+                @Override
+                public void run() {
+                    thumbnailer.convert(frame, f, 90);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.danielpark.camera.util;
+
+import java.util.Random;
+
+/**
+ * Plain JVM benchmark of {@link YuvTransformer} kernels on a 1280x720 frame. It is not a test, run main() by hand.
+ */
+public class YuvTransformerBenchmark {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    public static void main(String[] args) {
+        final byte[] nv21 = new byte[YuvTransformer.getNV21Size(WIDTH, HEIGHT)];
+        final byte[] yv12 = new byte[YuvTransformer.getYV12Size(WIDTH, HEIGHT)];
+        new Random(0).nextBytes(nv21);
+        new Random(1).nextBytes(yv12);
+        final byte[] dst = new byte[Math.max(nv21.length, YuvTransformer.getYV12Size(HEIGHT, WIDTH))];
+
+        for (int rotation : new int[]{0, 90, 180, 270}) {
+            final int r = rotation;
+            Benchmark.run("NV21 rotate " + rotation, new Runnable() {
+                @Override
+                public void run() {
+                    YuvTransformer.rotateNV21(nv21, WIDTH, HEIGHT, r, dst);
+                }
+            });
+            Benchmark.run("YV12 rotate " + rotation, new Runnable() {
+                @Override
+                public void run() {
+                    YuvTransformer.rotateYV12(yv12, WIDTH, HEIGHT, r, dst);
+                }
+            });
+        }
+        Benchmark.run("NV21 mirror", new Runnable() {
+            @Override
+            public void run() {
+                YuvTransformer.mirrorNV21(nv21, WIDTH, HEIGHT, dst);
+            }
+        });
+        Benchmark.run("NV21 crop 960x540", new Runnable() {
+            @Override
+            public void run() {
+                YuvTransformer.cropNV21(nv21, WIDTH, HEIGHT, 160, 90, 960, 540, dst);
+            }
+        });
+        Benchmark.run("NV21 crop + rotate 90 + mirror", new Runnable() {
+            @Override
+            public void run() {
+                YuvTransformer.transformNV21(nv21, WIDTH, HEIGHT, 160, 90, 960, 540, 90, true, dst);
+            }
+        });
+    }
+}
@@ -0,0 +1,260 @@
+package com.danielpark.camera.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link YuvTransformer} kernels with a naive reference which crops, rotates by 90 step by step and
+ * mirrors a plane of pixels.
+ */
+public class YuvTransformerTest {
+
+    /** Widths and heights which aren't multiple of 16, so YV12 rows have padding */
+    private static final int[][] SIZES = {{2, 2}, {10, 6}, {22, 14}, {34, 18}, {48, 32}};
+
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    private final Random mRandom = new Random(0x5eed);
+
+    @Test
+    public void rotateNV21_matchesReference() {
+        for (int[] size : SIZES)
+            for (int rotation : ROTATIONS)
+                assertNV21(size[0], size[1], 0, 0, size[0], size[1], rotation, false);
+    }
+
+    @Test
+    public void rotateYV12_matchesReference() {
+        for (int[] size : SIZES)
+            for (int rotation : ROTATIONS)
+                assertYV12(size[0], size[1], 0, 0, size[0], size[1], rotation, false);
+    }
+
+    @Test
+    public void mirrorNV21_matchesReference() {
+        for (int[] size : SIZES)
+            assertNV21(size[0], size[1], 0, 0, size[0], size[1], 0, true);
+    }
+
+    @Test
+    public void mirrorYV12_matchesReference() {
+        for (int[] size : SIZES)
+            assertYV12(size[0], size[1], 0, 0, size[0], size[1], 0, true);
+    }
+
+    @Test
+    public void cropNV21_matchesReference() {
+        assertNV21(34, 18, 2, 4, 20, 10, 0, false);
+        assertNV21(34, 18, 14, 8, 20, 10, 0, false);
+        assertNV21(10, 6, 8, 4, 2, 2, 0, false);
+    }
+
+    @Test
+    public void cropYV12_matchesReference() {
+        assertYV12(34, 18, 2, 4, 20, 10, 0, false);
+        assertYV12(34, 18, 14, 8, 20, 10, 0, false);
+        assertYV12(10, 6, 8, 4, 2, 2, 0, false);
+    }
+
+    @Test
+    public void transform_cropRotateMirror_matchesReference() {
+        for (int rotation : ROTATIONS) {
+            assertNV21(34, 18, 6, 2, 22, 14, rotation, true);
+            assertYV12(34, 18, 6, 2, 22, 14, rotation, true);
+        }
+    }
+
+    @Test
+    public void alignToChroma_roundsOddCropDownInsideOfSource() {
+        final CaptureGeometry geometry = YuvTransformer.alignToChroma(new CaptureGeometry(22, 14, 3, 5, 11, 7, 90, false));
+
+        assertEquals(2, geometry.cropX);
+        assertEquals(4, geometry.cropY);
+        assertEquals(10, geometry.cropWidth);
+        assertEquals(6, geometry.cropHeight);
+        assertEquals(90, geometry.rotation);
+
+        final byte[] src = random(YuvTransformer.getNV21Size(22, 14));
+        final byte[] dst = new byte[YuvTransformer.getNV21Size(geometry.getOutputWidth(), geometry.getOutputHeight())];
+        YuvTransformer.transformNV21(src, geometry, dst);
+        assertArrayEquals(referenceNV21(src, 22, 14, 2, 4, 10, 6, 90, false), dst);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void transformNV21_oddFrame_throws() {
+        YuvTransformer.rotateNV21(new byte[YuvTransformer.getNV21Size(11, 7)], 11, 7, 90,
+                new byte[YuvTransformer.getNV21Size(7, 11)]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void transformYV12_oddCrop_throws() {
+        YuvTransformer.cropYV12(new byte[YuvTransformer.getYV12Size(22, 14)], 22, 14, 1, 0, 10, 6,
+                new byte[YuvTransformer.getYV12Size(10, 6)]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void transformNV21_smallDestination_throws() {
+        YuvTransformer.rotateNV21(new byte[YuvTransformer.getNV21Size(10, 6)], 10, 6, 90, new byte[10]);
+    }
+
+    @Test
+    public void getYV12Size_alignsStridesTo16() {
+        assertEquals(32, YuvTransformer.getYV12Stride(22));
+        assertEquals(16, YuvTransformer.getYV12ChromaStride(22));
+        assertEquals(32 * 14 + 2 * 16 * 7, YuvTransformer.getYV12Size(22, 14));
+    }
+
+    private void assertNV21(int width, int height, int cropX, int cropY, int cropWidth, int cropHeight,
+                            int rotation, boolean mirror) {
+        final byte[] src = random(YuvTransformer.getNV21Size(width, height));
+        final int outputWidth = YuvTransformer.getOutputWidth(cropWidth, cropHeight, rotation);
+        final int outputHeight = YuvTransformer.getOutputHeight(cropWidth, cropHeight, rotation);
+        final byte[] dst = new byte[YuvTransformer.getNV21Size(outputWidth, outputHeight)];
+
+        YuvTransformer.transformNV21(src, width, height, cropX, cropY, cropWidth, cropHeight, rotation, mirror, dst);
+
+        assertArrayEquals(describe("NV21", width, height, cropX, cropY, cropWidth, cropHeight, rotation, mirror),
+                referenceNV21(src, width, height, cropX, cropY, cropWidth, cropHeight, rotation, mirror), dst);
+    }
+
+    private void assertYV12(int width, int height, int cropX, int cropY, int cropWidth, int cropHeight,
+                            int rotation, boolean mirror) {
+        final byte[] src = random(YuvTransformer.getYV12Size(width, height));
+        final int outputWidth = YuvTransformer.getOutputWidth(cropWidth, cropHeight, rotation);
+        final int outputHeight = YuvTransformer.getOutputHeight(cropWidth, cropHeight, rotation);
+        final byte[] dst = new byte[YuvTransformer.getYV12Size(outputWidth, outputHeight)];
+
+        YuvTransformer.transformYV12(src, width, height, cropX, cropY, cropWidth, cropHeight, rotation, mirror, dst);
+
+        // Row padding of destination isn't written, so compare visible pixels only
+        final byte[] expected = referenceYV12(src, width, height, cropX, cropY, cropWidth, cropHeight, rotation, mirror);
+        final String message = describe("YV12", width, height, cropX, cropY, cropWidth, cropHeight, rotation, mirror);
+        final int stride = YuvTransformer.getYV12Stride(outputWidth);
+        final int chromaStride = YuvTransformer.getYV12ChromaStride(outputWidth);
+        for (int y = 0; y < outputHeight; y++)
+            for (int x = 0; x < outputWidth; x++)
+                assertEquals(message + " Y(" + x + ", " + y + ")", expected[y * stride + x], dst[y * stride + x]);
+
+        final int chroma = stride * outputHeight;
+        for (int plane = 0; plane < 2; plane++) {
+            final int offset = chroma + plane * chromaStride * (outputHeight / 2);
+            for (int y = 0; y < outputHeight / 2; y++)
+                for (int x = 0; x < outputWidth / 2; x++) {
+                    final int index = offset + y * chromaStride + x;
+                    assertEquals(message + " plane " + plane + "(" + x + ", " + y + ")", expected[index], dst[index]);
+                }
+        }
+    }
+
+    private byte[] random(int size) {
+        final byte[] bytes = new byte[size];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String describe(String format, int width, int height, int cropX, int cropY,
+                                   int cropWidth, int cropHeight, int rotation, boolean mirror) {
+        return format + " " + width + "x" + height + " crop " + cropX + "," + cropY + " " + cropWidth + "x" + cropHeight
+                + " rotation " + rotation + " mirror " + mirror;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Naive reference : plane as int[row][column] of pixels (an interleaved VU pair is one pixel)
+    // ---------------------------------------------------------------------------------------------
+
+    private static byte[] referenceNV21(byte[] src, int width, int height, int cropX, int cropY,
+                                        int cropWidth, int cropHeight, int rotation, boolean mirror) {
+        final int[][] y = transform(readPlane(src, 0, width, 1, width, height),
+                cropX, cropY, cropWidth, cropHeight, rotation, mirror);
+        final int[][] vu = transform(readPlane(src, width * height, width / 2, 2, width / 2, height / 2),
+                cropX / 2, cropY / 2, cropWidth / 2, cropHeight / 2, rotation, mirror);
+
+        final int outputWidth = y[0].length;
+        final int outputHeight = y.length;
+        final byte[] dst = new byte[YuvTransformer.getNV21Size(outputWidth, outputHeight)];
+        writePlane(y, dst, 0, outputWidth, 1);
+        writePlane(vu, dst, outputWidth * outputHeight, outputWidth / 2, 2);
+        return dst;
+    }
+
+    private static byte[] referenceYV12(byte[] src, int width, int height, int cropX, int cropY,
+                                        int cropWidth, int cropHeight, int rotation, boolean mirror) {
+        final int stride = YuvTransformer.getYV12Stride(width);
+        final int chromaStride = YuvTransformer.getYV12ChromaStride(width);
+        final int chromaSize = chromaStride * (height / 2);
+
+        final int[][] y = transform(readPlane(src, 0, stride, 1, width, height),
+                cropX, cropY, cropWidth, cropHeight, rotation, mirror);
+        final int[][] v = transform(readPlane(src, stride * height, chromaStride, 1, width / 2, height / 2),
+                cropX / 2, cropY / 2, cropWidth / 2, cropHeight / 2, rotation, mirror);
+        final int[][] u = transform(readPlane(src, stride * height + chromaSize, chromaStride, 1, width / 2, height / 2),
+                cropX / 2, cropY / 2, cropWidth / 2, cropHeight / 2, rotation, mirror);
+
+        final int outputWidth = y[0].length;
+        final int outputHeight = y.length;
+        final int dstStride = YuvTransformer.getYV12Stride(outputWidth);
+        final int dstChromaStride = YuvTransformer.getYV12ChromaStride(outputWidth);
+        final byte[] dst = new byte[YuvTransformer.getYV12Size(outputWidth, outputHeight)];
+        writePlane(y, dst, 0, dstStride, 1);
+        writePlane(v, dst, dstStride * outputHeight, dstChromaStride, 1);
+        writePlane(u, dst, dstStride * outputHeight + dstChromaStride * (outputHeight / 2), dstChromaStride, 1);
+        return dst;
+    }
+
+    private static int[][] readPlane(byte[] src, int offset, int stride, int pixelBytes, int width, int height) {
+        final int[][] plane = new int[height][width];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                final int index = offset + (y * stride + x) * pixelBytes;
+                plane[y][x] = pixelBytes == 1 ? src[index] & 0xFF : (src[index] & 0xFF) << 8 | (src[index + 1] & 0xFF);
+            }
+        return plane;
+    }
+
+    private static void writePlane(int[][] plane, byte[] dst, int offset, int stride, int pixelBytes) {
+        for (int y = 0; y < plane.length; y++)
+            for (int x = 0; x < plane[y].length; x++) {
+                final int index = offset + (y * stride + x) * pixelBytes;
+                if (pixelBytes == 1) {
+                    dst[index] = (byte) plane[y][x];
+                } else {
+                    dst[index] = (byte) (plane[y][x] >> 8);
+                    dst[index + 1] = (byte) plane[y][x];
+                }
+            }
+    }
+
+    private static int[][] transform(int[][] plane, int cropX, int cropY, int cropWidth, int cropHeight,
+                                     int rotation, boolean mirror) {
+        int[][] result = new int[cropHeight][cropWidth];
+        for (int y = 0; y < cropHeight; y++)
+            System.arraycopy(plane[cropY + y], cropX, result[y], 0, cropWidth);
+
+        for (int i = 0; i < rotation / 90; i++)
+            result = rotate90(result);
+
+        if (mirror) {
+            for (int[] row : result)
+                for (int left = 0, right = row.length - 1; left < right; left++, right--) {
+                    final int pixel = row[left];
+                    row[left] = row[right];
+                    row[right] = pixel;
+                }
+        }
+        return result;
+    }
+
+    /** Clockwise : top row becomes right column */
+    private static int[][] rotate90(int[][] plane) {
+        final int height = plane.length;
+        final int width = plane[0].length;
+        final int[][] rotated = new int[width][height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                rotated[x][height - 1 - y] = plane[y][x];
+        return rotated;
+    }
+}